@@ -0,0 +1,96 @@
+package org.daisy.urakawa;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
+/**
+ * Records the identifiers of the items of a manager which were added,
+ * removed, renamed (under both their previous and their new identifier) or
+ * changed, so that the changes of the manager can be found without going
+ * through all its items (see {@link ProjectChangeTracker}). Nothing is
+ * recorded until {@link #startRecording()} is called, so that the managers do
+ * not accumulate identifiers nobody reads.
+ * <p>
+ * Used by the MediaDataManager, the DataProviderManager and the
+ * ChannelsManager. Not thread-safe, like the managers.
+ * </p>
+ */
+public final class ChangedUidRecorder
+{
+    private Set<String> mUids = null;
+
+    /**
+     * Starts recording, with no identifier recorded. Does nothing if the
+     * recording is already started.
+     */
+    public void startRecording()
+    {
+        if (mUids == null)
+        {
+            mUids = new HashSet<String>();
+        }
+    }
+
+    /**
+     * Stops recording, and forgets the recorded identifiers.
+     */
+    public void stopRecording()
+    {
+        mUids = null;
+    }
+
+    /**
+     * @return true if the recording is started
+     */
+    public boolean isRecording()
+    {
+        return mUids != null;
+    }
+
+    /**
+     * Records an identifier, if the recording is started.
+     * 
+     * @param uid
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public void record(String uid) throws MethodParameterIsNullException
+    {
+        if (uid == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        if (mUids != null)
+        {
+            mUids.add(uid);
+        }
+    }
+
+    /**
+     * @return the identifiers recorded since the recording started or since
+     *         the previous call to {@link #clear()}, as a read-only view. Empty
+     *         if the recording is not started.
+     */
+    public Set<String> getRecordedUids()
+    {
+        if (mUids == null)
+        {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(mUids);
+    }
+
+    /**
+     * Forgets the recorded identifiers, the recording goes on.
+     */
+    public void clear()
+    {
+        if (mUids != null)
+        {
+            mUids.clear();
+        }
+    }
+}
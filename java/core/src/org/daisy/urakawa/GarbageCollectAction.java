@@ -0,0 +1,620 @@
+package org.daisy.urakawa;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.daisy.urakawa.command.CommandCannotExecuteException;
+import org.daisy.urakawa.core.ITreeNode;
+import org.daisy.urakawa.events.Event;
+import org.daisy.urakawa.events.EventHandler;
+import org.daisy.urakawa.events.IEventHandler;
+import org.daisy.urakawa.events.IEventListener;
+import org.daisy.urakawa.exception.IsNotInitializedException;
+import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
+import org.daisy.urakawa.media.IMedia;
+import org.daisy.urakawa.media.ISequenceMedia;
+import org.daisy.urakawa.media.data.DataIsMissingException;
+import org.daisy.urakawa.media.data.IDataProvider;
+import org.daisy.urakawa.media.data.IFileDataProvider;
+import org.daisy.urakawa.media.data.IManagedMedia;
+import org.daisy.urakawa.media.data.IMediaData;
+import org.daisy.urakawa.media.data.InputStreamIsOpenException;
+import org.daisy.urakawa.media.data.OutputStreamIsOpenException;
+import org.daisy.urakawa.media.data.audio.codec.WavAudioMediaData;
+import org.daisy.urakawa.nativeapi.IStream;
+import org.daisy.urakawa.progress.ProgressAction;
+import org.daisy.urakawa.progress.ProgressInformation;
+import org.daisy.urakawa.xuk.XukDeserializationFailedException;
+
+/**
+ * <p>
+ * Deletes the IMediaData and IDataProvider objects which are not used any
+ * more, with a mark-and-sweep collection: the IMedia of the TreeNodes and the
+ * IMediaData of the undo and redo stacks are the roots, the IMediaData they
+ * use are marked, and then the IDataProviders used by the marked IMediaData.
+ * The IMediaData and IDataProviders of the managers which are not marked are
+ * then deleted (which removes the data files of the IFileDataProviders). The
+ * objects are marked in identity sets, so the collection runs in a time
+ * proportional to the size of the presentations.
+ * </p>
+ * <p>
+ * In a dry run, nothing is deleted: the {@link Report} only tells what would
+ * be deleted, and how many bytes would be freed. A dry run does not modify
+ * the presentations, so it can be run on a background thread (the action is
+ * a Runnable) as long as the presentations are not modified meanwhile. The
+ * action can be cancelled until the sweep starts, in which case nothing is
+ * deleted.
+ * </p>
+ * <p>
+ * Reading the tree of a Presentation opened lazily (see
+ * {@link Project#openXUK(java.net.URI, boolean)}) loads the content skipped
+ * by the open, which changes the tree and is not thread-safe. The
+ * constructors therefore load all this content, on the calling thread, which
+ * must be the one that owns the presentations.
+ * </p>
+ * <p>
+ * The IDataProviders whose streams are open cannot be deleted: they are
+ * skipped, and listed in the report.
+ * </p>
+ */
+public class GarbageCollectAction extends ProgressAction implements Runnable
+{
+    /**
+     * What a collection deleted, or would delete in a dry run.
+     */
+    public static class Report
+    {
+        private List<IMediaData> mUnusedMediaData = new LinkedList<IMediaData>();
+        private List<IDataProvider> mUnusedDataProviders = new LinkedList<IDataProvider>();
+        private List<IDataProvider> mSkippedDataProviders = new LinkedList<IDataProvider>();
+        private List<String> mUnusedMediaDataUids = new LinkedList<String>();
+        private List<String> mUnusedDataProviderUids = new LinkedList<String>();
+        private long mFreedBytes = 0;
+        private boolean mDryRun;
+
+        Report(boolean dryRun)
+        {
+            mDryRun = dryRun;
+        }
+
+        /**
+         * @return true if nothing was actually deleted
+         */
+        public boolean isDryRun()
+        {
+            return mDryRun;
+        }
+
+        /**
+         * @return the IMediaData which are not used, in the order of their
+         *         managers
+         */
+        public List<IMediaData> getListOfUnusedMediaData()
+        {
+            return mUnusedMediaData;
+        }
+
+        /**
+         * @return the IDataProviders which are not used, in the order of their
+         *         managers, including the skipped ones
+         */
+        public List<IDataProvider> getListOfUnusedDataProviders()
+        {
+            return mUnusedDataProviders;
+        }
+
+        /**
+         * @return the UIDs of the unused IMediaData, in the same order as
+         *         {@link #getListOfUnusedMediaData()}, as they were before the
+         *         IMediaData were deleted
+         */
+        public List<String> getListOfUnusedMediaDataUids()
+        {
+            return mUnusedMediaDataUids;
+        }
+
+        /**
+         * @return the UIDs of the unused IDataProviders, in the same order as
+         *         {@link #getListOfUnusedDataProviders()}, as they were before
+         *         the IDataProviders were deleted
+         */
+        public List<String> getListOfUnusedDataProviderUids()
+        {
+            return mUnusedDataProviderUids;
+        }
+
+        /**
+         * @return the unused IDataProviders which could not be deleted because
+         *         one of their streams was open, always empty in a dry run
+         */
+        public List<IDataProvider> getListOfSkippedDataProviders()
+        {
+            return mSkippedDataProviders;
+        }
+
+        /**
+         * @return the number of bytes of data of the deleted IDataProviders,
+         *         or of the IDataProviders which would be deleted in a dry run
+         */
+        public long getFreedBytes()
+        {
+            return mFreedBytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(mDryRun ? "Would delete " : "Deleted ");
+            sb.append(mUnusedMediaData.size());
+            sb.append(" media data and ");
+            sb.append(mUnusedDataProviders.size()
+                    - mSkippedDataProviders.size());
+            sb.append(" data providers (");
+            sb.append(mFreedBytes);
+            sb.append(" bytes)");
+            if (mSkippedDataProviders.size() > 0)
+            {
+                sb.append(", skipped ");
+                sb.append(mSkippedDataProviders.size());
+                sb.append(" data providers with open streams");
+            }
+            for (String uid : mUnusedMediaDataUids)
+            {
+                sb.append("\n  media data ");
+                sb.append(uid);
+            }
+            Iterator<IDataProvider> provs = mUnusedDataProviders.iterator();
+            for (String uid : mUnusedDataProviderUids)
+            {
+                sb.append("\n  data provider ");
+                sb.append(uid);
+                if (mSkippedDataProviders.contains(provs.next()))
+                {
+                    sb.append(" (skipped)");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    protected IEventHandler<Event> mEventNotifier = new EventHandler();
+    private List<Presentation> mPresentations;
+    private boolean mDryRun;
+    private boolean mCompactUsedAudio = false;
+    private Report mReport = null;
+    private RuntimeException mFailure = null;
+    private int mTotal = 0;
+    private int mCurrent = 0;
+
+    /**
+     * @param project
+     *        the project whose presentations are collected, cannot be null
+     * @param dryRun
+     *        if true, nothing is deleted
+     * @throws MethodParameterIsNullException
+     */
+    public GarbageCollectAction(Project project, boolean dryRun)
+            throws MethodParameterIsNullException
+    {
+        if (project == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mPresentations = project.getListOfPresentations();
+        mDryRun = dryRun;
+        loadLazyXukContent();
+    }
+
+    /**
+     * @param pres
+     *        the presentation to collect, cannot be null
+     * @param dryRun
+     *        if true, nothing is deleted
+     * @throws MethodParameterIsNullException
+     */
+    public GarbageCollectAction(Presentation pres, boolean dryRun)
+            throws MethodParameterIsNullException
+    {
+        if (pres == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mPresentations = new LinkedList<Presentation>();
+        mPresentations.add(pres);
+        mDryRun = dryRun;
+        loadLazyXukContent();
+    }
+
+    /**
+     * Loads the content skipped by a lazy open in the trees of the
+     * presentations, so that they can be marked on another thread.
+     */
+    private void loadLazyXukContent()
+    {
+        for (Presentation pres : mPresentations)
+        {
+            ITreeNode root = pres.getRootNode();
+            if (root == null)
+            {
+                continue;
+            }
+            try
+            {
+                Presentation.loadLazyXukContent(root);
+            }
+            catch (XukDeserializationFailedException e)
+            {
+                throw new RuntimeException(
+                        "Cannot load the content skipped by the lazy open", e);
+            }
+        }
+    }
+
+    /**
+     * @param compact
+     *        if true, the used WavAudioMediaData are rewritten to a single
+     *        IDataProvider before their IDataProviders are marked (see
+     *        {@link WavAudioMediaData#forceSingleDataProvider()}), so that the
+     *        unused parts of their audio data can be deleted. Ignored in a dry
+     *        run. False by default.
+     */
+    public void setCompactUsedAudio(boolean compact)
+    {
+        mCompactUsedAudio = compact;
+    }
+
+    /**
+     * @return true if the used WavAudioMediaData are compacted
+     */
+    public boolean getCompactUsedAudio()
+    {
+        return mCompactUsedAudio;
+    }
+
+    /**
+     * @return the report of the last completed execution, or null if the
+     *         action has not completed (not executed yet, cancelled or failed)
+     */
+    public Report getReport()
+    {
+        return mReport;
+    }
+
+    /**
+     * @return the exception which made the last {@link #run()} fail, or null
+     */
+    public RuntimeException getFailure()
+    {
+        return mFailure;
+    }
+
+    @Override
+    public ProgressInformation getProgressInfo()
+    {
+        try
+        {
+            return new ProgressInformation(mTotal, mCurrent);
+        }
+        catch (MethodParameterIsOutOfBoundsException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    public boolean canExecute()
+    {
+        return true;
+    }
+
+    /**
+     * Executes the action, and records its failure instead of throwing it
+     * (see {@link #getFailure()}), to be run on a background thread.
+     */
+    public void run()
+    {
+        mFailure = null;
+        try
+        {
+            execute();
+        }
+        catch (CommandCannotExecuteException e)
+        {
+            mFailure = new RuntimeException(e);
+        }
+        catch (RuntimeException e)
+        {
+            mFailure = e;
+        }
+    }
+
+    /**
+     * Marks the media of the given node and of its descendants.
+     * 
+     * @return false if the action was cancelled
+     */
+    private boolean markTree(Presentation pres, ITreeNode root,
+            Set<IMediaData> usedMediaData)
+    {
+        LinkedList<ITreeNode> nodes = new LinkedList<ITreeNode>();
+        nodes.add(root);
+        LinkedList<IMedia> media = new LinkedList<IMedia>();
+        while (!nodes.isEmpty())
+        {
+            if (notifyProgress())
+            {
+                return false;
+            }
+            ITreeNode node = nodes.removeFirst();
+            try
+            {
+                media.addAll(pres.getListOfMediaUsedByTreeNode(node));
+            }
+            catch (MethodParameterIsNullException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+            while (!media.isEmpty())
+            {
+                IMedia m = media.removeFirst();
+                if (m instanceof IManagedMedia)
+                {
+                    usedMediaData.add(((IManagedMedia) m).getMediaData());
+                }
+                else if (m instanceof ISequenceMedia)
+                {
+                    media.addAll(((ISequenceMedia) m).getListOfItems());
+                }
+            }
+            for (int i = node.getChildCount() - 1; i >= 0; i--)
+            {
+                try
+                {
+                    nodes.addFirst(node.getChild(i));
+                }
+                catch (MethodParameterIsOutOfBoundsException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bytes of data of the given provider
+     */
+    private static long getDataLength(IDataProvider prov)
+    {
+        if (prov instanceof IFileDataProvider)
+        {
+            return new File(((IFileDataProvider) prov).getDataFileFullPath())
+                    .length();
+        }
+        IStream stream;
+        try
+        {
+            stream = prov.getInputStream();
+        }
+        catch (DataIsMissingException e)
+        {
+            return 0;
+        }
+        catch (OutputStreamIsOpenException e)
+        {
+            return 0;
+        }
+        try
+        {
+            return stream.getLength();
+        }
+        finally
+        {
+            try
+            {
+                stream.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @tagvalue Events "Progress-Cancelled-Finished"
+     */
+    public void execute() throws CommandCannotExecuteException
+    {
+        mCancelHasBeenRequested = false;
+        mReport = null;
+        mTotal = 0;
+        mCurrent = 0;
+        for (Presentation pres : mPresentations)
+        {
+            mTotal += pres.getMediaDataManager().getListOfMediaData().size()
+                    + pres.getDataProviderManager().getListOfDataProviders()
+                            .size();
+        }
+        Report report = new Report(mDryRun);
+        List<Long> unusedLengths = new LinkedList<Long>();
+        // Mark
+        for (Presentation pres : mPresentations)
+        {
+            Set<IMediaData> usedMediaData = Collections
+                    .newSetFromMap(new IdentityHashMap<IMediaData, Boolean>());
+            ITreeNode root = pres.getRootNode();
+            if (root != null && !markTree(pres, root, usedMediaData))
+            {
+                notifyCancelled();
+                return;
+            }
+            usedMediaData.addAll(pres.getUndoRedoManager()
+                    .getListOfUsedMediaData());
+            Set<IDataProvider> usedDataProviders = Collections
+                    .newSetFromMap(new IdentityHashMap<IDataProvider, Boolean>());
+            int nDataProviders = pres.getDataProviderManager()
+                    .getListOfDataProviders().size();
+            for (IMediaData md : pres.getMediaDataManager()
+                    .getListOfMediaData())
+            {
+                mCurrent++;
+                if (notifyProgress())
+                {
+                    notifyCancelled();
+                    return;
+                }
+                if (!usedMediaData.contains(md))
+                {
+                    report.mUnusedMediaData.add(md);
+                    report.mUnusedMediaDataUids.add(md.getUID());
+                    continue;
+                }
+                if (mCompactUsedAudio && !mDryRun
+                        && md instanceof WavAudioMediaData)
+                {
+                    ((WavAudioMediaData) md).forceSingleDataProvider();
+                }
+                usedDataProviders.addAll(md.getListOfUsedDataProviders());
+            }
+            // The compaction creates new IDataProviders
+            List<IDataProvider> dataProviders = pres.getDataProviderManager()
+                    .getListOfDataProviders();
+            mTotal += dataProviders.size() - nDataProviders;
+            for (IDataProvider prov : dataProviders)
+            {
+                mCurrent++;
+                if (notifyProgress())
+                {
+                    notifyCancelled();
+                    return;
+                }
+                if (!usedDataProviders.contains(prov))
+                {
+                    report.mUnusedDataProviders.add(prov);
+                    report.mUnusedDataProviderUids.add(prov.getUid());
+                    long length = getDataLength(prov);
+                    unusedLengths.add(Long.valueOf(length));
+                    report.mFreedBytes += length;
+                }
+            }
+        }
+        // Sweep: cannot be cancelled
+        if (!mDryRun)
+        {
+            for (IMediaData md : report.mUnusedMediaData)
+            {
+                md.delete();
+            }
+            Iterator<Long> lengths = unusedLengths.iterator();
+            for (IDataProvider prov : report.mUnusedDataProviders)
+            {
+                long length = lengths.next().longValue();
+                try
+                {
+                    if (!prov.getPresentation().getDataProviderManager()
+                            .isManagerOf(prov))
+                    {
+                        // Already deleted with its last reference
+                        continue;
+                    }
+                }
+                catch (IsNotInitializedException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                catch (MethodParameterIsNullException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                try
+                {
+                    prov.delete();
+                }
+                catch (OutputStreamIsOpenException e)
+                {
+                    report.mSkippedDataProviders.add(prov);
+                    report.mFreedBytes -= length;
+                }
+                catch (InputStreamIsOpenException e)
+                {
+                    report.mSkippedDataProviders.add(prov);
+                    report.mFreedBytes -= length;
+                }
+            }
+        }
+        mReport = report;
+        notifyFinished();
+    }
+
+    public String getLongDescription()
+    {
+        return null;
+    }
+
+    public String getShortDescription()
+    {
+        return null;
+    }
+
+    public void setLongDescription(String str)
+            throws MethodParameterIsNullException
+    {
+        /**
+         * Does nothing.
+         */
+    }
+
+    public void setShortDescription(String str)
+            throws MethodParameterIsNullException,
+            MethodParameterIsEmptyStringException
+    {
+        /**
+         * Does nothing.
+         */
+    }
+
+    public <K extends Event> void notifyListeners(K event)
+            throws MethodParameterIsNullException
+    {
+        if (event == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mEventNotifier.notifyListeners(event);
+    }
+
+    public <K extends Event> void registerListener(IEventListener<K> listener,
+            Class<K> klass) throws MethodParameterIsNullException
+    {
+        if (listener == null || klass == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mEventNotifier.registerListener(listener, klass);
+    }
+
+    public <K extends Event> void unregisterListener(
+            IEventListener<K> listener, Class<K> klass)
+            throws MethodParameterIsNullException
+    {
+        if (listener == null || klass == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mEventNotifier.unregisterListener(listener, klass);
+    }
+}
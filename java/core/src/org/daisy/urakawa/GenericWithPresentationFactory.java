@@ -31,6 +31,7 @@ public abstract class GenericWithPresentationFactory<T extends AbstractXukAbleWi
         {
             throw new MethodParameterIsNullException();
         }
+        mPresentation = pres;
     }
 
     /**
@@ -142,8 +142,8 @@ public abstract class GenericXukAbleFactory<T extends AbstractXukAble> extends
     {
         mRegisteredTypeAndQNames.add(tq);
         mRegisteredTypeAndQNamesByQualifiedName.put(tq.mQName.toString(), tq);
-        if (tq.getClass() != null)
-            mRegisteredTypeAndQNamesByType.put(tq.getClass(), tq);
+        if (tq.mKlass != null)
+            mRegisteredTypeAndQNamesByType.put(tq.mKlass, tq);
     }
 
     /**
@@ -336,8 +336,8 @@ public abstract class GenericXukAbleFactory<T extends AbstractXukAble> extends
         {
             throw new MethodParameterIsEmptyStringException();
         }
-        String qname = xukLocalName + ":" + xukNamespaceUri;
-        Class<?> t = lookupType(qname);
+        Class<?> t = lookupType(new QualifiedName(xukLocalName,
+                xukNamespaceUri));
         if (t == null)
             return null;
         return create((Class<T>) t);
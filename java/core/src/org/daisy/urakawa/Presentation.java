@@ -2,25 +2,36 @@ package org.daisy.urakawa;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.daisy.urakawa.command.CommandCannotExecuteException;
 import org.daisy.urakawa.command.CommandFactory;
 import org.daisy.urakawa.core.ITreeNode;
 import org.daisy.urakawa.core.IWithTreeNode;
+import org.daisy.urakawa.core.TreeNode;
 import org.daisy.urakawa.core.TreeNodeFactory;
 import org.daisy.urakawa.core.TreeNodeHasParentException;
-import org.daisy.urakawa.core.visitor.examples.CollectManagedMediaTreeNodeVisitor;
 import org.daisy.urakawa.events.DataModelChangedEvent;
 import org.daisy.urakawa.events.Event;
 import org.daisy.urakawa.events.EventHandler;
 import org.daisy.urakawa.events.IEventHandler;
 import org.daisy.urakawa.events.IEventListener;
 import org.daisy.urakawa.events.LanguageChangedEvent;
+import org.daisy.urakawa.events.core.TreeNodeEvent;
 import org.daisy.urakawa.events.presentation.MetadataAddedEvent;
 import org.daisy.urakawa.events.presentation.MetadataRemovedEvent;
 import org.daisy.urakawa.events.presentation.RootNodeChangedEvent;
 import org.daisy.urakawa.events.presentation.RootUriChangedEvent;
+import org.daisy.urakawa.events.presentation.SubTreesChangedEvent;
 import org.daisy.urakawa.exception.IsAlreadyInitializedException;
 import org.daisy.urakawa.exception.IsNotInitializedException;
 import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
@@ -32,30 +43,28 @@ import org.daisy.urakawa.media.IMediaPresentation;
 import org.daisy.urakawa.media.MediaFactory;
 import org.daisy.urakawa.media.data.DataProviderFactory;
 import org.daisy.urakawa.media.data.DataProviderManager;
-import org.daisy.urakawa.media.data.IDataProvider;
-import org.daisy.urakawa.media.data.IManagedMedia;
-import org.daisy.urakawa.media.data.IMediaData;
-import org.daisy.urakawa.media.data.InputStreamIsOpenException;
 import org.daisy.urakawa.media.data.MediaDataFactory;
 import org.daisy.urakawa.media.data.MediaDataManager;
-import org.daisy.urakawa.media.data.OutputStreamIsOpenException;
-import org.daisy.urakawa.media.data.audio.codec.WavAudioMediaData;
 import org.daisy.urakawa.metadata.IMetadata;
 import org.daisy.urakawa.metadata.IWithMetadata;
 import org.daisy.urakawa.metadata.MetadataFactory;
 import org.daisy.urakawa.nativeapi.IXmlDataReader;
 import org.daisy.urakawa.nativeapi.IXmlDataWriter;
+import org.daisy.urakawa.nativeapi.IXmlFragmentWriter;
 import org.daisy.urakawa.progress.IProgressHandler;
 import org.daisy.urakawa.progress.ProgressCancelledException;
 import org.daisy.urakawa.property.IProperty;
 import org.daisy.urakawa.property.PropertyFactory;
 import org.daisy.urakawa.property.channel.ChannelDoesNotExistException;
 import org.daisy.urakawa.property.channel.ChannelFactory;
+import org.daisy.urakawa.property.channel.ChannelMediaIndex;
 import org.daisy.urakawa.property.channel.ChannelsManager;
 import org.daisy.urakawa.property.channel.IChannel;
 import org.daisy.urakawa.property.channel.IChannelsProperty;
+import org.daisy.urakawa.property.xml.XmlPropertyIndex;
 import org.daisy.urakawa.undo.UndoRedoManager;
 import org.daisy.urakawa.xuk.AbstractXukAble;
+import org.daisy.urakawa.xuk.ILazyXukAble;
 import org.daisy.urakawa.xuk.IXukAble;
 import org.daisy.urakawa.xuk.XukDeserializationFailedException;
 import org.daisy.urakawa.xuk.XukSerializationFailedException;
@@ -128,6 +137,12 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
     private URI mRootUri;
     private String mLanguage;
     private List<IMetadata> mMetadata;
+    private int mBatchLevel = 0;
+    private Thread mBatchThread = null;
+    private Set<ITreeNode> mBatchChangedNodes = null;
+    private int mXukOutWorkerCount = 1;
+    private XmlPropertyIndex mXmlPropertyIndex = null;
+    private ChannelMediaIndex mChannelMediaIndex = null;
     // The 3 event bus below handle events related to language, URI and
     // root-node change events for this Presentation.
     // Please note that this class automatically adds a listener for the
@@ -169,6 +184,11 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
         {
             throw new MethodParameterIsNullException();
         }
+        if (mBatchLevel > 0 && event instanceof TreeNodeEvent)
+        {
+            addBatchChange(((TreeNodeEvent) event).getSourceTreeNode());
+            return;
+        }
         if (LanguageChangedEvent.class.isAssignableFrom(event.getClass()))
         {
             mLanguageChangedEventNotifier.notifyListeners(event);
@@ -325,6 +345,12 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
             {
                 throw new MethodParameterIsNullException();
             }
+            if (mBatchLevel > 0)
+            {
+                ITreeNode origin = event.getOriginTreeNode();
+                addBatchChange(origin != null ? origin : mRootNode);
+                return;
+            }
             notifyListeners(event);
         }
     };
@@ -417,7 +443,8 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
     public void setLanguage(String lang)
             throws MethodParameterIsEmptyStringException
     {
-        if (lang.length() == 0)
+        // Can be null, see IWithLanguage
+        if (lang != null && lang.length() == 0)
         {
             throw new MethodParameterIsEmptyStringException();
         }
@@ -450,70 +477,33 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
      * IMediaData (and IDataProvider) objects are unused, and therefore can be
      * safely delete from the Managers (MediaDataManager and
      * DataProviderManager). This of course can potentially remove files from
-     * the filesystem, for example in the case of IFileDataProvider.
+     * the filesystem, for example in the case of IFileDataProvider. The used
+     * WavAudioMediaData are compacted to a single IDataProvider, and the
+     * IDataProviders whose streams are open are skipped. See
+     * {@link GarbageCollectAction} to report what would be deleted without
+     * deleting anything.
      */
     public void cleanup()
     {
-        CollectManagedMediaTreeNodeVisitor collectorVisitor = new CollectManagedMediaTreeNodeVisitor();
-        if (getRootNode() != null)
+        GarbageCollectAction action;
+        try
         {
-            try
-            {
-                getRootNode().acceptDepthFirst(collectorVisitor);
-            }
-            catch (MethodParameterIsNullException e)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e);
-            }
+            action = new GarbageCollectAction(this, false);
         }
-        List<IMediaData> usedMediaData;
-        usedMediaData = getUndoRedoManager().getListOfUsedMediaData();
-        for (IManagedMedia mm : collectorVisitor.getListOfCollectedMedia())
+        catch (MethodParameterIsNullException e)
         {
-            if (!usedMediaData.contains(mm.getMediaData()))
-                usedMediaData.add(mm.getMediaData());
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
         }
-        List<IDataProvider> usedDataProviders = new LinkedList<IDataProvider>();
-        for (IMediaData md : getMediaDataManager().getListOfMediaData())
+        action.setCompactUsedAudio(true);
+        try
         {
-            if (usedMediaData.contains(md))
-            {
-                if (md instanceof WavAudioMediaData)
-                {
-                    ((WavAudioMediaData) md).forceSingleDataProvider();
-                }
-                for (IDataProvider dp : md.getListOfUsedDataProviders())
-                {
-                    if (!usedDataProviders.contains(dp))
-                        usedDataProviders.add(dp);
-                }
-            }
-            else
-            {
-                md.delete();
-            }
+            action.execute();
         }
-        for (IDataProvider dp : getDataProviderManager()
-                .getListOfDataProviders())
+        catch (CommandCannotExecuteException e)
         {
-            if (!usedDataProviders.contains(dp))
-            {
-                try
-                {
-                    dp.delete();
-                }
-                catch (OutputStreamIsOpenException e)
-                {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
-                }
-                catch (InputStreamIsOpenException e)
-                {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
-                }
-            }
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
         }
     }
 
@@ -547,6 +537,185 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
         return mRootNode;
     }
 
+    /**
+     * Starts a batch of changes. Until the matching {@link #endBatch()}, the
+     * events raised from within the tree of TreeNodes are delivered to the
+     * listeners of the TreeNode that raised them, but are not bubbled up to
+     * its ancestors, this Presentation and the Project. Instead, the changed
+     * nodes are recorded, and a single {@link SubTreesChangedEvent} is raised
+     * when the outermost batch ends. Batches can be nested.
+     * <p>
+     * This includes the
+     * {@link org.daisy.urakawa.events.core.ChildAddedEvent} and
+     * {@link org.daisy.urakawa.events.core.ChildRemovedEvent} that {@link ITreeNode#insert(ITreeNode, int)} and
+     * {@link ITreeNode#removeChild(int)} send to this Presentation directly:
+     * the listeners registered on this Presentation (or on the Project) for
+     * any {@link TreeNodeEvent} receive none of them during the batch, only
+     * the {@link SubTreesChangedEvent} at its end.
+     * </p>
+     * <p>
+     * The indexes of the tree ({@link #getXmlPropertyIndex()} and
+     * {@link #getChannelMediaIndex()}) are not maintained from these events
+     * either: each change recorded during the batch discards them, and the
+     * next lookup builds them again over the whole tree. Making all the
+     * changes of a batch before looking the indexes up costs a single build.
+     * </p>
+     * <p>
+     * A batch is confined to the thread that began it: the nested calls and
+     * the matching {@link #endBatch()} must be made on that thread, and the
+     * tree must not be edited from another thread during the batch. Like the
+     * rest of the data model, the batch state is not synchronized.
+     * </p>
+     * 
+     * @throws IllegalStateException
+     *         if a batch was begun on another thread and is not ended
+     */
+    public void beginBatch()
+    {
+        if (mBatchLevel == 0)
+        {
+            mBatchThread = Thread.currentThread();
+        }
+        else
+            if (mBatchThread != Thread.currentThread())
+            {
+                throw new IllegalStateException(
+                        "A batch is in progress on another thread");
+            }
+        mBatchLevel++;
+    }
+
+    /**
+     * Ends a batch of changes started by {@link #beginBatch()}, on the same
+     * thread. Should be called in a "finally" block.
+     * 
+     * @throws IllegalStateException
+     *         if there is no batch to end, or if it was begun on another
+     *         thread
+     */
+    public void endBatch()
+    {
+        if (mBatchLevel == 0)
+        {
+            throw new IllegalStateException("No batch to end");
+        }
+        if (mBatchThread != Thread.currentThread())
+        {
+            throw new IllegalStateException(
+                    "The batch was begun on another thread");
+        }
+        mBatchLevel--;
+        if (mBatchLevel > 0)
+        {
+            return;
+        }
+        mBatchThread = null;
+        if (mBatchChangedNodes == null)
+        {
+            return;
+        }
+        Set<ITreeNode> changed = mBatchChangedNodes;
+        mBatchChangedNodes = null;
+        List<ITreeNode> roots = new ArrayList<ITreeNode>();
+        for (ITreeNode node : changed)
+        {
+            boolean covered = false;
+            for (ITreeNode p = node.getParent(); p != null; p = p.getParent())
+            {
+                if (changed.contains(p))
+                {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered)
+            {
+                roots.add(node);
+            }
+        }
+        try
+        {
+            notifyListeners(new SubTreesChangedEvent(this, roots));
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    /**
+     * @return the number of threads serializing this Presentation in
+     *         {@link #xukOut(IXmlDataWriter, URI, IProgressHandler)}
+     */
+    public int getXukOutWorkerCount()
+    {
+        return mXukOutWorkerCount;
+    }
+
+    /**
+     * Sets the number of threads serializing this Presentation. With 1 (the
+     * default), or when the destination is not an {@link IXmlFragmentWriter},
+     * the Presentation is serialized on the calling thread. Otherwise the
+     * factories, each manager, the metadata and the top-level subtrees of the
+     * root node are serialized into separate fragments of the destination by
+     * a pool of worker threads, and inserted in the document order: the
+     * resulting XUK document is the same. The tree must not be modified
+     * during the serialization, and the progress handler is then called from
+     * the worker threads (one at a time).
+     * 
+     * @param count
+     * @throws MethodParameterIsOutOfBoundsException
+     *         if count < 1
+     */
+    public void setXukOutWorkerCount(int count)
+            throws MethodParameterIsOutOfBoundsException
+    {
+        if (count < 1)
+        {
+            throw new MethodParameterIsOutOfBoundsException();
+        }
+        mXukOutWorkerCount = count;
+    }
+
+    /**
+     * @return true if a batch of changes is in progress
+     */
+    public boolean isInBatch()
+    {
+        return mBatchLevel > 0;
+    }
+
+    /**
+     * Records a change in the sub-tree of the given node, during a batch.
+     * Called by the TreeNodes instead of bubbling their events.
+     * 
+     * @param node
+     * @hidden
+     */
+    public void addBatchChange(ITreeNode node)
+    {
+        if (mBatchLevel == 0 || node == null)
+        {
+            return;
+        }
+        if (mBatchChangedNodes == null)
+        {
+            mBatchChangedNodes = new LinkedHashSet<ITreeNode>();
+        }
+        mBatchChangedNodes.add(node);
+        // The events of the batch are not delivered: the indexes are built
+        // again on their next lookup, once for all the changes made until then
+        if (mXmlPropertyIndex != null)
+        {
+            mXmlPropertyIndex.clear();
+        }
+        if (mChannelMediaIndex != null)
+        {
+            mChannelMediaIndex.clear();
+        }
+    }
+
     /**
      * @hidden
      */
@@ -878,49 +1047,12 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
         return res;
     }
 
-    /**
-     * @hidden
-     */
-    private void collectUsedMedia(ITreeNode node, List<IMedia> collectedMedia)
-    {
-        try
-        {
-            for (IMedia m : getListOfMediaUsedByTreeNode(node))
-            {
-                if (!collectedMedia.contains(m))
-                    collectedMedia.add(m);
-            }
-        }
-        catch (MethodParameterIsNullException e1)
-        {
-            // Should never happen
-            throw new RuntimeException("WTF ??!", e1);
-        }
-        for (int i = 0; i < node.getChildCount(); i++)
-        {
-            try
-            {
-                collectUsedMedia(node.getChild(i), collectedMedia);
-            }
-            catch (MethodParameterIsOutOfBoundsException e)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e);
-            }
-        }
-    }
-
     /**
      * @hidden
      */
     public List<IMedia> getListOfUsedMedia()
     {
-        List<IMedia> res = new LinkedList<IMedia>();
-        if (getRootNode() != null)
-        {
-            collectUsedMedia(getRootNode(), res);
-        }
-        return res;
+        return new LinkedList<IMedia>(getChannelMediaIndex().getListOfMedia());
     }
 
     /**
@@ -966,6 +1098,48 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
         mChannelFactory = factory;
     }
 
+    /**
+     * @return the index of the TreeNodes of the tree by the name of their
+     *         IXmlProperty, created on the first call
+     */
+    public XmlPropertyIndex getXmlPropertyIndex()
+    {
+        if (mXmlPropertyIndex == null)
+        {
+            try
+            {
+                mXmlPropertyIndex = new XmlPropertyIndex(this);
+            }
+            catch (MethodParameterIsNullException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+        }
+        return mXmlPropertyIndex;
+    }
+
+    /**
+     * @return the index of the TreeNodes of the tree by the channels and media
+     *         of their IChannelsProperty, created on the first call
+     */
+    public ChannelMediaIndex getChannelMediaIndex()
+    {
+        if (mChannelMediaIndex == null)
+        {
+            try
+            {
+                mChannelMediaIndex = new ChannelMediaIndex(this);
+            }
+            catch (MethodParameterIsNullException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+        }
+        return mChannelMediaIndex;
+    }
+
     /**
      * @hidden
      */
@@ -1608,6 +1782,7 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
                             // Should never happen
                             throw new RuntimeException("WTF ??!", e);
                         }
+                        beginBatch();
                         try
                         {
                             newRoot.xukIn(source, ph);
@@ -1617,6 +1792,10 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
                             // Should never happen
                             throw new RuntimeException("WTF ??!", e);
                         }
+                        finally
+                        {
+                            endBatch();
+                        }
                     }
                     else
                     {
@@ -1656,6 +1835,13 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
         {
             throw new ProgressCancelledException();
         }
+        if (mXukOutWorkerCount > 1
+                && destination instanceof IXmlFragmentWriter)
+        {
+            xukOutChildrenInParallel((IXmlFragmentWriter) destination,
+                    baseUri, ph);
+            return;
+        }
         try
         {
             // super.xukOutChildren(destination, baseUri);
@@ -1702,6 +1888,316 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
         }
     }
 
+    /**
+     * Lets the worker threads share a progress handler.
+     */
+    private static class SynchronizedProgressHandler implements
+            IProgressHandler
+    {
+        private IProgressHandler mHandler;
+
+        SynchronizedProgressHandler(IProgressHandler handler)
+        {
+            mHandler = handler;
+        }
+
+        public synchronized boolean notifyProgress()
+        {
+            return mHandler.notifyProgress();
+        }
+
+        public synchronized void notifyCancelled()
+        {
+            mHandler.notifyCancelled();
+        }
+
+        public synchronized void notifyFinished()
+        {
+            mHandler.notifyFinished();
+        }
+
+        public synchronized <K extends Event> void registerListener(
+                IEventListener<K> listener, Class<K> klass)
+                throws MethodParameterIsNullException
+        {
+            mHandler.registerListener(listener, klass);
+        }
+
+        public synchronized <K extends Event> void unregisterListener(
+                IEventListener<K> listener, Class<K> klass)
+                throws MethodParameterIsNullException
+        {
+            mHandler.unregisterListener(listener, klass);
+        }
+
+        public synchronized <K extends Event> void notifyListeners(K event)
+                throws MethodParameterIsNullException
+        {
+            mHandler.notifyListeners(event);
+        }
+    }
+
+    /**
+     * A part of the children of the Presentation element, serialized into a
+     * fragment by a worker thread.
+     */
+    private abstract class XukOutSection implements Callable<IXmlDataWriter>
+    {
+        private IXmlDataWriter mFragment;
+        protected URI mBaseUri;
+        protected IProgressHandler mProgressHandler;
+
+        XukOutSection(IXmlFragmentWriter destination, String namespace,
+                URI baseUri, IProgressHandler ph)
+        {
+            mFragment = destination.createFragmentWriter(namespace);
+            mBaseUri = baseUri;
+            mProgressHandler = ph;
+        }
+
+        public IXmlDataWriter call() throws Exception
+        {
+            xukOut(mFragment);
+            return mFragment;
+        }
+
+        abstract void xukOut(IXmlDataWriter fragment) throws Exception;
+    }
+
+    /**
+     * @hidden
+     */
+    private void xukOutChildrenInParallel(IXmlFragmentWriter destination,
+            URI baseUri, IProgressHandler ph)
+            throws XukSerializationFailedException, ProgressCancelledException
+    {
+        IProgressHandler handler = (ph == null ? null
+                : new SynchronizedProgressHandler(ph));
+        String ns = getXukNamespaceURI();
+        List<XukOutSection> sections = new ArrayList<XukOutSection>();
+        sections.add(new XukOutSection(destination, ns, baseUri, handler)
+        {
+            @Override
+            void xukOut(IXmlDataWriter fragment) throws Exception
+            {
+                getTreeNodeFactory().xukOut(fragment, mBaseUri,
+                        mProgressHandler);
+                getPropertyFactory().xukOut(fragment, mBaseUri,
+                        mProgressHandler);
+                getMediaFactory().xukOut(fragment, mBaseUri, mProgressHandler);
+                getChannelFactory().xukOut(fragment, mBaseUri,
+                        mProgressHandler);
+                getDataProviderFactory().xukOut(fragment, mBaseUri,
+                        mProgressHandler);
+                getMediaDataFactory().xukOut(fragment, mBaseUri,
+                        mProgressHandler);
+                getCommandFactory().xukOut(fragment, mBaseUri,
+                        mProgressHandler);
+                getMetadataFactory().xukOut(fragment, mBaseUri,
+                        mProgressHandler);
+            }
+        });
+        final IXukAble[] managers = new IXukAble[] { getChannelsManager(),
+                getDataProviderManager(), getMediaDataManager(),
+                getUndoRedoManager() };
+        final String[] managerElements = new String[] { "mChannelsManager",
+                "mDataProviderManager", "mMediaDataManager",
+                "mUndoRedoManager" };
+        for (int i = 0; i < managers.length; i++)
+        {
+            final int index = i;
+            sections.add(new XukOutSection(destination, ns, baseUri, handler)
+            {
+                @Override
+                void xukOut(IXmlDataWriter fragment) throws Exception
+                {
+                    fragment.writeStartElement(managerElements[index],
+                            IXukAble.XUK_NS);
+                    managers[index].xukOut(fragment, mBaseUri,
+                            mProgressHandler);
+                    fragment.writeEndElement();
+                }
+            });
+        }
+        sections.add(new XukOutSection(destination, ns, baseUri, handler)
+        {
+            @Override
+            void xukOut(IXmlDataWriter fragment) throws Exception
+            {
+                fragment.writeStartElement("mMetadata", IXukAble.XUK_NS);
+                for (IMetadata md : mMetadata)
+                {
+                    md.xukOut(fragment, mBaseUri, mProgressHandler);
+                }
+                fragment.writeEndElement();
+            }
+        });
+        final ITreeNode root = getRootNode();
+        // The top-level subtrees, in groups of consecutive children so that
+        // there are a few groups per worker
+        int nSubTreeSections = 0;
+        if (root instanceof TreeNode)
+        {
+            // The content skipped by a lazy open must not be loaded
+            // concurrently
+            try
+            {
+                loadLazyXukContent(root);
+            }
+            catch (XukDeserializationFailedException e)
+            {
+                throw new XukSerializationFailedException();
+            }
+            int nChildren = root.getChildCount();
+            int groupSize = Math.max(1, (nChildren + 4 * mXukOutWorkerCount - 1)
+                    / (4 * mXukOutWorkerCount));
+            for (int i = 0; i < nChildren; i += groupSize)
+            {
+                final int start = i;
+                final int end = Math.min(nChildren, i + groupSize);
+                sections.add(new XukOutSection(destination, IXukAble.XUK_NS,
+                        baseUri, handler)
+                {
+                    @Override
+                    void xukOut(IXmlDataWriter fragment) throws Exception
+                    {
+                        for (int c = start; c < end; c++)
+                        {
+                            root.getChild(c).xukOut(fragment, mBaseUri,
+                                    mProgressHandler);
+                        }
+                    }
+                });
+                nSubTreeSections++;
+            }
+        }
+        else
+        {
+            sections.add(new XukOutSection(destination, ns, baseUri, handler)
+            {
+                @Override
+                void xukOut(IXmlDataWriter fragment) throws Exception
+                {
+                    fragment.writeStartElement("mRootNode", IXukAble.XUK_NS);
+                    root.xukOut(fragment, mBaseUri, mProgressHandler);
+                    fragment.writeEndElement();
+                }
+            });
+        }
+        List<IXmlDataWriter> fragments = runXukOutSections(sections);
+        int nPresentationSections = fragments.size() - nSubTreeSections;
+        for (int i = 0; i < nPresentationSections; i++)
+        {
+            destination.writeFragment(fragments.get(i));
+        }
+        if (root instanceof TreeNode)
+        {
+            destination.writeStartElement("mRootNode", IXukAble.XUK_NS);
+            try
+            {
+                ((TreeNode) root).xukOutWithChildFragments(destination,
+                        baseUri, ph, fragments.subList(nPresentationSections,
+                                fragments.size()));
+            }
+            catch (MethodParameterIsNullException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+            destination.writeEndElement();
+        }
+    }
+
+    /**
+     * Runs the given sections on a pool of mXukOutWorkerCount threads.
+     * 
+     * @return the fragments of the sections, in the same order
+     */
+    private List<IXmlDataWriter> runXukOutSections(List<XukOutSection> sections)
+            throws XukSerializationFailedException, ProgressCancelledException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+                mXukOutWorkerCount, sections.size()));
+        try
+        {
+            List<Future<IXmlDataWriter>> futures = new ArrayList<Future<IXmlDataWriter>>(
+                    sections.size());
+            for (XukOutSection section : sections)
+            {
+                futures.add(pool.submit(section));
+            }
+            List<IXmlDataWriter> fragments = new ArrayList<IXmlDataWriter>(
+                    sections.size());
+            for (Future<IXmlDataWriter> future : futures)
+            {
+                try
+                {
+                    fragments.add(future.get());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(
+                            "Interrupted while serializing the presentation",
+                            e);
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof XukSerializationFailedException)
+                    {
+                        throw (XukSerializationFailedException) cause;
+                    }
+                    if (cause instanceof ProgressCancelledException)
+                    {
+                        throw (ProgressCancelledException) cause;
+                    }
+                    if (cause instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+            return fragments;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads the content skipped by a lazy open in the given sub-tree, so that
+     * it can then be read from other threads.
+     */
+    static void loadLazyXukContent(ITreeNode root)
+            throws XukDeserializationFailedException
+    {
+        LinkedList<ITreeNode> nodes = new LinkedList<ITreeNode>();
+        nodes.add(root);
+        while (!nodes.isEmpty())
+        {
+            ITreeNode node = nodes.removeFirst();
+            if (node instanceof ILazyXukAble)
+            {
+                ((ILazyXukAble) node).loadLazyXukContent();
+            }
+            for (int i = node.getChildCount() - 1; i >= 0; i--)
+            {
+                try
+                {
+                    nodes.addFirst(node.getChild(i));
+                }
+                catch (MethodParameterIsOutOfBoundsException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+        }
+    }
+
     /**
      * @hidden
      */
@@ -1838,7 +2334,7 @@ public class Presentation extends AbstractXukAble implements IWithRootURI,
                         getChannelFactory().xukIn(source, ph);
                     }
                     else
-                        if (str == "ChannelsManager")
+                        if (str == "mChannelsManager")
                         {
                             xukInXukAbleFromChild(source, new IXukAbleCreator()
                             {
@@ -1,6 +1,8 @@
 package org.daisy.urakawa;
 
+import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.xuk.QualifiedName;
 
 /**
  * Extension of the generic factory to handle one or more specific types derived
@@ -27,4 +29,27 @@ public class PresentationFactory extends GenericXukAbleFactory<Presentation>
             throw new RuntimeException("WTF ??!", e);
         }
     }
+
+    /**
+     * The types of this factory are not written in the XUK file of the
+     * Project, so the Presentation type is known even when it has not been
+     * registered yet.
+     */
+    @Override
+    public Presentation create(String xukLocalName, String xukNamespaceUri)
+            throws MethodParameterIsNullException,
+            MethodParameterIsEmptyStringException
+    {
+        Presentation res = super.create(xukLocalName, xukNamespaceUri);
+        if (res == null)
+        {
+            QualifiedName qname = getXukQualifiedName(Presentation.class);
+            if (qname.getLocalName().equals(xukLocalName)
+                    && qname.getNamespaceUri().equals(xukNamespaceUri))
+            {
+                res = createPresentation();
+            }
+        }
+        return res;
+    }
 }
@@ -1,5 +1,6 @@
 package org.daisy.urakawa;
 
+import java.io.IOException;
 import java.net.URI;
 import java.util.LinkedList;
 import java.util.List;
@@ -23,7 +24,9 @@ import org.daisy.urakawa.progress.IProgressHandler;
 import org.daisy.urakawa.progress.ProgressCancelledException;
 import org.daisy.urakawa.xuk.AbstractXukAble;
 import org.daisy.urakawa.xuk.IXukAble;
+import org.daisy.urakawa.xuk.OpenBinaryXukAction;
 import org.daisy.urakawa.xuk.OpenXukAction;
+import org.daisy.urakawa.xuk.SaveBinaryXukAction;
 import org.daisy.urakawa.xuk.SaveXukAction;
 import org.daisy.urakawa.xuk.XukDeserializationFailedException;
 import org.daisy.urakawa.xuk.XukSerializationFailedException;
@@ -285,10 +288,37 @@ public class Project extends AbstractXukAble implements IWithPresentations,
         mPresentationFactory = factory;
     }
 
+    /**
+     * Replays the changes saved in the journal of the given XUK file, if any
+     * (see {@link ProjectChangeTracker}).
+     */
+    private void applyJournal(URI uri)
+    {
+        try
+        {
+            ProjectChangeTracker.applyJournal(this, uri);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ?!", e);
+        }
+        catch (XukDeserializationFailedException e)
+        {
+            throw new RuntimeException("Cannot apply the journal of " + uri,
+                    e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot read the journal of " + uri, e);
+        }
+    }
+
     /**
      * <p>
      * Reads a XUK-formatted XML file, and generates the equivalent object data
-     * that makes the Project.
+     * that makes the Project. The changes saved in the journal of the file,
+     * if any, are replayed (see {@link ProjectChangeTracker}).
      * </p>
      * 
      * @param uri
@@ -312,6 +342,43 @@ public class Project extends AbstractXukAble implements IWithPresentations,
             // Should never happen
             throw new RuntimeException("WTF ?!", e);
         }
+        applyJournal(uri);
+    }
+
+    /**
+     * <p>
+     * Reads a XUK-formatted XML file, and generates the equivalent object data
+     * that makes the Project. The changes saved in the journal of the file,
+     * if any, are replayed (see {@link ProjectChangeTracker}).
+     * </p>
+     * 
+     * @param uri
+     *        cannot be null.
+     * @param lazyLoading
+     *        if true, the properties and children of the TreeNodes are read
+     *        from the file the first time they are accessed (see
+     *        {@link OpenXukAction#OpenXukAction(IXukAble, URI, boolean)})
+     * @throws MethodParameterIsNullException
+     *         NULL method parameters are forbidden
+     */
+    public void openXUK(URI uri, boolean lazyLoading)
+            throws MethodParameterIsNullException
+    {
+        if (uri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        OpenXukAction action = new OpenXukAction(this, uri, lazyLoading);
+        try
+        {
+            action.execute();
+        }
+        catch (CommandCannotExecuteException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ?!", e);
+        }
+        applyJournal(uri);
     }
 
     /**
@@ -405,6 +472,67 @@ public class Project extends AbstractXukAble implements IWithPresentations,
         }
     }
 
+    /**
+     * <p>
+     * Reads a binary XUK file (see {@link SaveBinaryXukAction}), and generates
+     * the equivalent object data that makes the Project. The changes saved in
+     * the journal of the file, if any, are replayed (see
+     * {@link ProjectChangeTracker}).
+     * </p>
+     * 
+     * @param uri
+     *        cannot be null.
+     * @throws MethodParameterIsNullException
+     *         NULL method parameters are forbidden
+     */
+    public void openBinaryXUK(URI uri) throws MethodParameterIsNullException
+    {
+        if (uri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        OpenXukAction action = new OpenBinaryXukAction(this, uri);
+        try
+        {
+            action.execute();
+        }
+        catch (CommandCannotExecuteException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ?!", e);
+        }
+        applyJournal(uri);
+    }
+
+    /**
+     * <p>
+     * Writes the object data of the Project into a binary XUK file, which
+     * holds the same content as the XUK-formatted XML file.
+     * </p>
+     * 
+     * @param uri
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     *         NULL method parameter is forbidden
+     */
+    public void saveBinaryXUK(URI uri) throws MethodParameterIsNullException
+    {
+        if (uri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        SaveXukAction action = new SaveBinaryXukAction(this, uri);
+        try
+        {
+            action.execute();
+        }
+        catch (CommandCannotExecuteException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ?!", e);
+        }
+    }
+
     /**
      * @hidden
      */
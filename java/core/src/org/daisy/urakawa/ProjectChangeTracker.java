@@ -0,0 +1,1656 @@
+package org.daisy.urakawa;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.daisy.urakawa.core.ITreeNode;
+import org.daisy.urakawa.events.DataModelChangedEvent;
+import org.daisy.urakawa.events.IEventListener;
+import org.daisy.urakawa.events.core.ChildAddedEvent;
+import org.daisy.urakawa.events.core.ChildRemovedEvent;
+import org.daisy.urakawa.events.core.PropertyAddedEvent;
+import org.daisy.urakawa.events.core.PropertyRemovedEvent;
+import org.daisy.urakawa.events.core.TreeNodeEvent;
+import org.daisy.urakawa.events.presentation.RootNodeChangedEvent;
+import org.daisy.urakawa.events.presentation.SubTreesChangedEvent;
+import org.daisy.urakawa.events.project.PresentationAddedEvent;
+import org.daisy.urakawa.events.project.PresentationRemovedEvent;
+import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
+import org.daisy.urakawa.media.data.DataProviderManager;
+import org.daisy.urakawa.media.data.IDataProvider;
+import org.daisy.urakawa.media.data.IMediaData;
+import org.daisy.urakawa.media.data.MediaDataManager;
+import org.daisy.urakawa.metadata.IMetadata;
+import org.daisy.urakawa.nativeapi.BinaryXmlDataReader;
+import org.daisy.urakawa.nativeapi.BinaryXmlDataWriter;
+import org.daisy.urakawa.nativeapi.FileStream;
+import org.daisy.urakawa.nativeapi.IXmlDataReader;
+import org.daisy.urakawa.nativeapi.IXmlDataWriter;
+import org.daisy.urakawa.nativeapi.MemoryStream;
+import org.daisy.urakawa.progress.ProgressCancelledException;
+import org.daisy.urakawa.property.IProperty;
+import org.daisy.urakawa.property.channel.ChannelsManager;
+import org.daisy.urakawa.property.channel.IChannel;
+import org.daisy.urakawa.xuk.IXukAble;
+import org.daisy.urakawa.xuk.XukDeserializationFailedException;
+import org.daisy.urakawa.xuk.XukJournal;
+import org.daisy.urakawa.xuk.XukSerializationFailedException;
+
+/**
+ * <p>
+ * Saves the changes made to a Project since it was opened from (or last
+ * saved in full to) a XUK file, instead of the whole Project: the changes are
+ * appended to the journal of the file (see {@link XukJournal}), which
+ * {@link Project#openXUK(URI)} replays after reading the file.
+ * </p>
+ * <p>
+ * The changes in the trees of TreeNodes are tracked from the
+ * DataModelChangedEvents bubbling up to the Project: a TreeNode that gained or
+ * lost children (or a sub-tree reported by a SubTreesChangedEvent) is saved
+ * with its whole sub-tree, a TreeNode whose properties (or the media of its
+ * properties) changed is saved without its children. Only the outermost
+ * changed sub-trees are saved, and the TreeNodes are located by their path of
+ * child indexes from the root of their Presentation. The managers of the
+ * channels, data providers and media data record the UIDs of their items
+ * which are added, removed or changed (see {@link ChangedUidRecorder}): only
+ * these items are saved, whatever the number of items. The undo-redo manager
+ * is saved when its modification count changes. The factories and the
+ * metadata do not raise events: they are compared with their content at the
+ * previous save.
+ * </p>
+ * <p>
+ * A full save is made instead, with the atomic replacement of
+ * {@link org.daisy.urakawa.xuk.SaveXukAction}, when the journal would become
+ * larger than the compaction ratio (see {@link #setCompactionRatio(double)})
+ * times the XUK file, when presentations are added or removed, when the
+ * settings of a Presentation or of a manager change, or when the XUK file was
+ * modified by someone else.
+ * </p>
+ * <p>
+ * The tracker must be created right after the Project has been opened from
+ * (or saved to) the XUK file, and all the changes must be made while it is
+ * registered, as it only knows about the changes it was notified of.
+ * </p>
+ */
+public class ProjectChangeTracker implements
+        IEventListener<DataModelChangedEvent>
+{
+    /**
+     * The default compaction ratio: the XUK file is written in full when the
+     * journal would exceed a quarter of its size.
+     */
+    public static final double DEFAULT_COMPACTION_RATIO = 0.25;
+    private Project mProject;
+    private URI mUri;
+    private File mFile;
+    private boolean mBinary;
+    private XukJournal mJournal;
+    private double mCompactionRatio = DEFAULT_COMPACTION_RATIO;
+    private long mFileLength;
+    private long mFileLastModified;
+    private boolean mNeedsFullSave = false;
+    private Set<ITreeNode> mChangedSubTrees = new HashSet<ITreeNode>();
+    private Set<ITreeNode> mChangedProperties = new HashSet<ITreeNode>();
+    private List<PresentationState> mStates = new ArrayList<PresentationState>();
+
+    /**
+     * The content of a Presentation at the previous save, apart from its tree
+     * of TreeNodes.
+     */
+    private static class PresentationState
+    {
+        Presentation mPresentation;
+        byte[] mSettingsDigest;
+        byte[] mFactoriesDigest;
+        byte[] mMetadataDigest;
+        long mUndoRedoModificationCount;
+        /**
+         * The UIDs of the items of each manager (see
+         * {@link ProjectChangeTracker#getItemManagers(Presentation)}).
+         */
+        List<Set<String>> mItemUids = new ArrayList<Set<String>>();
+    }
+
+    /**
+     * Gives a uniform access to the items of the ChannelsManager,
+     * DataProviderManager and MediaDataManager, which are saved and replayed
+     * individually.
+     */
+    private static abstract class ItemManager
+    {
+        abstract String getElementName();
+
+        abstract String getItemElementName();
+
+        abstract List<String> getListOfUids();
+
+        abstract IXukAble getItem(String uid);
+
+        abstract IXukAble createItem(String localName, String namespace);
+
+        abstract void setUid(IXukAble item, String uid);
+
+        abstract void removeItem(String uid);
+
+        abstract ChangedUidRecorder getChangedUidRecorder();
+    }
+
+    /**
+     * @return the managers of the given Presentation, in the order their
+     *         items are replayed
+     */
+    private static ItemManager[] getItemManagers(final Presentation pres)
+    {
+        return new ItemManager[] { new ItemManager()
+        {
+            private DataProviderManager mManager = pres
+                    .getDataProviderManager();
+
+            @Override
+            String getElementName()
+            {
+                return "mDataProviderManager";
+            }
+
+            @Override
+            String getItemElementName()
+            {
+                return "mDataProviderItem";
+            }
+
+            @Override
+            List<String> getListOfUids()
+            {
+                List<String> uids = new ArrayList<String>();
+                for (IDataProvider prov : mManager.getListOfDataProviders())
+                {
+                    uids.add(prov.getUid());
+                }
+                return uids;
+            }
+
+            @Override
+            IXukAble getItem(String uid)
+            {
+                try
+                {
+                    return mManager.isManagerOf(uid) ? mManager
+                            .getDataProvider(uid) : null;
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            IXukAble createItem(String localName, String namespace)
+            {
+                try
+                {
+                    return pres.getDataProviderFactory()
+                            .createFileDataProvider("", localName, namespace);
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            void setUid(IXukAble item, String uid)
+            {
+                try
+                {
+                    mManager.setDataProviderUid((IDataProvider) item, uid);
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            void removeItem(String uid)
+            {
+                try
+                {
+                    mManager.removeDataProvider(uid, false);
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            ChangedUidRecorder getChangedUidRecorder()
+            {
+                return mManager.getChangedUidRecorder();
+            }
+        }, new ItemManager()
+        {
+            private MediaDataManager mManager = pres.getMediaDataManager();
+
+            @Override
+            String getElementName()
+            {
+                return "mMediaDataManager";
+            }
+
+            @Override
+            String getItemElementName()
+            {
+                return "mMediaDataItem";
+            }
+
+            @Override
+            List<String> getListOfUids()
+            {
+                return mManager.getListOfUids();
+            }
+
+            @Override
+            IXukAble getItem(String uid)
+            {
+                try
+                {
+                    return mManager.isManagerOf(uid) ? mManager
+                            .getMediaData(uid) : null;
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            IXukAble createItem(String localName, String namespace)
+            {
+                try
+                {
+                    return pres.getMediaDataFactory().create(localName,
+                            namespace);
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            void setUid(IXukAble item, String uid)
+            {
+                try
+                {
+                    mManager.setDataMediaDataUid(
+                            (IMediaData) item,
+                            uid);
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            void removeItem(String uid)
+            {
+                try
+                {
+                    mManager.removeMediaData(uid);
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            ChangedUidRecorder getChangedUidRecorder()
+            {
+                return mManager.getChangedUidRecorder();
+            }
+        }, new ItemManager()
+        {
+            private ChannelsManager mManager = pres.getChannelsManager();
+
+            @Override
+            String getElementName()
+            {
+                return "mChannelsManager";
+            }
+
+            @Override
+            String getItemElementName()
+            {
+                return "mChannelItem";
+            }
+
+            @Override
+            List<String> getListOfUids()
+            {
+                return mManager.getListOfUids();
+            }
+
+            @Override
+            IXukAble getItem(String uid)
+            {
+                try
+                {
+                    return mManager.isManagerOf(uid) ? mManager
+                            .getChannel(uid) : null;
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            IXukAble createItem(String localName, String namespace)
+            {
+                try
+                {
+                    return pres.getChannelFactory()
+                            .create(localName, namespace);
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            void setUid(IXukAble item, String uid)
+            {
+                try
+                {
+                    mManager.setUidOfChannel((IChannel) item, uid);
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            void removeItem(String uid)
+            {
+                try
+                {
+                    mManager.removeChannel(uid);
+                }
+                catch (Exception e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+
+            @Override
+            ChangedUidRecorder getChangedUidRecorder()
+            {
+                return mManager.getChangedUidRecorder();
+            }
+        } };
+    }
+
+    /**
+     * Registers the tracker with the given Project, which must have just been
+     * opened from (or saved to) the given XUK file.
+     * 
+     * @param project
+     *        cannot be null
+     * @param uri
+     *        the URI of the XUK file, cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public ProjectChangeTracker(Project project, URI uri)
+            throws MethodParameterIsNullException
+    {
+        if (project == null || uri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mProject = project;
+        mUri = uri;
+        mFile = new File(uri.getPath());
+        mBinary = false;
+        if (mFile.exists())
+        {
+            try
+            {
+                FileStream fs = new FileStream(mFile.getPath());
+                try
+                {
+                    mBinary = BinaryXmlDataReader.isBinaryXml(fs);
+                }
+                finally
+                {
+                    fs.close();
+                }
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("Cannot open " + uri, e);
+            }
+        }
+        resetBaseline();
+        mProject.registerListener(this, DataModelChangedEvent.class);
+    }
+
+    /**
+     * Unregisters the tracker from its Project, and stops the recording of
+     * the changed items in its managers.
+     */
+    public void dispose()
+    {
+        try
+        {
+            mProject.unregisterListener(this, DataModelChangedEvent.class);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        stopRecording();
+    }
+
+    /**
+     * @return the ratio of the size of the XUK file above which the journal
+     *         is compacted by a full save
+     */
+    public double getCompactionRatio()
+    {
+        return mCompactionRatio;
+    }
+
+    /**
+     * @param ratio
+     *        the ratio of the size of the XUK file above which the journal is
+     *        compacted by a full save. 0 disables incremental saves.
+     * @throws MethodParameterIsOutOfBoundsException
+     *         if the ratio is negative
+     */
+    public void setCompactionRatio(double ratio)
+            throws MethodParameterIsOutOfBoundsException
+    {
+        if (ratio < 0)
+        {
+            throw new MethodParameterIsOutOfBoundsException();
+        }
+        mCompactionRatio = ratio;
+    }
+
+    /**
+     * @hidden
+     */
+    public <K extends DataModelChangedEvent> void eventCallback(K event)
+            throws MethodParameterIsNullException
+    {
+        if (event == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        if (event instanceof PresentationAddedEvent
+                || event instanceof PresentationRemovedEvent)
+        {
+            mNeedsFullSave = true;
+        }
+        else
+            if (event instanceof ChildAddedEvent
+                    || event instanceof ChildRemovedEvent)
+            {
+                mChangedSubTrees.add(((TreeNodeEvent) event)
+                        .getSourceTreeNode());
+            }
+            else
+                if (event instanceof PropertyAddedEvent
+                        || event instanceof PropertyRemovedEvent)
+                {
+                    mChangedProperties.add(((TreeNodeEvent) event)
+                            .getSourceTreeNode());
+                }
+                else
+                    if (event instanceof SubTreesChangedEvent)
+                    {
+                        mChangedSubTrees.addAll(((SubTreesChangedEvent) event)
+                                .getChangedSubTreeRoots());
+                    }
+                    else
+                        if (event instanceof RootNodeChangedEvent)
+                        {
+                            ITreeNode root = ((RootNodeChangedEvent) event)
+                                    .getNewRootNode();
+                            if (root == null)
+                            {
+                                mNeedsFullSave = true;
+                            }
+                            else
+                            {
+                                mChangedSubTrees.add(root);
+                            }
+                        }
+                        else
+                            if (event.getOriginTreeNode() != null)
+                            {
+                                mChangedProperties.add(event
+                                        .getOriginTreeNode());
+                            }
+    }
+
+    /**
+     * Saves the changes made since the previous save, in the journal of the
+     * XUK file, or in full if needed (see the class description).
+     * 
+     * @return true if the XUK file was written in full
+     * @throws XukSerializationFailedException
+     * @throws IOException
+     *         if the journal cannot be written
+     */
+    public boolean saveChanges() throws XukSerializationFailedException,
+            IOException
+    {
+        if (mNeedsFullSave || mCompactionRatio == 0 || !mFile.exists()
+                || mFile.length() != mFileLength
+                || mFile.lastModified() != mFileLastModified
+                || mProject.getNumberOfPresentations() != mStates.size())
+        {
+            saveAll();
+            return true;
+        }
+        List<PresentationState> states = new ArrayList<PresentationState>();
+        for (int i = 0; i < mStates.size(); i++)
+        {
+            Presentation pres = mProject.getListOfPresentations().get(i);
+            if (pres != mStates.get(i).mPresentation)
+            {
+                saveAll();
+                return true;
+            }
+            PresentationState state = computeState(pres, mStates.get(i));
+            if (!Arrays.equals(state.mSettingsDigest, mStates.get(i).mSettingsDigest))
+            {
+                saveAll();
+                return true;
+            }
+            states.add(state);
+        }
+        Map<Presentation, List<ITreeNode>> subTrees = getOutermostNodes(
+                mChangedSubTrees, null);
+        Map<Presentation, List<ITreeNode>> properties = getOutermostNodes(
+                mChangedProperties, mChangedSubTrees);
+        MemoryStream stream = new MemoryStream();
+        boolean hasChanges;
+        try
+        {
+            IXmlDataWriter writer = new BinaryXmlDataWriter(stream);
+            writer.writeStartDocument();
+            writer.writeStartElement("JournalEntry", IXukAble.XUK_NS);
+            hasChanges = false;
+            for (int i = 0; i < states.size(); i++)
+            {
+                if (writePresentationChanges(writer, i, mStates.get(i),
+                        states.get(i), subTrees, properties))
+                {
+                    hasChanges = true;
+                }
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        if (!hasChanges)
+        {
+            clearChanges(states);
+            return false;
+        }
+        byte[] entry = stream.toArray();
+        if (mJournal.getLength() + entry.length > mCompactionRatio
+                * mFileLength)
+        {
+            saveAll();
+            return true;
+        }
+        try
+        {
+            mJournal.append(entry);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        clearChanges(states);
+        return false;
+    }
+
+    /**
+     * Writes the whole Project to the XUK file (in the format the file was
+     * in), which deletes the journal.
+     */
+    public void saveAll()
+    {
+        try
+        {
+            if (mBinary)
+            {
+                mProject.saveBinaryXUK(mUri);
+            }
+            else
+            {
+                mProject.saveXUK(mUri);
+            }
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        resetBaseline();
+    }
+
+    private void resetBaseline()
+    {
+        mFileLength = mFile.length();
+        mFileLastModified = mFile.lastModified();
+        try
+        {
+            mJournal = new XukJournal(mUri);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        stopRecording();
+        List<PresentationState> states = new ArrayList<PresentationState>();
+        for (Presentation pres : mProject.getListOfPresentations())
+        {
+            for (ItemManager manager : getItemManagers(pres))
+            {
+                manager.getChangedUidRecorder().startRecording();
+            }
+            states.add(computeState(pres, null));
+        }
+        mNeedsFullSave = false;
+        clearChanges(states);
+    }
+
+    private void stopRecording()
+    {
+        for (PresentationState state : mStates)
+        {
+            for (ItemManager manager : getItemManagers(state.mPresentation))
+            {
+                manager.getChangedUidRecorder().stopRecording();
+            }
+        }
+    }
+
+    private void clearChanges(List<PresentationState> states)
+    {
+        mStates = states;
+        mChangedSubTrees.clear();
+        mChangedProperties.clear();
+        for (PresentationState state : mStates)
+        {
+            for (ItemManager manager : getItemManagers(state.mPresentation))
+            {
+                manager.getChangedUidRecorder().clear();
+            }
+        }
+    }
+
+    /**
+     * @return the given TreeNodes that are in the tree of their Presentation,
+     *         and that are not in a sub-tree of another given node (or of a
+     *         node of the covering set), by Presentation
+     */
+    private static Map<Presentation, List<ITreeNode>> getOutermostNodes(
+            Set<ITreeNode> nodes, Set<ITreeNode> covering)
+    {
+        Map<Presentation, List<ITreeNode>> res = new HashMap<Presentation, List<ITreeNode>>();
+        for (ITreeNode node : nodes)
+        {
+            if (covering != null && covering.contains(node))
+            {
+                continue;
+            }
+            boolean covered = false;
+            ITreeNode top = node;
+            while (top.getParent() != null)
+            {
+                top = top.getParent();
+                if (nodes.contains(top)
+                        || (covering != null && covering.contains(top)))
+                {
+                    covered = true;
+                    break;
+                }
+            }
+            if (covered)
+            {
+                continue;
+            }
+            Presentation pres;
+            try
+            {
+                pres = node.getPresentation();
+            }
+            catch (Exception e)
+            {
+                // Not initialized
+                continue;
+            }
+            if (pres.getRootNode() != top)
+            {
+                // Detached
+                continue;
+            }
+            List<ITreeNode> list = res.get(pres);
+            if (list == null)
+            {
+                list = new ArrayList<ITreeNode>();
+                res.put(pres, list);
+            }
+            list.add(node);
+        }
+        return res;
+    }
+
+    /**
+     * @return the path of child indexes from the root of the tree to the
+     *         given node, separated by dots. The path of the root is empty.
+     */
+    private static String getPath(ITreeNode node)
+    {
+        StringBuilder path = new StringBuilder();
+        while (node.getParent() != null)
+        {
+            ITreeNode parent = node.getParent();
+            int index;
+            try
+            {
+                index = parent.indexOf(node);
+            }
+            catch (Exception e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+            if (path.length() > 0)
+            {
+                path.insert(0, '.');
+            }
+            path.insert(0, index);
+            node = parent;
+        }
+        return path.toString();
+    }
+
+    /**
+     * @return the node at the given path in the tree of the given
+     *         Presentation
+     */
+    private static ITreeNode getNode(Presentation pres, String path)
+            throws XukDeserializationFailedException
+    {
+        ITreeNode node = pres.getRootNode();
+        if (path.length() == 0)
+        {
+            return node;
+        }
+        for (String index : path.split("\\."))
+        {
+            try
+            {
+                node = node.getChild(Integer.parseInt(index));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new XukDeserializationFailedException();
+            }
+            catch (MethodParameterIsOutOfBoundsException e)
+            {
+                throw new XukDeserializationFailedException();
+            }
+            catch (NullPointerException e)
+            {
+                throw new XukDeserializationFailedException();
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return the factories of the given Presentation
+     */
+    private static IXukAble[] getFactories(Presentation pres)
+    {
+        return new IXukAble[] { pres.getTreeNodeFactory(),
+                pres.getPropertyFactory(), pres.getMediaFactory(),
+                pres.getChannelFactory(), pres.getDataProviderFactory(),
+                pres.getMediaDataFactory(), pres.getCommandFactory(),
+                pres.getMetadataFactory() };
+    }
+
+    private static MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    private byte[] digest(MessageDigest md, MemoryStream stream)
+    {
+        md.reset();
+        return md.digest(stream.toArray());
+    }
+
+    /**
+     * @param previous
+     *        the state of the Presentation at the previous save, to which the
+     *        items recorded as changed in the managers are applied. If null,
+     *        the items are listed from the managers.
+     * @return the digests of the content of the given Presentation, apart
+     *         from its tree and its managers, and the UIDs of the items of
+     *         its managers
+     */
+    private PresentationState computeState(Presentation pres,
+            PresentationState previous)
+    {
+        PresentationState state = new PresentationState();
+        state.mPresentation = pres;
+        MessageDigest md = createDigest();
+        try
+        {
+            MemoryStream stream = new MemoryStream();
+            IXmlDataWriter writer = new BinaryXmlDataWriter(stream);
+            writer.writeStartElement("Settings", IXukAble.XUK_NS);
+            writer.writeAttributeString("rootUri", pres.getRootURI()
+                    .toString());
+            if (pres.getLanguage() != null)
+            {
+                writer.writeAttributeString("language", pres.getLanguage());
+            }
+            writer.writeAttributeString("dataFileDirectory", pres
+                    .getDataProviderManager().getDataFileDirectory());
+            writer.writeAttributeString("enforceSinglePCMFormat", pres
+                    .getMediaDataManager().getEnforceSinglePCMFormat() ? "true"
+                    : "false");
+            pres.getMediaDataManager().getDefaultPCMFormat().xukOut(writer,
+                    mUri, null);
+            writer.writeEndElement();
+            writer.close();
+            state.mSettingsDigest = digest(md, stream);
+            stream = new MemoryStream();
+            writer = new BinaryXmlDataWriter(stream);
+            for (IXukAble factory : getFactories(pres))
+            {
+                factory.xukOut(writer, mUri, null);
+            }
+            writer.close();
+            state.mFactoriesDigest = digest(md, stream);
+            stream = new MemoryStream();
+            writer = new BinaryXmlDataWriter(stream);
+            for (IMetadata meta : pres.getListOfMetadata())
+            {
+                meta.xukOut(writer, mUri, null);
+            }
+            writer.close();
+            state.mMetadataDigest = digest(md, stream);
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Cannot serialize the presentation",
+                    e);
+        }
+        state.mUndoRedoModificationCount = pres.getUndoRedoManager()
+                .getModificationCount();
+        ItemManager[] managers = getItemManagers(pres);
+        for (int m = 0; m < managers.length; m++)
+        {
+            Set<String> uids;
+            if (previous == null)
+            {
+                uids = new HashSet<String>(managers[m].getListOfUids());
+            }
+            else
+            {
+                uids = new HashSet<String>(previous.mItemUids.get(m));
+                for (String uid : managers[m].getChangedUidRecorder()
+                        .getRecordedUids())
+                {
+                    if (managers[m].getItem(uid) != null)
+                    {
+                        uids.add(uid);
+                    }
+                    else
+                    {
+                        uids.remove(uid);
+                    }
+                }
+            }
+            state.mItemUids.add(uids);
+        }
+        return state;
+    }
+
+    /**
+     * Writes the changes made to a Presentation, if any.
+     * 
+     * @return true if something was written
+     */
+    private boolean writePresentationChanges(IXmlDataWriter writer,
+            int index, PresentationState previous, PresentationState current,
+            Map<Presentation, List<ITreeNode>> subTrees,
+            Map<Presentation, List<ITreeNode>> properties)
+            throws XukSerializationFailedException,
+            MethodParameterIsNullException
+    {
+        Presentation pres = current.mPresentation;
+        List<ITreeNode> changedSubTrees = subTrees.get(pres);
+        List<ITreeNode> changedProperties = properties.get(pres);
+        boolean factoriesChanged = !Arrays.equals(previous.mFactoriesDigest,
+                current.mFactoriesDigest);
+        boolean metadataChanged = !Arrays.equals(previous.mMetadataDigest,
+                current.mMetadataDigest);
+        boolean undoRedoChanged = previous.mUndoRedoModificationCount
+                != current.mUndoRedoModificationCount;
+        ItemManager[] managers = getItemManagers(pres);
+        List<List<String>> changedItems = new ArrayList<List<String>>();
+        List<List<String>> removedItems = new ArrayList<List<String>>();
+        boolean itemsChanged = false;
+        for (int m = 0; m < managers.length; m++)
+        {
+            Set<String> before = previous.mItemUids.get(m);
+            Set<String> after = current.mItemUids.get(m);
+            List<String> changed = new ArrayList<String>();
+            List<String> removed = new ArrayList<String>();
+            for (String uid : managers[m].getChangedUidRecorder()
+                    .getRecordedUids())
+            {
+                if (after.contains(uid))
+                {
+                    changed.add(uid);
+                }
+                else
+                    if (before.contains(uid))
+                    {
+                        removed.add(uid);
+                    }
+            }
+            changedItems.add(changed);
+            removedItems.add(removed);
+            itemsChanged |= changed.size() > 0 || removed.size() > 0;
+        }
+        if (changedSubTrees == null && changedProperties == null
+                && !factoriesChanged && !metadataChanged && !undoRedoChanged && !itemsChanged)
+        {
+            return false;
+        }
+        writer.writeStartElement("Presentation", IXukAble.XUK_NS);
+        writer.writeAttributeString("index", Integer.toString(index));
+        try
+        {
+            // The types registered in the factories are needed to create the
+            // objects of the following elements
+            if (factoriesChanged)
+            {
+                writer.writeStartElement("mFactories", IXukAble.XUK_NS);
+                for (IXukAble factory : getFactories(pres))
+                {
+                    factory.xukOut(writer, mUri, null);
+                }
+                writer.writeEndElement();
+            }
+            for (int m = 0; m < managers.length; m++)
+            {
+                if (changedItems.get(m).size() == 0)
+                {
+                    continue;
+                }
+                writer.writeStartElement(managers[m].getElementName(),
+                        IXukAble.XUK_NS);
+                for (String uid : changedItems.get(m))
+                {
+                    writer.writeStartElement(managers[m].getItemElementName(),
+                            IXukAble.XUK_NS);
+                    writer.writeAttributeString("uid", uid);
+                    managers[m].getItem(uid).xukOut(writer, mUri, null);
+                    writer.writeEndElement();
+                }
+                writer.writeEndElement();
+            }
+            if (metadataChanged)
+            {
+                writer.writeStartElement("mMetadata", IXukAble.XUK_NS);
+                for (IMetadata meta : pres.getListOfMetadata())
+                {
+                    meta.xukOut(writer, mUri, null);
+                }
+                writer.writeEndElement();
+            }
+            if (changedSubTrees != null)
+            {
+                for (ITreeNode node : changedSubTrees)
+                {
+                    writer.writeStartElement("mTreeNode", IXukAble.XUK_NS);
+                    writer.writeAttributeString("path", getPath(node));
+                    node.xukOut(writer, mUri, null);
+                    writer.writeEndElement();
+                }
+            }
+            if (changedProperties != null)
+            {
+                for (ITreeNode node : changedProperties)
+                {
+                    writer.writeStartElement("mTreeNodeProperties",
+                            IXukAble.XUK_NS);
+                    writer.writeAttributeString("path", getPath(node));
+                    for (IProperty prop : node.getListOfProperties())
+                    {
+                        prop.xukOut(writer, mUri, null);
+                    }
+                    writer.writeEndElement();
+                }
+            }
+            if (undoRedoChanged)
+            {
+                writer.writeStartElement("mUndoRedoManager", IXukAble.XUK_NS);
+                pres.getUndoRedoManager().xukOut(writer, mUri, null);
+                writer.writeEndElement();
+            }
+            // The removals come last, as the previous versions of the
+            // TreeNodes may still use the removed items
+            if (itemsChanged)
+            {
+                writer.writeStartElement("mRemovedItems", IXukAble.XUK_NS);
+                for (int m = managers.length - 1; m >= 0; m--)
+                {
+                    for (String uid : removedItems.get(m))
+                    {
+                        writer.writeStartElement(managers[m]
+                                .getItemElementName(), IXukAble.XUK_NS);
+                        writer.writeAttributeString("uid", uid);
+                        writer.writeEndElement();
+                    }
+                }
+                writer.writeEndElement();
+            }
+        }
+        catch (ProgressCancelledException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        writer.writeEndElement();
+        return true;
+    }
+
+    /**
+     * Replays the journal of the given XUK file, if any, on the given Project
+     * which has just been opened from that file.
+     * 
+     * @param project
+     *        cannot be null
+     * @param uri
+     *        the URI of the XUK file, cannot be null
+     * @return the number of entries replayed
+     * @throws MethodParameterIsNullException
+     * @throws XukDeserializationFailedException
+     *         if an entry cannot be replayed
+     * @throws IOException
+     *         if the journal cannot be read
+     */
+    public static int applyJournal(Project project, URI uri)
+            throws MethodParameterIsNullException,
+            XukDeserializationFailedException, IOException
+    {
+        if (project == null || uri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        List<byte[]> entries = new XukJournal(uri).readEntries();
+        for (byte[] entry : entries)
+        {
+            IXmlDataReader source = new BinaryXmlDataReader(new MemoryStream(
+                    entry), uri.toString());
+            try
+            {
+                while (source.read()
+                        && source.getNodeType() != IXmlDataReader.ELEMENT)
+                {
+                    // Skips to the JournalEntry element
+                }
+                if (source.isEOF() || source.isEmptyElement())
+                {
+                    continue;
+                }
+                while (source.read())
+                {
+                    if (source.getNodeType() == IXmlDataReader.ELEMENT)
+                    {
+                        Presentation pres;
+                        try
+                        {
+                            pres = project.getPresentation(Integer
+                                    .parseInt(source.getAttribute("index")));
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            throw new XukDeserializationFailedException();
+                        }
+                        catch (MethodParameterIsOutOfBoundsException e)
+                        {
+                            throw new XukDeserializationFailedException();
+                        }
+                        applyPresentationChanges(pres, source);
+                    }
+                    else
+                        if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
+                        {
+                            break;
+                        }
+                    if (source.isEOF())
+                        throw new XukDeserializationFailedException();
+                }
+            }
+            finally
+            {
+                source.close();
+            }
+        }
+        return entries.size();
+    }
+
+    private static void applyPresentationChanges(Presentation pres,
+            IXmlDataReader source) throws XukDeserializationFailedException,
+            MethodParameterIsNullException
+    {
+        if (source.isEmptyElement())
+        {
+            return;
+        }
+        ItemManager[] managers = getItemManagers(pres);
+        try
+        {
+            while (source.read())
+            {
+                if (source.getNodeType() == IXmlDataReader.ELEMENT)
+                {
+                    String name = source.getLocalName();
+                    ItemManager manager = null;
+                    for (ItemManager m : managers)
+                    {
+                        if (m.getElementName().equals(name))
+                        {
+                            manager = m;
+                        }
+                    }
+                    if (manager != null)
+                    {
+                        applyItems(manager, source);
+                    }
+                    else
+                        if (name.equals("mFactories"))
+                        {
+                            applyFactories(pres, source);
+                        }
+                        else
+                        if (name.equals("mMetadata"))
+                        {
+                            applyMetadata(pres, source);
+                        }
+                        else
+                            if (name.equals("mTreeNode"))
+                            {
+                                applyTreeNode(pres, source);
+                            }
+                            else
+                                if (name.equals("mTreeNodeProperties"))
+                                {
+                                    applyProperties(pres, source);
+                                }
+                                else
+                                    if (name.equals("mUndoRedoManager"))
+                                    {
+                                        applyUndoRedo(pres, source);
+                                    }
+                                    else
+                                        if (name.equals("mRemovedItems"))
+                                        {
+                                            applyRemovals(managers, source);
+                                        }
+                                        else
+                                        {
+                                            skip(source);
+                                        }
+                }
+                else
+                    if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
+                    {
+                        break;
+                    }
+                if (source.isEOF())
+                    throw new XukDeserializationFailedException();
+            }
+        }
+        catch (ProgressCancelledException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    private static void skip(IXmlDataReader source)
+    {
+        if (!source.isEmptyElement())
+        {
+            source.readSubtree().close();
+        }
+    }
+
+    /**
+     * Moves the reader to the first child element of the current element.
+     * 
+     * @return false if there is none (the reader is then on the end of the
+     *         current element)
+     */
+    private static boolean readToFirstChild(IXmlDataReader source)
+            throws XukDeserializationFailedException
+    {
+        if (source.isEmptyElement())
+        {
+            return false;
+        }
+        while (source.read())
+        {
+            if (source.getNodeType() == IXmlDataReader.ELEMENT)
+            {
+                return true;
+            }
+            if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
+            {
+                return false;
+            }
+        }
+        throw new XukDeserializationFailedException();
+    }
+
+    /**
+     * Moves the reader to the end of the current element, skipping the
+     * remaining children.
+     */
+    private static void readToEnd(IXmlDataReader source)
+            throws XukDeserializationFailedException
+    {
+        while (source.read())
+        {
+            if (source.getNodeType() == IXmlDataReader.ELEMENT)
+            {
+                skip(source);
+            }
+            else
+                if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
+                {
+                    return;
+                }
+        }
+        throw new XukDeserializationFailedException();
+    }
+
+    private static void applyItems(ItemManager manager, IXmlDataReader source)
+            throws XukDeserializationFailedException,
+            MethodParameterIsNullException, ProgressCancelledException
+    {
+        if (source.isEmptyElement())
+        {
+            return;
+        }
+        while (source.read())
+        {
+            if (source.getNodeType() == IXmlDataReader.ELEMENT)
+            {
+                String uid = source.getAttribute("uid");
+                if (uid == null || uid.length() == 0)
+                {
+                    throw new XukDeserializationFailedException();
+                }
+                if (!readToFirstChild(source))
+                {
+                    throw new XukDeserializationFailedException();
+                }
+                IXukAble item = manager.getItem(uid);
+                if (item != null
+                        && item.getXukLocalName().equals(
+                                source.getLocalName())
+                        && item.getXukNamespaceURI().equals(
+                                source.getNamespaceURI()))
+                {
+                    // Updated in place, the objects referring to the item
+                    // keep referring to it
+                    item.xukIn(source, null);
+                }
+                else
+                {
+                    if (item != null)
+                    {
+                        manager.removeItem(uid);
+                    }
+                    item = manager.createItem(source.getLocalName(), source
+                            .getNamespaceURI());
+                    if (item == null)
+                    {
+                        throw new XukDeserializationFailedException();
+                    }
+                    item.xukIn(source, null);
+                    manager.setUid(item, uid);
+                }
+                readToEnd(source);
+            }
+            else
+                if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
+                {
+                    break;
+                }
+            if (source.isEOF())
+                throw new XukDeserializationFailedException();
+        }
+    }
+
+    private static void applyFactories(Presentation pres,
+            IXmlDataReader source) throws XukDeserializationFailedException,
+            MethodParameterIsNullException, ProgressCancelledException
+    {
+        if (source.isEmptyElement())
+        {
+            return;
+        }
+        IXukAble[] factories = getFactories(pres);
+        while (source.read())
+        {
+            if (source.getNodeType() == IXmlDataReader.ELEMENT)
+            {
+                IXukAble factory = null;
+                for (IXukAble f : factories)
+                {
+                    if (f.getXukLocalName().equals(source.getLocalName())
+                            && f.getXukNamespaceURI().equals(
+                                    source.getNamespaceURI()))
+                    {
+                        factory = f;
+                    }
+                }
+                if (factory != null)
+                {
+                    factory.xukIn(source, null);
+                }
+                else
+                {
+                    skip(source);
+                }
+            }
+            else
+                if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
+                {
+                    break;
+                }
+            if (source.isEOF())
+                throw new XukDeserializationFailedException();
+        }
+    }
+
+    private static void applyRemovals(ItemManager[] managers,
+            IXmlDataReader source) throws XukDeserializationFailedException
+    {
+        if (source.isEmptyElement())
+        {
+            return;
+        }
+        while (source.read())
+        {
+            if (source.getNodeType() == IXmlDataReader.ELEMENT)
+            {
+                for (ItemManager manager : managers)
+                {
+                    if (manager.getItemElementName().equals(
+                            source.getLocalName()))
+                    {
+                        String uid = source.getAttribute("uid");
+                        if (manager.getItem(uid) != null)
+                        {
+                            manager.removeItem(uid);
+                        }
+                    }
+                }
+                skip(source);
+            }
+            else
+                if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
+                {
+                    break;
+                }
+            if (source.isEOF())
+                throw new XukDeserializationFailedException();
+        }
+    }
+
+    private static void applyMetadata(Presentation pres, IXmlDataReader source)
+            throws XukDeserializationFailedException,
+            MethodParameterIsNullException, ProgressCancelledException
+    {
+        for (IMetadata meta : new ArrayList<IMetadata>(pres
+                .getListOfMetadata()))
+        {
+            pres.deleteMetadata(meta);
+        }
+        if (source.isEmptyElement())
+        {
+            return;
+        }
+        while (source.read())
+        {
+            if (source.getNodeType() == IXmlDataReader.ELEMENT)
+            {
+                IMetadata meta;
+                try
+                {
+                    meta = pres.getMetadataFactory().create(
+                            source.getLocalName(), source.getNamespaceURI());
+                }
+                catch (MethodParameterIsEmptyStringException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                if (meta != null)
+                {
+                    meta.xukIn(source, null);
+                    pres.addMetadata(meta);
+                }
+                else
+                {
+                    skip(source);
+                }
+            }
+            else
+                if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
+                {
+                    break;
+                }
+            if (source.isEOF())
+                throw new XukDeserializationFailedException();
+        }
+    }
+
+    private static void applyUndoRedo(Presentation pres, IXmlDataReader source)
+            throws XukDeserializationFailedException,
+            MethodParameterIsNullException, ProgressCancelledException
+    {
+        if (readToFirstChild(source))
+        {
+            pres.getUndoRedoManager().xukIn(source, null);
+            readToEnd(source);
+        }
+    }
+
+    private static void applyTreeNode(Presentation pres, IXmlDataReader source)
+            throws XukDeserializationFailedException,
+            MethodParameterIsNullException, ProgressCancelledException
+    {
+        String path = source.getAttribute("path");
+        if (path == null || !readToFirstChild(source))
+        {
+            throw new XukDeserializationFailedException();
+        }
+        ITreeNode node;
+        try
+        {
+            node = pres.getTreeNodeFactory().create(source.getLocalName(),
+                    source.getNamespaceURI());
+        }
+        catch (MethodParameterIsEmptyStringException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        if (node == null)
+        {
+            throw new XukDeserializationFailedException();
+        }
+        try
+        {
+            if (path.length() == 0)
+            {
+                pres.setRootNode(node);
+            }
+            else
+            {
+                int dot = path.lastIndexOf('.');
+                ITreeNode parent = getNode(pres, dot < 0 ? "" : path
+                        .substring(0, dot));
+                parent.replaceChild(node, Integer.parseInt(path
+                        .substring(dot + 1)));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new XukDeserializationFailedException();
+        }
+        catch (MethodParameterIsOutOfBoundsException e)
+        {
+            throw new XukDeserializationFailedException();
+        }
+        catch (Exception e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        pres.beginBatch();
+        try
+        {
+            node.xukIn(source, null);
+        }
+        finally
+        {
+            pres.endBatch();
+        }
+        readToEnd(source);
+    }
+
+    private static void applyProperties(Presentation pres,
+            IXmlDataReader source) throws XukDeserializationFailedException,
+            MethodParameterIsNullException, ProgressCancelledException
+    {
+        String path = source.getAttribute("path");
+        if (path == null)
+        {
+            throw new XukDeserializationFailedException();
+        }
+        ITreeNode node = getNode(pres, path);
+        node.removeProperties();
+        if (source.isEmptyElement())
+        {
+            return;
+        }
+        while (source.read())
+        {
+            if (source.getNodeType() == IXmlDataReader.ELEMENT)
+            {
+                IProperty prop;
+                try
+                {
+                    prop = pres.getPropertyFactory().create(
+                            source.getLocalName(), source.getNamespaceURI());
+                }
+                catch (MethodParameterIsEmptyStringException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                if (prop != null)
+                {
+                    try
+                    {
+                        node.addProperty(prop);
+                    }
+                    catch (Exception e)
+                    {
+                        // Should never happen
+                        throw new RuntimeException("WTF ??!", e);
+                    }
+                    prop.xukIn(source, null);
+                }
+                else
+                {
+                    skip(source);
+                }
+            }
+            else
+                if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
+                {
+                    break;
+                }
+            if (source.isEOF())
+                throw new XukDeserializationFailedException();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.daisy.urakawa;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
+/**
+ * Allocates identifiers made of a fixed prefix and a number (such as
+ * "CHID0001"), in constant time whatever the number of identifiers in use. The
+ * numbers only grow: an allocated identifier is never allocated again, even
+ * after it has been released by its owner, so the allocator does not need to
+ * know which identifiers are in use.
+ * <p>
+ * The identifiers which are not allocated by the allocator (read from a XUK
+ * file, or given by the user) must be passed to {@link #reserve(String)}: if
+ * they are made of the prefix and a number, the following allocations start
+ * after this number. An allocated identifier can therefore never be equal to
+ * an identifier used before, whatever its number of digits.
+ * </p>
+ * <p>
+ * Used by the MediaDataManager, the DataProviderManager and the
+ * ChannelsManager. Not thread-safe, like the managers.
+ * </p>
+ */
+public final class UidAllocator
+{
+    private String mPrefix;
+    private int mDigits;
+    private long mNext;
+
+    /**
+     * @param prefix
+     *        the prefix of the identifiers, can be empty
+     * @param digits
+     *        the minimum number of digits of the number, padded with zeros
+     * @param first
+     *        the number of the first allocated identifier
+     * @throws MethodParameterIsNullException
+     */
+    public UidAllocator(String prefix, int digits, long first)
+            throws MethodParameterIsNullException
+    {
+        if (prefix == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mPrefix = prefix;
+        mDigits = digits;
+        mNext = first;
+    }
+
+    /**
+     * @return the prefix of the identifiers
+     */
+    public String getPrefix()
+    {
+        return mPrefix;
+    }
+
+    /**
+     * @return the number of the next allocated identifier
+     */
+    public long getNext()
+    {
+        return mNext;
+    }
+
+    /**
+     * @return a new identifier, different from all the identifiers allocated
+     *         or reserved before
+     */
+    public String allocate()
+    {
+        if (mNext == Long.MAX_VALUE)
+        {
+            throw new RuntimeException("No more identifiers with the prefix "
+                    + mPrefix);
+        }
+        String number = Long.toString(mNext++);
+        StringBuilder sb = new StringBuilder(mPrefix.length()
+                + Math.max(mDigits, number.length()));
+        sb.append(mPrefix);
+        for (int i = number.length(); i < mDigits; i++)
+        {
+            sb.append('0');
+        }
+        sb.append(number);
+        return sb.toString();
+    }
+
+    /**
+     * Records an identifier which was not allocated by this allocator, so
+     * that it is never allocated. Does nothing if the identifier is not made
+     * of the prefix and a number.
+     * 
+     * @param uid
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public void reserve(String uid) throws MethodParameterIsNullException
+    {
+        if (uid == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        int len = uid.length();
+        int start = mPrefix.length();
+        if (len == start || !uid.startsWith(mPrefix))
+        {
+            return;
+        }
+        long number = 0;
+        for (int i = start; i < len; i++)
+        {
+            char c = uid.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                return;
+            }
+            if (number > (Long.MAX_VALUE - (c - '0')) / 10)
+            {
+                // Too large to be ever allocated
+                return;
+            }
+            number = 10 * number + (c - '0');
+        }
+        if (number >= mNext)
+        {
+            mNext = number + 1;
+        }
+    }
+}
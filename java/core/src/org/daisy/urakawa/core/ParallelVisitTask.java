@@ -0,0 +1,187 @@
+package org.daisy.urakawa.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import org.daisy.urakawa.core.visitor.ICombinableTreeNodeVisitor;
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
+import org.daisy.urakawa.xuk.XukDeserializationFailedException;
+
+/**
+ * Depth-first visit of a sub-tree in a ForkJoinPool, for
+ * {@link TreeNode#acceptDepthFirstParallel(ICombinableTreeNodeVisitor, java.util.concurrent.ForkJoinPool, int)}.
+ * The children whose sub-tree has at least "threshold" nodes are visited by
+ * forked tasks, with new visitors. The other children are visited on the
+ * current thread, by the visitor of the task until the first forked child,
+ * then by a new visitor after each forked child. The results are combined in
+ * this order into the visitor of the task, before the call to postVisit().
+ * 
+ * @param <T>
+ */
+final class ParallelVisitTask<T extends ICombinableTreeNodeVisitor<T>> extends
+        RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+    private ITreeNode mNode;
+    private T mVisitor;
+    private int mThreshold;
+    private Object mLoadLock;
+
+    /**
+     * @param node
+     * @param visitor
+     * @param threshold
+     * @param loadLock
+     *        the lock shared by all the tasks of a visit, to load the skipped
+     *        XUK content of the nodes one at a time
+     */
+    ParallelVisitTask(ITreeNode node, T visitor, int threshold, Object loadLock)
+    {
+        mNode = node;
+        mVisitor = visitor;
+        mThreshold = threshold;
+        mLoadLock = loadLock;
+    }
+
+    /**
+     * Loads the skipped XUK content of the node, which creates objects
+     * through the (non thread-safe) factories and managers of the
+     * Presentation.
+     */
+    private void load(ITreeNode node)
+    {
+        if (node instanceof TreeNode && ((TreeNode) node).hasLazyXukContent())
+        {
+            synchronized (mLoadLock)
+            {
+                try
+                {
+                    ((TreeNode) node).loadLazyXukContent();
+                }
+                catch (XukDeserializationFailedException e)
+                {
+                    throw new RuntimeException(
+                            "Cannot load the content of the TreeNode from the XUK file",
+                            e);
+                }
+            }
+        }
+    }
+
+    private static ITreeNode getChild(ITreeNode node, int index)
+    {
+        try
+        {
+            return node.getChild(index);
+        }
+        catch (MethodParameterIsOutOfBoundsException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    /**
+     * @return true if the sub-tree of the node has at least mThreshold nodes.
+     *         Stops counting at mThreshold.
+     */
+    private boolean isLarge(ITreeNode node)
+    {
+        List<ITreeNode> stack = new ArrayList<ITreeNode>();
+        stack.add(node);
+        int count = 0;
+        while (!stack.isEmpty())
+        {
+            if (++count >= mThreshold)
+            {
+                return true;
+            }
+            ITreeNode n = stack.remove(stack.size() - 1);
+            load(n);
+            for (int i = n.getChildCount() - 1; i >= 0; i--)
+            {
+                stack.add(getChild(n, i));
+            }
+        }
+        return false;
+    }
+
+    private void visit(ITreeNode node, T visitor)
+            throws MethodParameterIsNullException
+    {
+        load(node);
+        visitor.preVisit(node);
+        for (int i = 0; i < node.getChildCount(); i++)
+        {
+            visit(getChild(node, i), visitor);
+        }
+        visitor.postVisit(node);
+    }
+
+    @Override
+    protected void compute()
+    {
+        try
+        {
+            load(mNode);
+            mVisitor.preVisit(mNode);
+            // The forked tasks and the visitors of the children visited
+            // after them, in the order of the children
+            List<Object> parts = null;
+            T visitor = mVisitor;
+            for (int i = 0; i < mNode.getChildCount(); i++)
+            {
+                ITreeNode child = getChild(mNode, i);
+                if (isLarge(child))
+                {
+                    ParallelVisitTask<T> task = new ParallelVisitTask<T>(
+                            child, mVisitor.createVisitor(), mThreshold,
+                            mLoadLock);
+                    task.fork();
+                    if (parts == null)
+                    {
+                        parts = new ArrayList<Object>();
+                    }
+                    parts.add(task);
+                    visitor = null;
+                }
+                else
+                {
+                    if (visitor == null)
+                    {
+                        visitor = mVisitor.createVisitor();
+                        parts.add(visitor);
+                    }
+                    visit(child, visitor);
+                }
+            }
+            if (parts != null)
+            {
+                for (Object part : parts)
+                {
+                    if (part instanceof ParallelVisitTask<?>)
+                    {
+                        @SuppressWarnings("unchecked")
+                        ParallelVisitTask<T> task = (ParallelVisitTask<T>) part;
+                        task.join();
+                        mVisitor.combine(task.mVisitor);
+                    }
+                    else
+                    {
+                        @SuppressWarnings("unchecked")
+                        T v = (T) part;
+                        mVisitor.combine(v);
+                    }
+                }
+            }
+            mVisitor.postVisit(mNode);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+}
@@ -1,13 +1,16 @@
 package org.daisy.urakawa.core;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ForkJoinPool;
 
 import org.daisy.urakawa.AbstractXukAbleWithPresentation;
 import org.daisy.urakawa.FactoryCannotCreateTypeException;
 import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.core.visitor.ICombinableTreeNodeVisitor;
 import org.daisy.urakawa.core.visitor.ITreeNodeVisitor;
 import org.daisy.urakawa.events.DataModelChangedEvent;
 import org.daisy.urakawa.events.Event;
@@ -25,54 +28,89 @@ import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
 import org.daisy.urakawa.exception.ObjectIsInDifferentPresentationException;
 import org.daisy.urakawa.nativeapi.IXmlDataReader;
 import org.daisy.urakawa.nativeapi.IXmlDataWriter;
+import org.daisy.urakawa.nativeapi.IXmlFragmentWriter;
 import org.daisy.urakawa.progress.IProgressHandler;
 import org.daisy.urakawa.progress.ProgressCancelledException;
 import org.daisy.urakawa.property.IProperty;
 import org.daisy.urakawa.property.PropertyAlreadyHasOwnerException;
 import org.daisy.urakawa.property.PropertyCannotBeAddedToTreeNodeException;
+import org.daisy.urakawa.xuk.ILazyXukAble;
 import org.daisy.urakawa.xuk.IXukAble;
+import org.daisy.urakawa.xuk.LazyXukSource;
 import org.daisy.urakawa.xuk.XukDeserializationFailedException;
 import org.daisy.urakawa.xuk.XukSerializationFailedException;
 
 /**
  * Reference implementation of the interface.
+ * <p>
+ * Children and properties are stored in array-backed lists, so that indexed
+ * access (getChild(i), as used by the visitors and navigators) is O(1). Each
+ * TreeNode also caches its own index in the children list of its parent,
+ * which makes indexOf() and the sibling lookups O(1) as well. The cached index
+ * is refreshed whenever the children list of the parent changes.
+ * </p>
+ * <p>
+ * When the node is read from a XUK file opened with lazy loading (see
+ * {@link org.daisy.urakawa.xuk.OpenXukAction}), its properties and children
+ * are not deserialized: they are loaded from the file the first time they are
+ * accessed, without raising any event (this is not a change of the data
+ * model).
+ * </p>
  * 
  * @leafInterface see {@link org.daisy.urakawa.LeafInterface}
  * @see org.daisy.urakawa.LeafInterface
  */
 public class TreeNode extends AbstractXukAbleWithPresentation implements
-        ITreeNode
+        ITreeNode, ILazyXukAble
 {
     private List<IProperty> mProperties;
     private List<ITreeNode> mChildren;
+    /**
+     * The mProperties and mChildren XUK elements skipped when this node was
+     * read, null if there were none or once they have been loaded.
+     */
+    private LazyXukSource mLazyProperties = null;
+    private LazyXukSource mLazyChildren = null;
+    /**
+     * True while skipped XUK elements are being loaded, the resulting events
+     * are not dispatched.
+     */
+    private boolean mIsLoadingLazyContent = false;
     private ITreeNode mParent;
-    // This event bus receives all the events that are raised from within the
-    // Data Model of the underlying objects that make this sub-tree (i.e.
-    // the sub-tree of TreeNodes, properties and media), including the above
-    // built-in events.
-    // IF this TreeNodeis the root of a Presentation, that Presentation
-    // instance
-    // automatically
-    // register a listener on this generic
-    // event bus, behind the scenes. This is how events are forwarded from this
-    // tree level to the upper
-    // Presentation level.
-    protected IEventHandler<Event> mDataModelEventNotifier = new EventHandler();
-    // The 5 event bus below handle events related to node and property change
-    // events.
-    // Please note that this class automatically adds a listener for the
-    // ChildAddedEvent, ChildRemovedEvent, PropertyAddedEvent,
-    // PropertyRemovedEvent events,
-    // in order to handle the (de)registration of a special listener
-    // (mBubbleEventListener) which
-    // forwards the bubbling events from the nodes in this sub-tree. See comment
-    // for
-    // mBubbleEventListener.
-    protected IEventHandler<Event> mChildAddedEventNotifier = new EventHandler();
-    protected IEventHandler<Event> mChildRemovedEventNotifier = new EventHandler();
-    protected IEventHandler<Event> mPropertyAddedEventNotifier = new EventHandler();
-    protected IEventHandler<Event> mPropertyRemovedEventNotifier = new EventHandler();
-
+    /**
+     * The index of this node in the children of its parent, maintained by the
+     * parent (when it is a TreeNode). Only a hint: it is always checked against
+     * the children list before being trusted.
+     */
+    private int mIndexInParent = -1;
+    // The event buses below are created lazily, the first time a listener is
+    // registered: a TreeNode that nobody listens to carries no listener
+    // structures at all.
+    // mDataModelEventNotifier receives all the events that are raised from
+    // within the Data Model of the underlying objects that make this sub-tree
+    // (i.e. the sub-tree of TreeNodes, properties and media), including the
+    // built-in events handled by the 4 other event buses.
+    // IF this TreeNode is the root of a Presentation, that Presentation
+    // instance automatically registers a listener on this generic event bus,
+    // behind the scenes. This is how events are forwarded from this tree level
+    // to the upper Presentation level.
+    protected IEventHandler<Event> mDataModelEventNotifier = null;
+    protected IEventHandler<Event> mChildAddedEventNotifier = null;
+    protected IEventHandler<Event> mChildRemovedEventNotifier = null;
+    protected IEventHandler<Event> mPropertyAddedEventNotifier = null;
+    protected IEventHandler<Event> mPropertyRemovedEventNotifier = null;
+
+    // This "hub" method first handles the built-in bookkeeping for the
+    // ChildAddedEvent, ChildRemovedEvent, PropertyAddedEvent and
+    // PropertyRemovedEvent events raised by this node (see
+    // mBubbleEventListener), then dispatches the event to the event buses that
+    // exist, and finally forwards it to the parent node. Forwarding directly
+    // to the parent replaces the per-child listener registration, so that
+    // events still bubble up to the root of the tree. During a batch of
+    // changes (see Presentation.beginBatch()) the event is not forwarded, the
+    // change is recorded by the Presentation instead. The first node an event
+    // goes through is recorded in the event (see
+    // DataModelChangedEvent.getOriginTreeNode()).
     public <K extends DataModelChangedEvent> void notifyListeners(K event)
             throws MethodParameterIsNullException
     {
@@ -80,27 +118,97 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         {
             throw new MethodParameterIsNullException();
         }
+        if (mIsLoadingLazyContent)
+        {
+            // Only the bookkeeping: loading skipped XUK content is not a
+            // change of the data model.
+            if (event instanceof PropertyAddedEvent
+                    && ((PropertyAddedEvent) event).getSourceTreeNode() == this)
+            {
+                ((PropertyAddedEvent) event).getAddedProperty()
+                        .registerListener(getBubbleEventListener(),
+                                DataModelChangedEvent.class);
+            }
+            return;
+        }
+        event.setOriginTreeNode(this);
         if (PropertyAddedEvent.class.isAssignableFrom(event.getClass()))
         {
-            mPropertyAddedEventNotifier.notifyListeners(event);
+            PropertyAddedEvent ev = (PropertyAddedEvent) event;
+            if (ev.getSourceTreeNode() == this)
+            {
+                ev.getAddedProperty().registerListener(
+                        getBubbleEventListener(), DataModelChangedEvent.class);
+            }
+            if (mPropertyAddedEventNotifier != null)
+            {
+                mPropertyAddedEventNotifier.notifyListeners(event);
+            }
         }
         else
             if (PropertyRemovedEvent.class.isAssignableFrom(event.getClass()))
             {
-                mPropertyRemovedEventNotifier.notifyListeners(event);
+                PropertyRemovedEvent ev = (PropertyRemovedEvent) event;
+                if (ev.getSourceTreeNode() == this)
+                {
+                    ev.getRemovedProperty().unregisterListener(
+                            getBubbleEventListener(),
+                            DataModelChangedEvent.class);
+                }
+                if (mPropertyRemovedEventNotifier != null)
+                {
+                    mPropertyRemovedEventNotifier.notifyListeners(event);
+                }
             }
             else
                 if (ChildAddedEvent.class.isAssignableFrom(event.getClass()))
                 {
-                    mChildAddedEventNotifier.notifyListeners(event);
+                    if (mChildAddedEventNotifier != null)
+                    {
+                        mChildAddedEventNotifier.notifyListeners(event);
+                    }
                 }
                 else
                     if (ChildRemovedEvent.class.isAssignableFrom(event
                             .getClass()))
                     {
-                        mChildRemovedEventNotifier.notifyListeners(event);
+                        if (mChildRemovedEventNotifier != null)
+                        {
+                            mChildRemovedEventNotifier.notifyListeners(event);
+                        }
                     }
-        mDataModelEventNotifier.notifyListeners(event);
+        if (mDataModelEventNotifier != null)
+        {
+            mDataModelEventNotifier.notifyListeners(event);
+        }
+        Presentation pres = getBatchPresentation();
+        if (pres != null)
+        {
+            pres.addBatchChange(this);
+        }
+        else
+            if (mParent != null)
+            {
+                mParent.notifyListeners(event);
+            }
+    }
+
+    /**
+     * @return the Presentation of this node if a batch of changes is in
+     *         progress, null otherwise
+     */
+    private Presentation getBatchPresentation()
+    {
+        Presentation pres;
+        try
+        {
+            pres = getPresentation();
+        }
+        catch (IsNotInitializedException e)
+        {
+            return null;
+        }
+        return pres.isInBatch() ? pres : null;
     }
 
     public <K extends DataModelChangedEvent> void registerListener(
@@ -113,26 +221,46 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         }
         if (PropertyAddedEvent.class.isAssignableFrom(klass))
         {
+            if (mPropertyAddedEventNotifier == null)
+            {
+                mPropertyAddedEventNotifier = new EventHandler();
+            }
             mPropertyAddedEventNotifier.registerListener(listener, klass);
         }
         else
             if (PropertyRemovedEvent.class.isAssignableFrom(klass))
             {
+                if (mPropertyRemovedEventNotifier == null)
+                {
+                    mPropertyRemovedEventNotifier = new EventHandler();
+                }
                 mPropertyRemovedEventNotifier.registerListener(listener, klass);
             }
             else
                 if (ChildAddedEvent.class.isAssignableFrom(klass))
                 {
+                    if (mChildAddedEventNotifier == null)
+                    {
+                        mChildAddedEventNotifier = new EventHandler();
+                    }
                     mChildAddedEventNotifier.registerListener(listener, klass);
                 }
                 else
                     if (ChildRemovedEvent.class.isAssignableFrom(klass))
                     {
+                        if (mChildRemovedEventNotifier == null)
+                        {
+                            mChildRemovedEventNotifier = new EventHandler();
+                        }
                         mChildRemovedEventNotifier.registerListener(listener,
                                 klass);
                     }
                     else
                     {
+                        if (mDataModelEventNotifier == null)
+                        {
+                            mDataModelEventNotifier = new EventHandler();
+                        }
                         mDataModelEventNotifier.registerListener(listener,
                                 klass);
                     }
@@ -148,148 +276,187 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         }
         if (PropertyAddedEvent.class.isAssignableFrom(klass))
         {
-            mPropertyAddedEventNotifier.unregisterListener(listener, klass);
+            if (mPropertyAddedEventNotifier != null)
+            {
+                mPropertyAddedEventNotifier.unregisterListener(listener, klass);
+            }
         }
         else
             if (PropertyRemovedEvent.class.isAssignableFrom(klass))
             {
-                mPropertyRemovedEventNotifier.unregisterListener(listener,
-                        klass);
+                if (mPropertyRemovedEventNotifier != null)
+                {
+                    mPropertyRemovedEventNotifier.unregisterListener(listener,
+                            klass);
+                }
             }
             else
                 if (ChildAddedEvent.class.isAssignableFrom(klass))
                 {
-                    mChildAddedEventNotifier
-                            .unregisterListener(listener, klass);
+                    if (mChildAddedEventNotifier != null)
+                    {
+                        mChildAddedEventNotifier.unregisterListener(listener,
+                                klass);
+                    }
                 }
                 else
                     if (ChildRemovedEvent.class.isAssignableFrom(klass))
                     {
-                        mChildRemovedEventNotifier.unregisterListener(listener,
-                                klass);
+                        if (mChildRemovedEventNotifier != null)
+                        {
+                            mChildRemovedEventNotifier.unregisterListener(
+                                    listener, klass);
+                        }
                     }
                     else
                     {
-                        mDataModelEventNotifier.unregisterListener(listener,
-                                klass);
+                        if (mDataModelEventNotifier != null)
+                        {
+                            mDataModelEventNotifier.unregisterListener(
+                                    listener, klass);
+                        }
                     }
     }
 
-    protected IEventListener<DataModelChangedEvent> mBubbleEventListener = new IEventListener<DataModelChangedEvent>()
+    // This listener is registered on the properties of this node, and forwards
+    // their events onto this node's event buses (and from there up to the
+    // root). It is created the first time a property is added.
+    protected IEventListener<DataModelChangedEvent> mBubbleEventListener = null;
+
+    /**
+     * @return the listener that forwards the events of the properties of this
+     *         node, created on demand
+     */
+    protected IEventListener<DataModelChangedEvent> getBubbleEventListener()
     {
-        public <K extends DataModelChangedEvent> void eventCallback(K event)
-                throws MethodParameterIsNullException
+        if (mBubbleEventListener == null)
         {
-            if (event == null)
+            mBubbleEventListener = new IEventListener<DataModelChangedEvent>()
             {
-                throw new MethodParameterIsNullException();
-            }
-            notifyListeners(event);
+                public <K extends DataModelChangedEvent> void eventCallback(
+                        K event) throws MethodParameterIsNullException
+                {
+                    if (event == null)
+                    {
+                        throw new MethodParameterIsNullException();
+                    }
+                    notifyListeners(event);
+                }
+            };
         }
-    };
-    protected IEventListener<ChildAddedEvent> mChildAddedEventListener = new IEventListener<ChildAddedEvent>()
+        return mBubbleEventListener;
+    }
+
+    /**
+	 * 
+	 */
+    public TreeNode()
     {
-        public <K extends ChildAddedEvent> void eventCallback(K event)
-                throws MethodParameterIsNullException
+        mProperties = new ArrayList<IProperty>(0);
+        mChildren = new ArrayList<ITreeNode>(0);
+    }
+
+    /**
+     * @return the properties of this node, loaded from the XUK file first if
+     *         needed
+     */
+    private List<IProperty> properties()
+    {
+        if (mLazyProperties != null)
         {
-            if (event == null)
-            {
-                throw new MethodParameterIsNullException();
-            }
-            if (event.getSourceTreeNode() == TreeNode.this)
-            {
-                event.getAddedChild().registerListener(mBubbleEventListener,
-                        DataModelChangedEvent.class);
-            }
-            else
-            {
-                throw new RuntimeException("WFT ??! This should never happen.");
-            }
+            LazyXukSource lazy = mLazyProperties;
+            mLazyProperties = null;
+            loadLazyXukContentOrFail(lazy);
         }
-    };
-    protected IEventListener<ChildRemovedEvent> mChildRemovedEventListener = new IEventListener<ChildRemovedEvent>()
+        return mProperties;
+    }
+
+    /**
+     * @return the children of this node, loaded from the XUK file first if
+     *         needed
+     */
+    private List<ITreeNode> children()
     {
-        public <K extends ChildRemovedEvent> void eventCallback(K event)
-                throws MethodParameterIsNullException
+        if (mLazyChildren != null)
         {
-            if (event == null)
-            {
-                throw new MethodParameterIsNullException();
-            }
-            if (event.getSourceTreeNode() == TreeNode.this)
-            {
-                event.getRemovedChild().unregisterListener(
-                        mBubbleEventListener, DataModelChangedEvent.class);
-            }
-            else
-            {
-                throw new RuntimeException("WFT ??! This should never happen.");
-            }
+            LazyXukSource lazy = mLazyChildren;
+            mLazyChildren = null;
+            loadLazyXukContentOrFail(lazy);
         }
-    };
-    protected IEventListener<PropertyAddedEvent> mPropertyAddedEventListener = new IEventListener<PropertyAddedEvent>()
+        return mChildren;
+    }
+
+    private void loadLazyXukContentOrFail(LazyXukSource lazy)
     {
-        public <K extends PropertyAddedEvent> void eventCallback(K event)
-                throws MethodParameterIsNullException
+        try
         {
-            if (event == null)
-            {
-                throw new MethodParameterIsNullException();
-            }
-            if (event.getSourceTreeNode() == TreeNode.this)
-            {
-                event.getAddedProperty().registerListener(mBubbleEventListener,
-                        DataModelChangedEvent.class);
-            }
-            else
-            {
-                throw new RuntimeException("WFT ??! This should never happen.");
-            }
+            loadLazyXukContent(lazy);
+        }
+        catch (XukDeserializationFailedException e)
+        {
+            throw new RuntimeException(
+                    "Cannot load the content of the TreeNode from the XUK file",
+                    e);
         }
-    };
-    protected IEventListener<PropertyRemovedEvent> mPropertyRemovedEventListener = new IEventListener<PropertyRemovedEvent>()
+    }
+
+    public void loadLazyXukContent() throws XukDeserializationFailedException
     {
-        public <K extends PropertyRemovedEvent> void eventCallback(K event)
-                throws MethodParameterIsNullException
+        if (mLazyProperties != null)
         {
-            if (event == null)
-            {
-                throw new MethodParameterIsNullException();
-            }
-            if (event.getSourceTreeNode() == TreeNode.this)
-            {
-                event.getRemovedProperty().unregisterListener(
-                        mBubbleEventListener, DataModelChangedEvent.class);
-            }
-            else
+            LazyXukSource lazy = mLazyProperties;
+            mLazyProperties = null;
+            loadLazyXukContent(lazy);
+        }
+        if (mLazyChildren != null)
+        {
+            LazyXukSource lazy = mLazyChildren;
+            mLazyChildren = null;
+            loadLazyXukContent(lazy);
+        }
+    }
+
+    /**
+     * @return true if skipped XUK content is being loaded into this node or
+     *         one of its ancestors
+     */
+    private boolean isLoadingLazyContent()
+    {
+        for (ITreeNode node = this; node != null; node = node.getParent())
+        {
+            if (node instanceof TreeNode
+                    && ((TreeNode) node).mIsLoadingLazyContent)
             {
-                throw new RuntimeException("WFT ??! This should never happen.");
+                return true;
             }
         }
-    };
+        return false;
+    }
 
-    /**
-	 * 
-	 */
-    public TreeNode()
+    private void loadLazyXukContent(LazyXukSource lazy)
+            throws XukDeserializationFailedException
     {
-        mProperties = new LinkedList<IProperty>();
-        mChildren = new LinkedList<ITreeNode>();
+        IXmlDataReader reader = lazy.open();
+        mIsLoadingLazyContent = true;
         try
         {
-            registerListener(mChildAddedEventListener, ChildAddedEvent.class);
-            registerListener(mChildRemovedEventListener,
-                    ChildRemovedEvent.class);
-            registerListener(mPropertyAddedEventListener,
-                    PropertyAddedEvent.class);
-            registerListener(mPropertyRemovedEventListener,
-                    PropertyRemovedEvent.class);
+            xukInChild(reader, null);
         }
         catch (MethodParameterIsNullException e)
         {
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
+        catch (ProgressCancelledException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        finally
+        {
+            mIsLoadingLazyContent = false;
+            LazyXukSource.close(reader);
+        }
     }
 
     public void copyChildren(ITreeNode destinationNode)
@@ -297,6 +464,30 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
     {
         if (destinationNode == null)
             throw new MethodParameterIsNullException();
+        Presentation pres;
+        try
+        {
+            pres = destinationNode.getPresentation();
+        }
+        catch (IsNotInitializedException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        pres.beginBatch();
+        try
+        {
+            copyChildrenInBatch(destinationNode);
+        }
+        finally
+        {
+            pres.endBatch();
+        }
+    }
+
+    private void copyChildrenInBatch(ITreeNode destinationNode)
+            throws MethodParameterIsNullException
+    {
         for (int i = 0; i < this.getChildCount(); i++)
         {
             try
@@ -333,7 +524,7 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
 
     public boolean hasProperties()
     {
-        return (mProperties.size() > 0);
+        return (properties().size() > 0);
     }
 
     public boolean hasProperty(IProperty prop)
@@ -341,7 +532,7 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
     {
         if (prop == null)
             throw new MethodParameterIsNullException();
-        return mProperties.contains(prop);
+        return properties().contains(prop);
     }
 
     public <T extends IProperty> boolean hasProperties(Class<T> klass)
@@ -349,9 +540,9 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
     {
         if (klass == null)
             throw new MethodParameterIsNullException();
-        for (IProperty p : getListOfProperties())
+        for (int i = 0; i < properties().size(); i++)
         {
-            if (p.getClass() == klass)
+            if (properties().get(i).getClass() == klass)
                 return true;
         }
         return false;
@@ -362,9 +553,9 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
     {
         if (prop == null)
             throw new MethodParameterIsNullException();
-        if (mProperties.contains(prop))
+        if (properties().contains(prop))
         {
-            mProperties.remove(prop);
+            properties().remove(prop);
             try
             {
                 prop.setTreeNodeOwner(null);
@@ -449,7 +640,7 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
     {
         if (prop == null)
             throw new MethodParameterIsNullException();
-        if (!mProperties.contains(prop))
+        if (!properties().contains(prop))
         {
             if (!prop.canBeAddedTo(this))
             {
@@ -464,7 +655,7 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
                 // Should never happen
                 throw new RuntimeException("WTF ??!", e);
             }
-            mProperties.add(prop);
+            properties().add(prop);
             notifyListeners(new PropertyAddedEvent(this, prop));
         }
     }
@@ -472,8 +663,8 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
     @SuppressWarnings("unchecked")
     public <T extends IProperty> List<Class<T>> getListOfUsedPropertyTypes()
     {
-        List<Class<T>> res = new LinkedList<Class<T>>();
-        for (IProperty p : (List<T>) getListOfProperties())
+        List<Class<T>> res = new ArrayList<Class<T>>();
+        for (IProperty p : properties())
         {
             if (!res.contains(p.getClass()))
                 res.add((Class<T>) p.getClass());
@@ -484,9 +675,7 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
     @SuppressWarnings("unchecked")
     public <T extends IProperty> List<T> getListOfProperties()
     {
-        List<T> list = new LinkedList<T>();
-        list.addAll((List<T>) mProperties);
-        return list;
+        return new ArrayList<T>((List<T>) properties());
     }
 
     @SuppressWarnings("unchecked")
@@ -497,8 +686,8 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         {
             throw new MethodParameterIsNullException();
         }
-        List<T> res = new LinkedList<T>();
-        for (IProperty p : getListOfProperties())
+        List<T> res = new ArrayList<T>();
+        for (IProperty p : properties())
         {
             if (p.getClass() == klass)
                 res.add((T) p);
@@ -527,6 +716,71 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         visitor.postVisit(this);
     }
 
+    /**
+     * The minimum number of nodes of the sub-trees visited by separate tasks
+     * in {@link #acceptDepthFirstParallel(ICombinableTreeNodeVisitor)}.
+     */
+    public static final int PARALLEL_VISIT_THRESHOLD = 1024;
+
+    /**
+     * The sub-trees of at least {@link #PARALLEL_VISIT_THRESHOLD} nodes are
+     * visited by separate tasks of the common ForkJoinPool. The skipped XUK
+     * content of the nodes (see {@link LazyXukSource}) is loaded one node at
+     * a time.
+     */
+    public <T extends ICombinableTreeNodeVisitor<T>> void acceptDepthFirstParallel(
+            T visitor) throws MethodParameterIsNullException
+    {
+        try
+        {
+            acceptDepthFirstParallel(visitor, ForkJoinPool.commonPool(),
+                    PARALLEL_VISIT_THRESHOLD);
+        }
+        catch (MethodParameterIsOutOfBoundsException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    /**
+     * Same as {@link #acceptDepthFirstParallel(ICombinableTreeNodeVisitor)},
+     * with the given pool and threshold.
+     * 
+     * @param <T>
+     * @param visitor
+     *        cannot be null
+     * @param pool
+     *        cannot be null
+     * @param threshold
+     *        the minimum number of nodes of the sub-trees visited by separate
+     *        tasks
+     * @throws MethodParameterIsNullException
+     * @throws MethodParameterIsOutOfBoundsException
+     *         if threshold < 1
+     */
+    public <T extends ICombinableTreeNodeVisitor<T>> void acceptDepthFirstParallel(
+            T visitor, ForkJoinPool pool, int threshold)
+            throws MethodParameterIsNullException,
+            MethodParameterIsOutOfBoundsException
+    {
+        if (visitor == null || pool == null)
+            throw new MethodParameterIsNullException();
+        if (threshold < 1)
+            throw new MethodParameterIsOutOfBoundsException();
+        pool.invoke(new ParallelVisitTask<T>(this, visitor, threshold,
+                new Object()));
+    }
+
+    /**
+     * @return true if part of the XUK content of this node was skipped when
+     *         it was read, and is not loaded yet
+     */
+    boolean hasLazyXukContent()
+    {
+        return mLazyProperties != null || mLazyChildren != null;
+    }
+
     public void acceptBreadthFirst(ITreeNodeVisitor visitor)
             throws MethodParameterIsNullException
     {
@@ -556,6 +810,9 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
     @Override
     public void clear()
     {
+        // The skipped XUK content is discarded, not loaded.
+        mLazyProperties = null;
+        mLazyChildren = null;
         for (ITreeNode child : getListOfChildren())
         {
             try
@@ -600,6 +857,14 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         }
         if (!source.isEmptyElement())
         {
+            if (!mIsLoadingLazyContent)
+            {
+                mLazyProperties = LazyXukSource.skip(source, this);
+                if (mLazyProperties != null)
+                {
+                    return;
+                }
+            }
             while (source.read())
             {
                 if (source.getNodeType() == IXmlDataReader.ELEMENT)
@@ -667,6 +932,14 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         }
         if (!source.isEmptyElement())
         {
+            if (!mIsLoadingLazyContent)
+            {
+                mLazyChildren = LazyXukSource.skip(source, this);
+                if (mLazyChildren != null)
+                {
+                    return;
+                }
+            }
             while (source.read())
             {
                 if (source.getNodeType() == IXmlDataReader.ELEMENT)
@@ -780,12 +1053,7 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         {
             throw new ProgressCancelledException();
         }
-        destination.writeStartElement("mProperties", IXukAble.XUK_NS);
-        for (IProperty prop : getListOfProperties())
-        {
-            prop.xukOut(destination, baseUri, ph);
-        }
-        destination.writeEndElement();
+        xukOutProperties(destination, baseUri, ph);
         destination.writeStartElement("mChildren", IXukAble.XUK_NS);
         for (int i = 0; i < this.getChildCount(); i++)
         {
@@ -803,6 +1071,64 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         // super.xukOutChildren(destination, baseUri, ph);
     }
 
+    private void xukOutProperties(IXmlDataWriter destination, URI baseUri,
+            IProgressHandler ph) throws MethodParameterIsNullException,
+            XukSerializationFailedException, ProgressCancelledException
+    {
+        destination.writeStartElement("mProperties", IXukAble.XUK_NS);
+        for (IProperty prop : getListOfProperties())
+        {
+            prop.xukOut(destination, baseUri, ph);
+        }
+        destination.writeEndElement();
+    }
+
+    /**
+     * Serializes this node like
+     * {@link #xukOut(IXmlDataWriter, URI, IProgressHandler)}, except that its
+     * children are not serialized: the given fragments, in which the children
+     * have already been serialized in order, are inserted instead (see
+     * Presentation#setXukOutWorkerCount(int)).
+     * 
+     * @param destination
+     *        cannot be null
+     * @param baseUri
+     *        cannot be null
+     * @param ph
+     *        can be null
+     * @param childFragments
+     *        fragment writers created by the destination, one for each child
+     *        or for a sequence of consecutive children, cannot be null
+     * @throws MethodParameterIsNullException
+     * @throws XukSerializationFailedException
+     * @throws ProgressCancelledException
+     */
+    public void xukOutWithChildFragments(IXmlFragmentWriter destination,
+            URI baseUri, IProgressHandler ph,
+            List<IXmlDataWriter> childFragments)
+            throws MethodParameterIsNullException,
+            XukSerializationFailedException, ProgressCancelledException
+    {
+        if (destination == null || baseUri == null || childFragments == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        if (ph != null && ph.notifyProgress())
+        {
+            throw new ProgressCancelledException();
+        }
+        destination.writeStartElement(getXukLocalName(), getXukNamespaceURI());
+        xukOutAttributes(destination, baseUri, ph);
+        xukOutProperties(destination, baseUri, ph);
+        destination.writeStartElement("mChildren", IXukAble.XUK_NS);
+        for (IXmlDataWriter fragment : childFragments)
+        {
+            destination.writeFragment(fragment);
+        }
+        destination.writeEndElement();
+        destination.writeEndElement();
+    }
+
     public int indexOf(ITreeNode node) throws MethodParameterIsNullException,
             TreeNodeDoesNotExistException
     {
@@ -810,21 +1136,53 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         {
             throw new MethodParameterIsNullException();
         }
-        if (!mChildren.contains(node))
+        if (node.getParent() == this && node instanceof TreeNode)
+        {
+            int index = ((TreeNode) node).mIndexInParent;
+            if (index >= 0 && index < children().size()
+                    && children().get(index) == node)
+            {
+                return index;
+            }
+        }
+        int index = children().indexOf(node);
+        if (index < 0)
         {
             throw new TreeNodeDoesNotExistException();
         }
-        return mChildren.indexOf(node);
+        if (node instanceof TreeNode)
+        {
+            ((TreeNode) node).mIndexInParent = index;
+        }
+        return index;
+    }
+
+    /**
+     * Refreshes the cached index of the children from the given index to the
+     * end of the list, after an insertion or removal.
+     * 
+     * @param fromIndex
+     */
+    private void updateChildIndexes(int fromIndex)
+    {
+        for (int i = fromIndex; i < children().size(); i++)
+        {
+            ITreeNode child = children().get(i);
+            if (child instanceof TreeNode)
+            {
+                ((TreeNode) child).mIndexInParent = i;
+            }
+        }
     }
 
     public ITreeNode getChild(int index)
             throws MethodParameterIsOutOfBoundsException
     {
-        if (index < 0 || mChildren.size() <= index)
+        if (index < 0 || children().size() <= index)
         {
             throw new MethodParameterIsOutOfBoundsException();
         }
-        return mChildren.get(index);
+        return children().get(index);
     }
 
     public ITreeNode getParent()
@@ -834,12 +1192,12 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
 
     public int getChildCount()
     {
-        return mChildren.size();
+        return children().size();
     }
 
     public List<ITreeNode> getListOfChildren()
     {
-        return new LinkedList<ITreeNode>(mChildren);
+        return new ArrayList<ITreeNode>(children());
     }
 
     protected void copyProperties(ITreeNode destinationNode)
@@ -1161,7 +1519,7 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         {
             throw new TreeNodeIsAncestorException();
         }
-        if (insertIndex < 0 || mChildren.size() < insertIndex)
+        if (insertIndex < 0 || children().size() < insertIndex)
         {
             throw new MethodParameterIsOutOfBoundsException();
         }
@@ -1177,8 +1535,13 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
-        mChildren.add(insertIndex, node);
+        children().add(insertIndex, node);
+        updateChildIndexes(insertIndex);
         node.setParent(this);
+        if (isLoadingLazyContent())
+        {
+            return;
+        }
         try
         {
             getPresentation().notifyListeners(new ChildAddedEvent(this, node));
@@ -1215,7 +1578,12 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
     {
         ITreeNode removedChild = getChild(index);
         removedChild.setParent(null);
-        mChildren.remove(index);
+        children().remove(index);
+        updateChildIndexes(index);
+        if (removedChild instanceof TreeNode)
+        {
+            ((TreeNode) removedChild).mIndexInParent = -1;
+        }
         try
         {
             getPresentation().notifyListeners(
@@ -1426,6 +1794,32 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         {
             throw new TreeNodeIsAncestorException();
         }
+        Presentation pres;
+        try
+        {
+            pres = getPresentation();
+        }
+        catch (IsNotInitializedException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        pres.beginBatch();
+        try
+        {
+            appendChildrenOfInBatch(node);
+        }
+        finally
+        {
+            pres.endBatch();
+        }
+    }
+
+    private void appendChildrenOfInBatch(ITreeNode node)
+            throws MethodParameterIsNullException,
+            ObjectIsInDifferentPresentationException,
+            TreeNodeIsAncestorException, TreeNodeIsSelfException
+    {
         while (node.getChildCount() > 0)
         {
             try
@@ -1700,7 +2094,7 @@ public class TreeNode extends AbstractXukAbleWithPresentation implements
         {
             return this;
         }
-        return parent.getParent();
+        return parent.getRoot();
     }
 
     public void setParent(ITreeNode node)
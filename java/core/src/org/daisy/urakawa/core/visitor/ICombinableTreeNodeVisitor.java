@@ -0,0 +1,36 @@
+package org.daisy.urakawa.core.visitor;
+
+/**
+ * <p>
+ * A visitor which can be used for a parallel traversal (see
+ * {@link IVisitableTreeNode#acceptDepthFirstParallel(ICombinableTreeNodeVisitor)}):
+ * the sub-trees are visited by different visitors on different threads, and
+ * their results are then combined in the visitor given to the traversal.
+ * Each visitor is only used by one thread at a time, it does not need to be
+ * thread-safe, but it must not modify the tree.
+ * </p>
+ * 
+ * @param <T>
+ *        the class of the visitor itself
+ * @stereotype ApplicationImplemented
+ */
+public interface ICombinableTreeNodeVisitor<T extends ICombinableTreeNodeVisitor<T>>
+        extends ITreeNodeVisitor
+{
+    /**
+     * @return a new visitor with the same settings as this one, and an empty
+     *         result
+     */
+    public T createVisitor();
+
+    /**
+     * Adds the result of the given visitor to the result of this visitor.
+     * The nodes visited by the given visitor follow, in the depth-first order,
+     * the ones visited by this visitor so far.
+     * 
+     * @param visitor
+     *        a visitor created by {@link #createVisitor()}, which will not be
+     *        used anymore. Cannot be null.
+     */
+    public void combine(T visitor);
+}
@@ -52,4 +52,24 @@ public interface IVisitableTreeNode
      */
     public void acceptBreadthFirst(ITreeNodeVisitor visitor)
             throws MethodParameterIsNullException;
+
+    /**
+     * <p>
+     * Parallel depth-first traversal of the Node. The visitor gets the same
+     * preVisit() and postVisit() calls as with a depth-first traversal, except
+     * that the large sub-trees are visited on other threads, by visitors
+     * created by the given one, whose results are then combined with the
+     * result of the given visitor, in the depth-first order. The tree must not
+     * be modified during the traversal.
+     * </p>
+     * 
+     * @param <T>
+     *        the class of the visitor
+     * @param visitor
+     *        cannot be null.
+     * @throws MethodParameterIsNullException
+     *         NULL method parameters are forbidden
+     */
+    public <T extends ICombinableTreeNodeVisitor<T>> void acceptDepthFirstParallel(
+            T visitor) throws MethodParameterIsNullException;
 }
\ No newline at end of file
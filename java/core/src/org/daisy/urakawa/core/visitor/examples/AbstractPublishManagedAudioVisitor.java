@@ -3,12 +3,20 @@ package org.daisy.urakawa.core.visitor.examples;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.daisy.urakawa.core.ITreeNode;
 import org.daisy.urakawa.core.visitor.ITreeNodeVisitor;
+import org.daisy.urakawa.events.progress.TransferProgressEvent;
 import org.daisy.urakawa.exception.IsNotInitializedException;
 import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
 import org.daisy.urakawa.media.DoesNotAcceptMediaException;
 import org.daisy.urakawa.media.ExternalAudioMedia;
 import org.daisy.urakawa.media.data.audio.IAudioMediaData;
@@ -21,6 +29,9 @@ import org.daisy.urakawa.media.timing.Time;
 import org.daisy.urakawa.media.timing.TimeOffsetIsOutOfBoundsException;
 import org.daisy.urakawa.nativeapi.FileStream;
 import org.daisy.urakawa.nativeapi.IStream;
+import org.daisy.urakawa.nativeapi.StreamTransfer;
+import org.daisy.urakawa.progress.IProgressHandler;
+import org.daisy.urakawa.property.IProperty;
 import org.daisy.urakawa.property.channel.ChannelDoesNotExistException;
 import org.daisy.urakawa.property.channel.IChannel;
 import org.daisy.urakawa.property.channel.IChannelsProperty;
@@ -34,6 +45,25 @@ import org.daisy.urakawa.property.channel.IChannelsProperty;
  * file and which TreeNodes are skipped. After visitation the
  * writeCurrentAudioFile() method must be called to ensure that the current
  * audio file is written to disk.
+ * <p>
+ * The audio data is streamed to the current audio file in chunks of
+ * {@link #CHUNK_SIZE} bytes as it is published, so the memory used does not
+ * depend on the length of the clips. A new audio file is started when the
+ * current one would exceed {@link #getMaxAudioFileDataLength()} bytes of PCM
+ * data. When a progress handler is set, a TransferProgressEvent reporting the
+ * throughput is dispatched to it after every chunk.
+ * </p>
+ * <p>
+ * {@link #publish(ITreeNode)} runs the whole process. With more than one
+ * worker (see {@link #setWorkerCount(int)}), the visitation only plans the
+ * audio files (their numbers, and the clips they contain) and the
+ * ExternalAudioMedia, then the files are written concurrently by a pool of
+ * worker threads. The numbering and the clip times are the same as with a
+ * single worker, as they only depend on the order of the visitation and the
+ * length of the audio. The destination channel is only changed once all the
+ * files are written: if publishing fails or is cancelled, it is left as it
+ * was.
+ * </p>
  */
 public abstract class AbstractPublishManagedAudioVisitor implements
         ITreeNodeVisitor
@@ -43,13 +73,71 @@ public abstract class AbstractPublishManagedAudioVisitor implements
         resetAudioFileNumbering();
     }
 
+    /**
+     * The number of bytes copied between two progress notifications.
+     */
+    public static final long CHUNK_SIZE = 4 * 1024 * 1024;
+    /**
+     * The largest amount of PCM data a RIFF WAVE file can hold (the RIFF chunk
+     * size is an unsigned 32-bit integer which includes the header).
+     */
+    public static final long MAX_RIFF_WAVE_DATA_LENGTH = 0xFFFFFFFFL - 36;
     private IChannel mSourceChannel;
     private IChannel mDestinationChannel;
     private URI mDestinationDirectory;
-    private String mAudioFileBaseNameFormat = "aud{0:0}.wav";
+    private String mAudioFileBaseNameFormat = "aud%d.wav";
     private int mCurrentAudioFileNumber;
     private IPCMFormatInfo mCurrentAudioFilePCMFormat = null;
-    private IStream mCurrentAudioFileStream = null;
+    private FileStream mCurrentAudioFileStream = null;
+    private long mCurrentAudioFileDataLength = 0;
+    private long mMaxAudioFileDataLength = MAX_RIFF_WAVE_DATA_LENGTH;
+    private IProgressHandler mProgressHandler = null;
+    private volatile boolean mCancelled = false;
+    private long mBytesPublished = 0;
+    private long mBytesToPublish = 0;
+    private boolean mPublishingStarted = false;
+    private long mPublishingStartNanoseconds = 0;
+    private int mWorkerCount = 1;
+
+    /**
+     * An audio file whose content has been decided during the visitation, to
+     * be written by a worker thread.
+     */
+    private static final class PlannedAudioFile
+    {
+        final URI mFile;
+        final IPCMFormatInfo mPCMFormat;
+        final List<IAudioMediaData> mAudioMediaData = new ArrayList<IAudioMediaData>();
+        long mDataLength = 0;
+
+        PlannedAudioFile(URI file, IPCMFormatInfo format)
+        {
+            mFile = file;
+            mPCMFormat = format;
+        }
+    }
+
+    /**
+     * A change of the media of the destination channel decided during the
+     * visitation, to be made once the audio files are written.
+     */
+    private static final class PlannedMedia
+    {
+        final IChannelsProperty mChannelsProperty;
+        final ExternalAudioMedia mMedia;
+
+        PlannedMedia(IChannelsProperty chProp, ExternalAudioMedia media)
+        {
+            mChannelsProperty = chProp;
+            mMedia = media;
+        }
+    }
+
+    /**
+     * Non-null while {@link #publish(ITreeNode)} plans the audio files.
+     */
+    private List<PlannedAudioFile> mPlannedAudioFiles = null;
+    private List<PlannedMedia> mPlannedMedia = null;
 
     /**
      * Gets the source IChannel from which the IManagedAudioMedia to publish is
@@ -157,6 +245,111 @@ public abstract class AbstractPublishManagedAudioVisitor implements
         return mAudioFileBaseNameFormat;
     }
 
+    /**
+     * Gets the maximum number of bytes of PCM data in a published audio file.
+     * 
+     * @return number of bytes
+     */
+    public long getMaxAudioFileDataLength()
+    {
+        return mMaxAudioFileDataLength;
+    }
+
+    /**
+     * Sets the maximum number of bytes of PCM data in a published audio file:
+     * when publishing the audio of a ITreeNode would exceed this length, a new
+     * audio file is started. The audio of a single ITreeNode is never split,
+     * so a file can be larger if it contains a single longer clip.
+     * 
+     * @param length
+     *        at most {@link #MAX_RIFF_WAVE_DATA_LENGTH}
+     * @throws MethodParameterIsOutOfBoundsException
+     */
+    public void setMaxAudioFileDataLength(long length)
+            throws MethodParameterIsOutOfBoundsException
+    {
+        if (length <= 0 || length > MAX_RIFF_WAVE_DATA_LENGTH)
+        {
+            throw new MethodParameterIsOutOfBoundsException();
+        }
+        mMaxAudioFileDataLength = length;
+    }
+
+    /**
+     * @return the progress handler notified during publishing, or null
+     */
+    public IProgressHandler getProgressHandler()
+    {
+        return mProgressHandler;
+    }
+
+    /**
+     * Sets the progress handler to which TransferProgressEvents are
+     * dispatched while the audio is copied. If a listener cancels one of
+     * these events, the remaining ITreeNodes are skipped.
+     * 
+     * @param ph
+     *        can be null
+     */
+    public void setProgressHandler(IProgressHandler ph)
+    {
+        mProgressHandler = ph;
+    }
+
+    /**
+     * @return the number of threads writing audio files in
+     *         {@link #publish(ITreeNode)}
+     */
+    public int getWorkerCount()
+    {
+        return mWorkerCount;
+    }
+
+    /**
+     * Sets the number of threads writing audio files in
+     * {@link #publish(ITreeNode)}. With 1 (the default), the audio is written
+     * during the visitation.
+     * 
+     * @param count
+     * @throws MethodParameterIsOutOfBoundsException
+     *         if count < 1
+     */
+    public void setWorkerCount(int count)
+            throws MethodParameterIsOutOfBoundsException
+    {
+        if (count < 1)
+        {
+            throw new MethodParameterIsOutOfBoundsException();
+        }
+        mWorkerCount = count;
+    }
+
+    /**
+     * @return true if publishing was cancelled through the progress handler
+     *         (until the next {@link #resetPublishingProgress()})
+     */
+    public boolean isCancelled()
+    {
+        return mCancelled;
+    }
+
+    /**
+     * Clears the cancellation, the byte counts and the start time of the
+     * throughput reported to the progress handler, so that the visitor can
+     * publish again. Called by {@link #publish(ITreeNode)}; callers which
+     * drive the visitation themselves (through
+     * {@link ITreeNode#acceptDepthFirst(ITreeNodeVisitor)}) must call it
+     * before each visitation after the first.
+     */
+    public synchronized void resetPublishingProgress()
+    {
+        mCancelled = false;
+        mBytesPublished = 0;
+        mBytesToPublish = 0;
+        mPublishingStarted = false;
+        mPublishingStartNanoseconds = 0;
+    }
+
     /**
      * Gets the number of the current audio file
      * 
@@ -195,74 +388,291 @@ public abstract class AbstractPublishManagedAudioVisitor implements
     public abstract boolean treeNodeMustBeSkipped(ITreeNode node);
 
     /**
-     * Writes the currently active audio file to disk.
+     * Visits the given sub-tree depth-first, then writes the current audio
+     * file. With more than one worker, the audio files are written
+     * concurrently after the visitation, and this method returns when they
+     * are all written. The progress of a previous run, and its cancellation,
+     * are reset first (see {@link #resetPublishingProgress()}).
+     * 
+     * @param root
+     * @throws MethodParameterIsNullException
      */
-    public void writeCurrentAudioFile()
+    public void publish(ITreeNode root) throws MethodParameterIsNullException
     {
-        if (mCurrentAudioFileStream != null
-                && mCurrentAudioFilePCMFormat != null)
+        if (root == null)
         {
-            URI file = getCurrentAudioFileUri();
-            FileStream fs = new FileStream(file.getPath());
-            try
+            throw new MethodParameterIsNullException();
+        }
+        resetPublishingProgress();
+        if (mWorkerCount <= 1)
+        {
+            root.acceptDepthFirst(this);
+            writeCurrentAudioFile();
+            return;
+        }
+        List<PlannedAudioFile> files = new ArrayList<PlannedAudioFile>();
+        List<PlannedMedia> media = new ArrayList<PlannedMedia>();
+        mPlannedAudioFiles = files;
+        mPlannedMedia = media;
+        try
+        {
+            root.acceptDepthFirst(this);
+            writeCurrentAudioFile();
+        }
+        finally
+        {
+            mPlannedAudioFiles = null;
+            mPlannedMedia = null;
+        }
+        writePlannedAudioFiles(files);
+        if (mCancelled)
+        {
+            return;
+        }
+        for (PlannedMedia planned : media)
+        {
+            setDestinationMedia(planned.mChannelsProperty, planned.mMedia);
+        }
+    }
+
+    /**
+     * Sets the media of the destination channel, or removes it if the given
+     * media is null. While the audio files are planned, the change is only
+     * recorded.
+     */
+    private void setDestinationMedia(IChannelsProperty chProp,
+            ExternalAudioMedia media) throws MethodParameterIsNullException
+    {
+        if (mPlannedMedia != null)
+        {
+            mPlannedMedia.add(new PlannedMedia(chProp, media));
+            return;
+        }
+        try
+        {
+            if (media != null
+                    || chProp.getMedia(getDestinationChannel()) != null)
             {
-                IPCMDataInfo pcmData;
-                try
-                {
-                    pcmData = new PCMDataInfo(mCurrentAudioFilePCMFormat);
-                }
-                catch (MethodParameterIsNullException e)
+                chProp.setMedia(getDestinationChannel(), media);
+            }
+        }
+        catch (ChannelDoesNotExistException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        catch (IsNotInitializedException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        catch (DoesNotAcceptMediaException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    private PlannedAudioFile getCurrentPlannedAudioFile()
+    {
+        return mPlannedAudioFiles.get(mPlannedAudioFiles.size() - 1);
+    }
+
+    private void writePlannedAudioFiles(List<PlannedAudioFile> files)
+    {
+        if (files.size() == 0)
+        {
+            return;
+        }
+        long total = 0;
+        for (PlannedAudioFile file : files)
+        {
+            total += file.mDataLength;
+        }
+        addBytesToPublish(total);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+                mWorkerCount, files.size()));
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>(files.size());
+            for (final PlannedAudioFile file : files)
+            {
+                futures.add(pool.submit(new Runnable()
                 {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
-                }
-                pcmData.setDataLength(mCurrentAudioFileStream.getLength());
+                    public void run()
+                    {
+                        writePlannedAudioFile(file);
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+            {
                 try
                 {
-                    pcmData.writeRiffWaveHeader(fs);
+                    future.get();
                 }
-                catch (MethodParameterIsNullException e)
+                catch (InterruptedException e)
                 {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
-                }
-                catch (IOException e)
-                {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(
+                            "Interrupted while publishing audio", e);
                 }
-                mCurrentAudioFileStream.setPosition(0);
-                byte[] data = mCurrentAudioFileStream
-                        .readBytes(mCurrentAudioFileStream.getLength());
-                try
-                {
-                    mCurrentAudioFileStream.close();
-                    fs.write(data, 0, data.length);
-                }
-                catch (IOException e)
+                catch (ExecutionException e)
                 {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
+                    if (e.getCause() instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
                 }
-                mCurrentAudioFileStream = null;
-                mCurrentAudioFilePCMFormat = null;
             }
-            finally
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    private void writePlannedAudioFile(PlannedAudioFile file)
+    {
+        if (mCancelled)
+        {
+            return;
+        }
+        FileStream fs = createAudioFile(file.mFile);
+        try
+        {
+            writeRiffWaveHeader(fs, file.mPCMFormat, file.mDataLength,
+                    file.mFile);
+            for (IAudioMediaData amd : file.mAudioMediaData)
             {
-                try
+                if (!copyAudioData(amd, fs, file.mFile))
                 {
-                    fs.close();
-                }
-                catch (IOException e)
-                {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
+                    return;
                 }
             }
         }
+        finally
+        {
+            try
+            {
+                fs.close();
+            }
+            catch (IOException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the currently active audio file to disk.
+     */
+    public void writeCurrentAudioFile()
+    {
+        if (mCurrentAudioFilePCMFormat == null)
+        {
+            return;
+        }
+        if (mPlannedAudioFiles != null)
+        {
+            getCurrentPlannedAudioFile().mDataLength = mCurrentAudioFileDataLength;
+            mCurrentAudioFilePCMFormat = null;
+            mCurrentAudioFileDataLength = 0;
+            return;
+        }
+        try
+        {
+            // The header written when the file was opened is updated with
+            // the final data length
+            mCurrentAudioFileStream.setLongPosition(0);
+            writeRiffWaveHeader(mCurrentAudioFileStream,
+                    mCurrentAudioFilePCMFormat, mCurrentAudioFileDataLength,
+                    getCurrentAudioFileUri());
+        }
+        finally
+        {
+            try
+            {
+                mCurrentAudioFileStream.close();
+            }
+            catch (IOException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+            mCurrentAudioFileStream = null;
+            mCurrentAudioFilePCMFormat = null;
+            mCurrentAudioFileDataLength = 0;
+        }
+    }
+
+    private static void writeRiffWaveHeader(IStream fs, IPCMFormatInfo format,
+            long dataLength, URI file)
+    {
+        IPCMDataInfo pcmData;
+        try
+        {
+            pcmData = new PCMDataInfo(format);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        pcmData.setDataLength(dataLength);
+        try
+        {
+            pcmData.writeRiffWaveHeader(fs);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot write " + file, e);
+        }
+    }
+
+    private static FileStream createAudioFile(URI file)
+    {
+        FileStream fs;
+        try
+        {
+            fs = new FileStream(file.getPath(), true);
+            fs.setLength(0);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot open " + file, e);
+        }
+        return fs;
+    }
+
+    private void openNextAudioFile(IPCMFormatInfo format)
+    {
+        mCurrentAudioFileNumber++;
+        mCurrentAudioFilePCMFormat = format;
+        mCurrentAudioFileDataLength = 0;
+        URI file = getCurrentAudioFileUri();
+        if (mPlannedAudioFiles != null)
+        {
+            mPlannedAudioFiles.add(new PlannedAudioFile(file, format));
+            return;
+        }
+        mCurrentAudioFileStream = createAudioFile(file);
+        // Placeholder, see writeCurrentAudioFile()
+        writeRiffWaveHeader(mCurrentAudioFileStream, format, 0, file);
     }
 
-    @SuppressWarnings("boxing")
     private URI getCurrentAudioFileUri()
     {
         URI res;
@@ -275,26 +685,131 @@ public abstract class AbstractPublishManagedAudioVisitor implements
             // Should never happen
             throw new RuntimeException("WTF ??!", e1);
         }
-        URI res2;
         try
         {
-            res2 = new URI(String.format(getAudioFileNameFormat(),
-                    getCurrentAudioFileNumber()));
+            return res.resolve(new URI(null, String.format(
+                    getAudioFileNameFormat(), Integer
+                            .valueOf(getCurrentAudioFileNumber())), null));
         }
         catch (URISyntaxException e)
         {
             e.printStackTrace();
             return null;
         }
-        return res2.relativize(res);
     }
 
     private void createNextAudioFile()
     {
+        // The next file is opened when there is audio to write to it
         writeCurrentAudioFile();
-        mCurrentAudioFileNumber++;
-        // TODO: mCurrentAudioFileStream = new MemoryStream();
-        mCurrentAudioFileStream = null;
+    }
+
+    /**
+     * Copies the audio data of the given IAudioMediaData to the given file,
+     * in chunks, notifying the progress handler after each chunk.
+     * 
+     * @return false if publishing was cancelled
+     */
+    private boolean copyAudioData(IAudioMediaData amd, FileStream dest,
+            URI file)
+    {
+        long count = amd.getPCMLength();
+        IStream st = amd.getAudioData();
+        try
+        {
+            long copied = 0;
+            while (copied < count)
+            {
+                long n;
+                try
+                {
+                    n = StreamTransfer.transfer(st, Math.min(CHUNK_SIZE, count
+                            - copied), dest);
+                }
+                catch (MethodParameterIsNullException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException("Cannot write " + file, e);
+                }
+                if (n <= 0)
+                {
+                    throw new RuntimeException("The audio data is too short");
+                }
+                copied += n;
+                if (!notifyTransferProgress(n))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            try
+            {
+                st.close();
+            }
+            catch (IOException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+        }
+    }
+
+    /**
+     * Must be called before the given number of bytes are copied, the
+     * throughput is measured from the first call.
+     */
+    private synchronized void addBytesToPublish(long bytes)
+    {
+        if (!mPublishingStarted)
+        {
+            mPublishingStarted = true;
+            mPublishingStartNanoseconds = System.nanoTime();
+        }
+        mBytesToPublish += bytes;
+    }
+
+    /**
+     * @param bytes
+     *        the number of bytes that have just been published
+     * @return false if publishing has been cancelled
+     */
+    private synchronized boolean notifyTransferProgress(long bytes)
+    {
+        if (mCancelled)
+        {
+            return false;
+        }
+        mBytesPublished += bytes;
+        if (mProgressHandler == null)
+        {
+            return true;
+        }
+        TransferProgressEvent event = new TransferProgressEvent(
+                mBytesPublished, mBytesToPublish,
+                System.nanoTime() - mPublishingStartNanoseconds);
+        try
+        {
+            mProgressHandler.notifyListeners(event);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        if (event.isCancelled())
+        {
+            mCancelled = true;
+            mProgressHandler.notifyCancelled();
+            return false;
+        }
+        return true;
     }
 
     public boolean preVisit(ITreeNode node)
@@ -304,34 +819,23 @@ public abstract class AbstractPublishManagedAudioVisitor implements
         {
             throw new MethodParameterIsNullException();
         }
-        if (treeNodeMustBeSkipped(node))
+        if (mCancelled || treeNodeMustBeSkipped(node))
             return false;
         if (treeNodeTriggersNewAudioFile(node))
             createNextAudioFile();
-        if (node.hasProperties(IChannelsProperty.class))
+        // Not getProperty(), which only matches the exact class
+        IChannelsProperty chProp = null;
+        for (IProperty prop : node.getListOfProperties())
         {
-            IChannelsProperty chProp = node
-                    .getProperty(IChannelsProperty.class);
-            try
+            if (prop instanceof IChannelsProperty)
             {
-                if (chProp.getMedia(getDestinationChannel()) != null)
-                    chProp.setMedia(getDestinationChannel(), null);
-            }
-            catch (ChannelDoesNotExistException e1)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e1);
-            }
-            catch (IsNotInitializedException e1)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e1);
-            }
-            catch (DoesNotAcceptMediaException e1)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e1);
+                chProp = (IChannelsProperty) prop;
+                break;
             }
+        }
+        if (chProp != null)
+        {
+            setDestinationMedia(chProp, null);
             IManagedAudioMedia mam;
             try
             {
@@ -350,46 +854,35 @@ public abstract class AbstractPublishManagedAudioVisitor implements
             if (mam != null)
             {
                 IAudioMediaData amd = mam.getMediaData();
-                if (mCurrentAudioFilePCMFormat == null)
+                long pcmLength = amd.getPCMLength();
+                boolean rollover = mCurrentAudioFileDataLength > 0
+                        && mCurrentAudioFileDataLength + pcmLength > mMaxAudioFileDataLength;
+                if (mCurrentAudioFilePCMFormat != null
+                        && (rollover || !mCurrentAudioFilePCMFormat
+                                .ValueEquals(amd.getPCMFormat())))
                 {
-                    mCurrentAudioFilePCMFormat = amd.getPCMFormat();
+                    createNextAudioFile();
                 }
-                if (mCurrentAudioFileStream == null
-                        || !mCurrentAudioFilePCMFormat.ValueEquals(amd
-                                .getPCMFormat()))
+                if (mCurrentAudioFilePCMFormat == null)
                 {
-                    createNextAudioFile();
-                    mCurrentAudioFilePCMFormat = amd.getPCMFormat();
+                    openNextAudioFile(amd.getPCMFormat());
                 }
                 ITime clipBegin = new Time().getZero().addTimeDelta(
                         mCurrentAudioFilePCMFormat
-                                .getDuration(mCurrentAudioFileStream
-                                        .getPosition()));
+                                .getDuration(mCurrentAudioFileDataLength));
                 ITime clipEnd = clipBegin.addTimeDelta(amd.getAudioDuration());
-                IStream st = amd.getAudioData();
-                try
+                mCurrentAudioFileDataLength += pcmLength;
+                if (mPlannedAudioFiles != null)
                 {
-                    byte[] data = st.readBytes(amd.getPCMLength());
-                    try
-                    {
-                        mCurrentAudioFileStream.write(data, 0, data.length);
-                    }
-                    catch (IOException e)
-                    {
-                        // Should never happen
-                        throw new RuntimeException("WTF ??!", e);
-                    }
+                    getCurrentPlannedAudioFile().mAudioMediaData.add(amd);
                 }
-                finally
+                else
                 {
-                    try
-                    {
-                        st.close();
-                    }
-                    catch (IOException e)
+                    addBytesToPublish(pcmLength);
+                    if (!copyAudioData(amd, mCurrentAudioFileStream,
+                            getCurrentAudioFileUri()))
                     {
-                        // Should never happen
-                        throw new RuntimeException("WTF ??!", e);
+                        return false;
                     }
                 }
                 ExternalAudioMedia eam;
@@ -405,28 +898,20 @@ public abstract class AbstractPublishManagedAudioVisitor implements
                 }
                 try
                 {
-                    eam.setLanguage(mam.getLanguage());
+                    if (mam.getLanguage() != null)
+                    {
+                        eam.setLanguage(mam.getLanguage());
+                    }
                     eam.setSrc(node.getPresentation().getRootURI().relativize(
                             getCurrentAudioFileUri()).toString());
                     eam.setClipBegin(clipBegin);
                     eam.setClipEnd(clipEnd);
-                    chProp.setMedia(mDestinationChannel, eam);
                 }
                 catch (MethodParameterIsEmptyStringException e)
                 {
                     // Should never happen
                     throw new RuntimeException("WTF ??!", e);
                 }
-                catch (ChannelDoesNotExistException e)
-                {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
-                }
-                catch (DoesNotAcceptMediaException e)
-                {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
-                }
                 catch (IsNotInitializedException e)
                 {
                     // Should never happen
@@ -437,6 +922,7 @@ public abstract class AbstractPublishManagedAudioVisitor implements
                     // Should never happen
                     throw new RuntimeException("WTF ??!", e);
                 }
+                setDestinationMedia(chProp, eam);
             }
         }
         return true;
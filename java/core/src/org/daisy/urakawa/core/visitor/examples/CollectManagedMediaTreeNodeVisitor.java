@@ -1,10 +1,13 @@
 package org.daisy.urakawa.core.visitor.examples;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.daisy.urakawa.core.ITreeNode;
-import org.daisy.urakawa.core.visitor.ITreeNodeVisitor;
+import org.daisy.urakawa.core.visitor.ICombinableTreeNodeVisitor;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 import org.daisy.urakawa.media.data.IManagedMedia;
 import org.daisy.urakawa.property.IProperty;
@@ -13,11 +16,15 @@ import org.daisy.urakawa.property.channel.IChannel;
 import org.daisy.urakawa.property.channel.IChannelsProperty;
 
 /**
- * Visitor that collects all IMediaData used by the visited TreeNodes
+ * Visitor that collects all IMediaData used by the visited TreeNodes. Can be
+ * used for a parallel traversal.
  */
-public class CollectManagedMediaTreeNodeVisitor implements ITreeNodeVisitor
+public class CollectManagedMediaTreeNodeVisitor implements
+        ICombinableTreeNodeVisitor<CollectManagedMediaTreeNodeVisitor>
 {
     private List<IManagedMedia> mCollectedMedia = new LinkedList<IManagedMedia>();
+    private Set<IManagedMedia> mCollectedMediaSet = Collections
+            .newSetFromMap(new IdentityHashMap<IManagedMedia, Boolean>());
 
     /**
      * @return list
@@ -27,6 +34,20 @@ public class CollectManagedMediaTreeNodeVisitor implements ITreeNodeVisitor
         return mCollectedMedia;
     }
 
+    public CollectManagedMediaTreeNodeVisitor createVisitor()
+    {
+        return new CollectManagedMediaTreeNodeVisitor();
+    }
+
+    public void combine(CollectManagedMediaTreeNodeVisitor visitor)
+    {
+        for (IManagedMedia mm : visitor.mCollectedMedia)
+        {
+            if (mCollectedMediaSet.add(mm))
+                mCollectedMedia.add(mm);
+        }
+    }
+
     public boolean preVisit(ITreeNode node)
     {
         for (IProperty prop : node.getListOfProperties())
@@ -42,7 +63,7 @@ public class CollectManagedMediaTreeNodeVisitor implements ITreeNodeVisitor
                         {
                             IManagedMedia mm = (IManagedMedia) chProp
                                     .getMedia(ch);
-                            if (!mCollectedMedia.contains(mm))
+                            if (mCollectedMediaSet.add(mm))
                                 mCollectedMedia.add(mm);
                         }
                     }
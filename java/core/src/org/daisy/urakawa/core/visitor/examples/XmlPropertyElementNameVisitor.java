@@ -1,23 +1,27 @@
 package org.daisy.urakawa.core.visitor.examples;
 
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.daisy.urakawa.core.ITreeNode;
-import org.daisy.urakawa.core.visitor.ITreeNodeVisitor;
+import org.daisy.urakawa.core.visitor.ICombinableTreeNodeVisitor;
 import org.daisy.urakawa.exception.IsNotInitializedException;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 import org.daisy.urakawa.exception.MethodParameterIsWrongTypeException;
+import org.daisy.urakawa.property.IProperty;
 import org.daisy.urakawa.property.xml.IXmlProperty;
 
 /**
- *
+ * Visitor that collects the TreeNodes whose IXmlProperty has one of the given
+ * element names. Can be used for a parallel traversal.
  */
-public class XmlPropertyElementNameVisitor implements ITreeNodeVisitor
+public class XmlPropertyElementNameVisitor implements
+        ICombinableTreeNodeVisitor<XmlPropertyElementNameVisitor>
 {
-    private List<String> mNamesToMatch;
+    private Set<String> mNamesToMatch;
     private List<ITreeNode> mNodes;
-    @SuppressWarnings("unused")
     private Class<IXmlProperty> mXmlPropertyType = IXmlProperty.class;
 
     /**
@@ -25,7 +29,7 @@ public class XmlPropertyElementNameVisitor implements ITreeNodeVisitor
 	 */
     public XmlPropertyElementNameVisitor()
     {
-        mNamesToMatch = new LinkedList<String>();
+        mNamesToMatch = new HashSet<String>();
         mNodes = new LinkedList<ITreeNode>();
         mXmlPropertyType = IXmlProperty.class;
     }
@@ -50,7 +54,12 @@ public class XmlPropertyElementNameVisitor implements ITreeNodeVisitor
      */
     public void addElementName(String localName, String namespaceUri)
     {
-        mNamesToMatch.add(String.format("{0}:{1}", namespaceUri, localName));
+        mNamesToMatch.add(getKey(localName, namespaceUri));
+    }
+
+    private static String getKey(String localName, String namespaceUri)
+    {
+        return "{" + namespaceUri + "}" + localName;
     }
 
     /**
@@ -63,8 +72,20 @@ public class XmlPropertyElementNameVisitor implements ITreeNodeVisitor
 
     private boolean isMatch(String localName, String namespaceUri)
     {
-        return mNamesToMatch.contains(String.format("{0}:{1}", namespaceUri,
-                localName));
+        return mNamesToMatch.contains(getKey(localName, namespaceUri));
+    }
+
+    public XmlPropertyElementNameVisitor createVisitor()
+    {
+        XmlPropertyElementNameVisitor visitor = new XmlPropertyElementNameVisitor();
+        visitor.mNamesToMatch.addAll(mNamesToMatch);
+        visitor.mXmlPropertyType = mXmlPropertyType;
+        return visitor;
+    }
+
+    public void combine(XmlPropertyElementNameVisitor visitor)
+    {
+        mNodes.addAll(visitor.mNodes);
     }
 
     public void postVisit(ITreeNode node) throws MethodParameterIsNullException
@@ -77,20 +98,26 @@ public class XmlPropertyElementNameVisitor implements ITreeNodeVisitor
     public boolean preVisit(ITreeNode node)
             throws MethodParameterIsNullException
     {
-        IXmlProperty xp = node.<IXmlProperty> getProperty(IXmlProperty.class);
-        try
+        for (IProperty prop : node.getListOfProperties())
         {
-            if (xp != null
-                    && isMatch(xp.getLocalName(), xp.getNamespace()) == true)
+            if (mXmlPropertyType.isInstance(prop))
             {
-                mNodes.add(node);
+                IXmlProperty xp = (IXmlProperty) prop;
+                try
+                {
+                    if (isMatch(xp.getLocalName(), xp.getNamespace()) == true)
+                    {
+                        mNodes.add(node);
+                    }
+                }
+                catch (IsNotInitializedException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                break;
             }
         }
-        catch (IsNotInitializedException e)
-        {
-            // Should never happen
-            throw new RuntimeException("WTF ??!", e);
-        }
         return true;
     }
 }
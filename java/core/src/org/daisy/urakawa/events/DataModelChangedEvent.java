@@ -1,5 +1,7 @@
 package org.daisy.urakawa.events;
 
+import org.daisy.urakawa.core.ITreeNode;
+
 /**
  * 
  *
@@ -26,4 +28,31 @@ public class DataModelChangedEvent extends Event
     {
         return mSourceObject;
     }
+
+    private ITreeNode mOriginTreeNode = null;
+
+    /**
+     * @return the first TreeNode this event bubbled up through: the node that
+     *         raised it, or the owner of the property or media that raised it.
+     *         Null if the event did not bubble through a tree.
+     */
+    public ITreeNode getOriginTreeNode()
+    {
+        return mOriginTreeNode;
+    }
+
+    /**
+     * Called by the TreeNodes the event bubbles up through, only the first
+     * call is taken into account.
+     * 
+     * @param node
+     * @hidden
+     */
+    public void setOriginTreeNode(ITreeNode node)
+    {
+        if (mOriginTreeNode == null)
+        {
+            mOriginTreeNode = node;
+        }
+    }
 }
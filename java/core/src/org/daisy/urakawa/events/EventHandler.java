@@ -1,17 +1,53 @@
 package org.daisy.urakawa.events;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 
 /**
- * 
- *
+ * Default implementation of the event bus, used by all the "hub" classes of
+ * the data model (TreeNode, Presentation, Project, UndoRedoManager, the media
+ * data, etc.).
+ * <p>
+ * A listener is registered for a given event class, and only receives the
+ * events of that class (or of a sub-class). Registrations are kept in a
+ * copy-on-write array: registering or unregistering a listener replaces the
+ * array, and notifyListeners() iterates over the snapshot it started with, so
+ * listeners can be (un)registered from within a callback or from another
+ * thread while events are being dispatched. The list of listeners to call for
+ * a given event class is computed once and cached until the registrations
+ * change, so dispatching costs no reflection.
+ * </p>
  */
 public class EventHandler implements IEventHandler<Event>
 {
-    private List<IEventListener<? extends Event>> mEventListeners = new LinkedList<IEventListener<? extends Event>>();
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+    private static final IEventListener<?>[] NO_LISTENERS = new IEventListener<?>[0];
+
+    private static final class Registration
+    {
+        final IEventListener<?> mListener;
+        final Class<?> mClass;
+
+        Registration(IEventListener<?> listener, Class<?> klass)
+        {
+            mListener = listener;
+            mClass = klass;
+        }
+    }
+
+    /**
+     * Replaced (never modified) on every change, under the lock of this
+     * object.
+     */
+    private volatile Registration[] mRegistrations = NO_REGISTRATIONS;
+    /**
+     * The listeners to call for a given event class. The map is never
+     * modified once published: it is copied when a new event class is
+     * resolved, and discarded when the registrations change.
+     */
+    private volatile Map<Class<?>, IEventListener<?>[]> mDispatchTable = new HashMap<Class<?>, IEventListener<?>[]>();
 
     public <K extends Event> void notifyListeners(K event)
             throws MethodParameterIsNullException
@@ -20,21 +56,73 @@ public class EventHandler implements IEventHandler<Event>
         {
             throw new MethodParameterIsNullException();
         }
-        if (Event.class.isAssignableFrom(event.getClass()))
+        if (mRegistrations.length == 0)
+        {
+            return;
+        }
+        IEventListener<?>[] listeners = mDispatchTable.get(event.getClass());
+        if (listeners == null)
         {
-            // Should never happen !
-            throw new RuntimeException(
-                    "The given Class should extend DataModelChangedEvent !");
+            listeners = resolve(event.getClass());
         }
-        for (int i = 0; i < mEventListeners.size(); i++)
+        for (int i = 0; i < listeners.length; i++)
         {
             @SuppressWarnings("unchecked")
-            IEventListener<K> listener = (IEventListener<K>) mEventListeners
-                    .get(i);
+            IEventListener<K> listener = (IEventListener<K>) listeners[i];
             listener.eventCallback(event);
         }
     }
 
+    /**
+     * Computes (and caches) the listeners registered for the given event
+     * class or any of its super-classes, in order of registration.
+     */
+    private synchronized IEventListener<?>[] resolve(Class<?> eventClass)
+    {
+        IEventListener<?>[] listeners = mDispatchTable.get(eventClass);
+        if (listeners != null)
+        {
+            return listeners;
+        }
+        Registration[] regs = mRegistrations;
+        int count = 0;
+        IEventListener<?>[] matches = new IEventListener<?>[regs.length];
+        for (int i = 0; i < regs.length; i++)
+        {
+            if (regs[i].mClass.isAssignableFrom(eventClass))
+            {
+                matches[count++] = regs[i].mListener;
+            }
+        }
+        if (count == 0)
+        {
+            listeners = NO_LISTENERS;
+        }
+        else
+        {
+            listeners = new IEventListener<?>[count];
+            System.arraycopy(matches, 0, listeners, 0, count);
+        }
+        Map<Class<?>, IEventListener<?>[]> table = new HashMap<Class<?>, IEventListener<?>[]>(
+                mDispatchTable);
+        table.put(eventClass, listeners);
+        mDispatchTable = table;
+        return listeners;
+    }
+
+    private int indexOf(Registration[] regs, IEventListener<?> listener,
+            Class<?> klass)
+    {
+        for (int i = 0; i < regs.length; i++)
+        {
+            if (regs[i].mListener == listener && regs[i].mClass == klass)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public <K extends Event> void registerListener(IEventListener<K> listener,
             Class<K> klass) throws MethodParameterIsNullException
     {
@@ -42,15 +130,18 @@ public class EventHandler implements IEventHandler<Event>
         {
             throw new MethodParameterIsNullException();
         }
-        if (Event.class.isAssignableFrom(klass))
-        {
-            // Should never happen !
-            throw new RuntimeException(
-                    "The given Class should extend DataModelChangedEvent !");
-        }
-        if (!mEventListeners.contains(listener))
+        synchronized (this)
         {
-            mEventListeners.add(listener);
+            Registration[] regs = mRegistrations;
+            if (indexOf(regs, listener, klass) != -1)
+            {
+                return;
+            }
+            Registration[] newRegs = new Registration[regs.length + 1];
+            System.arraycopy(regs, 0, newRegs, 0, regs.length);
+            newRegs[regs.length] = new Registration(listener, klass);
+            mRegistrations = newRegs;
+            mDispatchTable = new HashMap<Class<?>, IEventListener<?>[]>();
         }
     }
 
@@ -62,15 +153,32 @@ public class EventHandler implements IEventHandler<Event>
         {
             throw new MethodParameterIsNullException();
         }
-        if (Event.class.isAssignableFrom(klass))
-        {
-            // Should never happen !
-            throw new RuntimeException(
-                    "The given Class should extend DataModelChangedEvent !");
-        }
-        if (mEventListeners.contains(listener))
+        synchronized (this)
         {
-            mEventListeners.remove(listener);
+            Registration[] regs = mRegistrations;
+            int index = indexOf(regs, listener, klass);
+            if (index == -1)
+            {
+                return;
+            }
+            Registration[] newRegs = NO_REGISTRATIONS;
+            if (regs.length > 1)
+            {
+                newRegs = new Registration[regs.length - 1];
+                System.arraycopy(regs, 0, newRegs, 0, index);
+                System.arraycopy(regs, index + 1, newRegs, index, regs.length
+                        - index - 1);
+            }
+            mRegistrations = newRegs;
+            mDispatchTable = new HashMap<Class<?>, IEventListener<?>[]>();
         }
     }
+
+    /**
+     * @return true if at least one listener is registered
+     */
+    public boolean hasListeners()
+    {
+        return mRegistrations.length > 0;
+    }
 }
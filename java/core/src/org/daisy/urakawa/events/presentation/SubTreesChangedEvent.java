@@ -0,0 +1,35 @@
+package org.daisy.urakawa.events.presentation;
+
+import java.util.List;
+
+import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.core.ITreeNode;
+
+/**
+ * Raised once at the end of a batch of changes (see
+ * {@link org.daisy.urakawa.Presentation#beginBatch()}), in place of the
+ * individual tree events that were raised during the batch.
+ */
+public class SubTreesChangedEvent extends PresentationEvent
+{
+    private List<ITreeNode> mChangedSubTreeRoots;
+
+    /**
+     * @param source
+     * @param roots
+     */
+    public SubTreesChangedEvent(Presentation source, List<ITreeNode> roots)
+    {
+        super(source);
+        mChangedSubTreeRoots = roots;
+    }
+
+    /**
+     * @return the roots of the sub-trees in which changes occurred during the
+     *         batch. None of them is a descendant of another.
+     */
+    public List<ITreeNode> getChangedSubTreeRoots()
+    {
+        return mChangedSubTreeRoots;
+    }
+}
@@ -0,0 +1,48 @@
+package org.daisy.urakawa.events.progress;
+
+/**
+ * A ProgressEvent for operations that copy bytes (e.g. audio publishing),
+ * which also reports the throughput. getCurrent() and getTotal() are numbers of
+ * bytes.
+ */
+public class TransferProgressEvent extends ProgressEvent
+{
+    private long mElapsedNanoseconds;
+
+    /**
+     * @param current
+     *        the number of bytes transferred so far
+     * @param total
+     *        the total number of bytes to transfer
+     * @param elapsedNanoseconds
+     *        the time spent transferring the current bytes
+     */
+    public TransferProgressEvent(long current, long total,
+            long elapsedNanoseconds)
+    {
+        super(current, total);
+        mElapsedNanoseconds = elapsedNanoseconds;
+    }
+
+    /**
+     * @return the time spent transferring getCurrent() bytes, in nanoseconds
+     */
+    public long getElapsedNanoseconds()
+    {
+        return mElapsedNanoseconds;
+    }
+
+    /**
+     * @return the average throughput so far, in megabytes (2^20 bytes) per
+     *         second, or 0 if no time has elapsed yet
+     */
+    public double getMegaBytesPerSecond()
+    {
+        if (mElapsedNanoseconds <= 0)
+        {
+            return 0;
+        }
+        return (getCurrent() / (1024.0 * 1024.0))
+                / (mElapsedNanoseconds / 1000000000.0);
+    }
+}
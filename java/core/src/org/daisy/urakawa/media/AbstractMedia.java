@@ -187,7 +187,8 @@ public abstract class AbstractMedia extends AbstractXukAbleWithPresentation
     public void setLanguage(String lang)
             throws MethodParameterIsEmptyStringException
     {
-        if (lang.length() == 0)
+        // Can be null, see IWithLanguage
+        if (lang != null && lang.length() == 0)
         {
             throw new MethodParameterIsEmptyStringException();
         }
@@ -215,7 +215,10 @@ public class ExternalAudioMedia extends AbstractAudioMedia implements ILocated,
         mClipEnd = new Time().getMaxValue();
     }
 
-    protected ExternalAudioMedia()
+    /**
+     * Public, like the other media, so that the MediaFactory can create it.
+     */
+    public ExternalAudioMedia()
     {
         super();
         mSrc = ".";
@@ -26,6 +26,12 @@ public abstract class AbstractMediaData extends AbstractXukAbleWithPresentation
         implements IMediaData
 {
     private String mName = "";
+    /**
+     * The manager of the IDataProviders on which the media data holds
+     * references, while it is managed by the MediaDataManager of its
+     * presentation. Null otherwise.
+     */
+    private DataProviderManager mReferencedDataProviderManager = null;
     protected IEventHandler<Event> mDataModelEventNotifier = new EventHandler();
     protected IEventHandler<Event> mNameChangedEventNotifier = new EventHandler();
     protected IEventListener<DataModelChangedEvent> mBubbleEventListener = new IEventListener<DataModelChangedEvent>()
@@ -48,6 +54,7 @@ public abstract class AbstractMediaData extends AbstractXukAbleWithPresentation
         {
             throw new MethodParameterIsNullException();
         }
+        notifyManagerOfChange();
         if (NameChangedEvent.class.isAssignableFrom(event.getClass()))
         {
             mNameChangedEventNotifier.notifyListeners(event);
@@ -136,6 +143,147 @@ public abstract class AbstractMediaData extends AbstractXukAbleWithPresentation
 
     public abstract List<IDataProvider> getListOfUsedDataProviders();
 
+    /**
+     * Called by the MediaDataManager when the media data is added to it
+     * (given the DataProviderManager of the presentation) or removed from it
+     * (given null): the references on the IDataProviders (see
+     * {@link #getListOfDataProviderReferences()}) are added or removed
+     * accordingly.
+     * 
+     * @param manager
+     * @param delete
+     *        if true, the IDataProviders whose last reference is removed can
+     *        be deleted (see
+     *        {@link DataProviderManager#removeDataProviderReference(IDataProvider, boolean)})
+     */
+    void setReferencedDataProviderManager(DataProviderManager manager,
+            boolean delete)
+    {
+        if (manager == mReferencedDataProviderManager)
+        {
+            return;
+        }
+        DataProviderManager previous = mReferencedDataProviderManager;
+        mReferencedDataProviderManager = manager;
+        try
+        {
+            if (manager != null)
+            {
+                for (IDataProvider prov : getListOfDataProviderReferences())
+                {
+                    manager.addDataProviderReference(prov);
+                }
+            }
+            if (previous != null)
+            {
+                for (IDataProvider prov : getListOfDataProviderReferences())
+                {
+                    previous.removeDataProviderReference(prov, delete
+                            && previous.getDeleteUnreferencedDataProviders());
+                }
+            }
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    /**
+     * @return the IDataProviders on which the media data holds references
+     *         while it is managed, once per reference. By default the
+     *         IDataProviders returned by {@link #getListOfUsedDataProviders()}.
+     *         The subclasses whose IDataProviders change must call
+     *         {@link #addDataProviderReference(IDataProvider)} and
+     *         {@link #removeDataProviderReference(IDataProvider, boolean)} as
+     *         the list changes.
+     */
+    protected List<IDataProvider> getListOfDataProviderReferences()
+    {
+        return getListOfUsedDataProviders();
+    }
+
+    /**
+     * Records the change of the media data in its MediaDataManager (see
+     * {@link MediaDataManager#getChangedUidRecorder()}), if it is managed.
+     * Called when an event is raised, and when the references on the
+     * IDataProviders change, which the subclasses do whenever their list of
+     * IDataProviders (or the parts of them they use) changes.
+     */
+    private void notifyManagerOfChange()
+    {
+        if (mReferencedDataProviderManager == null)
+        {
+            return;
+        }
+        try
+        {
+            getPresentation().getMediaDataManager()
+                    .notifyMediaDataChanged(this);
+        }
+        catch (IsNotInitializedException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    /**
+     * Adds a reference on the given IDataProvider if the media data is
+     * managed.
+     * 
+     * @param prov
+     */
+    protected void addDataProviderReference(IDataProvider prov)
+    {
+        if (mReferencedDataProviderManager == null)
+        {
+            return;
+        }
+        notifyManagerOfChange();
+        try
+        {
+            mReferencedDataProviderManager.addDataProviderReference(prov);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    /**
+     * Removes a reference on the given IDataProvider if the media data is
+     * managed.
+     * 
+     * @param prov
+     * @param delete
+     *        if false, the IDataProvider is not deleted even if this was its
+     *        last reference
+     */
+    protected void removeDataProviderReference(IDataProvider prov,
+            boolean delete)
+    {
+        if (mReferencedDataProviderManager == null)
+        {
+            return;
+        }
+        notifyManagerOfChange();
+        try
+        {
+            mReferencedDataProviderManager.removeDataProviderReference(prov,
+                    delete
+                            && mReferencedDataProviderManager
+                                    .getDeleteUnreferencedDataProviders());
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
     public void delete()
     {
         try
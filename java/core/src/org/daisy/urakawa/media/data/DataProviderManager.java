@@ -7,12 +7,19 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
+import org.daisy.urakawa.ChangedUidRecorder;
 import org.daisy.urakawa.IValueEquatable;
 import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.UidAllocator;
 import org.daisy.urakawa.events.IEventListener;
 import org.daisy.urakawa.events.presentation.RootUriChangedEvent;
 import org.daisy.urakawa.exception.IsAlreadyInitializedException;
@@ -22,9 +29,12 @@ import org.daisy.urakawa.exception.IsNotManagerOfException;
 import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
+import org.daisy.urakawa.nativeapi.ILongStream;
 import org.daisy.urakawa.nativeapi.IStream;
 import org.daisy.urakawa.nativeapi.IXmlDataReader;
 import org.daisy.urakawa.nativeapi.IXmlDataWriter;
+import org.daisy.urakawa.nativeapi.LongStreamAdapter;
+import org.daisy.urakawa.nativeapi.StreamTransfer;
 import org.daisy.urakawa.progress.IProgressHandler;
 import org.daisy.urakawa.progress.ProgressCancelledException;
 import org.daisy.urakawa.xuk.AbstractXukAble;
@@ -51,8 +61,17 @@ public final class DataProviderManager extends AbstractXukAble implements
 
     private Map<String, IDataProvider> mDataProvidersDictionary = new HashMap<String, IDataProvider>();
     private Map<IDataProvider, String> mReverseLookupDataProvidersDictionary = new HashMap<IDataProvider, String>();
-    private List<String> mXukedInFilDataProviderPaths = new LinkedList<String>();
+    private Set<String> mXukedInFilDataProviderPaths = new HashSet<String>();
+    private UidAllocator mUidAllocator;
+    private ChangedUidRecorder mChangedUidRecorder = new ChangedUidRecorder();
     private String mDataFileDirectory;
+    /**
+     * The number of references held on the IDataProviders (see
+     * {@link #addDataProviderReference(IDataProvider)}). The IDataProviders
+     * which are not referenced are not in the map.
+     */
+    private Map<IDataProvider, Integer> mReferenceCounts = new IdentityHashMap<IDataProvider, Integer>();
+    private boolean mDeleteUnreferencedDataProviders = true;
     protected IEventListener<RootUriChangedEvent> mRootUriChangedEventListener = new IEventListener<RootUriChangedEvent>()
     {
         public <K extends RootUriChangedEvent> void eventCallback(K event)
@@ -123,6 +142,7 @@ public final class DataProviderManager extends AbstractXukAble implements
         }
         mPresentation = pres;
         mDataFileDirectory = null;
+        mUidAllocator = new UidAllocator("DPID", 4, 0);
         // Automatic wiring of this event is "dangerous" because the file copy
         // logic implemented here may not be compatible with that of the host
         // application (i.e. copy of only the managed media in the folder).
@@ -131,7 +151,10 @@ public final class DataProviderManager extends AbstractXukAble implements
     }
 
     /**
-     * Appends data from a given input IStream to a given IDataProvider
+     * Appends data from a given input IStream to a given IDataProvider. When
+     * both the input IStream and the provider are file-backed, the data is
+     * copied from file to file without going through the Java heap (see
+     * {@link StreamTransfer}).
      * 
      * @param data
      * @param count
@@ -143,7 +166,7 @@ public final class DataProviderManager extends AbstractXukAble implements
      * @throws InputStreamIsTooShortException
      * @throws IOException
      */
-    public void appendDataToProvider(IStream data, int count,
+    public static void appendDataToProvider(IStream data, long count,
             IDataProvider provider) throws MethodParameterIsNullException,
             OutputStreamIsOpenException, InputStreamIsOpenException,
             DataIsMissingException, IOException, InputStreamIsTooShortException
@@ -152,24 +175,14 @@ public final class DataProviderManager extends AbstractXukAble implements
         {
             throw new MethodParameterIsNullException();
         }
-        IStream provOutputStream = provider.getOutputStream();
+        ILongStream provOutputStream = LongStreamAdapter.adapt(provider
+                .getOutputStream());
         try
         {
-            provOutputStream.seek(data.getLength());
-            int bytesAppended = 0;
-            byte[] buf = new byte[1024];
-            while (bytesAppended < count)
+            provOutputStream.setLongPosition(provOutputStream.getLongLength());
+            if (StreamTransfer.transfer(data, count, provOutputStream) < count)
             {
-                if (bytesAppended + buf.length >= count)
-                {
-                    buf = new byte[count - bytesAppended];
-                }
-                if (data.read(buf, 0, buf.length) != buf.length)
-                {
-                    throw new InputStreamIsTooShortException();
-                }
-                provOutputStream.write(buf, 0, buf.length);
-                bytesAppended += buf.length;
+                throw new InputStreamIsTooShortException();
             }
         }
         finally
@@ -272,7 +285,7 @@ public final class DataProviderManager extends AbstractXukAble implements
             throw new IsAlreadyInitializedException();
         }
         @SuppressWarnings("unused")
-        URI tmp = new URI(mDataFileDirectory);
+        URI tmp = new URI(null, null, dataDir, null);
         mDataFileDirectory = dataDir;
     }
 
@@ -407,15 +420,15 @@ public final class DataProviderManager extends AbstractXukAble implements
     protected String getDataFileDirectoryFullPath(URI baseUri)
             throws URISyntaxException
     {
-        if (baseUri.getScheme() != "file")
+        if (!"file".equals(baseUri.getScheme()))
         {
             throw new URISyntaxException(
                     baseUri.toString(),
                     "The base Uri of the presentation to which the DataProviderManager belongs must be a file Uri");
         }
-        URI dataFileDirUri = new URI(getDataFileDirectory());
-        dataFileDirUri.relativize(baseUri);
-        return dataFileDirUri.getPath();
+        URI dataFileDirUri = baseUri.resolve(new URI(null, null,
+                getDataFileDirectory(), null));
+        return new File(dataFileDirUri).getPath();
     }
 
     /**
@@ -466,9 +479,13 @@ public final class DataProviderManager extends AbstractXukAble implements
 
     /**
      * Gets a new data file path relative to the path of the data file directory
-     * of the manager
+     * of the manager. The name is a random UUID: it does not collide with the
+     * data files of the other Presentations which share the data file
+     * directory, nor with the files left in it by earlier sessions, and
+     * finding it does not require to look at the directory.
      * 
      * @param extension
+     *        the extension of the file, including the dot
      * @return the relative path
      * @throws MethodParameterIsNullException
      *         NULL method parameters are forbidden
@@ -487,30 +504,7 @@ public final class DataProviderManager extends AbstractXukAble implements
         {
             throw new MethodParameterIsEmptyStringException();
         }
-        String res;
-        while (true)
-        {
-            res = generateRandomFileName(extension);
-            for (IFileDataProvider prov : getListOfManagedFileDataProviders())
-            {
-                if (res.toLowerCase() == prov.getDataFileRelativePath()
-                        .toLowerCase())
-                {
-                    continue;
-                }
-            }
-            break;
-        }
-        return res;
-    }
-
-    /**
-     * @hidden
-     */
-    private String generateRandomFileName(String extension)
-    {
-        // TODO: generate random string
-        return "test." + extension;
+        return UUID.randomUUID().toString() + extension;
     }
 
     /**
@@ -640,6 +634,8 @@ public final class DataProviderManager extends AbstractXukAble implements
         }
         mDataProvidersDictionary.remove(uid);
         mReverseLookupDataProvidersDictionary.remove(provider);
+        mReferenceCounts.remove(provider);
+        mChangedUidRecorder.record(uid);
     }
 
     /**
@@ -730,6 +726,8 @@ public final class DataProviderManager extends AbstractXukAble implements
         }
         mDataProvidersDictionary.put(uid, provider);
         mReverseLookupDataProvidersDictionary.put(provider, uid);
+        mUidAllocator.reserve(uid);
+        mChangedUidRecorder.record(uid);
     }
 
     /**
@@ -756,19 +754,168 @@ public final class DataProviderManager extends AbstractXukAble implements
     /**
      * @hidden
      */
-    @SuppressWarnings("boxing")
     private String getNextUid()
     {
-        long i = 0;
-        while (i < Integer.MAX_VALUE)
+        return mUidAllocator.allocate();
+    }
+
+    /**
+     * @param provider
+     * @return true if the manager manages the given IDataProvider
+     * @throws MethodParameterIsNullException
+     */
+    public boolean isManagerOf(IDataProvider provider)
+            throws MethodParameterIsNullException
+    {
+        if (provider == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        return mReverseLookupDataProvidersDictionary.containsKey(provider);
+    }
+
+    /**
+     * @return true if the IDataProviders whose last reference is removed are
+     *         deleted immediately (see
+     *         {@link #removeDataProviderReference(IDataProvider)})
+     */
+    public boolean getDeleteUnreferencedDataProviders()
+    {
+        return mDeleteUnreferencedDataProviders;
+    }
+
+    /**
+     * @param delete
+     *        if true (the default), the IDataProviders whose last reference
+     *        is removed are deleted immediately. Otherwise they are left to
+     *        {@link #removeUnusedDataProviders(boolean)} or to a
+     *        GarbageCollectAction.
+     */
+    public void setDeleteUnreferencedDataProviders(boolean delete)
+    {
+        mDeleteUnreferencedDataProviders = delete;
+    }
+
+    /**
+     * <p>
+     * Records a reference on the given IDataProvider. The references are held
+     * by the WavClips of the IMediaData of the MediaDataManager, and by the
+     * commands of the undo and redo stacks of the UndoRedoManager: an
+     * IDataProvider which has been referenced is used as long as it has
+     * references, and is deleted as soon as its last reference is removed, so
+     * that the unused IDataProviders do not have to be found by scanning the
+     * whole presentation.
+     * </p>
+     * <p>
+     * An IDataProvider which has never been referenced (a new one, or one
+     * which is only used outside of the managers) is never deleted by the
+     * reference counting.
+     * </p>
+     * 
+     * @param provider
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public void addDataProviderReference(IDataProvider provider)
+            throws MethodParameterIsNullException
+    {
+        if (provider == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        Integer count = mReferenceCounts.get(provider);
+        mReferenceCounts.put(provider, Integer.valueOf(count == null ? 1
+                : count.intValue() + 1));
+    }
+
+    /**
+     * Removes a reference added with
+     * {@link #addDataProviderReference(IDataProvider)}. When the last
+     * reference is removed, the IDataProvider is deleted if
+     * {@link #getDeleteUnreferencedDataProviders()} is true.
+     * 
+     * @param provider
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public void removeDataProviderReference(IDataProvider provider)
+            throws MethodParameterIsNullException
+    {
+        removeDataProviderReference(provider, mDeleteUnreferencedDataProviders);
+    }
+
+    /**
+     * Removes a reference added with
+     * {@link #addDataProviderReference(IDataProvider)}. Does nothing if the
+     * IDataProvider is not referenced.
+     * 
+     * @param provider
+     *        cannot be null
+     * @param delete
+     *        if true, the IDataProvider is deleted when its last reference is
+     *        removed. It is kept if one of its streams is open.
+     * @throws MethodParameterIsNullException
+     */
+    public void removeDataProviderReference(IDataProvider provider,
+            boolean delete) throws MethodParameterIsNullException
+    {
+        if (provider == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        Integer count = mReferenceCounts.get(provider);
+        if (count == null)
+        {
+            return;
+        }
+        if (count.intValue() > 1)
         {
-            String newId = String.format("DPID{0:0000}", i);
-            if (!mDataProvidersDictionary.containsKey(newId))
-                return newId;
-            i++;
+            mReferenceCounts.put(provider, Integer
+                    .valueOf(count.intValue() - 1));
+            return;
+        }
+        mReferenceCounts.remove(provider);
+        if (delete && isManagerOf(provider))
+        {
+            try
+            {
+                provider.delete();
+            }
+            catch (OutputStreamIsOpenException e)
+            {
+                // Still being written: left to removeUnusedDataProviders()
+            }
+            catch (InputStreamIsOpenException e)
+            {
+                // Still being read: left to removeUnusedDataProviders()
+            }
         }
-        // Should never happen
-        throw new RuntimeException("WTF ??!");
+    }
+
+    /**
+     * @return the recorder of the UIDs of the IDataProviders which are added,
+     *         removed or renamed
+     */
+    public ChangedUidRecorder getChangedUidRecorder()
+    {
+        return mChangedUidRecorder;
+    }
+
+    /**
+     * @param provider
+     *        cannot be null
+     * @return the number of references held on the given IDataProvider
+     * @throws MethodParameterIsNullException
+     */
+    public int getDataProviderReferenceCount(IDataProvider provider)
+            throws MethodParameterIsNullException
+    {
+        if (provider == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        Integer count = mReferenceCounts.get(provider);
+        return (count == null ? 0 : count.intValue());
     }
 
     /**
@@ -818,6 +965,8 @@ public final class DataProviderManager extends AbstractXukAble implements
         }
         removeDataProvider(provider, false);
         addDataProvider(provider, uid);
+        getPresentation().getMediaDataManager().notifyDataProviderUidChanged(
+                provider);
     }
 
     /**
@@ -839,15 +988,12 @@ public final class DataProviderManager extends AbstractXukAble implements
      */
     public void removeUnusedDataProviders(boolean delete)
     {
-        List<IDataProvider> usedDataProviders = new LinkedList<IDataProvider>();
+        Set<IDataProvider> usedDataProviders = Collections
+                .newSetFromMap(new IdentityHashMap<IDataProvider, Boolean>());
         for (IMediaData md : getPresentation().getMediaDataManager()
                 .getListOfMediaData())
         {
-            for (IDataProvider prov : md.getListOfUsedDataProviders())
-            {
-                if (!usedDataProviders.contains(prov))
-                    usedDataProviders.add(prov);
-            }
+            usedDataProviders.addAll(md.getListOfUsedDataProviders());
         }
         for (IDataProvider prov : getListOfDataProviders())
         {
@@ -877,10 +1023,23 @@ public final class DataProviderManager extends AbstractXukAble implements
     @Override
     protected void clear()
     {
+        for (String uid : mDataProvidersDictionary.keySet())
+        {
+            try
+            {
+                mChangedUidRecorder.record(uid);
+            }
+            catch (MethodParameterIsNullException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+        }
         mDataProvidersDictionary.clear();
         mDataFileDirectory = null;
         mReverseLookupDataProvidersDictionary.clear();
         mXukedInFilDataProviderPaths.clear();
+        mReferenceCounts.clear();
         // super.clear();
     }
 
@@ -910,7 +1069,9 @@ public final class DataProviderManager extends AbstractXukAble implements
         }
         try
         {
-            setDataFileDirectoryPath(dataFileDirectoryPath);
+            // Relative to the root URI of the Presentation, as written by
+            // xukOutAttributes()
+            setDataFileDirectory(dataFileDirectoryPath);
         }
         catch (MethodParameterIsEmptyStringException e)
         {
@@ -922,7 +1083,7 @@ public final class DataProviderManager extends AbstractXukAble implements
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
-        catch (IOException e)
+        catch (URISyntaxException e)
         {
             throw new XukDeserializationFailedException();
         }
@@ -1127,20 +1288,10 @@ public final class DataProviderManager extends AbstractXukAble implements
         {
             throw new ProgressCancelledException();
         }
-        URI presBaseUri;
-        presBaseUri = getPresentation().getRootURI();
-        URI dfdUri;
-        try
-        {
-            dfdUri = new URI(getDataFileDirectory());
-        }
-        catch (URISyntaxException e)
-        {
-            throw new XukSerializationFailedException();
-        }
-        dfdUri = dfdUri.relativize(presBaseUri);
-        destination.writeAttributeString("dataFileDirectoryPath", presBaseUri
-                .relativize(dfdUri).toString());
+        // The data file directory is relative to the root URI of the
+        // Presentation
+        destination.writeAttributeString("dataFileDirectoryPath",
+                getDataFileDirectory());
         // super.xukOutAttributes(destination, baseUri, ph);
     }
 
@@ -17,9 +17,11 @@ import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 import org.daisy.urakawa.nativeapi.CloseNotifyingStream;
 import org.daisy.urakawa.nativeapi.FileStream;
+import org.daisy.urakawa.nativeapi.ILongStream;
 import org.daisy.urakawa.nativeapi.IStream;
 import org.daisy.urakawa.nativeapi.IXmlDataReader;
 import org.daisy.urakawa.nativeapi.IXmlDataWriter;
+import org.daisy.urakawa.nativeapi.LongStreamAdapter;
 import org.daisy.urakawa.progress.IProgressHandler;
 import org.daisy.urakawa.progress.ProgressCancelledException;
 import org.daisy.urakawa.xuk.XukDeserializationFailedException;
@@ -38,7 +40,14 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
     {
         try
         {
-            getPresentation().getDataProviderManager().addDataProvider(this);
+            // The DataProviderFactory has already added the providers it
+            // creates
+            DataProviderManager manager = getPresentation()
+                    .getDataProviderManager();
+            if (!manager.isManagerOf(this))
+            {
+                manager.addDataProvider(this);
+            }
         }
         catch (IsAlreadyManagerOfException e)
         {
@@ -72,6 +81,12 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
     private String mDataFileRelativePath;
     List<CloseNotifyingStream> mOpenInputStreams = new LinkedList<CloseNotifyingStream>();
     CloseNotifyingStream mOpenOutputStream = null;
+    private volatile long mModificationCount = 0;
+
+    public long getModificationCount()
+    {
+        return mModificationCount;
+    }
 
     public String getDataFileRelativePath()
     {
@@ -128,15 +143,10 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
     {
         File file = new File(getDataFileFullPath());
         File dir = file.getParentFile();
-        if (!dir.exists())
-            try
-            {
-                dir.createNewFile();
-            }
-            catch (IOException e)
-            {
-                throw new DataIsMissingException();
-            }
+        if (!dir.exists() && !dir.mkdirs())
+        {
+            throw new DataIsMissingException();
+        }
         if (file.exists())
         {
             if (!hasBeenInitialized)
@@ -163,8 +173,8 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
         hasBeenInitialized = true;
     }
 
-    public IStream getInputStream() throws OutputStreamIsOpenException,
-            DataIsMissingException
+    public synchronized IStream getInputStream()
+            throws OutputStreamIsOpenException, DataIsMissingException
     {
         if (mOpenOutputStream != null)
         {
@@ -173,11 +183,36 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
         FileStream inputFS;
         String fp = getDataFileFullPath();
         checkDataFile();
-        inputFS = new FileStream(fp);
+        try
+        {
+            // Read-only access is memory-mapped, so that audio reads are
+            // served directly from the page cache.
+            inputFS = new FileStream(fp, false, true);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        catch (IOException e)
+        {
+            throw new DataIsMissingException();
+        }
         CloseNotifyingStream res;
         try
         {
-            res = new CloseNotifyingStream(inputFS);
+            res = new CloseNotifyingStream(inputFS)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    synchronized (FileDataProvider.this)
+                    {
+                        mOpenInputStreams.remove(this);
+                    }
+                    super.close();
+                }
+            };
         }
         catch (MethodParameterIsNullException e)
         {
@@ -185,11 +220,11 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
             throw new RuntimeException("WTF ??!", e);
         }
         mOpenInputStreams.add(res);
-        //TODO: register listener for StreamClosedEvent, which then updates the local mOpenInputStreams cache, and unregisters the listener.
         return res;
     }
 
-    public IStream getOutputStream() throws OutputStreamIsOpenException,
+    public synchronized IStream getOutputStream()
+            throws OutputStreamIsOpenException,
             InputStreamIsOpenException, DataIsMissingException
     {
         FileStream outputFS;
@@ -203,21 +238,53 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
         }
         checkDataFile();
         String fp = getDataFileFullPath();
-        outputFS = new FileStream(fp);
         try
         {
-            mOpenOutputStream = new CloseNotifyingStream(outputFS);
+            outputFS = new FileStream(fp, true);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        catch (IOException e)
+        {
+            throw new DataIsMissingException();
+        }
+        try
+        {
+            mOpenOutputStream = new CloseNotifyingStream(outputFS)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        synchronized (FileDataProvider.this)
+                        {
+                            if (mOpenOutputStream == this)
+                            {
+                                mOpenOutputStream = null;
+                            }
+                            mModificationCount++;
+                        }
+                    }
+                }
+            };
         }
         catch (MethodParameterIsNullException e)
         {
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
-        //TODO: register listener for StreamClosedEvent, which then updates the local mOpenOutputStream to NULL, and unregisters the listener.
         return mOpenOutputStream;
     }
 
-    public void delete() throws OutputStreamIsOpenException,
+    public synchronized void delete() throws OutputStreamIsOpenException,
             InputStreamIsOpenException
     {
         if (mOpenOutputStream != null)
@@ -233,6 +300,7 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
         {
             file.delete();
         }
+        mModificationCount++;
         try
         {
             getPresentation().getDataProviderManager().removeDataProvider(this,
@@ -296,9 +364,10 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
         }
         try
         {
-            // TODO: This should be a static method !!
-            new DataProviderManager(getPresentation()).appendDataToProvider(
-                    thisData, thisData.getLength() - thisData.getPosition(), c);
+            ILongStream thisLongData = LongStreamAdapter.adapt(thisData);
+            DataProviderManager.appendDataToProvider(thisData, thisLongData
+                    .getLongLength()
+                    - thisLongData.getLongPosition(), c);
         }
         catch (MethodParameterIsNullException e)
         {
@@ -330,11 +399,6 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
-        catch (IsNotInitializedException e)
-        {
-            // Should never happen
-            throw new RuntimeException("WTF ??!", e);
-        }
         finally
         {
             try
@@ -523,10 +587,9 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
         {
             try
             {
-                // TODO: This should be a static method !!
-                new DataProviderManager(getPresentation())
-                        .appendDataToProvider(thisStm, thisStm.getLength(),
-                                expFDP);
+                DataProviderManager.appendDataToProvider(thisStm,
+                        LongStreamAdapter.adapt(thisStm).getLongLength(),
+                        expFDP);
             }
             catch (OutputStreamIsOpenException e)
             {
@@ -553,11 +616,6 @@ public class FileDataProvider extends AbstractXukAbleWithPresentation implements
                 // Should never happen
                 throw new RuntimeException("WTF ??!", e);
             }
-            catch (IsNotInitializedException e)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e);
-            }
         }
         finally
         {
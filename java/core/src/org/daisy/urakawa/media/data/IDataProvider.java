@@ -80,4 +80,17 @@ public interface IDataProvider extends IWithPresentation, IXukAble,
      * @return the MIME type of the media stored in the data provider
      */
     public String getMimeType();
+
+    /**
+     * Gets a counter that is incremented by every change to the data: when an
+     * output IStream of this data provider is closed, when the data is
+     * deleted (see {@link #delete()}), and by any other operation of the
+     * implementation that changes or removes the data. Information derived
+     * from the data (e.g. the parsed RIFF header of an audio file) is cached
+     * and checked for staleness against this counter: an implementation that
+     * does not increment it makes the cache serve stale information.
+     * 
+     * @return the modification count
+     */
+    public long getModificationCount();
 }
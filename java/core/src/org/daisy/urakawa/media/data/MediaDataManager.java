@@ -6,8 +6,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import org.daisy.urakawa.ChangedUidRecorder;
 import org.daisy.urakawa.IValueEquatable;
 import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.UidAllocator;
 import org.daisy.urakawa.exception.IsAlreadyManagerOfException;
 import org.daisy.urakawa.exception.IsNotInitializedException;
 import org.daisy.urakawa.exception.IsNotManagerOfException;
@@ -47,8 +49,8 @@ public final class MediaDataManager extends AbstractXukAble implements
     private static final String DEFAULT_UID_PREFIX = "UID";
     private Map<String, IMediaData> mMediaDataDictionary = new HashMap<String, IMediaData>();
     private Map<IMediaData, String> mReverseLookupMediaDataDictionary = new HashMap<IMediaData, String>();
-    private long mUidNo = 0;
-    private String mUidPrefix = DEFAULT_UID_PREFIX;
+    private UidAllocator mUidAllocator;
+    private ChangedUidRecorder mChangedUidRecorder = new ChangedUidRecorder();
     private IPCMFormatInfo mDefaultPCMFormat;
     private boolean mEnforceSinglePCMFormat;
 
@@ -64,6 +66,7 @@ public final class MediaDataManager extends AbstractXukAble implements
             throw new MethodParameterIsNullException();
         }
         mPresentation = pres;
+        mUidAllocator = new UidAllocator(DEFAULT_UID_PREFIX, 8, 1);
         mDefaultPCMFormat = new PCMFormatInfo();
         mEnforceSinglePCMFormat = false;
     }
@@ -316,25 +319,9 @@ public final class MediaDataManager extends AbstractXukAble implements
     /**
      * @hidden
      */
-    @SuppressWarnings("boxing")
     private String getNewUid()
     {
-        while (true)
-        {
-            if (mUidNo < Integer.MAX_VALUE)
-            {
-                mUidNo++;
-            }
-            else
-            {
-                mUidPrefix += "X";
-            }
-            String key = String.format("{0}{1:00000000}", mUidPrefix, mUidNo);
-            if (!mMediaDataDictionary.containsKey(key))
-            {
-                return key;
-            }
-        }
+        return mUidAllocator.allocate();
     }
 
     /**
@@ -409,6 +396,13 @@ public final class MediaDataManager extends AbstractXukAble implements
         }
         mMediaDataDictionary.put(uid, data);
         mReverseLookupMediaDataDictionary.put(data, uid);
+        mUidAllocator.reserve(uid);
+        mChangedUidRecorder.record(uid);
+        if (data instanceof AbstractMediaData)
+        {
+            ((AbstractMediaData) data).setReferencedDataProviderManager(
+                    getPresentation().getDataProviderManager(), true);
+        }
     }
 
     /**
@@ -429,7 +423,21 @@ public final class MediaDataManager extends AbstractXukAble implements
         {
             throw new MethodParameterIsEmptyStringException();
         }
-        removeMediaData(data);
+        // The media data stays managed: its references on the IDataProviders
+        // are kept
+        String oldUid;
+        try
+        {
+            oldUid = getUidOfMediaData(data);
+        }
+        catch (IsNotManagerOfException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        mMediaDataDictionary.remove(oldUid);
+        mReverseLookupMediaDataDictionary.remove(data);
+        mChangedUidRecorder.record(oldUid);
         try
         {
             addMediaData(data, uid);
@@ -468,6 +476,10 @@ public final class MediaDataManager extends AbstractXukAble implements
     }
 
     /**
+     * Removes the given media data from the manager. See
+     * {@link #removeMediaData(String)}: the data files it alone used are
+     * deleted.
+     * 
      * @param data
      * @throws MethodParameterIsNullException
      */
@@ -495,6 +507,15 @@ public final class MediaDataManager extends AbstractXukAble implements
     }
 
     /**
+     * Removes the media data with the given uid from the manager, along with
+     * the references it holds on its IDataProviders (see
+     * {@link DataProviderManager#removeDataProviderReference(IDataProvider)}).
+     * The IDataProviders left without reference are deleted with their data
+     * files, unless they were never referenced, one of their streams is open,
+     * or {@link DataProviderManager#setDeleteUnreferencedDataProviders(boolean)}
+     * was given false. The media data must therefore not be used afterwards,
+     * unless an undoable command still references its IDataProviders.
+     * 
      * @param uid
      * @throws MethodParameterIsNullException
      * @throws MethodParameterIsEmptyStringException
@@ -514,6 +535,70 @@ public final class MediaDataManager extends AbstractXukAble implements
         IMediaData data = getMediaData(uid);
         mMediaDataDictionary.remove(uid);
         mReverseLookupMediaDataDictionary.remove(data);
+        mChangedUidRecorder.record(uid);
+        if (data instanceof AbstractMediaData)
+        {
+            ((AbstractMediaData) data).setReferencedDataProviderManager(null,
+                    true);
+        }
+    }
+
+    /**
+     * @return the recorder of the UIDs of the media data which are added,
+     *         removed, renamed or changed (their name, PCM format or audio
+     *         data)
+     */
+    public ChangedUidRecorder getChangedUidRecorder()
+    {
+        return mChangedUidRecorder;
+    }
+
+    /**
+     * Called by a media data of the manager when it changes.
+     * 
+     * @param data
+     */
+    void notifyMediaDataChanged(IMediaData data)
+    {
+        String uid = mReverseLookupMediaDataDictionary.get(data);
+        if (uid != null)
+        {
+            try
+            {
+                mChangedUidRecorder.record(uid);
+            }
+            catch (MethodParameterIsNullException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+        }
+    }
+
+    /**
+     * Called by the DataProviderManager when the UID of one of its
+     * IDataProviders changes: the media data which use it refer to it by its
+     * UID, so they change too.
+     * 
+     * @param provider
+     */
+    void notifyDataProviderUidChanged(IDataProvider provider)
+    {
+        if (!mChangedUidRecorder.isRecording())
+        {
+            return;
+        }
+        for (IMediaData data : mMediaDataDictionary.values())
+        {
+            for (IDataProvider prov : data.getListOfUsedDataProviders())
+            {
+                if (prov == provider)
+                {
+                    notifyMediaDataChanged(data);
+                    break;
+                }
+            }
+        }
     }
 
     /**
@@ -593,6 +678,17 @@ public final class MediaDataManager extends AbstractXukAble implements
     @Override
     protected void clear()
     {
+        // The IDataProviders are not deleted: they may be used by the data
+        // about to be read
+        for (IMediaData data : mMediaDataDictionary.values())
+        {
+            if (data instanceof AbstractMediaData)
+            {
+                ((AbstractMediaData) data).setReferencedDataProviderManager(
+                        null, false);
+            }
+            notifyMediaDataChanged(data);
+        }
         mMediaDataDictionary.clear();
         mReverseLookupMediaDataDictionary.clear();
         // super.clear();
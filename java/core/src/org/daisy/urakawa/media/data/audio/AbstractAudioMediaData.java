@@ -212,7 +212,7 @@ public abstract class AbstractAudioMediaData extends AbstractMediaData
         {
             throw new InvalidDataFormatException();
         }
-        if (!newFormat.ValueEquals(mPCMFormat))
+        if (mPCMFormat == null || !newFormat.ValueEquals(mPCMFormat))
         {
             IPCMFormatInfo prevFormat = mPCMFormat;
             mPCMFormat = newFormat.copy();
@@ -288,7 +288,7 @@ public abstract class AbstractAudioMediaData extends AbstractMediaData
         }
     }
 
-    public int getPCMLength(ITimeDelta duration)
+    public long getPCMLength(ITimeDelta duration)
             throws TimeOffsetIsOutOfBoundsException,
             MethodParameterIsNullException
     {
@@ -299,7 +299,7 @@ public abstract class AbstractAudioMediaData extends AbstractMediaData
         return getPCMFormat().getDataLength(duration);
     }
 
-    public int getPCMLength()
+    public long getPCMLength()
     {
         try
         {
@@ -372,8 +372,8 @@ public abstract class AbstractAudioMediaData extends AbstractMediaData
         {
             throw new MethodParameterIsNullException();
         }
-        insertAudioData(pcmData, new Time(getAudioDuration()
-                .getTimeDeltaAsMilliseconds()), duration);
+        insertAudioData(pcmData, Time.fromTicks(getAudioDuration()
+                .getTimeDeltaAsTicks()), duration);
     }
 
     private ITimeDelta parseRiffWaveStream(IStream riffWaveStream)
@@ -420,8 +420,16 @@ public abstract class AbstractAudioMediaData extends AbstractMediaData
     }
 
     private IStream openFileStream(String path)
+            throws MethodParameterIsNullException
     {
-        return new FileStream(path);
+        try
+        {
+            return new FileStream(path, false, true);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot open " + path, e);
+        }
     }
 
     public void appendAudioDataFromRiffWave(String path)
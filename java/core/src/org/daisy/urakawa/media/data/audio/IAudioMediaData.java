@@ -58,7 +58,7 @@ public interface IAudioMediaData extends IMediaData
      * @throws TimeOffsetIsOutOfBoundsException
      * @throws MethodParameterIsNullException
      */
-    public int getPCMLength(ITimeDelta duration)
+    public long getPCMLength(ITimeDelta duration)
             throws TimeOffsetIsOutOfBoundsException,
             MethodParameterIsNullException;
 
@@ -239,7 +239,7 @@ public interface IAudioMediaData extends IMediaData
     /**
      * @return the count in bytes of the PCM data of the audio media data
      */
-    public int getPCMLength();
+    public long getPCMLength();
 
     /**
      * @return the intrinsic duration of the audio data
@@ -20,14 +20,14 @@ public interface IPCMDataInfo extends IPCMFormatInfo
     /**
      * @return the data length
      */
-    public int getDataLength();
+    public long getDataLength();
 
     /**
      * sets the data length
      * 
      * @param newValue
      */
-    public void setDataLength(int newValue);
+    public void setDataLength(long newValue);
 
     /**
      * @return the duration
@@ -82,9 +82,28 @@ public interface IPCMFormatInfo extends IValueEquatable<IPCMFormatInfo>,
 
     /**
      * @param dataLen
+     *        the length of the data in bytes, 64-bit so that audio data larger
+     *        than 2 GB can be addressed
      * @return the duration
      */
-    public ITimeDelta getDuration(int dataLen);
+    public ITimeDelta getDuration(long dataLen);
+
+    /**
+     * @param ticks
+     *        a time, in ticks of 100 nanoseconds
+     * @return the number of sample frames (blocks) in the given time, rounded
+     *         to the nearest frame
+     */
+    public long getSampleFrames(long ticks);
+
+    /**
+     * @param sampleFrames
+     * @return the time taken by the given number of sample frames, in ticks
+     *         of 100 nanoseconds rounded to the nearest tick. Converting the
+     *         result back with {@link #getSampleFrames(long)} gives the
+     *         original number of frames.
+     */
+    public long getTicks(long sampleFrames);
 
     /**
      * @param duration
@@ -92,7 +111,7 @@ public interface IPCMFormatInfo extends IValueEquatable<IPCMFormatInfo>,
      * @throws TimeOffsetIsOutOfBoundsException
      * @throws MethodParameterIsNullException
      */
-    public int getDataLength(ITimeDelta duration)
+    public long getDataLength(ITimeDelta duration)
             throws TimeOffsetIsOutOfBoundsException,
             MethodParameterIsNullException;
 
@@ -1,19 +1,17 @@
 package org.daisy.urakawa.media.data.audio;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
 
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
 import org.daisy.urakawa.media.data.InvalidDataFormatException;
 import org.daisy.urakawa.media.timing.ITimeDelta;
+import org.daisy.urakawa.nativeapi.ILongStream;
 import org.daisy.urakawa.nativeapi.IStream;
 import org.daisy.urakawa.nativeapi.IXmlDataReader;
 import org.daisy.urakawa.nativeapi.IXmlDataWriter;
+import org.daisy.urakawa.nativeapi.LongStreamAdapter;
 import org.daisy.urakawa.progress.IProgressHandler;
 import org.daisy.urakawa.progress.ProgressCancelledException;
 import org.daisy.urakawa.xuk.XukDeserializationFailedException;
@@ -57,14 +55,14 @@ public class PCMDataInfo extends PCMFormatInfo implements IPCMDataInfo
         setDataLength(0);
     }
 
-    private int mDataLength = 0;
+    private long mDataLength = 0;
 
-    public int getDataLength()
+    public long getDataLength()
     {
         return mDataLength;
     }
 
-    public void setDataLength(int newValue)
+    public void setDataLength(long newValue)
     {
         mDataLength = newValue;
     }
@@ -74,6 +72,13 @@ public class PCMDataInfo extends PCMFormatInfo implements IPCMDataInfo
         return getDuration(getDataLength());
     }
 
+    /**
+     * The length in bytes of the header written by
+     * {@link #writeRiffWaveHeader(IStream)}, i.e. the offset of the PCM data
+     * in a RIFF WAVE file produced by this SDK.
+     */
+    public static final int RIFF_WAVE_HEADER_LENGTH = 44;
+
     public void writeRiffWaveHeader(IStream output) throws IOException,
             MethodParameterIsNullException
     {
@@ -81,46 +86,88 @@ public class PCMDataInfo extends PCMFormatInfo implements IPCMDataInfo
         {
             throw new MethodParameterIsNullException();
         }
-        OutputStream os = new OutputStream()
+        byte[] header = new byte[RIFF_WAVE_HEADER_LENGTH];
+        putASCII(header, 0, "RIFF");// Chunk UID
+        putUInt32(header, 4, 4 + 8 + 16 + 8 + getDataLength());// Chunk Size
+        putASCII(header, 8, "WAVE");// Format field
+        putASCII(header, 12, "fmt ");// Format sub-chunk
+        putUInt32(header, 16, 16);
+        putUInt16(header, 20, 1);// PCM format
+        putUInt16(header, 22, getNumberOfChannels());
+        putUInt32(header, 24, getSampleRate());
+        putUInt32(header, 28, getByteRate());
+        putUInt16(header, 32, getBlockAlign());
+        putUInt16(header, 34, getBitDepth());
+        putASCII(header, 36, "data");
+        putUInt32(header, 40, getDataLength());
+        output.write(header, 0, header.length);
+    }
+
+    private static void putASCII(byte[] b, int offset, String str)
+    {
+        for (int i = 0; i < str.length(); i++)
         {
-            @Override
-            public void write(int b) throws IOException
-            {
-                // TODO replace with real IStream object (see method parameter)
-                throw new IOException();
-            }
-        };
-        BufferedOutputStream wr = new BufferedOutputStream(os);
-        wr.write(getASCIIBytes("RIFF"));// Chunk UID
-        int chunkSize = 4 + 8 + 16 + 8 + getDataLength();
-        wr.write(chunkSize);// Chunk Size
-        wr.write(getASCIIBytes("WAVE"));// Format field
-        wr.write(getASCIIBytes("fmt "));// Format sub-chunk
-        int formatChunkSize = 16;
-        wr.write(formatChunkSize);
-        short audioFormat = 1;// PCM format
-        wr.write(audioFormat);
-        wr.write(getNumberOfChannels());
-        wr.write(getSampleRate());
-        wr.write(getByteRate());
-        wr.write(getBlockAlign());
-        wr.write(getBitDepth());
-        wr.write(getASCIIBytes("data"));
-        wr.write(getDataLength());
+            b[offset + i] = (byte) str.charAt(i);
+        }
+    }
+
+    private static void putUInt16(byte[] b, int offset, int value)
+    {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putUInt32(byte[] b, int offset, long value)
+    {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+        b[offset + 2] = (byte) (value >>> 16);
+        b[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static String getASCIIString(byte[] b, int offset)
+    {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++)
+        {
+            chars[i] = (char) (b[offset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    private static int getUInt16(byte[] b, int offset)
+    {
+        return (b[offset] & 0xFF) | ((b[offset + 1] & 0xFF) << 8);
     }
 
-    private String getASCIIString(@SuppressWarnings("unused") byte[] b)
+    private static long getUInt32(byte[] b, int offset)
     {
-        // TODO return real byte array for ASCII string
-        return null;
+        return (b[offset] & 0xFFL) | ((b[offset + 1] & 0xFFL) << 8)
+                | ((b[offset + 2] & 0xFFL) << 16)
+                | ((b[offset + 3] & 0xFFL) << 24);
     }
 
-    private byte[] getASCIIBytes(@SuppressWarnings("unused") String string)
+    private static byte[] readFully(IStream input, int length)
+            throws InvalidDataFormatException, IOException
     {
-        // TODO return real byte array for ASCII string
-        return null;
+        byte[] b = new byte[length];
+        int total = 0;
+        while (total < length)
+        {
+            int n = input.read(b, total, length - total);
+            if (n <= 0)
+            {
+                throw new InvalidDataFormatException();
+            }
+            total += n;
+        }
+        return b;
     }
 
+    /**
+     * Parses the header, and leaves the stream positioned at the first byte of
+     * the PCM data.
+     */
     public IPCMDataInfo parseRiffWaveHeader(IStream input)
             throws InvalidDataFormatException, MethodParameterIsNullException,
             IOException
@@ -129,77 +176,60 @@ public class PCMDataInfo extends PCMFormatInfo implements IPCMDataInfo
         {
             throw new MethodParameterIsNullException();
         }
-        InputStream is = new InputStream()
-        {
-            @Override
-            public int read() throws IOException
-            {
-                // TODO replace with real IStream object (see method parameter)
-                throw new IOException();
-            }
-        };
-        BufferedInputStream rd = new BufferedInputStream(is);
-        if (input.getLength() - input.getPosition() < 12)
+        ILongStream in = LongStreamAdapter.adapt(input);
+        if (in.getLongLength() - in.getLongPosition() < 12)
         {
             throw new InvalidDataFormatException();
         }
-        byte[] b = new byte[4];
-        @SuppressWarnings("unused")
-        int read = rd.read(b);
-        String chunkId = getASCIIString(b);
-        if (chunkId != "RIFF")
+        byte[] b = readFully(in, 12);
+        if (!getASCIIString(b, 0).equals("RIFF"))
         {
             throw new InvalidDataFormatException();
         }
-        int chunkSize = readUInt32(rd);
-        long chunkEndPos = input.getPosition() + chunkSize;
-        if (chunkEndPos > input.getLength())
+        long chunkSize = getUInt32(b, 4);
+        long chunkEndPos = in.getLongPosition() - 4 + chunkSize;
+        if (chunkEndPos > in.getLongLength())
         {
             throw new InvalidDataFormatException();
         }
-        read = rd.read(b);
-        String format = getASCIIString(b);
-        if (format != "WAVE")
+        if (!getASCIIString(b, 8).equals("WAVE"))
         {
             throw new InvalidDataFormatException();
         }
         boolean foundFormatSubChunk = false;
         IPCMDataInfo pcmInfo = new PCMDataInfo();
         // Search for format subchunk
-        while (input.getPosition() + 8 <= chunkEndPos)
+        while (in.getLongPosition() + 8 <= chunkEndPos)
         {
-            read = rd.read(b);
-            String formatSubChunkId = getASCIIString(b);
-            int formatSubChunkSize = readUInt32(rd);
-            if (input.getPosition() + formatSubChunkSize > chunkEndPos)
+            b = readFully(in, 8);
+            String formatSubChunkId = getASCIIString(b, 0);
+            long formatSubChunkSize = getUInt32(b, 4);
+            if (in.getLongPosition() + formatSubChunkSize > chunkEndPos)
             {
                 throw new InvalidDataFormatException();
             }
-            if (formatSubChunkId == "fmt ")
+            if (formatSubChunkId.equals("fmt "))
             {
                 foundFormatSubChunk = true;
-                if (formatSubChunkSize < 2)
+                if (formatSubChunkSize < 16)
                 {
                     throw new InvalidDataFormatException();
                 }
-                short audioFormat = readUInt16(rd);
+                b = readFully(in, 16);
+                int audioFormat = getUInt16(b, 0);
                 if (audioFormat != 1)
                 {
                     throw new InvalidDataFormatException();
                 }
-                if (formatSubChunkSize != 16)
-                {
-                    throw new InvalidDataFormatException();
-                }
-                short numChannels = readUInt16(rd);
+                short numChannels = (short) getUInt16(b, 2);
                 if (numChannels == 0)
                 {
                     throw new InvalidDataFormatException();
                 }
-                int sampleRate = readUInt32(rd);
-                int byteRate = readUInt32(rd);
-                short blockAlign = readUInt16(rd);
-                short bitDepth = readUInt16(rd);
+                int sampleRate = (int) getUInt32(b, 4);
+                long byteRate = getUInt32(b, 8);
+                int blockAlign = getUInt16(b, 12);
+                short bitDepth = (short) getUInt16(b, 14);
                 if ((bitDepth % 8) != 0)
                 {
                     throw new InvalidDataFormatException();
@@ -208,7 +238,7 @@ public class PCMDataInfo extends PCMFormatInfo implements IPCMDataInfo
                 {
                     throw new InvalidDataFormatException();
                 }
-                if (byteRate != sampleRate * blockAlign)
+                if (byteRate != (long) sampleRate * blockAlign)
                 {
                     throw new InvalidDataFormatException();
                 }
@@ -222,31 +252,34 @@ public class PCMDataInfo extends PCMFormatInfo implements IPCMDataInfo
                 {
                     throw new InvalidDataFormatException();
                 }
+                // Skip the extension of the format sub-chunk, if any
+                in.seekLong(formatSubChunkSize - 16 + (formatSubChunkSize & 1));
                 break;
             }
-            input.seek(formatSubChunkSize);
+            // Sub-chunks are word-aligned
+            in.seekLong(formatSubChunkSize + (formatSubChunkSize & 1));
         }
         if (!foundFormatSubChunk)
         {
             throw new InvalidDataFormatException();
         }
         boolean foundDataSubChunk = false;
-        while (input.getPosition() + 8 <= chunkEndPos)
+        while (in.getLongPosition() + 8 <= chunkEndPos)
         {
-            read = rd.read(b);
-            String dataSubChunkId = getASCIIString(b);
-            int dataSubChunkSize = readUInt32(rd);
-            if (input.getPosition() + dataSubChunkSize > chunkEndPos)
+            b = readFully(in, 8);
+            String dataSubChunkId = getASCIIString(b, 0);
+            long dataSubChunkSize = getUInt32(b, 4);
+            if (in.getLongPosition() + dataSubChunkSize > chunkEndPos)
             {
                 throw new InvalidDataFormatException();
             }
-            if (dataSubChunkId == "data")
+            if (dataSubChunkId.equals("data"))
             {
                 foundDataSubChunk = true;
                 pcmInfo.setDataLength(dataSubChunkSize);
                 break;
             }
-            input.seek(dataSubChunkSize);
+            in.seekLong(dataSubChunkSize + (dataSubChunkSize & 1));
         }
         if (!foundDataSubChunk)
         {
@@ -255,18 +288,6 @@ public class PCMDataInfo extends PCMFormatInfo implements IPCMDataInfo
         return pcmInfo;
     }
 
-    private short readUInt16(@SuppressWarnings("unused") BufferedInputStream rd)
-    {
-        // TODO implement !!
-        return 0;
-    }
-
-    private int readUInt32(@SuppressWarnings("unused") BufferedInputStream rd)
-    {
-        // TODO TODO implement !!
-        return 0;
-    }
-
     public boolean compareStreamData(IStream s1, IStream s2, int length)
             throws IOException
     {
@@ -304,10 +325,10 @@ public class PCMDataInfo extends PCMFormatInfo implements IPCMDataInfo
         {
             throw new XukDeserializationFailedException();
         }
-        int dl = 0;
+        long dl = 0;
         try
         {
-            dl = Integer.parseInt(attr);
+            dl = Long.parseLong(attr);
         }
         catch (NumberFormatException e)
         {
@@ -329,7 +350,7 @@ public class PCMDataInfo extends PCMFormatInfo implements IPCMDataInfo
         {
             throw new ProgressCancelledException();
         }
-        destination.writeAttributeString("dataLength", Integer
+        destination.writeAttributeString("dataLength", Long
                 .toString(getDataLength()));
         super.xukOutAttributes(destination, baseUri, ph);
     }
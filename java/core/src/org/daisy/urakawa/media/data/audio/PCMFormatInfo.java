@@ -5,6 +5,7 @@ import java.net.URI;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
 import org.daisy.urakawa.media.timing.ITimeDelta;
+import org.daisy.urakawa.media.timing.Time;
 import org.daisy.urakawa.media.timing.TimeDelta;
 import org.daisy.urakawa.nativeapi.IXmlDataReader;
 import org.daisy.urakawa.nativeapi.IXmlDataWriter;
@@ -175,33 +176,53 @@ public class PCMFormatInfo extends AbstractXukAble implements IPCMFormatInfo
         return true;
     }
 
-    public ITimeDelta getDuration(int dataLen)
+    public ITimeDelta getDuration(long dataLen)
     {
         if (getByteRate() == 0)
         {
             // Should never happen
             throw new RuntimeException("WTF ??!");
         }
-        double blockCount = dataLen / getBlockAlign();
-        return new TimeDelta(Math.round(getMillisecondsPerBlock() * blockCount));
+        long blockCount = dataLen / getBlockAlign();
+        return TimeDelta.fromTicks(getTicks(blockCount));
     }
 
-    private double getMillisecondsPerBlock()
+    public long getSampleFrames(long ticks)
     {
-        return 1000 / getSampleRate();
+        long rate = getSampleRate();
+        if (ticks < 0)
+        {
+            return -((-ticks * rate + Time.TICKS_PER_SECOND / 2)
+                    / Time.TICKS_PER_SECOND);
+        }
+        return (ticks * rate + Time.TICKS_PER_SECOND / 2)
+                / Time.TICKS_PER_SECOND;
+    }
+
+    public long getTicks(long sampleFrames)
+    {
+        long rate = getSampleRate();
+        if (rate == 0)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!");
+        }
+        if (sampleFrames < 0)
+        {
+            return -((-sampleFrames * Time.TICKS_PER_SECOND + rate / 2) / rate);
+        }
+        return (sampleFrames * Time.TICKS_PER_SECOND + rate / 2) / rate;
     }
 
-    public int getDataLength(ITimeDelta duration)
+    public long getDataLength(ITimeDelta duration)
             throws MethodParameterIsNullException
     {
         if (duration == null)
         {
             throw new MethodParameterIsNullException();
         }
-        int blockCount = (int) Math.round(duration.getTimeDeltaAsMilliseconds()
-                / getMillisecondsPerBlock());
-        int res = blockCount * getBlockAlign();
-        return res;
+        return getSampleFrames(duration.getTimeDeltaAsTicks())
+                * getBlockAlign();
     }
 
     @Override
@@ -0,0 +1,138 @@
+package org.daisy.urakawa.media.data.audio.codec;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.media.data.DataIsMissingException;
+import org.daisy.urakawa.media.data.IDataProvider;
+import org.daisy.urakawa.media.data.InvalidDataFormatException;
+import org.daisy.urakawa.media.data.OutputStreamIsOpenException;
+import org.daisy.urakawa.media.data.audio.IPCMDataInfo;
+import org.daisy.urakawa.media.data.audio.PCMDataInfo;
+import org.daisy.urakawa.nativeapi.IStream;
+import org.daisy.urakawa.nativeapi.LongStreamAdapter;
+
+/**
+ * The parsed RIFF WAVE header of the IDataProviders used by WavClips, so that
+ * clip reads and duration queries do not parse the header again every time.
+ * An entry is discarded when the modification count of its IDataProvider
+ * changes (see {@link IDataProvider#getModificationCount()}), and the
+ * IDataProviders are only weakly referenced.
+ */
+final class RiffHeaderCache
+{
+    /**
+     * A parsed header. The PCMDataInfo is shared and must not be modified.
+     */
+    static final class Entry
+    {
+        final IPCMDataInfo mPCMInfo;
+        final long mDataOffset;
+        final long mModificationCount;
+
+        Entry(IPCMDataInfo pcmInfo, long dataOffset, long modificationCount)
+        {
+            mPCMInfo = pcmInfo;
+            mDataOffset = dataOffset;
+            mModificationCount = modificationCount;
+        }
+    }
+
+    private static final Map<IDataProvider, Entry> mEntries = new WeakHashMap<IDataProvider, Entry>();
+
+    private RiffHeaderCache()
+    {
+    }
+
+    private static synchronized Entry lookup(IDataProvider dataProvider)
+    {
+        Entry entry = mEntries.get(dataProvider);
+        if (entry != null
+                && entry.mModificationCount != dataProvider
+                        .getModificationCount())
+        {
+            mEntries.remove(dataProvider);
+            return null;
+        }
+        return entry;
+    }
+
+    private static synchronized void store(IDataProvider dataProvider,
+            Entry entry)
+    {
+        if (entry.mModificationCount == dataProvider.getModificationCount())
+        {
+            mEntries.put(dataProvider, entry);
+        }
+    }
+
+    /**
+     * @param dataProvider
+     * @param raw
+     *        a freshly opened input IStream of the data provider, used to
+     *        parse the header when it is not cached (the position of the
+     *        stream is then moved)
+     * @return the header of the data provider
+     * @throws MethodParameterIsNullException
+     * @throws InvalidDataFormatException
+     * @throws IOException
+     */
+    static Entry get(IDataProvider dataProvider, IStream raw)
+            throws MethodParameterIsNullException, InvalidDataFormatException,
+            IOException
+    {
+        if (dataProvider == null || raw == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        Entry entry = lookup(dataProvider);
+        if (entry != null)
+        {
+            return entry;
+        }
+        long modificationCount = dataProvider.getModificationCount();
+        IPCMDataInfo pcmInfo = new PCMDataInfo().parseRiffWaveHeader(raw);
+        entry = new Entry(pcmInfo, LongStreamAdapter.adapt(raw)
+                .getLongPosition(), modificationCount);
+        store(dataProvider, entry);
+        return entry;
+    }
+
+    /**
+     * Same as {@link #get(IDataProvider, IStream)}, but only opens an input
+     * IStream of the data provider when the header is not cached.
+     * 
+     * @param dataProvider
+     * @return the header of the data provider
+     * @throws MethodParameterIsNullException
+     * @throws InvalidDataFormatException
+     * @throws IOException
+     * @throws DataIsMissingException
+     * @throws OutputStreamIsOpenException
+     */
+    static Entry get(IDataProvider dataProvider)
+            throws MethodParameterIsNullException, InvalidDataFormatException,
+            IOException, DataIsMissingException, OutputStreamIsOpenException
+    {
+        if (dataProvider == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        Entry entry = lookup(dataProvider);
+        if (entry != null)
+        {
+            return entry;
+        }
+        IStream raw = dataProvider.getInputStream();
+        try
+        {
+            return get(dataProvider, raw);
+        }
+        finally
+        {
+            raw.close();
+        }
+    }
+}
@@ -2,8 +2,12 @@ package org.daisy.urakawa.media.data.audio.codec;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.daisy.urakawa.FactoryCannotCreateTypeException;
 import org.daisy.urakawa.Presentation;
@@ -34,9 +38,11 @@ import org.daisy.urakawa.media.timing.Time;
 import org.daisy.urakawa.media.timing.TimeDelta;
 import org.daisy.urakawa.media.timing.TimeOffsetIsNegativeException;
 import org.daisy.urakawa.media.timing.TimeOffsetIsOutOfBoundsException;
+import org.daisy.urakawa.nativeapi.ILongStream;
 import org.daisy.urakawa.nativeapi.IStream;
 import org.daisy.urakawa.nativeapi.IXmlDataReader;
 import org.daisy.urakawa.nativeapi.IXmlDataWriter;
+import org.daisy.urakawa.nativeapi.LongStreamAdapter;
 import org.daisy.urakawa.nativeapi.SequenceStream;
 import org.daisy.urakawa.progress.IProgressHandler;
 import org.daisy.urakawa.progress.ProgressCancelledException;
@@ -51,7 +57,113 @@ import org.daisy.urakawa.xuk.XukSerializationFailedException;
  */
 public class WavAudioMediaData extends AbstractAudioMediaData
 {
-    private List<WavClip> mWavClips = new LinkedList<WavClip>();
+    private List<WavClip> mWavClips = new ArrayList<WavClip>();
+    /**
+     * mClipEndTimes[i] is the time (in ticks) at which clip i ends,
+     * relative to the beginning of the audio data: a prefix sum of the clip
+     * durations. Built on demand, and reset whenever the clips change, so that
+     * locating the clip for a given time is a binary search.
+     */
+    private long[] mClipEndTimes = null;
+
+    private void invalidateClipIndex()
+    {
+        mClipEndTimes = null;
+    }
+
+    /**
+     * Inserts a clip, and adds a reference on its IDataProvider (see
+     * {@link DataProviderManager#addDataProviderReference(IDataProvider)}).
+     */
+    private void addClip(int index, WavClip clip)
+    {
+        addDataProviderReference(clip.getDataProvider());
+        mWavClips.add(index, clip);
+        invalidateClipIndex();
+    }
+
+    /**
+     * Replaces the clips. The references on the IDataProviders of the new
+     * clips are added before the ones on the IDataProviders of the previous
+     * clips are removed, so that the IDataProviders used by both are kept.
+     * 
+     * @param delete
+     *        if false, the IDataProviders which are not referenced any more
+     *        are not deleted
+     */
+    private void setClips(List<WavClip> clips, boolean delete)
+    {
+        for (WavClip clip : clips)
+        {
+            addDataProviderReference(clip.getDataProvider());
+        }
+        List<WavClip> previous = mWavClips;
+        mWavClips = clips;
+        invalidateClipIndex();
+        for (WavClip clip : previous)
+        {
+            removeDataProviderReference(clip.getDataProvider(), delete);
+        }
+    }
+
+    /**
+     * @return the IDataProvider of each clip: a reference is held for each
+     *         clip
+     */
+    @Override
+    protected List<IDataProvider> getListOfDataProviderReferences()
+    {
+        List<IDataProvider> res = new ArrayList<IDataProvider>(mWavClips
+                .size());
+        for (WavClip clip : mWavClips)
+        {
+            res.add(clip.getDataProvider());
+        }
+        return res;
+    }
+
+    private long[] getClipEndTimes()
+    {
+        long[] ends = mClipEndTimes;
+        if (ends == null)
+        {
+            ends = new long[mWavClips.size()];
+            long elapsed = 0;
+            for (int i = 0; i < ends.length; i++)
+            {
+                elapsed += mWavClips.get(i).getDurationTicks();
+                ends[i] = elapsed;
+            }
+            mClipEndTimes = ends;
+        }
+        return ends;
+    }
+
+    /**
+     * @param ends
+     * @param time
+     * @return the index of the first clip ending at or after the given time,
+     *         or the number of clips if there is none
+     */
+    private static int getFirstClipEndingAtOrAfter(long[] ends, long time)
+    {
+        int low = 0;
+        int high = ends.length;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private static long getClipBeginTime(long[] ends, int index)
+    {
+        return (index == 0 ? 0 : ends[index - 1]);
+    }
 
     @Override
     public String isPCMFormatChangeOk(IPCMFormatInfo newFormat)
@@ -124,7 +236,8 @@ public class WavAudioMediaData extends AbstractAudioMediaData
         IPCMDataInfo pcmInfo = new PCMDataInfo(getPCMFormat());
         if (duration == null)
         {
-            pcmInfo.setDataLength(pcmData.getLength() - pcmData.getPosition());
+            ILongStream pcm = LongStreamAdapter.adapt(pcmData);
+            pcmInfo.setDataLength(pcm.getLongLength() - pcm.getLongPosition());
         }
         else
         {
@@ -181,9 +294,8 @@ public class WavAudioMediaData extends AbstractAudioMediaData
         }
         try
         {
-            // TODO: This should be a static method !!
-            new DataProviderManager(getPresentation()).appendDataToProvider(
-                    pcmData, pcmInfo.getDataLength(), newSingleDataProvider);
+            DataProviderManager.appendDataToProvider(pcmData, pcmInfo
+                    .getDataLength(), newSingleDataProvider);
         }
         catch (OutputStreamIsOpenException e)
         {
@@ -210,11 +322,6 @@ public class WavAudioMediaData extends AbstractAudioMediaData
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
-        catch (IsNotInitializedException e)
-        {
-            // Should never happen
-            throw new RuntimeException("WTF ??!", e);
-        }
         WavClip newSingleWavClip = new WavClip(newSingleDataProvider);
         return newSingleWavClip;
     }
@@ -247,8 +354,9 @@ public class WavAudioMediaData extends AbstractAudioMediaData
                 throw new RuntimeException("WTF ??!", e);
             }
         }
-        mWavClips.clear();
-        mWavClips.add(newSingleClip);
+        List<WavClip> clips = new ArrayList<WavClip>();
+        clips.add(newSingleClip);
+        setClips(clips, true);
     }
 
     @Override
@@ -295,10 +403,12 @@ public class WavAudioMediaData extends AbstractAudioMediaData
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
+        List<WavClip> clips = new ArrayList<WavClip>(mWavClips.size());
         for (WavClip clip : mWavClips)
         {
-            copy.mWavClips.add(clip.copy());
+            clips.add(clip.copy());
         }
+        copy.setClips(clips, true);
         return copy;
     }
 
@@ -347,17 +457,19 @@ public class WavAudioMediaData extends AbstractAudioMediaData
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
+        List<WavClip> clips = new ArrayList<WavClip>(mWavClips.size());
         for (WavClip clip : mWavClips)
         {
-            expWAMD.mWavClips.add(clip.export(destPres));
+            clips.add(clip.export(destPres));
         }
+        expWAMD.setClips(clips, true);
         return expWAMD;
     }
 
     @Override
     public void delete()
     {
-        mWavClips.clear();
+        setClips(new ArrayList<WavClip>(), true);
         super.delete();
     }
 
@@ -365,9 +477,11 @@ public class WavAudioMediaData extends AbstractAudioMediaData
     public List<IDataProvider> getListOfUsedDataProviders()
     {
         List<IDataProvider> usedDP = new LinkedList<IDataProvider>();
+        Set<IDataProvider> found = Collections
+                .newSetFromMap(new IdentityHashMap<IDataProvider, Boolean>());
         for (WavClip clip : mWavClips)
         {
-            if (!usedDP.contains(clip.getDataProvider()))
+            if (found.add(clip.getDataProvider()))
                 usedDP.add(clip.getDataProvider());
         }
         return usedDP;
@@ -386,64 +500,72 @@ public class WavAudioMediaData extends AbstractAudioMediaData
         {
             throw new TimeOffsetIsNegativeException();
         }
-        if (clipEnd.isLessThan(clipBegin))
+        long begin = clipBegin.getTimeAsTicks();
+        long end = clipEnd.getTimeAsTicks();
+        long[] ends = getClipEndTimes();
+        if (end < begin || end > (ends.length == 0 ? 0 : ends[ends.length - 1]))
         {
             throw new TimeOffsetIsOutOfBoundsException();
         }
-        if (clipEnd.isGreaterThan(new Time().getZero().addTimeDelta(
-                getAudioDuration())))
-        {
-            throw new TimeOffsetIsOutOfBoundsException();
-        }
-        // ITime timeBeforeStartIndexClip = new Time();
-        // ITime timeBeforeEndIndexClip = new Time();
-        ITime elapsedTime = new Time();
-        int i = 0;
         List<IStream> resStreams = new LinkedList<IStream>();
-        while (i < mWavClips.size())
+        // The clips ending before clipBegin and the [clipBegin;clipEnd] are
+        // disjunct, so they are skipped
+        for (int i = getFirstClipEndingAtOrAfter(ends, begin); i < ends.length; i++)
         {
             WavClip curClip = mWavClips.get(i);
-            ITimeDelta currentClipDuration = curClip.getDuration();
-            ITime newElapsedTime = elapsedTime
-                    .addTimeDelta(currentClipDuration);
-            if (newElapsedTime.isLessThan(clipBegin))
+            long elapsed = getClipBeginTime(ends, i);
+            long newElapsed = ends[i];
+            if (elapsed < begin)
             {
-                // Do nothing - the current clip and the [clipBegin;clipEnd] are
-                // disjunkt
+                if (newElapsed < end)
+                {
+                    // Add part of current clip between clipBegin and
+                    // newElapsed (ie. after clipBegin, since newElapsed is at
+                    // the end of the clip)
+                    try
+                    {
+                        resStreams.add(curClip.getAudioData(begin - elapsed,
+                                newElapsed - elapsed));
+                    }
+                    catch (InvalidDataFormatException e)
+                    {
+                        // Should never happen
+                        throw new RuntimeException("WTF ??!", e);
+                    }
+                }
+                else
+                {
+                    // Add part of current clip between clipBegin and clipEnd
+                    try
+                    {
+                        resStreams.add(curClip.getAudioData(begin - elapsed,
+                                end - elapsed));
+                    }
+                    catch (InvalidDataFormatException e)
+                    {
+                        // Should never happen
+                        throw new RuntimeException("WTF ??!", e);
+                    }
+                }
             }
             else
-                if (elapsedTime.isLessThan(clipBegin))
+                if (elapsed < end)
                 {
-                    if (newElapsedTime.isLessThan(clipEnd))
+                    if (newElapsed < end)
                     {
-                        // Add part of current clip between clipBegin and
-                        // newElapsedTime
-                        // (ie. after clipBegin, since newElapsedTime is at the
-                        // end
-                        // of the clip)
-                        resStreams.add(curClip.getAudioData(new Time()
-                                .getZero().addTimeDelta(
-                                        clipBegin.getTimeDelta(elapsedTime))));
+                        // Add the entire clip, since elapsed and newElapsed are
+                        // at the beginning and end of the clip respectively
+                        resStreams.add(curClip.getAudioData());
                     }
                     else
                     {
-                        // Add part of current clip between clipBegin and
-                        // clipEnd
+                        // Add part of current clip between elapsed and
+                        // clipEnd (ie. before clipEnd since elapsed is at the
+                        // beginning of the clip)
                         try
                         {
-                            resStreams
-                                    .add(curClip
-                                            .getAudioData(
-                                                    new Time()
-                                                            .getZero()
-                                                            .addTimeDelta(
-                                                                    clipBegin
-                                                                            .getTimeDelta(elapsedTime)),
-                                                    new Time()
-                                                            .getZero()
-                                                            .addTimeDelta(
-                                                                    clipEnd
-                                                                            .getTimeDelta(elapsedTime))));
+                            resStreams.add(curClip.getAudioData(0, end
+                                    - elapsed));
                         }
                         catch (InvalidDataFormatException e)
                         {
@@ -453,52 +575,11 @@ public class WavAudioMediaData extends AbstractAudioMediaData
                     }
                 }
                 else
-                    if (elapsedTime.isLessThan(clipEnd))
-                    {
-                        if (newElapsedTime.isLessThan(clipEnd))
-                        {
-                            // Add part of current clip between elapsedTime and
-                            // newElapsedTime
-                            // (ie. entire clip since elapsedTime and
-                            // newElapsedTime is
-                            // at
-                            // the beginning and end of the clip respectively)
-                            resStreams.add(curClip.getAudioData());
-                        }
-                        else
-                        {
-                            // Add part of current clip between elapsedTime and
-                            // clipEnd
-                            // (ie. before clipEnd since elapsedTime is at the
-                            // beginning
-                            // of the clip)
-                            try
-                            {
-                                resStreams
-                                        .add(curClip
-                                                .getAudioData(
-                                                        new Time().getZero(),
-                                                        new Time()
-                                                                .getZero()
-                                                                .addTimeDelta(
-                                                                        clipEnd
-                                                                                .getTimeDelta(elapsedTime))));
-                            }
-                            catch (InvalidDataFormatException e)
-                            {
-                                // Should never happen
-                                throw new RuntimeException("WTF ??!", e);
-                            }
-                        }
-                    }
-                    else
-                    {
-                        // The current clip and all remaining clips are beyond
-                        // clipEnd
-                        break;
-                    }
-            elapsedTime = newElapsedTime;
-            i++;
+                {
+                    // The current clip and all remaining clips are beyond
+                    // clipEnd
+                    break;
+                }
         }
         if (resStreams.size() == 0)
         {
@@ -522,7 +603,7 @@ public class WavAudioMediaData extends AbstractAudioMediaData
         ITime insertPoint = new Time().getZero().addTimeDelta(
                 getAudioDuration());
         WavClip newAppClip = createWavClipFromRawPCMStream(pcmData, duration);
-        mWavClips.add(newAppClip);
+        addClip(mWavClips.size(), newAppClip);
         notifyListeners(new AudioDataInsertedEvent(this, insertPoint,
                 (duration == null ? newAppClip.getMediaDuration() : duration)));
     }
@@ -545,90 +626,83 @@ public class WavAudioMediaData extends AbstractAudioMediaData
         }
         if (insertPoint.isEqualTo(endTime))
         {
-            mWavClips.add(newInsClip);
+            addClip(mWavClips.size(), newInsClip);
             return;
         }
-        ITime elapsedTime = new Time().getZero();
-        int clipIndex = 0;
-        while (clipIndex < mWavClips.size())
+        long[] ends = getClipEndTimes();
+        long insPtTicks = insPt.getTimeAsTicks();
+        // The first clip ending after the insert point is the one that
+        // contains it
+        int clipIndex = getFirstClipEndingAtOrAfter(ends, insPtTicks + 1);
+        if (clipIndex < ends.length)
         {
             WavClip curClip = mWavClips.get(clipIndex);
-            if (insPt.isEqualTo(elapsedTime))
+            long elapsed = getClipBeginTime(ends, clipIndex);
+            if (insPtTicks == elapsed)
             {
                 // If the insert point at the beginning of the current clip,
-                // insert the new clip and break
-                mWavClips.add(clipIndex, newInsClip);
-                break;
+                // insert the new clip
+                addClip(clipIndex, newInsClip);
             }
             else
-                if (insPt.isLessThan(elapsedTime.addTimeDelta(curClip
-                        .getDuration())))
+            {
+                // If the insert point is between the beginning and end of
+                // the current clip, replace the current clip with three clips
+                // containing the audio in the current clip before the insert
+                // point, the audio to be inserted and the audio in the
+                // current clip after the insert point respectively
+                ITime insPtInCurClip = Time.fromTicks(insPtTicks - elapsed);
+                IStream audioDataStream;
+                try
+                {
+                    audioDataStream = curClip.getAudioData(new Time()
+                            .getZero(), insPtInCurClip);
+                }
+                catch (InvalidDataFormatException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                WavClip curClipBeforeIns, curClipAfterIns;
+                try
+                {
+                    curClipBeforeIns = createWavClipFromRawPCMStream(audioDataStream);
+                }
+                finally
                 {
-                    // If the insert point is between the beginning and end of
-                    // the
-                    // current clip,
-                    // Replace the current clip with three clips containing
-                    // the audio in the current clip before the insert point,
-                    // the audio to be inserted and the audio in the current
-                    // clip
-                    // after the insert point respectively
-                    ITime insPtInCurClip = new Time().getZero().addTimeDelta(
-                            insPt.getTimeDelta(elapsedTime));
-                    IStream audioDataStream;
                     try
                     {
-                        audioDataStream = curClip.getAudioData(new Time()
-                                .getZero(), insPtInCurClip);
+                        audioDataStream.close();
                     }
-                    catch (InvalidDataFormatException e)
+                    catch (IOException e)
                     {
                         // Should never happen
                         throw new RuntimeException("WTF ??!", e);
                     }
-                    WavClip curClipBeforeIns, curClipAfterIns;
-                    try
-                    {
-                        curClipBeforeIns = createWavClipFromRawPCMStream(audioDataStream);
-                    }
-                    finally
-                    {
-                        try
-                        {
-                            audioDataStream.close();
-                        }
-                        catch (IOException e)
-                        {
-                            // Should never happen
-                            throw new RuntimeException("WTF ??!", e);
-                        }
-                    }
-                    audioDataStream = curClip.getAudioData(insPtInCurClip);
+                }
+                audioDataStream = curClip.getAudioData(insPtInCurClip);
+                try
+                {
+                    curClipAfterIns = createWavClipFromRawPCMStream(audioDataStream);
+                }
+                finally
+                {
                     try
                     {
-                        curClipAfterIns = createWavClipFromRawPCMStream(audioDataStream);
+                        audioDataStream.close();
                     }
-                    finally
+                    catch (IOException e)
                     {
-                        try
-                        {
-                            audioDataStream.close();
-                        }
-                        catch (IOException e)
-                        {
-                            // Should never happen
-                            throw new RuntimeException("WTF ??!", e);
-                        }
+                        // Should never happen
+                        throw new RuntimeException("WTF ??!", e);
                     }
-                    mWavClips.remove(clipIndex);
-                    List<WavClip> list = new LinkedList<WavClip>();
-                    list.add(curClipBeforeIns);
-                    list.add(newInsClip);
-                    list.add(curClipAfterIns);
-                    mWavClips.addAll(clipIndex, list);
-                    break;
                 }
-            elapsedTime = elapsedTime.addTimeDelta(curClip.getDuration());
-            clipIndex++;
+                List<WavClip> clips = new ArrayList<WavClip>(mWavClips);
+                clips.set(clipIndex, curClipAfterIns);
+                clips.add(clipIndex, newInsClip);
+                clips.add(clipIndex, curClipBeforeIns);
+                setClips(clips, true);
+            }
         }
         notifyListeners(new AudioDataInsertedEvent(this, insertPoint, duration));
     }
@@ -636,20 +710,8 @@ public class WavAudioMediaData extends AbstractAudioMediaData
     @Override
     public ITimeDelta getAudioDuration()
     {
-        ITimeDelta dur = new TimeDelta();
-        for (WavClip clip : mWavClips)
-        {
-            try
-            {
-                dur.addTimeDelta(clip.getDuration());
-            }
-            catch (MethodParameterIsNullException e)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e);
-            }
-        }
-        return dur;
+        long[] ends = getClipEndTimes();
+        return TimeDelta.fromTicks(ends.length == 0 ? 0 : ends[ends.length - 1]);
     }
 
     @Override
@@ -670,7 +732,7 @@ public class WavAudioMediaData extends AbstractAudioMediaData
         if (clipBegin == new Time().getZero())
         {
             ITimeDelta prevDur = getAudioDuration();
-            mWavClips.clear();
+            setClips(new ArrayList<WavClip>(), true);
             notifyListeners(new AudioDataRemovedEvent(this, clipBegin, prevDur));
         }
         else
@@ -695,18 +757,33 @@ public class WavAudioMediaData extends AbstractAudioMediaData
         {
             throw new TimeOffsetIsOutOfBoundsException();
         }
-        if (clipBegin.isEqualTo(new Time().getZero())
-                && clipEnd.isEqualTo(new Time(getAudioDuration()
-                        .getTimeDeltaAsMilliseconds())))
+        if (clipBegin.getTimeAsTicks() == 0
+                && clipEnd.getTimeAsTicks() == getAudioDuration()
+                        .getTimeDeltaAsTicks())
         {
-            mWavClips.clear();
+            ITimeDelta prevDur = getAudioDuration();
+            setClips(new ArrayList<WavClip>(), true);
             notifyListeners(new AudioDataRemovedEvent(this, new Time()
-                    .getZero(), getAudioDuration()));
+                    .getZero(), prevDur));
             return;
         }
-        ITime curBeginTime = new Time().getZero();
-        List<WavClip> newClipList = new LinkedList<WavClip>();
-        for (WavClip curClip : mWavClips)
+        long[] ends = getClipEndTimes();
+        // Only the clips that overlap [clipBegin;clipEnd] are altered, the
+        // clips before and beyond the range are kept as they are
+        int firstIndex = getFirstClipEndingAtOrAfter(ends, clipBegin
+                .getTimeAsTicks() + 1);
+        int lastIndex = firstIndex;
+        while (lastIndex < ends.length
+                && getClipBeginTime(ends, lastIndex) < clipEnd
+                        .getTimeAsTicks())
+        {
+            lastIndex++;
+        }
+        ITime curBeginTime = Time.fromTicks(getClipBeginTime(ends,
+                firstIndex));
+        List<WavClip> newClipList = new ArrayList<WavClip>(mWavClips
+                .subList(0, firstIndex));
+        for (WavClip curClip : mWavClips.subList(firstIndex, lastIndex))
         {
             ITime curEndTime = curBeginTime.addTimeDelta(curClip.getDuration());
             if ((!curEndTime.isGreaterThan(clipBegin))
@@ -784,7 +861,8 @@ public class WavAudioMediaData extends AbstractAudioMediaData
                         }
             curBeginTime = curEndTime;
         }
-        mWavClips = newClipList;
+        newClipList.addAll(mWavClips.subList(lastIndex, mWavClips.size()));
+        setClips(newClipList, true);
         notifyListeners(new AudioDataRemovedEvent(this, clipBegin, clipEnd
                 .getTimeDelta(clipBegin)));
         /*
@@ -797,7 +875,9 @@ public class WavAudioMediaData extends AbstractAudioMediaData
     @Override
     protected void clear()
     {
-        mWavClips.clear();
+        // The IDataProviders are not deleted: they may be used by the clips
+        // about to be read
+        setClips(new ArrayList<WavClip>(), false);
         // super.clear();
     }
 
@@ -993,7 +1073,7 @@ public class WavAudioMediaData extends AbstractAudioMediaData
         }
         try
         {
-            mWavClips.add(new WavClip(prov, cb, ce));
+            addClip(mWavClips.size(), new WavClip(prov, cb, ce));
         }
         catch (TimeOffsetIsOutOfBoundsException e)
         {
@@ -1061,7 +1141,10 @@ public class WavAudioMediaData extends AbstractAudioMediaData
             ITime thisInsertPoint = new Time().getZero().addTimeDelta(
                     getAudioDuration());
             WavAudioMediaData otherWav = (WavAudioMediaData) other;
-            mWavClips.addAll(otherWav.mWavClips);
+            for (WavClip clip : otherWav.mWavClips)
+            {
+                addClip(mWavClips.size(), clip);
+            }
             ITimeDelta dur = otherWav.getAudioDuration();
             notifyListeners(new AudioDataInsertedEvent(this, thisInsertPoint,
                     dur));
@@ -1130,36 +1213,39 @@ public class WavAudioMediaData extends AbstractAudioMediaData
         }
         ITimeDelta dur = new Time().getZero().addTimeDelta(getAudioDuration())
                 .getTimeDelta(splitPoint);
-        ITime elapsed = new Time().getZero();
-        List<WavClip> clips = new LinkedList<WavClip>(mWavClips);
-        mWavClips.clear();
-        oWAMD.mWavClips.clear();
-        for (int i = 0; i < clips.size(); i++)
-        {
-            WavClip curClip = clips.get(i);
-            ITime endCurClip = elapsed.addTimeDelta(curClip.getDuration());
-            if (splitPoint.isLessThanOrEqualTo(elapsed))
+        long[] ends = getClipEndTimes();
+        long splitPointTicks = splitPoint.getTimeAsTicks();
+        // The clips ending at or before the split point stay in this media
+        // data, the clip containing it (if any) is split in two, and the
+        // following clips are moved to the new media data
+        int splitIndex = getFirstClipEndingAtOrAfter(ends, splitPointTicks + 1);
+        List<WavClip> clips = new ArrayList<WavClip>(mWavClips.subList(0,
+                splitIndex));
+        List<WavClip> oClips = new ArrayList<WavClip>();
+        for (int i = splitIndex; i < mWavClips.size(); i++)
+        {
+            WavClip curClip = mWavClips.get(i);
+            long elapsed = getClipBeginTime(ends, i);
+            if (splitPointTicks <= elapsed)
             {
-                oWAMD.mWavClips.add(curClip);
+                oClips.add(curClip);
             }
             else
-                if (splitPoint.isLessThan(endCurClip))
-                {
-                    WavClip secondPartClip = new WavClip(curClip
-                            .getDataProvider(), curClip.getClipBegin(), curClip
-                            .isClipEndTiedToEOM() ? null : curClip.getClipEnd());
-                    curClip.setClipEnd(curClip.getClipBegin().addTime(
-                            splitPoint.subtractTime(elapsed)));
-                    secondPartClip.setClipBegin(curClip.getClipEnd());
-                    mWavClips.add(curClip);
-                    oWAMD.mWavClips.add(secondPartClip);
-                }
-                else
-                {
-                    mWavClips.add(curClip);
-                }
-            elapsed = elapsed.addTimeDelta(curClip.getDuration());
+            {
+                WavClip secondPartClip = new WavClip(curClip.getDataProvider(),
+                        curClip.getClipBegin(), curClip.isClipEndTiedToEOM() ? null
+                                : curClip.getClipEnd());
+                curClip.setClipEnd(curClip.getClipBegin().addTime(
+                        Time.fromTicks(splitPointTicks - elapsed)));
+                secondPartClip.setClipBegin(curClip.getClipEnd());
+                clips.add(curClip);
+                oClips.add(secondPartClip);
+            }
         }
+        // The clips moved to the new media data are referenced by it before
+        // they are removed from this one
+        oWAMD.setClips(oClips, true);
+        setClips(clips, true);
         notifyListeners(new AudioDataRemovedEvent(this, splitPoint, dur));
         oWAMD.notifyListeners(new AudioDataInsertedEvent(oWAMD, new Time()
                 .getZero(), dur));
@@ -13,12 +13,10 @@ import org.daisy.urakawa.media.data.IDataProvider;
 import org.daisy.urakawa.media.data.InvalidDataFormatException;
 import org.daisy.urakawa.media.data.OutputStreamIsOpenException;
 import org.daisy.urakawa.media.data.audio.IPCMDataInfo;
-import org.daisy.urakawa.media.data.audio.PCMDataInfo;
 import org.daisy.urakawa.media.data.utilities.Clip;
 import org.daisy.urakawa.media.timing.ITime;
 import org.daisy.urakawa.media.timing.ITimeDelta;
 import org.daisy.urakawa.media.timing.Time;
-import org.daisy.urakawa.media.timing.TimeDelta;
 import org.daisy.urakawa.media.timing.TimeOffsetIsOutOfBoundsException;
 import org.daisy.urakawa.nativeapi.IStream;
 import org.daisy.urakawa.nativeapi.SubStream;
@@ -87,10 +85,10 @@ public class WavClip extends Clip implements IValueEquatable<WavClip>
     @Override
     public ITimeDelta getMediaDuration()
     {
-        IStream raw;
+        RiffHeaderCache.Entry header;
         try
         {
-            raw = getDataProvider().getInputStream();
+            header = RiffHeaderCache.get(getDataProvider());
         }
         catch (DataIsMissingException e)
         {
@@ -102,11 +100,6 @@ public class WavClip extends Clip implements IValueEquatable<WavClip>
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
-        IPCMDataInfo pcmInfo;
-        try
-        {
-            pcmInfo = new PCMDataInfo().parseRiffWaveHeader(raw);
-        }
         catch (MethodParameterIsNullException e)
         {
             // Should never happen
@@ -122,27 +115,7 @@ public class WavClip extends Clip implements IValueEquatable<WavClip>
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
-        finally
-        {
-            try
-            {
-                raw.close();
-            }
-            catch (IOException e)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e);
-            }
-        }
-        try
-        {
-            return new TimeDelta(pcmInfo.getDuration());
-        }
-        catch (MethodParameterIsNullException e)
-        {
-            // Should never happen
-            throw new RuntimeException("WTF ??!", e);
-        }
+        return header.mPCMInfo.getDuration();
     }
 
     /**
@@ -272,10 +245,29 @@ public class WavClip extends Clip implements IValueEquatable<WavClip>
         {
             throw new MethodParameterIsNullException();
         }
-        if (subClipBegin.isLessThan(new Time().getZero())
-                || subClipEnd.isLessThan(subClipBegin)
-                || subClipBegin.addTimeDelta(getDuration()).isLessThan(
-                        subClipEnd))
+        return getAudioData(subClipBegin.getTimeAsTicks(), subClipEnd
+                .getTimeAsTicks());
+    }
+
+    /**
+     * Same as {@link #getAudioData(ITime, ITime)}, with primitive times. The
+     * byte offsets are computed in sample frames, so the boundaries of the
+     * returned stream are accurate to the nearest sample.
+     * 
+     * @param subClipBeginTicks
+     *        relative to the beginning of the clip, in ticks
+     * @param subClipEndTicks
+     *        relative to the beginning of the clip, in ticks
+     * @return a stream
+     * @throws TimeOffsetIsOutOfBoundsException
+     * @throws InvalidDataFormatException
+     */
+    public IStream getAudioData(long subClipBeginTicks, long subClipEndTicks)
+            throws TimeOffsetIsOutOfBoundsException,
+            InvalidDataFormatException
+    {
+        if (subClipBeginTicks < 0 || subClipEndTicks < subClipBeginTicks
+                || subClipBeginTicks + getDurationTicks() < subClipEndTicks)
         {
             throw new TimeOffsetIsOutOfBoundsException();
         }
@@ -295,41 +287,47 @@ public class WavClip extends Clip implements IValueEquatable<WavClip>
             throw new RuntimeException("WTF ??!", e);
         }
         IPCMDataInfo pcmInfo;
+        long dataStart;
         try
         {
-            pcmInfo = new PCMDataInfo().parseRiffWaveHeader(raw);
+            RiffHeaderCache.Entry header = RiffHeaderCache.get(
+                    getDataProvider(), raw);
+            pcmInfo = header.mPCMInfo;
+            dataStart = header.mDataOffset;
         }
         catch (IOException e)
         {
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
-        ITime rawEndTime = new Time().getZero().addTimeDelta(
-                pcmInfo.getDuration());
-        if (getClipBegin().isLessThan(new Time().getZero())
-                || getClipBegin().isGreaterThan(getClipEnd())
-                || getClipEnd().isGreaterThan(rawEndTime))
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        long clipBegin = getClipBeginTicks();
+        long clipEnd = getClipEndTicks();
+        if (clipBegin < 0 || clipBegin > clipEnd
+                || clipEnd > pcmInfo.getDuration().getTimeDeltaAsTicks())
         {
             throw new InvalidDataFormatException();
         }
-        ITime rawClipBegin = getClipBegin().addTime(subClipBegin);
-        ITime rawClipEnd = getClipBegin().addTime(subClipEnd);
-        long offset;
-        int beginPos = raw.getPosition()
-                + (int) ((rawClipBegin.getTimeAsMilliseconds() * pcmInfo
-                        .getByteRate()) / 1000);
-        offset = (beginPos - raw.getPosition()) % pcmInfo.getBlockAlign();
-        beginPos -= offset;
-        int endPos = raw.getPosition()
-                + (int) ((rawClipEnd.getTimeAsMilliseconds() * pcmInfo
-                        .getByteRate()) / 1000);
-        offset = (endPos - raw.getPosition()) % pcmInfo.getBlockAlign();
-        endPos -= offset;
+        long beginPos = dataStart
+                + pcmInfo.getSampleFrames(clipBegin + subClipBeginTicks)
+                * pcmInfo.getBlockAlign();
+        long endPos = dataStart
+                + pcmInfo.getSampleFrames(clipBegin + subClipEndTicks)
+                * pcmInfo.getBlockAlign();
         SubStream res;
         try
         {
             res = new SubStream(raw, beginPos, endPos - beginPos);
         }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
         catch (MethodParameterIsEmptyStringException e)
         {
             // Should never happen
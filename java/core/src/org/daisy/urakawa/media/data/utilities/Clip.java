@@ -21,6 +21,16 @@ public abstract class Clip
         return mClipBegin.copy();
     }
 
+    /**
+     * Allocation-free alternative to {@link #getClipBegin()}.
+     * 
+     * @return the clip begin, in ticks
+     */
+    public long getClipBeginTicks()
+    {
+        return mClipBegin.getTimeAsTicks();
+    }
+
     /**
      * @param newClipBegin
      * @throws MethodParameterIsNullException
@@ -63,6 +73,21 @@ public abstract class Clip
         return mClipEnd.copy();
     }
 
+    /**
+     * Allocation-free alternative to {@link #getClipEnd()} (when the clip end
+     * is not tied to the end of the media).
+     * 
+     * @return the clip end, in ticks
+     */
+    public long getClipEndTicks()
+    {
+        if (mClipEnd == null)
+        {
+            return getMediaDuration().getTimeDeltaAsTicks();
+        }
+        return mClipEnd.getTimeAsTicks();
+    }
+
     /**
      * @param newClipEnd
      * @throws TimeOffsetIsOutOfBoundsException
@@ -100,6 +125,17 @@ public abstract class Clip
         return (mClipEnd == null);
     }
 
+    /**
+     * Allocation-free alternative to {@link #getDuration()}.
+     * 
+     * @return the duration, in ticks
+     */
+    public long getDurationTicks()
+    {
+        long dur = getClipEndTicks() - mClipBegin.getTimeAsTicks();
+        return (dur < 0 ? -dur : dur);
+    }
+
     /**
      * @return time
      */
@@ -37,6 +37,12 @@ public interface ITime
      */
     public long getTimeAsMilliseconds();
 
+    /**
+     * @return time, in ticks of 100 nanoseconds (see
+     *         {@link Time#TICKS_PER_MILLISECOND})
+     */
+    public long getTimeAsTicks();
+
     /**
      * @param otherTime
      * @return true or false
@@ -75,6 +81,10 @@ public interface ITime
 
     /**
      * @param newTime
+     *        in milliseconds
+     * @throws IllegalArgumentException
+     *         if the value cannot be represented in ticks (beyond about 29
+     *         thousand years)
      */
     public void setTime(long newTime);
 
@@ -35,13 +35,25 @@ public interface ITimeDelta
      */
     public long getTimeDeltaAsMilliseconds();
 
+    /**
+     * @return time delta, in ticks of 100 nanoseconds (see
+     *         {@link Time#TICKS_PER_MILLISECOND})
+     */
+    public long getTimeDeltaAsTicks();
+
     /**
      * @param val
-     * @throws TimeOffsetIsNegativeException
+     *        in milliseconds
+     * @throws IllegalArgumentException
+     *         if the value cannot be represented in ticks (beyond about 29
+     *         thousand years)
      */
-    public void setTimeDelta(long val) throws TimeOffsetIsNegativeException;
+    public void setTimeDelta(long val);
 
     /**
+     * Adds the given time delta to this one, and returns a copy of the
+     * result: this time delta is modified.
+     * 
      * @param other
      * @return time
      * @throws MethodParameterIsNullException
@@ -5,28 +5,59 @@ import org.daisy.urakawa.exception.MethodParameterIsNullException;
 
 /**
  * Reference implementation of the interface.
+ * <p>
+ * The value is stored as a primitive number of ticks of 100 nanoseconds, which
+ * is precise enough to address individual samples at the usual audio sample
+ * rates. The millisecond-based constructors and accessors are kept for
+ * compatibility. Hot code paths should work with {@link #getTimeAsTicks()}
+ * and {@link #fromTicks(long)} rather than allocate intermediate Time
+ * objects.
+ * </p>
  * 
  * @leafInterface see {@link org.daisy.urakawa.LeafInterface}
  * @see org.daisy.urakawa.LeafInterface
  */
 public class Time implements ITime
 {
-    private long mTime;
+    /**
+     * The number of ticks in a millisecond.
+     */
+    public static final long TICKS_PER_MILLISECOND = 10000;
+    /**
+     * The number of ticks in a second.
+     */
+    public static final long TICKS_PER_SECOND = 1000 * TICKS_PER_MILLISECOND;
+    private long mTicks;
 
     /**
 	 * 
 	 */
     public Time()
     {
-        mTime = 0;
+        mTicks = 0;
     }
 
     /**
      * @param value
+     *        in milliseconds
+     * @throws IllegalArgumentException
+     *         if the value cannot be represented in ticks (beyond about 29
+     *         thousand years)
      */
     public Time(long value)
     {
-        mTime = value;
+        mTicks = millisecondsToTicks(value);
+    }
+
+    /**
+     * @param ticks
+     * @return a new Time for the given number of ticks
+     */
+    public static Time fromTicks(long ticks)
+    {
+        Time time = new Time();
+        time.mTicks = ticks;
+        return time;
     }
 
     /**
@@ -47,7 +78,7 @@ public class Time implements ITime
         {
             throw new MethodParameterIsEmptyStringException();
         }
-        setTime(new Time().parse(val).getTimeAsMilliseconds());
+        mTicks = new Time().parse(val).getTimeAsTicks();
     }
 
     public ITime getZero()
@@ -57,12 +88,12 @@ public class Time implements ITime
 
     public ITime getMaxValue()
     {
-        return new Time(Long.MAX_VALUE);
+        return fromTicks(Long.MAX_VALUE);
     }
 
     public ITime getMinValue()
     {
-        return new Time(Long.MIN_VALUE);
+        return fromTicks(Long.MIN_VALUE);
     }
 
     public boolean isLessThanOrEqualTo(ITime otherTime)
@@ -72,7 +103,7 @@ public class Time implements ITime
         {
             throw new MethodParameterIsNullException();
         }
-        return otherTime.isGreaterThanOrEqualTo(this);
+        return mTicks <= otherTime.getTimeAsTicks();
     }
 
     public boolean isGreaterThanOrEqualTo(ITime otherTime)
@@ -82,7 +113,7 @@ public class Time implements ITime
         {
             throw new MethodParameterIsNullException();
         }
-        return !isLessThan(otherTime);
+        return mTicks >= otherTime.getTimeAsTicks();
     }
 
     public boolean isLessThan(ITime otherTime)
@@ -92,7 +123,7 @@ public class Time implements ITime
         {
             throw new MethodParameterIsNullException();
         }
-        return otherTime.isGreaterThan(this);
+        return mTicks < otherTime.getTimeAsTicks();
     }
 
     public boolean isEqualTo(ITime otherTime)
@@ -102,11 +133,7 @@ public class Time implements ITime
         {
             throw new MethodParameterIsNullException();
         }
-        if (isGreaterThan(otherTime))
-            return false;
-        if (otherTime.isGreaterThan(this))
-            return false;
-        return true;
+        return mTicks == otherTime.getTimeAsTicks();
     }
 
     public boolean isGreaterThan(ITime otherTime)
@@ -116,7 +143,7 @@ public class Time implements ITime
         {
             throw new MethodParameterIsNullException();
         }
-        return (getTimeAsMilliseconds() > otherTime.getTimeAsMilliseconds());
+        return mTicks > otherTime.getTimeAsTicks();
     }
 
     public ITime addTimeDelta(ITimeDelta other)
@@ -126,8 +153,7 @@ public class Time implements ITime
         {
             throw new MethodParameterIsNullException();
         }
-        return new Time(getTimeAsMilliseconds()
-                + other.getTimeDeltaAsMilliseconds());
+        return fromTicks(mTicks + other.getTimeDeltaAsTicks());
     }
 
     public ITime subtractTime(ITime other)
@@ -137,7 +163,7 @@ public class Time implements ITime
         {
             throw new MethodParameterIsNullException();
         }
-        return new Time(getTimeAsMilliseconds() - other.getTimeAsMilliseconds());
+        return fromTicks(mTicks - other.getTimeAsTicks());
     }
 
     public ITime subtractTimeDelta(ITimeDelta other)
@@ -147,22 +173,27 @@ public class Time implements ITime
         {
             throw new MethodParameterIsNullException();
         }
-        return new Time(mTime - other.getTimeDeltaAsMilliseconds());
+        return fromTicks(mTicks - other.getTimeDeltaAsTicks());
     }
 
     public void setTime(long newTime)
     {
-        mTime = newTime;
+        mTicks = millisecondsToTicks(newTime);
     }
 
     public ITime addTime(ITime other)
     {
-        return new Time(getTimeAsMilliseconds() + other.getTimeAsMilliseconds());
+        return fromTicks(mTicks + other.getTimeAsTicks());
     }
 
     public long getTimeAsMilliseconds()
     {
-        return mTime;
+        return mTicks / TICKS_PER_MILLISECOND;
+    }
+
+    public long getTimeAsTicks()
+    {
+        return mTicks;
     }
 
     public ITimeDelta getTimeDelta(ITime t)
@@ -172,22 +203,22 @@ public class Time implements ITime
         {
             throw new MethodParameterIsNullException();
         }
-        long value = getTimeAsMilliseconds() - t.getTimeAsMilliseconds();
+        long value = mTicks - t.getTimeAsTicks();
         if (value < 0)
         {
             value = -value;
         }
-        return new TimeDelta(value);
+        return TimeDelta.fromTicks(value);
     }
 
     public boolean isNegativeTimeOffset()
     {
-        return (mTime < 0);
+        return (mTicks < 0);
     }
 
     public ITime copy()
     {
-        return new Time(mTime);
+        return fromTicks(mTicks);
     }
 
     public ITime parse(String stringRepresentation)
@@ -205,7 +236,7 @@ public class Time implements ITime
         }
         try
         {
-            return new Time(Long.parseLong(stringRepresentation));
+            return fromTicks(parseTicks(stringRepresentation));
         }
         catch (Exception e)
         {
@@ -216,6 +247,95 @@ public class Time implements ITime
     @Override
     public String toString()
     {
-        return Long.toString(mTime);
+        return formatTicks(mTicks);
+    }
+
+    /**
+     * @param ticks
+     * @return the given number of ticks, as a number of milliseconds with up
+     *         to 4 decimals (none when the value is a whole number of
+     *         milliseconds, as in previous versions)
+     */
+    static String formatTicks(long ticks)
+    {
+        long ms = ticks / TICKS_PER_MILLISECOND;
+        long rest = ticks % TICKS_PER_MILLISECOND;
+        if (rest == 0)
+        {
+            return Long.toString(ms);
+        }
+        StringBuilder res = new StringBuilder();
+        if (ticks < 0)
+        {
+            res.append('-');
+            ms = -ms;
+            rest = -rest;
+        }
+        res.append(ms);
+        res.append('.');
+        String fraction = Long.toString(TICKS_PER_MILLISECOND + rest)
+                .substring(1);
+        int len = fraction.length();
+        while (fraction.charAt(len - 1) == '0')
+        {
+            len--;
+        }
+        res.append(fraction, 0, len);
+        return res.toString();
+    }
+
+    /**
+     * @param ms
+     *        a number of milliseconds
+     * @return the number of ticks
+     * @throws IllegalArgumentException
+     *         if the number of ticks overflows a long
+     */
+    static long millisecondsToTicks(long ms)
+    {
+        try
+        {
+            return Math.multiplyExact(ms, TICKS_PER_MILLISECOND);
+        }
+        catch (ArithmeticException e)
+        {
+            throw new IllegalArgumentException(ms
+                    + " ms cannot be represented in ticks", e);
+        }
+    }
+
+    /**
+     * @param str
+     *        a number of milliseconds, with up to 4 decimals
+     * @return the number of ticks
+     * @throws NumberFormatException
+     * @throws ArithmeticException
+     *         if the number of ticks overflows a long
+     */
+    static long parseTicks(String str) throws NumberFormatException
+    {
+        int dot = str.indexOf('.');
+        if (dot == -1)
+        {
+            return Math.multiplyExact(Long.parseLong(str),
+                    TICKS_PER_MILLISECOND);
+        }
+        String fraction = str.substring(dot + 1);
+        if (fraction.length() == 0 || fraction.length() > 4
+                || fraction.charAt(0) == '-' || fraction.charAt(0) == '+')
+        {
+            throw new NumberFormatException(str);
+        }
+        while (fraction.length() < 4)
+        {
+            fraction += "0";
+        }
+        String whole = str.substring(0, dot);
+        long ticks = Math.multiplyExact(Long.parseLong(whole),
+                TICKS_PER_MILLISECOND);
+        // The sign of the whole part applies to the fraction, even for "-0"
+        return whole.startsWith("-") ? Math.subtractExact(ticks, Long
+                .parseLong(fraction)) : Math.addExact(ticks, Long
+                .parseLong(fraction));
     }
 }
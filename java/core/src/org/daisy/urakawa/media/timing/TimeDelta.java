@@ -3,7 +3,8 @@ package org.daisy.urakawa.media.timing;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 
 /**
- * Reference implementation of the interface.
+ * Reference implementation of the interface. Like {@link Time}, the value is
+ * stored as a primitive number of ticks of 100 nanoseconds.
  * 
  * @leafInterface see {@link org.daisy.urakawa.LeafInterface}
  * @see org.daisy.urakawa.LeafInterface
@@ -17,17 +18,17 @@ public class TimeDelta implements ITimeDelta
 
     public ITimeDelta getMaxValue()
     {
-        return new TimeDelta(Long.MAX_VALUE);
+        return fromTicks(Long.MAX_VALUE);
     }
 
-    private long mTimeDelta;
+    private long mTicks;
 
     /**
 	 * 
 	 */
     public TimeDelta()
     {
-        mTimeDelta = 0;
+        mTicks = 0;
     }
 
     /**
@@ -40,17 +41,32 @@ public class TimeDelta implements ITimeDelta
         {
             throw new MethodParameterIsNullException();
         }
-        addTimeDelta(other);
+        mTicks = other.getTimeDeltaAsTicks();
     }
 
     /**
      * @param val
+     *        in milliseconds
+     * @throws IllegalArgumentException
+     *         if the value cannot be represented in ticks (beyond about 29
+     *         thousand years)
      */
     public TimeDelta(long val)
     {
         setTimeDelta(val);
     }
 
+    /**
+     * @param ticks
+     * @return a new TimeDelta for the given number of ticks
+     */
+    public static TimeDelta fromTicks(long ticks)
+    {
+        TimeDelta delta = new TimeDelta();
+        delta.mTicks = ticks;
+        return delta;
+    }
+
     public ITimeDelta copy()
     {
         try
@@ -66,17 +82,28 @@ public class TimeDelta implements ITimeDelta
 
     public long getTimeDeltaAsMilliseconds()
     {
-        return mTimeDelta;
+        return mTicks / Time.TICKS_PER_MILLISECOND;
+    }
+
+    public long getTimeDeltaAsTicks()
+    {
+        return mTicks;
     }
 
     public void setTimeDelta(long val)
     {
-        mTimeDelta = val;
+        mTicks = Time.millisecondsToTicks(val);
     }
 
     public ITimeDelta addTimeDelta(ITimeDelta other)
+            throws MethodParameterIsNullException
     {
-        return new TimeDelta(mTimeDelta += other.getTimeDeltaAsMilliseconds());
+        if (other == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mTicks += other.getTimeDeltaAsTicks();
+        return fromTicks(mTicks);
     }
 
     public boolean isLessThan(ITimeDelta other)
@@ -84,7 +111,7 @@ public class TimeDelta implements ITimeDelta
     {
         if (other == null)
             throw new MethodParameterIsNullException();
-        return (mTimeDelta < other.getTimeDeltaAsMilliseconds());
+        return (mTicks < other.getTimeDeltaAsTicks());
     }
 
     public boolean isGreaterThan(ITimeDelta other)
@@ -92,7 +119,7 @@ public class TimeDelta implements ITimeDelta
     {
         if (other == null)
             throw new MethodParameterIsNullException();
-        return other.isLessThan(this);
+        return (mTicks > other.getTimeDeltaAsTicks());
     }
 
     public boolean isEqualTo(ITimeDelta other)
@@ -100,12 +127,12 @@ public class TimeDelta implements ITimeDelta
     {
         if (other == null)
             throw new MethodParameterIsNullException();
-        return (!isLessThan(other)) && (!isGreaterThan(other));
+        return (mTicks == other.getTimeDeltaAsTicks());
     }
 
     @Override
     public String toString()
     {
-        return Long.toString(mTimeDelta);
+        return Time.formatTicks(mTicks);
     }
 }
@@ -0,0 +1,627 @@
+package org.daisy.urakawa.nativeapi;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
+/**
+ * Implementation of IXmlDataReader for the binary documents written by
+ * {@link BinaryXmlDataWriter}, which it reports exactly like
+ * {@link XmlDataReader} reports the equivalent XML document (the text nodes
+ * aside, which are not split).
+ * <p>
+ * As the length of every element is stored in the document, skipping a
+ * subtree (by closing the reader given by {@link #readSubtree()}) costs a
+ * seek, not a parse. The IStream is read with positional reads through a
+ * buffer of {@link #BUFFER_SIZE} bytes. The names are interned, so they can
+ * be compared by reference. Errors are reported as RuntimeExceptions.
+ * </p>
+ */
+public class BinaryXmlDataReader implements IXmlDataReader, ISubtreeParent
+{
+    /**
+     * The size of the read buffer.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private IStream mBaseStream;
+    private String mBaseUri;
+    private IRandomAccessStream mInput;
+    private long mInputLength;
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferLength = 0;
+    /**
+     * The offset in the input of the first byte of the buffer.
+     */
+    private long mBufferStart;
+    /**
+     * The offset in the input of the next byte to decode.
+     */
+    private long mPosition;
+    private List<String> mStringTable = new ArrayList<String>();
+    private int mNodeType = OTHER;
+    private String mLocalName = "";
+    private String mNamespaceURI = "";
+    private String mText = null;
+    private boolean mIsEmptyElement = false;
+    private int mAttributeCount = 0;
+    private String[] mAttributePrefixes = new String[8];
+    private String[] mAttributeLocalNames = new String[8];
+    private String[] mAttributeNamespaces = new String[8];
+    private String[] mAttributeValues = new String[8];
+    private int mAttributeIndex = -1;
+    /**
+     * The number of open elements.
+     */
+    private int mLevel = 0;
+    /**
+     * The depth of the current node.
+     */
+    private int mDepth = 0;
+    /**
+     * The names of the open elements, and the offsets at which they end.
+     */
+    private String[] mOpenLocalNames = new String[32];
+    private String[] mOpenNamespaces = new String[32];
+    private long[] mOpenEndOffsets = new long[32];
+    private boolean mEOF = false;
+
+    /**
+     * @param iStream
+     * @throws MethodParameterIsNullException
+     */
+    public BinaryXmlDataReader(IStream iStream)
+            throws MethodParameterIsNullException
+    {
+        this(iStream, null);
+    }
+
+    /**
+     * @param iStream
+     *        positioned on the first byte of the document
+     * @param baseUri
+     *        can be null
+     * @throws MethodParameterIsNullException
+     */
+    public BinaryXmlDataReader(IStream iStream, String baseUri)
+            throws MethodParameterIsNullException
+    {
+        if (iStream == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mBaseStream = iStream;
+        mBaseUri = baseUri;
+        mInput = LongStreamAdapter.adapt(iStream);
+        mInputLength = mInput.getLongLength();
+        mPosition = mInput.getLongPosition();
+        mBufferStart = mPosition;
+        if (!isBinaryXml(iStream))
+        {
+            throw new RuntimeException(
+                    "Malformed XML data: not a binary XML document");
+        }
+        mPosition += BinaryXmlDataWriter.MAGIC.length;
+    }
+
+    /**
+     * @param iStream
+     * @return true if the stream, from its current position, starts with the
+     *         header of a binary document (the position is not moved)
+     * @throws MethodParameterIsNullException
+     */
+    public static boolean isBinaryXml(IStream iStream)
+            throws MethodParameterIsNullException
+    {
+        IRandomAccessStream input = LongStreamAdapter.adapt(iStream);
+        byte[] magic = BinaryXmlDataWriter.MAGIC;
+        byte[] header = new byte[magic.length];
+        int n = 0;
+        try
+        {
+            while (n < header.length)
+            {
+                int read = input.read(input.getLongPosition() + n, header, n,
+                        header.length - n);
+                if (read <= 0)
+                {
+                    return false;
+                }
+                n += read;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot read XML data", e);
+        }
+        for (int i = 0; i < magic.length; i++)
+        {
+            if (header[i] != magic[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure the given number of bytes from the current position are in
+     * the buffer.
+     */
+    private void ensure(int count)
+    {
+        if (mPosition >= mBufferStart
+                && mPosition + count <= mBufferStart + mBufferLength)
+        {
+            return;
+        }
+        if (mPosition + count > mInputLength)
+        {
+            throw new RuntimeException("Malformed XML data: unexpected end");
+        }
+        if (count > mBuffer.length)
+        {
+            mBuffer = new byte[count];
+        }
+        int length = (int) Math.min(mBuffer.length, mInputLength - mPosition);
+        int n = 0;
+        try
+        {
+            while (n < length)
+            {
+                int read = mInput.read(mPosition + n, mBuffer, n, length - n);
+                if (read <= 0)
+                {
+                    break;
+                }
+                n += read;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot read XML data", e);
+        }
+        if (n < count)
+        {
+            throw new RuntimeException("Malformed XML data: unexpected end");
+        }
+        mBufferStart = mPosition;
+        mBufferLength = n;
+    }
+
+    private int readByte()
+    {
+        ensure(1);
+        return mBuffer[(int) (mPosition++ - mBufferStart)] & 0xFF;
+    }
+
+    private long readVarint()
+    {
+        long res = 0;
+        int shift = 0;
+        while (true)
+        {
+            int b = readByte();
+            res |= ((long) (b & 0x7F)) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return res;
+            }
+            shift += 7;
+            if (shift > 63)
+            {
+                throw new RuntimeException("Malformed XML data: bad integer");
+            }
+        }
+    }
+
+    private long readSignedVarint()
+    {
+        long v = readVarint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private int readCount()
+    {
+        long v = readVarint();
+        if (v > Integer.MAX_VALUE)
+        {
+            throw new RuntimeException("Malformed XML data: bad length");
+        }
+        return (int) v;
+    }
+
+    private String readInlineString()
+    {
+        int length = readCount();
+        if (length == 0)
+        {
+            return "";
+        }
+        ensure(length);
+        String res;
+        try
+        {
+            res = new String(mBuffer, (int) (mPosition - mBufferStart), length,
+                    "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        mPosition += length;
+        return res;
+    }
+
+    private String readName()
+    {
+        int ref = readCount();
+        if (ref == 0)
+        {
+            String name = readInlineString().intern();
+            mStringTable.add(name);
+            return name;
+        }
+        if (ref > mStringTable.size())
+        {
+            throw new RuntimeException(
+                    "Malformed XML data: bad string reference");
+        }
+        return mStringTable.get(ref - 1);
+    }
+
+    private String readValue()
+    {
+        int type = readByte();
+        switch (type)
+        {
+        case BinaryXmlDataWriter.VALUE_STRING:
+            return readName();
+        case BinaryXmlDataWriter.VALUE_INLINE_STRING:
+            return readInlineString();
+        case BinaryXmlDataWriter.VALUE_INTEGER:
+            return Long.toString(readSignedVarint());
+        case BinaryXmlDataWriter.VALUE_DECIMAL:
+        {
+            long unscaled = readSignedVarint();
+            int scale = readByte();
+            String digits = Long.toString(Math.abs(unscaled));
+            StringBuilder sb = new StringBuilder(digits.length() + 3);
+            if (unscaled < 0)
+            {
+                sb.append('-');
+            }
+            if (digits.length() <= scale)
+            {
+                sb.append('0');
+                sb.append('.');
+                for (int i = digits.length(); i < scale; i++)
+                {
+                    sb.append('0');
+                }
+                sb.append(digits);
+            }
+            else
+            {
+                sb.append(digits, 0, digits.length() - scale);
+                sb.append('.');
+                sb.append(digits, digits.length() - scale, digits.length());
+            }
+            return sb.toString();
+        }
+        case BinaryXmlDataWriter.VALUE_PREFIXED_INTEGER:
+        {
+            String prefix = readName();
+            int width = readCount();
+            String digits = Long.toString(readVarint());
+            StringBuilder sb = new StringBuilder(prefix.length() + width);
+            sb.append(prefix);
+            for (int i = digits.length(); i < width; i++)
+            {
+                sb.append('0');
+            }
+            sb.append(digits);
+            return sb.toString();
+        }
+        default:
+            throw new RuntimeException("Malformed XML data: bad value type");
+        }
+    }
+
+    private void readElementStart()
+    {
+        mNodeType = ELEMENT;
+        mDepth = mLevel;
+        mLocalName = readName();
+        mNamespaceURI = readName();
+        mText = null;
+        int count = readCount();
+        if (count > mAttributeValues.length)
+        {
+            int size = Math.max(count, 2 * mAttributeValues.length);
+            mAttributePrefixes = new String[size];
+            mAttributeLocalNames = new String[size];
+            mAttributeNamespaces = new String[size];
+            mAttributeValues = new String[size];
+        }
+        for (int i = 0; i < count; i++)
+        {
+            mAttributePrefixes[i] = readName();
+            mAttributeLocalNames[i] = readName();
+            mAttributeNamespaces[i] = readName();
+            mAttributeValues[i] = readValue();
+        }
+        mAttributeCount = count;
+    }
+
+    private void pushOpenElement(long endOffset)
+    {
+        if (mLevel == mOpenEndOffsets.length)
+        {
+            int size = 2 * mLevel;
+            String[] names = new String[size];
+            System.arraycopy(mOpenLocalNames, 0, names, 0, mLevel);
+            mOpenLocalNames = names;
+            names = new String[size];
+            System.arraycopy(mOpenNamespaces, 0, names, 0, mLevel);
+            mOpenNamespaces = names;
+            long[] offsets = new long[size];
+            System.arraycopy(mOpenEndOffsets, 0, offsets, 0, mLevel);
+            mOpenEndOffsets = offsets;
+        }
+        mOpenLocalNames[mLevel] = mLocalName;
+        mOpenNamespaces[mLevel] = mNamespaceURI;
+        mOpenEndOffsets[mLevel] = endOffset;
+        mLevel++;
+    }
+
+    public int getDepth()
+    {
+        return mDepth;
+    }
+
+    public void skipToEndElement(int depth)
+    {
+        if (mEOF || depth < 0 || depth >= mLevel)
+        {
+            return;
+        }
+        // The END record is the last byte of the content of the element
+        mPosition = mOpenEndOffsets[depth] - 1;
+        mLevel = depth + 1;
+        read();
+    }
+
+    public void close()
+    {
+        mEOF = true;
+        mNodeType = OTHER;
+        mText = null;
+        mAttributeCount = 0;
+    }
+
+    public String getLocalName()
+    {
+        if (mNodeType == OTHER)
+        {
+            return "";
+        }
+        return mLocalName;
+    }
+
+    public String getNamespaceURI()
+    {
+        if (mNodeType == OTHER)
+        {
+            return "";
+        }
+        return mNamespaceURI;
+    }
+
+    public int getNodeType()
+    {
+        return mNodeType;
+    }
+
+    public boolean isEOF()
+    {
+        return mEOF;
+    }
+
+    public boolean isEmptyElement()
+    {
+        return mNodeType == ELEMENT && mIsEmptyElement;
+    }
+
+    public boolean read()
+    {
+        if (mEOF)
+        {
+            return false;
+        }
+        mAttributeIndex = -1;
+        if (mPosition >= mInputLength)
+        {
+            close();
+            return false;
+        }
+        int tag = readByte();
+        switch (tag)
+        {
+        case BinaryXmlDataWriter.ELEMENT:
+        {
+            readElementStart();
+            mIsEmptyElement = false;
+            ensure(8);
+            long length = 0;
+            for (int i = 0; i < 8; i++)
+            {
+                length |= ((long) readByte()) << (8 * i);
+            }
+            pushOpenElement(mPosition + length);
+            return true;
+        }
+        case BinaryXmlDataWriter.EMPTY_ELEMENT:
+            readElementStart();
+            mIsEmptyElement = true;
+            return true;
+        case BinaryXmlDataWriter.END:
+            if (mLevel == 0)
+            {
+                close();
+                throw new RuntimeException(
+                        "Malformed XML data: unexpected end element");
+            }
+            mLevel--;
+            mDepth = mLevel;
+            mNodeType = END_ELEMENT;
+            mLocalName = mOpenLocalNames[mLevel];
+            mNamespaceURI = mOpenNamespaces[mLevel];
+            mOpenLocalNames[mLevel] = null;
+            mOpenNamespaces[mLevel] = null;
+            mText = null;
+            mAttributeCount = 0;
+            return true;
+        case BinaryXmlDataWriter.TEXT:
+        {
+            mDepth = mLevel;
+            mNodeType = OTHER;
+            mAttributeCount = 0;
+            String text = readValue();
+            StringBuilder sb = null;
+            while (mPosition < mInputLength
+                    && peekByte() == BinaryXmlDataWriter.TEXT)
+            {
+                mPosition++;
+                if (sb == null)
+                {
+                    sb = new StringBuilder(text);
+                }
+                sb.append(readValue());
+            }
+            mText = (sb == null ? text : sb.toString());
+            return true;
+        }
+        default:
+            close();
+            throw new RuntimeException("Malformed XML data: bad record");
+        }
+    }
+
+    private int peekByte()
+    {
+        ensure(1);
+        return mBuffer[(int) (mPosition - mBufferStart)] & 0xFF;
+    }
+
+    public IXmlDataReader readSubtree()
+    {
+        return new SubtreeReader(this);
+    }
+
+    public boolean readToFollowing(String localName, String namespace)
+    {
+        String ns = (namespace == null ? "" : namespace);
+        while (read())
+        {
+            if (mNodeType == ELEMENT && mLocalName.equals(localName)
+                    && mNamespaceURI.equals(ns))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getAttribute(String name)
+    {
+        if (mNodeType != ELEMENT || name == null)
+        {
+            return null;
+        }
+        for (int i = 0; i < mAttributeCount; i++)
+        {
+            if (getQualifiedName(mAttributePrefixes[i],
+                    mAttributeLocalNames[i]).equals(name))
+            {
+                return mAttributeValues[i];
+            }
+        }
+        return null;
+    }
+
+    private static String getQualifiedName(String prefix, String localName)
+    {
+        if (prefix.length() == 0)
+        {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
+    public String getBaseURI()
+    {
+        if (mBaseUri == null)
+        {
+            return "";
+        }
+        return mBaseUri;
+    }
+
+    public String getName()
+    {
+        if (mAttributeIndex >= 0)
+        {
+            return getQualifiedName(mAttributePrefixes[mAttributeIndex],
+                    mAttributeLocalNames[mAttributeIndex]);
+        }
+        return getLocalName();
+    }
+
+    public String getValue()
+    {
+        if (mAttributeIndex >= 0)
+        {
+            return mAttributeValues[mAttributeIndex];
+        }
+        return mText;
+    }
+
+    public void moveToElement()
+    {
+        mAttributeIndex = -1;
+    }
+
+    public boolean moveToFirstAttribute()
+    {
+        if (mNodeType != ELEMENT || mAttributeCount == 0)
+        {
+            return false;
+        }
+        mAttributeIndex = 0;
+        return true;
+    }
+
+    public boolean moveToNextAttribute()
+    {
+        if (mAttributeIndex < 0 || mAttributeIndex + 1 >= mAttributeCount)
+        {
+            return false;
+        }
+        mAttributeIndex++;
+        return true;
+    }
+
+    public String readElementContentAsString()
+    {
+        return XmlDataReader.readElementContentAsString(this);
+    }
+
+    public IStream getBaseStream()
+    {
+        return mBaseStream;
+    }
+}
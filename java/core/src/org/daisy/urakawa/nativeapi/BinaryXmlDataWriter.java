@@ -0,0 +1,536 @@
+package org.daisy.urakawa.nativeapi;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
+/**
+ * Implementation of IXmlDataWriter that produces the compact binary
+ * equivalent of the XML document, read back by {@link BinaryXmlDataReader}.
+ * Any object that serializes to XUK serializes to this format unchanged, and
+ * the two formats convert into each other without loss.
+ * <p>
+ * The document is a {@link #MAGIC} header followed by records, each starting
+ * with a tag byte:
+ * <ul>
+ * <li>{@link #ELEMENT}: name, attributes, then the 8-byte length of the
+ * content (the records up to and including the matching {@link #END}), so
+ * that a reader can skip the subtree without decoding it</li>
+ * <li>{@link #EMPTY_ELEMENT}: name and attributes of an element without
+ * content</li>
+ * <li>{@link #END}</li>
+ * <li>{@link #TEXT}: a value</li>
+ * </ul>
+ * Integers are unsigned LEB128 varints (zigzag-encoded when signed). A name
+ * (local name, namespace, prefix) is a reference to a string table built
+ * along the way: 0 followed by the UTF-8 string for a new entry, or the index
+ * + 1 of an existing one. A value is typed: integers (such as clip times in
+ * milliseconds), decimal numbers with up to 9 decimals, and identifiers made
+ * of a prefix and a number (such as UIDs) are stored as varints; short
+ * strings go through the string table, long ones are stored inline. A value
+ * is only stored as a number when converting it back gives exactly the same
+ * string.
+ * </p>
+ * <p>
+ * The lengths of the elements are written when the elements end: the output
+ * is buffered ({@link #BUFFER_SIZE} bytes) so that this is done in memory in
+ * most cases, the underlying IStream is only seeked for the elements larger
+ * than the buffer. Errors are reported as RuntimeExceptions.
+ * </p>
+ * <p>
+ * As the string table depends on everything written before, the fragments of
+ * this writer (see {@link IXmlFragmentWriter}) are recorded, and encoded when
+ * they are inserted.
+ * </p>
+ */
+public class BinaryXmlDataWriter implements IXmlFragmentWriter
+{
+    /**
+     * The first bytes of a binary XUK document ("XUKB" and the format
+     * version).
+     */
+    public static final byte[] MAGIC = new byte[] { 'X', 'U', 'K', 'B', 1 };
+    static final int ELEMENT = 1;
+    static final int EMPTY_ELEMENT = 2;
+    static final int END = 3;
+    static final int TEXT = 4;
+    static final int VALUE_STRING = 0;
+    static final int VALUE_INLINE_STRING = 1;
+    static final int VALUE_INTEGER = 2;
+    static final int VALUE_DECIMAL = 3;
+    static final int VALUE_PREFIXED_INTEGER = 4;
+    /**
+     * The strings longer than this are not added to the string table.
+     */
+    static final int MAX_TABLE_STRING_LENGTH = 64;
+    /**
+     * The size of the output buffer.
+     */
+    public static final int BUFFER_SIZE = 1024 * 1024;
+    private IStream mBaseStream;
+    private IRandomAccessStream mOutput;
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferLength = 0;
+    /**
+     * The offset in the output of the first byte of the buffer.
+     */
+    private long mBufferStart;
+    private Map<String, Integer> mStringTable = new HashMap<String, Integer>();
+    /**
+     * The output offsets of the length fields of the open elements.
+     */
+    private long[] mLengthOffsets = new long[32];
+    private int mLevel = 0;
+    /**
+     * The element whose start has been requested but not written yet, as
+     * attributes may follow.
+     */
+    private boolean mHasPendingElement = false;
+    private String mPendingLocalName;
+    private String mPendingNamespace;
+    private int mPendingAttributeCount = 0;
+    private String[] mPendingAttributes = new String[4 * 8];
+
+    /**
+     * @param stream
+     * @throws MethodParameterIsNullException
+     */
+    public BinaryXmlDataWriter(IStream stream)
+            throws MethodParameterIsNullException
+    {
+        if (stream == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mBaseStream = stream;
+        mOutput = LongStreamAdapter.adapt(stream);
+        mBufferStart = mOutput.getLongPosition();
+    }
+
+    private void flushBuffer()
+    {
+        try
+        {
+            mOutput.write(mBuffer, 0, mBufferLength);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
+        mBufferStart += mBufferLength;
+        mBufferLength = 0;
+    }
+
+    private void writeByte(int b)
+    {
+        if (mBufferLength == mBuffer.length)
+        {
+            flushBuffer();
+        }
+        mBuffer[mBufferLength++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes)
+    {
+        if (bytes.length > mBuffer.length - mBufferLength)
+        {
+            flushBuffer();
+            if (bytes.length > mBuffer.length)
+            {
+                try
+                {
+                    mOutput.write(bytes, 0, bytes.length);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException("Cannot write XML data", e);
+                }
+                mBufferStart += bytes.length;
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, mBuffer, mBufferLength, bytes.length);
+        mBufferLength += bytes.length;
+    }
+
+    private void writeVarint(long value)
+    {
+        long v = value;
+        while ((v & ~0x7FL) != 0)
+        {
+            writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        writeByte((int) v);
+    }
+
+    private void writeSignedVarint(long value)
+    {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private static byte[] toUTF8(String str)
+    {
+        try
+        {
+            return str.getBytes("UTF-8");
+        }
+        catch (java.io.UnsupportedEncodingException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    private void writeInlineString(String str)
+    {
+        byte[] bytes = toUTF8(str);
+        writeVarint(bytes.length);
+        writeBytes(bytes);
+    }
+
+    private void writeName(String str)
+    {
+        String s = (str == null ? "" : str);
+        Integer index = mStringTable.get(s);
+        if (index != null)
+        {
+            writeVarint(index.intValue() + 1);
+            return;
+        }
+        mStringTable.put(s, Integer.valueOf(mStringTable.size()));
+        writeVarint(0);
+        writeInlineString(s);
+    }
+
+    /**
+     * @param str
+     * @param start
+     * @param end
+     * @return the given string parsed as a canonical decimal integer
+     *         between the given indexes (no sign, no leading zero), or -1
+     */
+    private static long parseDigits(String str, int start, int end)
+    {
+        int n = end - start;
+        if (n == 0 || n > 18 || (str.charAt(start) == '0' && n > 1))
+        {
+            return -1;
+        }
+        long res = 0;
+        for (int i = start; i < end; i++)
+        {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+            res = res * 10 + (c - '0');
+        }
+        return res;
+    }
+
+    private void writeValue(String str)
+    {
+        String s = (str == null ? "" : str);
+        int len = s.length();
+        if (len > 0 && len <= 20)
+        {
+            boolean negative = s.charAt(0) == '-';
+            int start = negative ? 1 : 0;
+            int dot = s.indexOf('.');
+            if (dot == -1)
+            {
+                long v = parseDigits(s, start, len);
+                if (v > 0 || (v == 0 && !negative))
+                {
+                    writeByte(VALUE_INTEGER);
+                    writeSignedVarint(negative ? -v : v);
+                    return;
+                }
+                // Identifier: a prefix and a number (with leading zeros)
+                int digits = len;
+                while (digits > 0 && s.charAt(digits - 1) >= '0'
+                        && s.charAt(digits - 1) <= '9')
+                {
+                    digits--;
+                }
+                if (digits > 0 && len - digits > 0 && len - digits <= 18)
+                {
+                    long number = 0;
+                    for (int i = digits; i < len; i++)
+                    {
+                        number = number * 10 + (s.charAt(i) - '0');
+                    }
+                    writeByte(VALUE_PREFIXED_INTEGER);
+                    writeName(s.substring(0, digits));
+                    writeVarint(len - digits);
+                    writeVarint(number);
+                    return;
+                }
+            }
+            else
+                if (dot > start && len - dot - 1 > 0 && len - dot - 1 <= 9
+                        && s.charAt(len - 1) != '0')
+                {
+                    long intPart = parseDigits(s, start, dot);
+                    // Leading zeros are fine in the fraction
+                    long fracPart = 0;
+                    for (int i = dot + 1; i < len && fracPart != -1; i++)
+                    {
+                        char c = s.charAt(i);
+                        if (c < '0' || c > '9')
+                        {
+                            fracPart = -1;
+                        }
+                        else
+                        {
+                            fracPart = fracPart * 10 + (c - '0');
+                        }
+                    }
+                    int scale = len - dot - 1;
+                    if (intPart != -1 && fracPart > 0 && intPart < 1000000000L)
+                    {
+                        long unscaled = intPart;
+                        for (int i = 0; i < scale; i++)
+                        {
+                            unscaled *= 10;
+                        }
+                        unscaled += fracPart;
+                        writeByte(VALUE_DECIMAL);
+                        writeSignedVarint(negative ? -unscaled : unscaled);
+                        writeByte(scale);
+                        return;
+                    }
+                }
+        }
+        if (len <= MAX_TABLE_STRING_LENGTH)
+        {
+            writeByte(VALUE_STRING);
+            writeName(s);
+        }
+        else
+        {
+            writeByte(VALUE_INLINE_STRING);
+            writeInlineString(s);
+        }
+    }
+
+    /**
+     * Writes the pending element, as an empty element or as the start of an
+     * element with content.
+     */
+    private void writePendingElement(boolean empty)
+    {
+        if (!mHasPendingElement)
+        {
+            return;
+        }
+        mHasPendingElement = false;
+        writeByte(empty ? EMPTY_ELEMENT : ELEMENT);
+        writeName(mPendingLocalName);
+        writeName(mPendingNamespace);
+        writeVarint(mPendingAttributeCount);
+        for (int i = 0; i < mPendingAttributeCount; i++)
+        {
+            writeName(mPendingAttributes[4 * i]);
+            writeName(mPendingAttributes[4 * i + 1]);
+            writeName(mPendingAttributes[4 * i + 2]);
+            writeValue(mPendingAttributes[4 * i + 3]);
+        }
+        mPendingAttributeCount = 0;
+        if (!empty)
+        {
+            if (mLevel == mLengthOffsets.length)
+            {
+                long[] offsets = new long[2 * mLevel];
+                System.arraycopy(mLengthOffsets, 0, offsets, 0, mLevel);
+                mLengthOffsets = offsets;
+            }
+            mLengthOffsets[mLevel++] = mBufferStart + mBufferLength;
+            for (int i = 0; i < 8; i++)
+            {
+                writeByte(0);
+            }
+        }
+    }
+
+    private void addPendingAttribute(String prefix, String localName,
+            String namespace, String value)
+    {
+        if (!mHasPendingElement)
+        {
+            throw new RuntimeException(
+                    "Cannot write XML data: attribute outside of a start element");
+        }
+        if (4 * (mPendingAttributeCount + 1) > mPendingAttributes.length)
+        {
+            String[] attrs = new String[2 * mPendingAttributes.length];
+            System.arraycopy(mPendingAttributes, 0, attrs, 0,
+                    mPendingAttributes.length);
+            mPendingAttributes = attrs;
+        }
+        mPendingAttributes[4 * mPendingAttributeCount] = prefix;
+        mPendingAttributes[4 * mPendingAttributeCount + 1] = localName;
+        mPendingAttributes[4 * mPendingAttributeCount + 2] = namespace;
+        mPendingAttributes[4 * mPendingAttributeCount + 3] = value;
+        mPendingAttributeCount++;
+    }
+
+    /**
+     * Writes the length of the content of the element whose length field is
+     * at the given offset, which ends at the current offset.
+     */
+    private void writeLength(long lengthOffset)
+    {
+        long end = mBufferStart + mBufferLength;
+        long length = end - lengthOffset - 8;
+        if (lengthOffset >= mBufferStart)
+        {
+            int index = (int) (lengthOffset - mBufferStart);
+            for (int i = 0; i < 8; i++)
+            {
+                mBuffer[index + i] = (byte) (length >>> (8 * i));
+            }
+            return;
+        }
+        flushBuffer();
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++)
+        {
+            bytes[i] = (byte) (length >>> (8 * i));
+        }
+        try
+        {
+            mOutput.setLongPosition(lengthOffset);
+            mOutput.write(bytes, 0, 8);
+            mOutput.setLongPosition(end);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
+    }
+
+    /**
+     * Flushes the pending output to the underlying IStream, which is not
+     * closed.
+     */
+    public void close()
+    {
+        writePendingElement(false);
+        flushBuffer();
+    }
+
+    public void writeStartDocument()
+    {
+        writeBytes(MAGIC);
+    }
+
+    public void writeEndDocument()
+    {
+        while (mLevel > 0 || mHasPendingElement)
+        {
+            writeEndElement();
+        }
+        flushBuffer();
+    }
+
+    public void writeStartElement(String localName, String namespace)
+    {
+        writePendingElement(false);
+        mHasPendingElement = true;
+        mPendingLocalName = localName;
+        mPendingNamespace = (namespace == null ? "" : namespace);
+        mPendingAttributeCount = 0;
+    }
+
+    public void writeEndElement()
+    {
+        if (mHasPendingElement)
+        {
+            writePendingElement(true);
+            return;
+        }
+        if (mLevel == 0)
+        {
+            throw new RuntimeException(
+                    "Cannot write XML data: no element to end");
+        }
+        writeByte(END);
+        writeLength(mLengthOffsets[--mLevel]);
+    }
+
+    public void writeAttributeString(String str1, String str2)
+    {
+        addPendingAttribute("", str1, "", str2);
+    }
+
+    /**
+     * @param str1
+     *        the prefix
+     * @param str2
+     *        the local name
+     * @param str3
+     *        the namespace URI
+     * @param str4
+     *        the value
+     */
+    public void writeAttributeString(String str1, String str2, String str3,
+            String str4)
+    {
+        if (str1 == null || str1.length() == 0 || str3 == null
+                || str3.length() == 0)
+        {
+            addPendingAttribute("", str2, "", str4);
+            return;
+        }
+        addPendingAttribute(str1, str2, str3, str4);
+    }
+
+    public void writeString(String str)
+    {
+        if (str == null || str.length() == 0)
+        {
+            return;
+        }
+        writePendingElement(false);
+        writeByte(TEXT);
+        writeValue(str);
+    }
+
+    public IStream getBaseStream()
+    {
+        return mBaseStream;
+    }
+
+    /**
+     * @return a RecordingXmlDataWriter, the namespace is not used as the
+     *         namespaces of the elements are always written
+     */
+    public IXmlDataWriter createFragmentWriter(String namespace)
+    {
+        return new RecordingXmlDataWriter();
+    }
+
+    public void writeFragment(IXmlDataWriter fragment)
+    {
+        if (!(fragment instanceof RecordingXmlDataWriter))
+        {
+            throw new IllegalArgumentException(
+                    "The fragment was not created by this writer");
+        }
+        fragment.close();
+        try
+        {
+            ((RecordingXmlDataWriter) fragment).replay(this);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+}
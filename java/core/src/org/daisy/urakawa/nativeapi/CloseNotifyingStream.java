@@ -11,9 +11,10 @@ import org.daisy.urakawa.exception.MethodParameterIsNullException;
  * 
  * @stereotype Language-Dependent
  */
-public class CloseNotifyingStream implements IStream
+public class CloseNotifyingStream implements IRandomAccessStream
 {
     IStream mBaseStream;
+    IRandomAccessStream mRandomAccessStream;
 
     /**
      * @param baseStm
@@ -27,6 +28,15 @@ public class CloseNotifyingStream implements IStream
             throw new MethodParameterIsNullException();
         }
         mBaseStream = baseStm;
+        mRandomAccessStream = LongStreamAdapter.adapt(baseStm);
+    }
+
+    /**
+     * @return the wrapped stream
+     */
+    public IStream getBaseStream()
+    {
+        return mBaseStream;
     }
 
     public void close() throws IOException
@@ -59,20 +69,44 @@ public class CloseNotifyingStream implements IStream
         mBaseStream.seek(n);
     }
 
+    public long getLongLength()
+    {
+        return mRandomAccessStream.getLongLength();
+    }
+
+    public long getLongPosition()
+    {
+        return mRandomAccessStream.getLongPosition();
+    }
+
+    public void setLongPosition(long pos)
+    {
+        mRandomAccessStream.setLongPosition(pos);
+    }
+
+    public void seekLong(long n)
+    {
+        mRandomAccessStream.seekLong(n);
+    }
+
+    public int read(long position, byte[] buffer, int offset, int count)
+            throws IOException
+    {
+        return mRandomAccessStream.read(position, buffer, offset, count);
+    }
+
     public void write(byte[] buffer, int offset, int count) throws IOException
     {
-        /**
-         * To implement.
-         */
+        mBaseStream.write(buffer, offset, count);
     }
 
     public byte readByte()
     {
-        return 0;
+        return mBaseStream.readByte();
     }
 
     public byte[] readBytes(int length)
     {
-        return null;
+        return mBaseStream.readBytes(length);
     }
 }
@@ -1,76 +1,433 @@
 package org.daisy.urakawa.nativeapi;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
 
 /**
  * This is a wrapper for a IStream based on an File. This class should be
  * replaced by an equivalent IStream API in the implementing language. The
  * methods exposed here mimic the System.IO.Stream C# API.
+ * <p>
+ * All I/O goes through a java.nio FileChannel and uses positional operations,
+ * so the cursor of the stream is purely local state and
+ * {@link #read(long, byte[], int, int)} can be called from several readers
+ * without interference. Read-only streams can optionally be memory-mapped: the
+ * file is then mapped in regions of {@link #MAPPED_REGION_SIZE} bytes and reads
+ * copy straight from the page cache into the destination array.
+ * </p>
  * 
  * @stereotype Language-Dependent
  */
-public class FileStream implements IStream
+public class FileStream implements IRandomAccessStream
 {
     /**
+     * The size of a single memory-mapped region. Files larger than this are
+     * mapped as a sequence of regions.
+     */
+    public static final long MAPPED_REGION_SIZE = 1L << 30;
+    /**
+     * Files smaller than this are never memory-mapped, even when requested, as
+     * setting up the mapping costs more than reading them through the channel.
+     */
+    public static final long MAPPING_THRESHOLD = 64 * 1024;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private boolean mWritable;
+    private MappedByteBuffer[] mMappedRegions = null;
+    private long mMappedLength = 0;
+    private long mPosition = 0;
+    private ByteBuffer mSingleByte = ByteBuffer.allocate(1);
+
+    /**
+     * Opens the given file in read-only mode.
+     * 
+     * @param path
+     * @throws MethodParameterIsNullException
+     * @throws IOException
+     *         if the file does not exist or cannot be opened
+     */
+    public FileStream(String path) throws MethodParameterIsNullException,
+            IOException
+    {
+        this(path, false, false);
+    }
+
+    /**
+     * Opens the given file. In writable mode the file is created if it does
+     * not exist yet, and existing content is preserved (see
+     * {@link #setLength(long)} to truncate).
+     * 
+     * @param path
+     * @param writable
+     * @throws MethodParameterIsNullException
+     * @throws IOException
+     *         if the file cannot be opened
+     */
+    public FileStream(String path, boolean writable)
+            throws MethodParameterIsNullException, IOException
+    {
+        this(path, writable, false);
+    }
+
+    /**
+     * Opens the given file. The memoryMapped flag only applies to read-only
+     * streams, and is ignored for files smaller than
+     * {@link #MAPPING_THRESHOLD}.
+     * 
      * @param path
+     * @param writable
+     * @param memoryMapped
+     * @throws MethodParameterIsNullException
+     * @throws IOException
+     *         if the file cannot be opened or mapped
+     */
+    public FileStream(String path, boolean writable, boolean memoryMapped)
+            throws MethodParameterIsNullException, IOException
+    {
+        if (path == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mWritable = writable;
+        mFile = new RandomAccessFile(path, writable ? "rw" : "r");
+        mChannel = mFile.getChannel();
+        if (!writable && memoryMapped)
+        {
+            long size = mChannel.size();
+            if (size >= MAPPING_THRESHOLD)
+            {
+                try
+                {
+                    mapRegions(size);
+                }
+                catch (IOException e)
+                {
+                    mChannel.close();
+                    mFile.close();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void mapRegions(long size) throws IOException
+    {
+        int nRegions = (int) ((size + MAPPED_REGION_SIZE - 1) / MAPPED_REGION_SIZE);
+        MappedByteBuffer[] regions = new MappedByteBuffer[nRegions];
+        for (int i = 0; i < nRegions; i++)
+        {
+            long start = i * MAPPED_REGION_SIZE;
+            regions[i] = mChannel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(MAPPED_REGION_SIZE, size - start));
+        }
+        mMappedRegions = regions;
+        mMappedLength = size;
+    }
+
+    /**
+     * @return true if the stream was opened for writing
+     */
+    public boolean isWritable()
+    {
+        return mWritable;
+    }
+
+    /**
+     * @return true if (part of) the file is accessed through a memory mapping
+     */
+    public boolean isMemoryMapped()
+    {
+        return mMappedRegions != null;
+    }
+
+    private long size()
+    {
+        try
+        {
+            return mChannel.size();
+        }
+        catch (IOException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    /**
+     * Forces the written bytes to the storage device (like
+     * FileStream.Flush(true) in C#), so that they survive a crash of the
+     * system.
+     * 
+     * @throws IOException
      */
-    public FileStream(String path)
+    public void flush() throws IOException
     {
-        /**
-         * To implement.
-         */
+        if (mWritable)
+        {
+            mChannel.force(true);
+        }
     }
 
     public void close() throws IOException
     {
-        /**
-         * To implement.
-         */
+        mMappedRegions = null;
+        mMappedLength = 0;
+        try
+        {
+            mChannel.close();
+        }
+        finally
+        {
+            mFile.close();
+        }
     }
 
     public int getLength()
     {
-        return 0;
+        return LongStreamAdapter.toInt(size());
     }
 
     public int getPosition()
     {
-        return 0;
+        return LongStreamAdapter.toInt(mPosition);
+    }
+
+    public long getLongLength()
+    {
+        return size();
+    }
+
+    public long getLongPosition()
+    {
+        return mPosition;
     }
 
     public int read(byte[] buffer, int offset, int count) throws IOException
     {
-        return 0;
+        int read = read(mPosition, buffer, offset, count);
+        mPosition += read;
+        return read;
+    }
+
+    public int read(long position, byte[] buffer, int offset, int count)
+            throws IOException
+    {
+        if (buffer == null)
+        {
+            throw new IOException("The read buffer is null");
+        }
+        if (offset < 0)
+        {
+            throw new IOException("The offset is negative");
+        }
+        if (count < 0)
+        {
+            throw new IOException("The count is negative");
+        }
+        if (offset + count > buffer.length)
+        {
+            throw new IOException("The buffer is too small");
+        }
+        if (position < 0)
+        {
+            throw new IOException("The position is negative");
+        }
+        int total = 0;
+        long pos = position;
+        MappedByteBuffer[] regions = mMappedRegions;
+        if (regions != null)
+        {
+            while (total < count && pos < mMappedLength)
+            {
+                // The duplicate gives this read its own buffer position, the
+                // mapped content itself is shared.
+                ByteBuffer view = regions[(int) (pos / MAPPED_REGION_SIZE)]
+                        .duplicate();
+                view.position((int) (pos % MAPPED_REGION_SIZE));
+                int n = Math.min(count - total, view.remaining());
+                view.get(buffer, offset + total, n);
+                total += n;
+                pos += n;
+            }
+        }
+        if (total < count)
+        {
+            // Not mapped, or the file has grown beyond the mapped length
+            ByteBuffer bb = ByteBuffer.wrap(buffer, offset + total, count
+                    - total);
+            while (bb.hasRemaining())
+            {
+                int n = mChannel.read(bb, pos);
+                if (n <= 0)
+                {
+                    break;
+                }
+                total += n;
+                pos += n;
+            }
+        }
+        return total;
     }
 
     public void setPosition(int pos)
     {
-        /**
-         * To implement.
-         */
+        setLongPosition(pos);
+    }
+
+    public void setLongPosition(long pos)
+    {
+        mPosition = (pos < 0 ? 0 : pos);
     }
 
     public void seek(int n)
     {
-        /**
-         * To implement.
-         */
+        seekLong(n);
+    }
+
+    public void seekLong(long n)
+    {
+        setLongPosition(mPosition + n);
+    }
+
+    /**
+     * Truncates or extends the underlying file. The position is clamped to the
+     * new length.
+     * 
+     * @param length
+     * @throws IOException
+     */
+    public void setLength(long length) throws IOException
+    {
+        if (!mWritable)
+        {
+            throw new IOException("The stream is read-only");
+        }
+        mFile.setLength(length);
+        if (mPosition > length)
+        {
+            mPosition = length;
+        }
     }
 
     public void write(byte[] buffer, int offset, int count) throws IOException
     {
-        /**
-         * To implement.
-         */
+        if (!mWritable)
+        {
+            throw new IOException("The stream is read-only");
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, count);
+        while (bb.hasRemaining())
+        {
+            mPosition += mChannel.write(bb, mPosition);
+        }
+    }
+
+    /**
+     * Copies bytes from this file to another one without going through the
+     * Java heap (FileChannel.transferTo(), which the operating system can
+     * usually perform in-kernel). The cursors of both streams are left
+     * untouched.
+     * 
+     * @param position
+     *        the offset of the first byte to copy in this file
+     * @param count
+     *        the maximum number of bytes to copy
+     * @param target
+     *        a writable stream
+     * @param targetPosition
+     *        the offset at which the bytes are written in the target file
+     * @return the number of bytes copied, less than count if the end of this
+     *         file is reached
+     * @throws MethodParameterIsNullException
+     * @throws IOException
+     */
+    public long transferTo(long position, long count, FileStream target,
+            long targetPosition) throws MethodParameterIsNullException,
+            IOException
+    {
+        if (target == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        if (!target.mWritable)
+        {
+            throw new IOException("The target stream is read-only");
+        }
+        if (position < 0 || count < 0 || targetPosition < 0)
+        {
+            throw new IOException("The position or count is negative");
+        }
+        long total = 0;
+        // transferTo() writes at the current position of the target channel,
+        // which is otherwise unused since all other I/O is positional
+        synchronized (target)
+        {
+            target.mChannel.position(targetPosition);
+            while (total < count)
+            {
+                long n = mChannel.transferTo(position + total, count - total,
+                        target.mChannel);
+                if (n <= 0)
+                {
+                    break;
+                }
+                total += n;
+            }
+        }
+        return total;
     }
 
     public byte readByte()
     {
-        return 0;
+        MappedByteBuffer[] regions = mMappedRegions;
+        if (regions != null && mPosition < mMappedLength)
+        {
+            byte b = regions[(int) (mPosition / MAPPED_REGION_SIZE)]
+                    .get((int) (mPosition % MAPPED_REGION_SIZE));
+            mPosition++;
+            return b;
+        }
+        mSingleByte.clear();
+        try
+        {
+            if (mChannel.read(mSingleByte, mPosition) <= 0)
+            {
+                return 0;
+            }
+        }
+        catch (IOException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        mPosition++;
+        return mSingleByte.get(0);
     }
 
     public byte[] readBytes(int length)
     {
-        return null;
+        int n = (int) Math.max(0, Math.min(length, size() - mPosition));
+        byte[] res = new byte[n];
+        try
+        {
+            int read = read(res, 0, n);
+            if (read < n)
+            {
+                byte[] shorter = new byte[read];
+                System.arraycopy(res, 0, shorter, 0, read);
+                return shorter;
+            }
+        }
+        catch (IOException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        return res;
     }
 }
@@ -0,0 +1,36 @@
+package org.daisy.urakawa.nativeapi;
+
+/**
+ * An IStream addressed with 64-bit offsets, for data larger than 2 GB (e.g.
+ * full-length audio). The int-based methods of IStream remain available, but
+ * fail when the value does not fit in an int. Use
+ * {@link LongStreamAdapter#adapt(IStream)} to obtain this view of any IStream.
+ * This interface should not be implemented "as-is". Instead, it should be
+ * replaced by an equivalent IStream API in the implementing language.
+ * 
+ * @stereotype Language-Dependent
+ */
+public interface ILongStream extends IStream
+{
+    /**
+     * @return long
+     */
+    public long getLongLength();
+
+    /**
+     * @return long
+     */
+    public long getLongPosition();
+
+    /**
+     * @param pos
+     */
+    public void setLongPosition(long pos);
+
+    /**
+     * seek from CURRENT
+     * 
+     * @param n
+     */
+    public void seekLong(long n);
+}
@@ -0,0 +1,32 @@
+package org.daisy.urakawa.nativeapi;
+
+import java.io.IOException;
+
+/**
+ * An IStream that supports positional reads, i.e. reads at an absolute byte
+ * offset that do not use (or move) the shared cursor of the stream. Several
+ * readers can therefore share the same underlying stream without having to
+ * save and restore its position. This interface should not be implemented
+ * "as-is". Instead, it should be replaced by an equivalent IStream API in the
+ * implementing language.
+ * 
+ * @stereotype Language-Dependent
+ */
+public interface IRandomAccessStream extends ILongStream
+{
+    /**
+     * Reads up to count bytes starting at the given absolute position. The
+     * current position of the stream is not modified.
+     * 
+     * @param position
+     *        the absolute byte offset to read from
+     * @param buffer
+     * @param offset
+     * @param count
+     * @return the number of bytes read, 0 if position is at or beyond the end
+     *         of the stream
+     * @throws IOException
+     */
+    public int read(long position, byte[] buffer, int offset, int count)
+            throws IOException;
+}
@@ -0,0 +1,20 @@
+package org.daisy.urakawa.nativeapi;
+
+/**
+ * The readers that {@link SubtreeReader} can give a view of.
+ */
+interface ISubtreeParent extends IXmlDataReader
+{
+    /**
+     * @return the depth of the current node (0 for the document element), an
+     *         element and its end element have the same depth
+     */
+    public int getDepth();
+
+    /**
+     * Moves to the end element of the open element at the given depth.
+     * 
+     * @param depth
+     */
+    public void skipToEndElement(int depth);
+}
@@ -25,6 +25,11 @@ public interface IXmlDataReader
      * See {@link IXmlDataReader#getNodeType()}
      */
     public static int END_ELEMENT = 1;
+    /**
+     * See {@link IXmlDataReader#getNodeType()}: any other node (text,
+     * whitespace), or no node at all (before the first read, or at EOF).
+     */
+    public static int OTHER = 2;
 
     /**
      * @return true or false
@@ -0,0 +1,38 @@
+package org.daisy.urakawa.nativeapi;
+
+/**
+ * An IXmlDataWriter whose document can be produced in parts: each fragment
+ * (one or more complete elements) is written to its own fragment writer,
+ * possibly on another thread, and is then inserted into the document at the
+ * current position with {@link #writeFragment(IXmlDataWriter)}, in the
+ * document order. The result is the same document as if the elements had been
+ * written directly.
+ */
+public interface IXmlFragmentWriter extends IXmlDataWriter
+{
+    /**
+     * Creates a writer for a fragment of the document. The fragment writer
+     * does not share any state with this writer, and can be used on another
+     * thread. Only elements, attributes and strings can be written to it.
+     * 
+     * @param namespace
+     *        the default namespace in scope where the fragment will be
+     *        inserted, that is the namespace of the element which will contain
+     *        the fragment
+     * @return the fragment writer
+     */
+    public IXmlDataWriter createFragmentWriter(String namespace);
+
+    /**
+     * Inserts a fragment at the current position of the document. The
+     * fragment writer is closed, and cannot be used afterwards.
+     * 
+     * @param fragment
+     *        a writer returned by {@link #createFragmentWriter(String)} of this
+     *        writer, in which all started elements have been ended
+     * @throws IllegalArgumentException
+     *         if the fragment was not created by this writer, or if the
+     *         default namespace in scope is not the one of the fragment
+     */
+    public void writeFragment(IXmlDataWriter fragment);
+}
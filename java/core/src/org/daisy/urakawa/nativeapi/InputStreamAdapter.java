@@ -0,0 +1,75 @@
+package org.daisy.urakawa.nativeapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
+/**
+ * Exposes an IStream as a java.io.InputStream, reading from the current
+ * position of the IStream. No buffering is done here: wrap the adapter in a
+ * java.io.BufferedInputStream when many small reads are expected. This class
+ * should be replaced by an equivalent IStream API in the implementing
+ * language.
+ * 
+ * @stereotype Language-Dependent
+ */
+public class InputStreamAdapter extends InputStream
+{
+    private IStream mBaseStream;
+
+    /**
+     * @param baseStm
+     * @throws MethodParameterIsNullException
+     */
+    public InputStreamAdapter(IStream baseStm)
+            throws MethodParameterIsNullException
+    {
+        if (baseStm == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mBaseStream = baseStm;
+    }
+
+    /**
+     * @return the adapted stream
+     */
+    public IStream getBaseStream()
+    {
+        return mBaseStream;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        if (mBaseStream.read(b, 0, 1) != 1)
+        {
+            return -1;
+        }
+        return b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        int read = mBaseStream.read(b, off, len);
+        return (read <= 0 ? -1 : read);
+    }
+
+    /**
+     * Does not close the adapted IStream, which remains owned by the caller.
+     */
+    @Override
+    public void close()
+    {
+        /**
+         * Does nothing.
+         */
+    }
+}
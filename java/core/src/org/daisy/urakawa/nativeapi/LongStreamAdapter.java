@@ -0,0 +1,151 @@
+package org.daisy.urakawa.nativeapi;
+
+import java.io.IOException;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
+/**
+ * Exposes an existing int-based IStream through the 64-bit
+ * {@link IRandomAccessStream} contract. Positional reads are emulated by
+ * moving the cursor of the wrapped stream and restoring it afterwards. This
+ * class should be replaced by an equivalent IStream API in the implementing
+ * language.
+ * 
+ * @stereotype Language-Dependent
+ */
+public class LongStreamAdapter implements IRandomAccessStream
+{
+    /**
+     * @param stream
+     * @return the given stream if it already supports the 64-bit contract,
+     *         otherwise an adapter wrapping it.
+     * @throws MethodParameterIsNullException
+     */
+    public static IRandomAccessStream adapt(IStream stream)
+            throws MethodParameterIsNullException
+    {
+        if (stream == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        if (stream instanceof IRandomAccessStream)
+        {
+            return (IRandomAccessStream) stream;
+        }
+        return new LongStreamAdapter(stream);
+    }
+
+    /**
+     * Narrows a 64-bit length or offset for the int-based IStream methods.
+     * 
+     * @param value
+     * @return the value as an int
+     * @throws IllegalStateException
+     *         if the value does not fit in an int
+     */
+    public static int toInt(long value)
+    {
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)
+        {
+            throw new IllegalStateException("Stream offset " + value
+                    + " exceeds the int-based IStream API, use ILongStream");
+        }
+        return (int) value;
+    }
+
+    private IStream mBaseStream;
+
+    /**
+     * @param baseStm
+     * @throws MethodParameterIsNullException
+     */
+    public LongStreamAdapter(IStream baseStm)
+            throws MethodParameterIsNullException
+    {
+        if (baseStm == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mBaseStream = baseStm;
+    }
+
+    public long getLongLength()
+    {
+        return mBaseStream.getLength();
+    }
+
+    public long getLongPosition()
+    {
+        return mBaseStream.getPosition();
+    }
+
+    public void setLongPosition(long pos)
+    {
+        mBaseStream.setPosition(toInt(pos));
+    }
+
+    public void seekLong(long n)
+    {
+        mBaseStream.seek(toInt(n));
+    }
+
+    public int read(long position, byte[] buffer, int offset, int count)
+            throws IOException
+    {
+        int pos = mBaseStream.getPosition();
+        try
+        {
+            mBaseStream.setPosition(toInt(position));
+            return mBaseStream.read(buffer, offset, count);
+        }
+        finally
+        {
+            mBaseStream.setPosition(pos);
+        }
+    }
+
+    public void close() throws IOException
+    {
+        mBaseStream.close();
+    }
+
+    public int getLength()
+    {
+        return mBaseStream.getLength();
+    }
+
+    public int getPosition()
+    {
+        return mBaseStream.getPosition();
+    }
+
+    public void setPosition(int pos)
+    {
+        mBaseStream.setPosition(pos);
+    }
+
+    public void seek(int n)
+    {
+        mBaseStream.seek(n);
+    }
+
+    public int read(byte[] buffer, int offset, int count) throws IOException
+    {
+        return mBaseStream.read(buffer, offset, count);
+    }
+
+    public void write(byte[] buffer, int offset, int count) throws IOException
+    {
+        mBaseStream.write(buffer, offset, count);
+    }
+
+    public byte readByte()
+    {
+        return mBaseStream.readByte();
+    }
+
+    public byte[] readBytes(int length)
+    {
+        return mBaseStream.readBytes(length);
+    }
+}
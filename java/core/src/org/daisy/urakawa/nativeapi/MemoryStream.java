@@ -0,0 +1,177 @@
+package org.daisy.urakawa.nativeapi;
+
+import java.io.IOException;
+
+/**
+ * A stream of bytes held in memory, which grows as data is written beyond
+ * its end. This class should be replaced by an equivalent IStream API in the
+ * implementing language. The methods exposed here mimic the
+ * System.IO.MemoryStream C# API.
+ *
+ * @stereotype Language-Dependent
+ */
+public class MemoryStream implements IRandomAccessStream
+{
+    private byte[] mBuffer;
+    private int mLength;
+    private int mPosition;
+
+    /**
+     * Creates an empty stream.
+     */
+    public MemoryStream()
+    {
+        mBuffer = new byte[256];
+        mLength = 0;
+        mPosition = 0;
+    }
+
+    /**
+     * Creates a stream over the given bytes (which are not copied).
+     *
+     * @param bytes
+     *        cannot be null
+     */
+    public MemoryStream(byte[] bytes)
+    {
+        mBuffer = bytes;
+        mLength = bytes.length;
+        mPosition = 0;
+    }
+
+    /**
+     * @return a copy of the content of the stream
+     */
+    public byte[] toArray()
+    {
+        byte[] res = new byte[mLength];
+        System.arraycopy(mBuffer, 0, res, 0, mLength);
+        return res;
+    }
+
+    public int getLength()
+    {
+        return mLength;
+    }
+
+    public int getPosition()
+    {
+        return mPosition;
+    }
+
+    public long getLongLength()
+    {
+        return mLength;
+    }
+
+    public long getLongPosition()
+    {
+        return mPosition;
+    }
+
+    public void setPosition(int pos)
+    {
+        setLongPosition(pos);
+    }
+
+    public void setLongPosition(long pos)
+    {
+        long newPos = pos;
+        if (newPos < 0)
+            newPos = 0;
+        if (newPos > mLength)
+            newPos = mLength;
+        mPosition = (int) newPos;
+    }
+
+    public void seek(int n)
+    {
+        seekLong(n);
+    }
+
+    public void seekLong(long n)
+    {
+        setLongPosition(mPosition + n);
+    }
+
+    public int read(byte[] buffer, int offset, int count) throws IOException
+    {
+        int read = read(mPosition, buffer, offset, count);
+        mPosition += read;
+        return read;
+    }
+
+    public int read(long position, byte[] buffer, int offset, int count)
+            throws IOException
+    {
+        if (buffer == null)
+        {
+            throw new IOException("The read buffer is null");
+        }
+        if (offset < 0 || count < 0 || offset + count > buffer.length)
+        {
+            throw new IOException("The buffer is too small");
+        }
+        if (count == 0 || position < 0 || position >= mLength)
+        {
+            return 0;
+        }
+        int n = (int) Math.min(count, mLength - position);
+        System.arraycopy(mBuffer, (int) position, buffer, offset, n);
+        return n;
+    }
+
+    public void write(byte[] buffer, int offset, int count) throws IOException
+    {
+        if (buffer == null)
+        {
+            throw new IOException("The write buffer is null");
+        }
+        if (offset < 0 || count < 0 || offset + count > buffer.length)
+        {
+            throw new IOException("The buffer is too small");
+        }
+        int end = mPosition + count;
+        if (end < 0)
+        {
+            throw new IOException("A MemoryStream cannot exceed 2GB");
+        }
+        if (end > mBuffer.length)
+        {
+            byte[] newBuffer = new byte[Math.max(end, 2 * mBuffer.length)];
+            System.arraycopy(mBuffer, 0, newBuffer, 0, mLength);
+            mBuffer = newBuffer;
+        }
+        System.arraycopy(buffer, offset, mBuffer, mPosition, count);
+        mPosition = end;
+        if (end > mLength)
+        {
+            mLength = end;
+        }
+    }
+
+    public void close() throws IOException
+    {
+        /**
+         * Nothing to release.
+         */
+    }
+
+    public byte readByte()
+    {
+        if (mPosition >= mLength)
+        {
+            return 0;
+        }
+        return mBuffer[mPosition++];
+    }
+
+    public byte[] readBytes(int length)
+    {
+        int n = Math.max(0, Math.min(length, mLength - mPosition));
+        byte[] res = new byte[n];
+        System.arraycopy(mBuffer, mPosition, res, 0, n);
+        mPosition += n;
+        return res;
+    }
+}
@@ -0,0 +1,65 @@
+package org.daisy.urakawa.nativeapi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
+/**
+ * Exposes an IStream as a java.io.OutputStream, writing at the current
+ * position of the IStream. No buffering is done here: wrap the adapter in a
+ * java.io.BufferedOutputStream when many small writes are expected. This class
+ * should be replaced by an equivalent IStream API in the implementing
+ * language.
+ * 
+ * @stereotype Language-Dependent
+ */
+public class OutputStreamAdapter extends OutputStream
+{
+    private IStream mBaseStream;
+
+    /**
+     * @param baseStm
+     * @throws MethodParameterIsNullException
+     */
+    public OutputStreamAdapter(IStream baseStm)
+            throws MethodParameterIsNullException
+    {
+        if (baseStm == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mBaseStream = baseStm;
+    }
+
+    /**
+     * @return the adapted stream
+     */
+    public IStream getBaseStream()
+    {
+        return mBaseStream;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        mBaseStream.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        mBaseStream.write(b, off, len);
+    }
+
+    /**
+     * Does not close the adapted IStream, which remains owned by the caller.
+     */
+    @Override
+    public void close()
+    {
+        /**
+         * Does nothing.
+         */
+    }
+}
@@ -0,0 +1,161 @@
+package org.daisy.urakawa.nativeapi;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
+/**
+ * Implementation of IXmlDataWriter which records the calls made to it, to
+ * replay them later on another IXmlDataWriter with
+ * {@link #replay(IXmlDataWriter)}. Used as the fragment writer of the
+ * IXmlFragmentWriters whose output depends on what was written before (see
+ * {@link BinaryXmlDataWriter}). Documents cannot be started or ended, and
+ * there is no base stream.
+ */
+public class RecordingXmlDataWriter implements IXmlDataWriter
+{
+    private static final byte START_ELEMENT = 1;
+    private static final byte END_ELEMENT = 2;
+    private static final byte ATTRIBUTE = 3;
+    private static final byte PREFIXED_ATTRIBUTE = 4;
+    private static final byte STRING = 5;
+    private byte[] mCalls = new byte[256];
+    private int mCallCount = 0;
+    private String[] mArguments = new String[512];
+    private int mArgumentCount = 0;
+    private boolean mClosed = false;
+
+    private void record(byte call)
+    {
+        if (mClosed)
+        {
+            throw new RuntimeException("Cannot write XML data: closed writer");
+        }
+        if (mCallCount == mCalls.length)
+        {
+            byte[] calls = new byte[2 * mCallCount];
+            System.arraycopy(mCalls, 0, calls, 0, mCallCount);
+            mCalls = calls;
+        }
+        mCalls[mCallCount++] = call;
+    }
+
+    private void recordArgument(String arg)
+    {
+        if (mArgumentCount == mArguments.length)
+        {
+            String[] args = new String[2 * mArgumentCount];
+            System.arraycopy(mArguments, 0, args, 0, mArgumentCount);
+            mArguments = args;
+        }
+        mArguments[mArgumentCount++] = arg;
+    }
+
+    /**
+     * Makes the same calls, in the same order, on the given writer.
+     * 
+     * @param destination
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public void replay(IXmlDataWriter destination)
+            throws MethodParameterIsNullException
+    {
+        if (destination == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        String[] args = mArguments;
+        int a = 0;
+        for (int i = 0; i < mCallCount; i++)
+        {
+            switch (mCalls[i])
+            {
+            case START_ELEMENT:
+                destination.writeStartElement(args[a], args[a + 1]);
+                a += 2;
+                break;
+            case END_ELEMENT:
+                destination.writeEndElement();
+                break;
+            case ATTRIBUTE:
+                destination.writeAttributeString(args[a], args[a + 1]);
+                a += 2;
+                break;
+            case PREFIXED_ATTRIBUTE:
+                destination.writeAttributeString(args[a], args[a + 1],
+                        args[a + 2], args[a + 3]);
+                a += 4;
+                break;
+            case STRING:
+                destination.writeString(args[a]);
+                a += 1;
+                break;
+            default:
+                // Should never happen
+                throw new RuntimeException("WTF ??!");
+            }
+        }
+    }
+
+    /**
+     * Forbids any further call.
+     */
+    public void close()
+    {
+        mClosed = true;
+    }
+
+    public void writeStartDocument()
+    {
+        throw new RuntimeException(
+                "Cannot write XML data: a fragment cannot start a document");
+    }
+
+    public void writeEndDocument()
+    {
+        throw new RuntimeException(
+                "Cannot write XML data: a fragment cannot end a document");
+    }
+
+    public void writeStartElement(String localName, String namespace)
+    {
+        record(START_ELEMENT);
+        recordArgument(localName);
+        recordArgument(namespace);
+    }
+
+    public void writeEndElement()
+    {
+        record(END_ELEMENT);
+    }
+
+    public void writeAttributeString(String str1, String str2)
+    {
+        record(ATTRIBUTE);
+        recordArgument(str1);
+        recordArgument(str2);
+    }
+
+    public void writeAttributeString(String str1, String str2, String str3,
+            String str4)
+    {
+        record(PREFIXED_ATTRIBUTE);
+        recordArgument(str1);
+        recordArgument(str2);
+        recordArgument(str3);
+        recordArgument(str4);
+    }
+
+    public void writeString(String str)
+    {
+        record(STRING);
+        recordArgument(str);
+    }
+
+    /**
+     * @return null, the calls are only recorded
+     */
+    public IStream getBaseStream()
+    {
+        return null;
+    }
+}
@@ -1,7 +1,7 @@
 package org.daisy.urakawa.nativeapi;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
@@ -10,13 +10,24 @@ import org.daisy.urakawa.exception.MethodParameterIsNullException;
  * Represents an ordered list of Streams. This class should be replaced by an
  * equivalent IStream API in the implementing language. The methods exposed here
  * mimic the System.IO.Stream C# API.
+ * <p>
+ * The start offset of every source is computed once, at construction time, as
+ * a 64-bit prefix sum: the sources must therefore not change length while the
+ * sequence is in use. Locating the source for a given position is a binary
+ * search, and reads are positional (see {@link IRandomAccessStream}).
+ * </p>
  * 
  * @stereotype Language-Dependent
  */
-public class SequenceStream implements IStream
+public class SequenceStream implements IRandomAccessStream
 {
-    private List<IStream> mSources;
-    private int mCurrentIndex;
+    private List<IRandomAccessStream> mSources;
+    /**
+     * mStartOffsets[i] is the offset of the first byte of source i, and the
+     * last entry is the total length.
+     */
+    private long[] mStartOffsets;
+    private long mPosition;
 
     /**
      * @param ss
@@ -29,13 +40,22 @@ public class SequenceStream implements IStream
         {
             throw new MethodParameterIsNullException();
         }
-        mSources = new LinkedList<IStream>(ss);
-        if (mSources.size() == 0)
+        if (ss.size() == 0)
         {
             throw new MethodParameterIsNullException();
         }
-        mCurrentIndex = 0;
-        // mSources.get(0).Seek(0, SeekOrigin.Begin);
+        mSources = new ArrayList<IRandomAccessStream>(ss.size());
+        mStartOffsets = new long[ss.size() + 1];
+        long len = 0;
+        for (IStream subS : ss)
+        {
+            IRandomAccessStream src = LongStreamAdapter.adapt(subS);
+            mStartOffsets[mSources.size()] = len;
+            mSources.add(src);
+            len += src.getLongLength();
+        }
+        mStartOffsets[mSources.size()] = len;
+        mPosition = 0;
     }
 
     /**
@@ -43,86 +63,102 @@ public class SequenceStream implements IStream
      */
     public int getLength()
     {
-        int len = 0;
-        for (IStream subS : mSources)
-        {
-            len += subS.getLength();
-        }
-        return len;
+        return LongStreamAdapter.toInt(getLongLength());
+    }
+
+    public long getLongLength()
+    {
+        return mStartOffsets[mSources.size()];
     }
 
     public int getPosition()
     {
-        return getBytesBeforeIndex(mCurrentIndex)
-                + mSources.get(mCurrentIndex).getPosition();
+        return LongStreamAdapter.toInt(mPosition);
+    }
+
+    public long getLongPosition()
+    {
+        return mPosition;
     }
 
     public void setPosition(int pos)
     {
-        mCurrentIndex = 0;
-        int bytesBefore = 0;
-        while (mCurrentIndex < mSources.size())
-        {
-            if (pos < bytesBefore + mSources.get(mCurrentIndex).getLength())
-            {
-                mSources.get(mCurrentIndex).setPosition(pos - bytesBefore);
-                return;
-            }
-            bytesBefore += mSources.get(mCurrentIndex).getLength();
-            mCurrentIndex++;
-        }
-        mCurrentIndex = mSources.size() - 1;
-        mSources.get(mCurrentIndex).setPosition(
-                mSources.get(mCurrentIndex).getLength());
+        setLongPosition(pos);
     }
 
-    private int getBytesBeforeIndex(int index)
+    public void setLongPosition(long pos)
     {
-        int i = 0, index_ = index;
-        if (index_ >= mSources.size())
-            index_ = mSources.size() - 1;
-        int bytesBefore = 0;
-        while (i < index_)
+        long newPos = pos;
+        if (newPos < 0)
+            newPos = 0;
+        if (newPos > getLongLength())
+            newPos = getLongLength();
+        mPosition = newPos;
+    }
+
+    /**
+     * @param pos
+     * @return the index of the source containing the given position (the last
+     *         source if pos is at or beyond the end)
+     */
+    private int getSourceIndex(long pos)
+    {
+        int low = 0;
+        int high = mSources.size() - 1;
+        while (low < high)
         {
-            bytesBefore += mSources.get(i).getLength();
-            i++;
+            int mid = (low + high + 1) >>> 1;
+            if (mStartOffsets[mid] <= pos)
+                low = mid;
+            else
+                high = mid - 1;
         }
-        return bytesBefore;
+        return low;
     }
 
     public int read(byte[] buffer, int offset, int count) throws IOException
     {
+        int read = read(mPosition, buffer, offset, count);
+        mPosition += read;
+        return read;
+    }
+
+    public int read(long position, byte[] buffer, int offset, int count)
+            throws IOException
+    {
+        if (buffer == null)
+        {
+            throw new IOException("The read buffer is null");
+        }
+        if (offset < 0 || count < 0 || offset + count > buffer.length)
+        {
+            throw new IOException("The buffer is too small");
+        }
         int offset_ = offset;
         int count_ = count;
-        if (count_ == 0)
+        if (count_ == 0 || position >= getLongLength())
             return 0;
         int totalBytesRead = 0;
-        int bytesRead = 0;
-        while (true)
+        long pos = position;
+        int index = getSourceIndex(pos);
+        while (count_ > 0 && index < mSources.size())
         {
-            if (mSources.get(mCurrentIndex).getPosition() < mSources.get(
-                    mCurrentIndex).getLength())
+            IRandomAccessStream src = mSources.get(index);
+            long posInSource = pos - mStartOffsets[index];
+            int bytesRead = 0;
+            if (posInSource < src.getLongLength())
             {
-                bytesRead = mSources.get(mCurrentIndex).read(buffer, offset_,
-                        count_);
-            }
-            else
-            {
-                bytesRead = 0;
+                bytesRead = src.read(posInSource, buffer, offset_, count_);
             }
             totalBytesRead += bytesRead;
             count_ -= bytesRead;
             offset_ += bytesRead;
-            if (count_ == 0)
-                break;
-            if (mCurrentIndex + 1 < mSources.size())
-            {
-                mCurrentIndex++;
-                mSources.get(mCurrentIndex).setPosition(0);
-            }
-            else
+            pos += bytesRead;
+            if (pos >= mStartOffsets[index + 1] || bytesRead == 0)
             {
-                break;
+                index++;
+                if (index < mSources.size())
+                    pos = mStartOffsets[index];
             }
         }
         return totalBytesRead;
@@ -138,9 +174,12 @@ public class SequenceStream implements IStream
 
     public void seek(int n)
     {
-        /**
-         * To implement.
-         */
+        seekLong(n);
+    }
+
+    public void seekLong(long n)
+    {
+        setLongPosition(mPosition + n);
     }
 
     public void write(byte[] buffer, int offset, int count) throws IOException
@@ -152,11 +191,41 @@ public class SequenceStream implements IStream
 
     public byte readByte()
     {
-        return 0;
+        byte[] b = new byte[1];
+        try
+        {
+            if (read(b, 0, 1) != 1)
+            {
+                return 0;
+            }
+        }
+        catch (IOException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        return b[0];
     }
 
     public byte[] readBytes(int length)
     {
-        return null;
+        int n = (int) Math.max(0, Math.min(length, getLongLength() - mPosition));
+        byte[] res = new byte[n];
+        try
+        {
+            int read = read(res, 0, n);
+            if (read < n)
+            {
+                byte[] shorter = new byte[read];
+                System.arraycopy(res, 0, shorter, 0, read);
+                return shorter;
+            }
+        }
+        catch (IOException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        return res;
     }
 }
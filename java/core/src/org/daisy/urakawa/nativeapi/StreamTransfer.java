@@ -0,0 +1,129 @@
+package org.daisy.urakawa.nativeapi;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
+/**
+ * Bulk copy between two IStreams. This class should be replaced by an
+ * equivalent IStream API in the implementing language (e.g.
+ * System.IO.Stream.CopyTo() in C#).
+ * <p>
+ * When both ends are backed by files (a {@link FileStream}, possibly wrapped in
+ * a {@link CloseNotifyingStream} or, for the source, a {@link SubStream}), the
+ * bytes are transferred from channel to channel and never enter the Java heap.
+ * Otherwise the copy goes through a buffer of {@link #BUFFER_SIZE} bytes that
+ * is reused by all the copies made on the same thread.
+ * </p>
+ * 
+ * @stereotype Language-Dependent
+ */
+public final class StreamTransfer
+{
+    /**
+     * The size of the buffer used when the streams are not file-backed.
+     */
+    public static final int BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<SoftReference<byte[]>> mBuffers = new ThreadLocal<SoftReference<byte[]>>();
+
+    private StreamTransfer()
+    {
+    }
+
+    private static byte[] getBuffer()
+    {
+        SoftReference<byte[]> ref = mBuffers.get();
+        byte[] buf = (ref == null ? null : ref.get());
+        if (buf == null)
+        {
+            buf = new byte[BUFFER_SIZE];
+            mBuffers.set(new SoftReference<byte[]>(buf));
+        }
+        return buf;
+    }
+
+    /**
+     * @param stm
+     * @return the FileStream at the bottom of the given stream, or null
+     */
+    private static FileStream getFileStream(IStream stm)
+    {
+        IStream s = stm;
+        while (s instanceof CloseNotifyingStream)
+        {
+            s = ((CloseNotifyingStream) s).getBaseStream();
+        }
+        return (s instanceof FileStream ? (FileStream) s : null);
+    }
+
+    /**
+     * Copies count bytes (or less, if the source is too short) from the
+     * current position of the source to the current position of the
+     * destination, and advances both positions by the number of bytes copied.
+     * 
+     * @param source
+     * @param count
+     * @param dest
+     * @return the number of bytes copied
+     * @throws MethodParameterIsNullException
+     * @throws IOException
+     */
+    public static long transfer(IStream source, long count, IStream dest)
+            throws MethodParameterIsNullException, IOException
+    {
+        if (source == null || dest == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        IRandomAccessStream src = LongStreamAdapter.adapt(source);
+        IRandomAccessStream dst = LongStreamAdapter.adapt(dest);
+        long srcPos = src.getLongPosition();
+        long dstPos = dst.getLongPosition();
+        FileStream destFile = getFileStream(dest);
+        if (destFile != null && destFile.isWritable())
+        {
+            // Resolve the source file and the offset of the source position
+            // in it, through sub-streams
+            long max = count;
+            long offset = srcPos;
+            IStream s = source;
+            while (s instanceof SubStream || s instanceof CloseNotifyingStream)
+            {
+                if (s instanceof SubStream)
+                {
+                    SubStream sub = (SubStream) s;
+                    max = Math.min(max, sub.getLongLength() - offset);
+                    offset += sub.getStartPosition();
+                    s = sub.getSource();
+                }
+                else
+                {
+                    s = ((CloseNotifyingStream) s).getBaseStream();
+                }
+            }
+            if (s instanceof FileStream && s != destFile)
+            {
+                long n = ((FileStream) s).transferTo(offset, Math.max(0, max),
+                        destFile, dstPos);
+                src.setLongPosition(srcPos + n);
+                dst.setLongPosition(dstPos + n);
+                return n;
+            }
+        }
+        byte[] buf = getBuffer();
+        long total = 0;
+        while (total < count)
+        {
+            int n = source.read(buf, 0, (int) Math.min(buf.length, count
+                    - total));
+            if (n <= 0)
+            {
+                break;
+            }
+            dest.write(buf, 0, n);
+            total += n;
+        }
+        return total;
+    }
+}
@@ -10,14 +10,20 @@ import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
  * Represents parts of a IStream, from a start byte offset to an end one. This
  * class should be replaced by an equivalent IStream API in the implementing
  * language. The methods exposed here mimic the System.IO.Stream C# API.
+ * <p>
+ * The sub-stream keeps its own cursor: when the source supports positional
+ * reads ({@link IRandomAccessStream}) the cursor of the source is never moved,
+ * so several sub-streams can share one source. Offsets are 64-bit.
+ * </p>
  * 
  * @stereotype Language-Dependent
  */
-public class SubStream implements IStream
+public class SubStream implements IRandomAccessStream
 {
-    IStream mSource;
-    int mStartPosition;
-    int mLength;
+    IRandomAccessStream mSource;
+    long mStartPosition;
+    long mLength;
+    long mPosition;
 
     /**
      * @param source
@@ -27,7 +33,7 @@ public class SubStream implements IStream
      * @throws MethodParameterIsOutOfBoundsException
      * @throws MethodParameterIsEmptyStringException
      */
-    public SubStream(IStream source, int start, int len)
+    public SubStream(IStream source, long start, long len)
             throws MethodParameterIsNullException,
             MethodParameterIsOutOfBoundsException,
             MethodParameterIsEmptyStringException
@@ -44,14 +50,31 @@ public class SubStream implements IStream
         {
             throw new MethodParameterIsOutOfBoundsException();
         }
-        if (start + len > source.getLength())
+        IRandomAccessStream src = LongStreamAdapter.adapt(source);
+        if (start + len > src.getLongLength())
         {
             throw new MethodParameterIsEmptyStringException();
         }
-        mSource = source;
+        mSource = src;
         mStartPosition = start;
         mLength = len;
-        setPosition(0);
+        setLongPosition(0);
+    }
+
+    /**
+     * @return the stream this is a part of
+     */
+    public IRandomAccessStream getSource()
+    {
+        return mSource;
+    }
+
+    /**
+     * @return the offset of the first byte of this sub-stream in the source
+     */
+    public long getStartPosition()
+    {
+        return mStartPosition;
     }
 
     /**
@@ -59,7 +82,7 @@ public class SubStream implements IStream
      */
     public int getLength()
     {
-        return mLength;
+        return LongStreamAdapter.toInt(mLength);
     }
 
     /**
@@ -67,7 +90,17 @@ public class SubStream implements IStream
      */
     public int getPosition()
     {
-        return mSource.getPosition() - mStartPosition;
+        return LongStreamAdapter.toInt(mPosition);
+    }
+
+    public long getLongLength()
+    {
+        return mLength;
+    }
+
+    public long getLongPosition()
+    {
+        return mPosition;
     }
 
     /**
@@ -75,15 +108,28 @@ public class SubStream implements IStream
      */
     public void setPosition(int value)
     {
-        int newPos = value;
+        setLongPosition(value);
+    }
+
+    public void setLongPosition(long value)
+    {
+        long newPos = value;
         if (newPos < 0)
             newPos = 0;
-        if (newPos > getLength())
-            newPos = getLength();
-        mSource.setPosition(mStartPosition + newPos);
+        if (newPos > mLength)
+            newPos = mLength;
+        mPosition = newPos;
     }
 
     public int read(byte buffer[], int offset, int count) throws IOException
+    {
+        int read = read(mPosition, buffer, offset, count);
+        mPosition += read;
+        return read;
+    }
+
+    public int read(long position, byte buffer[], int offset, int count)
+            throws IOException
     {
         if (buffer == null)
         {
@@ -101,17 +147,16 @@ public class SubStream implements IStream
         {
             throw new IOException("The buffer is too small");
         }
-        if (count == 0)
+        if (count == 0 || position >= mLength)
         {
             return 0;
         }
-        else
-            if (count > getLength() - getPosition())
-            {
-                int count_ = getLength() - getPosition();
-                return mSource.read(buffer, offset, count_);
-            }
-        return mSource.read(buffer, offset, count);
+        int count_ = count;
+        if (count_ > mLength - position)
+        {
+            count_ = (int) (mLength - position);
+        }
+        return mSource.read(mStartPosition + position, buffer, offset, count_);
     }
 
     public void close() throws IOException
@@ -121,12 +166,30 @@ public class SubStream implements IStream
 
     public void seek(int n)
     {
-        mSource.seek(n);
+        seekLong(n);
+    }
+
+    public void seekLong(long n)
+    {
+        setLongPosition(mPosition + n);
     }
 
     public byte readByte()
     {
-        return 0;
+        byte[] b = new byte[1];
+        try
+        {
+            if (read(b, 0, 1) != 1)
+            {
+                return 0;
+            }
+        }
+        catch (IOException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        return b[0];
     }
 
     public void write(byte[] buffer, int offset, int count) throws IOException
@@ -138,6 +201,23 @@ public class SubStream implements IStream
 
     public byte[] readBytes(int length)
     {
-        return null;
+        int n = (int) Math.max(0, Math.min(length, mLength - mPosition));
+        byte[] res = new byte[n];
+        try
+        {
+            int read = read(res, 0, n);
+            if (read < n)
+            {
+                byte[] shorter = new byte[read];
+                System.arraycopy(res, 0, shorter, 0, read);
+                return shorter;
+            }
+        }
+        catch (IOException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        return res;
     }
 }
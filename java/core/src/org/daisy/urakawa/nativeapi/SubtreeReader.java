@@ -0,0 +1,168 @@
+package org.daisy.urakawa.nativeapi;
+
+/**
+ * A view of the current element and its descendants, sharing the position of
+ * the parent reader. Closing it moves the parent reader to the end element of
+ * the subtree (or leaves it on the element if it is empty).
+ */
+class SubtreeReader implements IXmlDataReader
+{
+    private static final int INITIAL = 0;
+    private static final int INTERACTIVE = 1;
+    private static final int CLOSED = 2;
+    private ISubtreeParent mParent;
+    private int mStartDepth;
+    private boolean mStartEmpty;
+    private int mState;
+
+    SubtreeReader(ISubtreeParent parent)
+    {
+        mParent = parent;
+        mStartDepth = parent.getDepth();
+        mStartEmpty = parent.isEmptyElement();
+        mState = (parent.getNodeType() == ELEMENT ? INITIAL : CLOSED);
+    }
+
+    private boolean isAtEnd()
+    {
+        if (mParent.isEOF())
+        {
+            return true;
+        }
+        if (mStartEmpty)
+        {
+            return true;
+        }
+        return mParent.getNodeType() == END_ELEMENT
+                && mParent.getDepth() == mStartDepth;
+    }
+
+    public boolean read()
+    {
+        if (mState == INITIAL)
+        {
+            mState = INTERACTIVE;
+            return true;
+        }
+        if (mState == CLOSED || isAtEnd() || !mParent.read())
+        {
+            mState = CLOSED;
+            return false;
+        }
+        return true;
+    }
+
+    public void close()
+    {
+        if (mState != CLOSED)
+        {
+            if (!isAtEnd())
+            {
+                mParent.skipToEndElement(mStartDepth);
+            }
+            mState = CLOSED;
+        }
+    }
+
+    public boolean isEOF()
+    {
+        return mState == CLOSED;
+    }
+
+    public int getNodeType()
+    {
+        if (mState != INTERACTIVE)
+        {
+            return OTHER;
+        }
+        return mParent.getNodeType();
+    }
+
+    public boolean isEmptyElement()
+    {
+        return mState == INTERACTIVE && mParent.isEmptyElement();
+    }
+
+    public IXmlDataReader readSubtree()
+    {
+        return mParent.readSubtree();
+    }
+
+    public boolean readToFollowing(String localName, String namespace)
+    {
+        String ns = (namespace == null ? "" : namespace);
+        while (read())
+        {
+            if (getNodeType() == ELEMENT
+                    && mParent.getLocalName().equals(localName)
+                    && mParent.getNamespaceURI().equals(ns))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String readElementContentAsString()
+    {
+        return XmlDataReader.readElementContentAsString(this);
+    }
+
+    /**
+     * @return the reader this is a view of
+     */
+    ISubtreeParent getParent()
+    {
+        return mParent;
+    }
+
+    public String getAttribute(String name)
+    {
+        return mParent.getAttribute(name);
+    }
+
+    public String getLocalName()
+    {
+        return mParent.getLocalName();
+    }
+
+    public String getNamespaceURI()
+    {
+        return mParent.getNamespaceURI();
+    }
+
+    public String getBaseURI()
+    {
+        return mParent.getBaseURI();
+    }
+
+    public boolean moveToFirstAttribute()
+    {
+        return mParent.moveToFirstAttribute();
+    }
+
+    public boolean moveToNextAttribute()
+    {
+        return mParent.moveToNextAttribute();
+    }
+
+    public void moveToElement()
+    {
+        mParent.moveToElement();
+    }
+
+    public String getName()
+    {
+        return mParent.getName();
+    }
+
+    public String getValue()
+    {
+        return mParent.getValue();
+    }
+
+    public IStream getBaseStream()
+    {
+        return mParent.getBaseStream();
+    }
+}
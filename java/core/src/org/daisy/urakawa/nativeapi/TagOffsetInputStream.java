@@ -0,0 +1,326 @@
+package org.daisy.urakawa.nativeapi;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes the bytes of an XML document through to a parser, and records the
+ * byte offset of every element start tag and of every element end (end tag,
+ * or empty element tag), in document order. An XML parser reports the
+ * elements in the same order, so the k-th START_ELEMENT event it produces
+ * corresponds to the k-th start tag found here, and likewise for the ends:
+ * this is how {@link XmlDataReader} knows the byte offsets of the elements
+ * (the StAX locations are character based, and not reliable).
+ * <p>
+ * The scanner only looks at the ASCII markup characters, so it works for any
+ * ASCII-compatible encoding (UTF-8, ISO-8859-x...). It understands comments,
+ * CDATA sections and processing instructions; after a DOCTYPE (which could
+ * declare entities expanding to markup) the offsets are not reported anymore.
+ * The offsets of the last {@link #WINDOW} start tags and ends are kept, which
+ * is always more than what the parser reads ahead of its current event.
+ * </p>
+ * 
+ * @stereotype Language-Dependent
+ */
+class TagOffsetInputStream extends FilterInputStream
+{
+    /**
+     * The number of offsets kept for the start tags and for the ends (a power
+     * of 2).
+     */
+    static final int WINDOW = 16 * 1024;
+    private static final int MASK = WINDOW - 1;
+    private static final int TEXT = 0;
+    private static final int LT = 1;
+    private static final int START_TAG = 2;
+    private static final int END_TAG = 3;
+    private static final int PI = 4;
+    private static final int BANG = 5;
+    private static final int COMMENT = 6;
+    private static final int CDATA = 7;
+    private static final byte[] COMMENT_START = "--".getBytes();
+    private static final byte[] CDATA_START = "[CDATA[".getBytes();
+    private int mState = TEXT;
+    /**
+     * The quote character of the attribute value being scanned, 0 if none.
+     */
+    private int mQuote = 0;
+    /**
+     * The previous byte(s), to find "/>", "?>", "-->" and "]]>".
+     */
+    private int mPrevious1 = 0;
+    private int mPrevious2 = 0;
+    /**
+     * The number of bytes read after "<!".
+     */
+    private int mBangLength = 0;
+    private boolean mInvalid = false;
+    private long mPosition = 0;
+    private long mLtPosition = 0;
+    private long mStartCount = 0;
+    private long mEndCount = 0;
+    private long[] mStartOffsets = new long[WINDOW];
+    private long[] mEndOffsets = new long[WINDOW];
+
+    /**
+     * @param in
+     */
+    TagOffsetInputStream(InputStream in)
+    {
+        super(in);
+    }
+
+    /**
+     * Stops reporting offsets, when the document cannot be scanned.
+     */
+    void invalidate()
+    {
+        mInvalid = true;
+    }
+
+    /**
+     * @param index
+     * @return the byte offset of the "<" of the start tag of the given index
+     *         (0 for the document element), or -1 if unknown
+     */
+    long getStartTagOffset(long index)
+    {
+        if (mInvalid || index < 0 || index >= mStartCount
+                || index < mStartCount - WINDOW)
+        {
+            return -1;
+        }
+        return mStartOffsets[(int) (index & MASK)];
+    }
+
+    /**
+     * @param index
+     * @return the byte offset just after the end of the element that ends in
+     *         the given position (0 for the first one), or -1 if unknown
+     */
+    long getEndOffset(long index)
+    {
+        if (mInvalid || index < 0 || index >= mEndCount
+                || index < mEndCount - WINDOW)
+        {
+            return -1;
+        }
+        return mEndOffsets[(int) (index & MASK)];
+    }
+
+    /**
+     * Scans the bytes of an element, without parsing them, to find where it
+     * ends.
+     * 
+     * @param stream
+     *        cannot be null
+     * @param position
+     *        the position in the stream of the "<" of the start tag of the
+     *        element
+     * @return the position just after the end of the element, or -1 if it
+     *         cannot be found (end of the stream, DOCTYPE...)
+     * @throws IOException
+     */
+    static long findElementEnd(IRandomAccessStream stream, long position)
+            throws IOException
+    {
+        TagOffsetInputStream scanner = new TagOffsetInputStream(null);
+        byte[] buffer = new byte[XmlDataReader.BUFFER_SIZE];
+        long pos = position;
+        while (true)
+        {
+            int n = stream.read(pos, buffer, 0, buffer.length);
+            if (n <= 0)
+            {
+                return -1;
+            }
+            for (int i = 0; i < n; i++)
+            {
+                scanner.scan(buffer[i] & 0xFF);
+                if (scanner.mInvalid)
+                {
+                    return -1;
+                }
+                if (scanner.mStartCount > 0
+                        && scanner.mEndCount == scanner.mStartCount)
+                {
+                    return position + scanner.mPosition;
+                }
+            }
+            pos += n;
+        }
+    }
+
+    private void recordEnd()
+    {
+        mEndOffsets[(int) (mEndCount & MASK)] = mPosition + 1;
+        mEndCount++;
+    }
+
+    private void scan(int b)
+    {
+        switch (mState)
+        {
+        case TEXT:
+            if (b == '<')
+            {
+                mLtPosition = mPosition;
+                mState = LT;
+            }
+            break;
+        case LT:
+            if (b == '/')
+            {
+                mState = END_TAG;
+            }
+            else
+                if (b == '?')
+                {
+                    mState = PI;
+                }
+                else
+                    if (b == '!')
+                    {
+                        mBangLength = 0;
+                        mState = BANG;
+                    }
+                    else
+                    {
+                        mStartOffsets[(int) (mStartCount & MASK)] = mLtPosition;
+                        mStartCount++;
+                        mQuote = 0;
+                        mState = START_TAG;
+                    }
+            break;
+        case START_TAG:
+            if (mQuote != 0)
+            {
+                if (b == mQuote)
+                {
+                    mQuote = 0;
+                }
+            }
+            else
+                if (b == '"' || b == '\'')
+                {
+                    mQuote = b;
+                }
+                else
+                    if (b == '>')
+                    {
+                        if (mPrevious1 == '/')
+                        {
+                            recordEnd();
+                        }
+                        mState = TEXT;
+                    }
+            break;
+        case END_TAG:
+            if (b == '>')
+            {
+                recordEnd();
+                mState = TEXT;
+            }
+            break;
+        case PI:
+            if (b == '>' && mPrevious1 == '?')
+            {
+                mState = TEXT;
+            }
+            break;
+        case BANG:
+            if (mBangLength < COMMENT_START.length
+                    && b == COMMENT_START[mBangLength])
+            {
+                mBangLength++;
+                if (mBangLength == COMMENT_START.length)
+                {
+                    mState = COMMENT;
+                    b = 0;
+                }
+            }
+            else
+                if (mBangLength < CDATA_START.length
+                        && b == CDATA_START[mBangLength])
+                {
+                    mBangLength++;
+                    if (mBangLength == CDATA_START.length)
+                    {
+                        mState = CDATA;
+                        b = 0;
+                    }
+                }
+                else
+                {
+                    // DOCTYPE
+                    mInvalid = true;
+                    mState = TEXT;
+                }
+            break;
+        case COMMENT:
+            if (b == '>' && mPrevious1 == '-' && mPrevious2 == '-')
+            {
+                mState = TEXT;
+            }
+            break;
+        case CDATA:
+            if (b == '>' && mPrevious1 == ']' && mPrevious2 == ']')
+            {
+                mState = TEXT;
+            }
+            break;
+        default:
+            break;
+        }
+        mPrevious2 = mPrevious1;
+        mPrevious1 = b;
+        mPosition++;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+        if (b != -1)
+        {
+            scan(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int n = super.read(b, off, len);
+        for (int i = 0; i < n; i++)
+        {
+            scan(b[off + i] & 0xFF);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n)
+        {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n
+                    - skipped));
+            if (read <= 0)
+            {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+}
@@ -1,110 +1,838 @@
 package org.daisy.urakawa.nativeapi;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
 /**
- * Place-holder for a real implementation in Java. It should be replaced with
- * StAX, really.
+ * Streaming implementation of IXmlDataReader on top of the JDK StAX API. The
+ * document is never materialized: only the current node (name, attributes or
+ * text) is held in memory, so memory use does not depend on the size of the
+ * document.
+ * <p>
+ * Element and attribute local names and namespace URIs are interned, as the
+ * XUK deserialization code compares them by reference with string literals.
+ * Like "System.Xml.XmlReader" in C#, an element without content is reported as
+ * a single ELEMENT node for which {@link #isEmptyElement()} returns true (no
+ * END_ELEMENT follows). Malformed XML is reported as a RuntimeException from
+ * {@link #read()}.
+ * </p>
+ * <p>
+ * Optionally (see {@link #XmlDataReader(IStream, String, long)}), the reader
+ * tracks the byte offsets of the elements in the underlying stream, so that a
+ * subtree can be skipped and parsed again later from its bytes (see
+ * {@link org.daisy.urakawa.xuk.LazyXukSource}). This requires an
+ * ASCII-compatible encoding, such as the UTF-8 produced by
+ * {@link XmlDataWriter}. When the stream is an {@link IRandomAccessStream},
+ * the content of an element can then be skipped without being parsed (see
+ * {@link #skipElementContent()}).
+ * </p>
  */
-public class XmlDataReader implements IXmlDataReader
+public class XmlDataReader implements IXmlDataReader, ISubtreeParent
 {
     /**
+     * The size of the read buffer placed between the parser and the IStream.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static XMLInputFactory mFactory = null;
+
+    private static synchronized XMLInputFactory getFactory()
+    {
+        if (mFactory == null)
+        {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+                    Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(
+                    XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                    Boolean.FALSE);
+            mFactory = factory;
+        }
+        return mFactory;
+    }
+
+    private IStream mBaseStream;
+    private String mBaseUri;
+    private XMLStreamReader mStaxReader;
+    private Map<String, String> mInternedNames = new HashMap<String, String>();
+    private int mNodeType = OTHER;
+    private String mPrefix = "";
+    private String mLocalName = "";
+    private String mNamespaceURI = "";
+    private String mText = null;
+    private boolean mIsEmptyElement = false;
+    private int mAttributeCount = 0;
+    private String[] mAttributePrefixes = new String[8];
+    private String[] mAttributeLocalNames = new String[8];
+    private String[] mAttributeNamespaces = new String[8];
+    private String[] mAttributeValues = new String[8];
+    private int mAttributeIndex = -1;
+    /**
+     * The number of currently open (non-empty) elements.
+     */
+    private int mLevel = 0;
+    /**
+     * The depth of the current node, an element and its end element have the
+     * same depth.
+     */
+    private int mDepth = 0;
+    /**
+     * True when the StAX reader is already positioned on the next event, after
+     * the look-ahead done to detect empty elements.
+     */
+    private boolean mPending = false;
+    private boolean mEOF = false;
+    /**
+     * The scanner of the document, when byte offsets are tracked, null
+     * otherwise.
+     */
+    private TagOffsetInputStream mTagOffsets = null;
+    /**
+     * Added to the byte offsets in the parsed stream to compute the reported
+     * byte offsets.
+     */
+    private long mByteOffsetOrigin = 0;
+    /**
+     * The number of START_ELEMENT and END_ELEMENT events read from the StAX
+     * reader so far (see {@link TagOffsetInputStream}).
+     */
+    private long mStartElementCount = 0;
+    private long mEndElementCount = 0;
+    /**
+     * The byte offsets of the start and end of the current node.
+     */
+    private long mNodeStartByteOffset = -1;
+    private long mNodeEndByteOffset = -1;
+    /**
+     * The namespace declarations (prefix, URI) of the open elements, and how
+     * many of them each open element declares.
+     */
+    private List<String[]> mNamespaceDeclarations = null;
+    private List<Integer> mNamespaceDeclarationCounts = null;
+    /**
+     * The qualified names of the open elements, when byte offsets are tracked.
+     */
+    private List<String> mOpenElementNames = null;
+    /**
+     * Added to a reported byte offset to compute the position in the base
+     * stream.
+     */
+    private long mStreamPositionShift = 0;
+
+    /**
+     * @param iStream
+     * @throws MethodParameterIsNullException
+     */
+    public XmlDataReader(IStream iStream) throws MethodParameterIsNullException
+    {
+        this(iStream, null);
+    }
+
+    /**
+     * @param iStream
+     * @param baseUri
+     *        can be null
+     * @throws MethodParameterIsNullException
+     */
+    public XmlDataReader(IStream iStream, String baseUri)
+            throws MethodParameterIsNullException
+    {
+        if (iStream == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mBaseStream = iStream;
+        mBaseUri = baseUri;
+        try
+        {
+            mStaxReader = getFactory().createXMLStreamReader(
+                    new BufferedInputStream(new InputStreamAdapter(iStream),
+                            BUFFER_SIZE));
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Malformed XML data", e);
+        }
+    }
+
+    /**
+     * Creates a reader that tracks the byte offsets of the elements (see
+     * {@link #getNodeStartByteOffset()} and {@link #getNodeEndByteOffset()}).
+     * 
      * @param iStream
+     * @param baseUri
+     *        can be null
+     * @param byteOffsetOrigin
+     *        the offset in the original document of the first byte of the
+     *        stream, added to all the reported offsets (0 when the stream is
+     *        the whole document)
+     * @throws MethodParameterIsNullException
+     */
+    public XmlDataReader(IStream iStream, String baseUri, long byteOffsetOrigin)
+            throws MethodParameterIsNullException
+    {
+        if (iStream == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mBaseStream = iStream;
+        mBaseUri = baseUri;
+        mByteOffsetOrigin = byteOffsetOrigin;
+        if (iStream instanceof IRandomAccessStream)
+        {
+            mStreamPositionShift = ((IRandomAccessStream) iStream)
+                    .getLongPosition()
+                    - byteOffsetOrigin;
+        }
+        mTagOffsets = new TagOffsetInputStream(new BufferedInputStream(
+                new InputStreamAdapter(iStream), BUFFER_SIZE));
+        mNamespaceDeclarations = new ArrayList<String[]>();
+        mNamespaceDeclarationCounts = new ArrayList<Integer>();
+        mOpenElementNames = new ArrayList<String>();
+        try
+        {
+            mStaxReader = getFactory().createXMLStreamReader(mTagOffsets);
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Malformed XML data", e);
+        }
+        String encoding = getEncoding();
+        if (encoding.startsWith("UTF-16") || encoding.startsWith("UTF-32"))
+        {
+            mTagOffsets.invalidate();
+        }
+    }
+
+    /**
+     * @return the encoding of the document, as declared or detected by the
+     *         parser (UTF-8 by default)
+     */
+    public String getEncoding()
+    {
+        String encoding = mStaxReader.getCharacterEncodingScheme();
+        if (encoding == null)
+        {
+            encoding = mStaxReader.getEncoding();
+        }
+        return (encoding == null ? "UTF-8" : encoding.toUpperCase());
+    }
+
+    /**
+     * @param reader
+     * @return the XmlDataReader the given reader is (or reads a subtree of),
+     *         null if it is another implementation
+     */
+    public static XmlDataReader getXmlDataReader(IXmlDataReader reader)
+    {
+        if (reader instanceof XmlDataReader)
+        {
+            return (XmlDataReader) reader;
+        }
+        if (reader instanceof SubtreeReader
+                && ((SubtreeReader) reader).getParent() instanceof XmlDataReader)
+        {
+            return (XmlDataReader) ((SubtreeReader) reader).getParent();
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the byte offsets of the elements are tracked
+     */
+    public boolean isTrackingByteOffsets()
+    {
+        return mTagOffsets != null;
+    }
+
+    /**
+     * @return the byte offset of the start tag of the current element, or -1
+     *         if unknown
      */
-    public XmlDataReader(IStream iStream)
+    public long getNodeStartByteOffset()
     {
-        // Needs implementing !
+        if (mNodeType != ELEMENT)
+        {
+            return -1;
+        }
+        return mNodeStartByteOffset;
+    }
+
+    /**
+     * @return the byte offset just after the current end element (or empty
+     *         element), or -1 if unknown
+     */
+    public long getNodeEndByteOffset()
+    {
+        if (mNodeType != END_ELEMENT && !isEmptyElement())
+        {
+            return -1;
+        }
+        return mNodeEndByteOffset;
+    }
+
+    /**
+     * @return the namespace prefixes ("" for the default namespace) declared
+     *         on the open elements (including the current element, unless it
+     *         is empty) with their URI, or null if byte offsets are not
+     *         tracked
+     */
+    public Map<String, String> getNamespacesInScope()
+    {
+        if (mNamespaceDeclarations == null)
+        {
+            return null;
+        }
+        Map<String, String> res = new HashMap<String, String>();
+        for (String[] decl : mNamespaceDeclarations)
+        {
+            res.put(decl[0], decl[1]);
+        }
+        return res;
+    }
+
+    /**
+     * @param offset
+     *        an offset in the parsed stream, -1 if unknown
+     * @return the offset in the original document, -1 if unknown
+     */
+    private long toByteOffset(long offset)
+    {
+        return (offset < 0 ? -1 : mByteOffsetOrigin + offset);
+    }
+
+    private void popNamespaceDeclarations()
+    {
+        if (mNamespaceDeclarationCounts == null
+                || mNamespaceDeclarationCounts.size() == 0)
+        {
+            return;
+        }
+        int count = mNamespaceDeclarationCounts
+                .remove(mNamespaceDeclarationCounts.size() - 1);
+        for (int i = 0; i < count; i++)
+        {
+            mNamespaceDeclarations.remove(mNamespaceDeclarations.size() - 1);
+        }
+    }
+
+    private String intern(String name)
+    {
+        if (name == null || name.length() == 0)
+        {
+            return "";
+        }
+        String res = mInternedNames.get(name);
+        if (res == null)
+        {
+            res = name.intern();
+            mInternedNames.put(res, res);
+        }
+        return res;
+    }
+
+    public int getDepth()
+    {
+        return mDepth;
+    }
+
+    public void skipToEndElement(int depth)
+    {
+        while (!isEOF() && !(mNodeType == END_ELEMENT && mDepth == depth))
+        {
+            if (!read())
+            {
+                break;
+            }
+        }
     }
 
     public void close()
     {
-        /**
-         * To implement.
-         */
+        mEOF = true;
+        mNodeType = OTHER;
+        try
+        {
+            mStaxReader.close();
+        }
+        catch (XMLStreamException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
     }
 
     public String getLocalName()
     {
-        return null;
+        if (mAttributeIndex >= 0)
+        {
+            return mAttributeLocalNames[mAttributeIndex];
+        }
+        return mLocalName;
     }
 
     public String getNamespaceURI()
     {
-        return null;
+        if (mAttributeIndex >= 0)
+        {
+            return mAttributeNamespaces[mAttributeIndex];
+        }
+        return mNamespaceURI;
     }
 
     public int getNodeType()
     {
-        return 0;
+        return mNodeType;
     }
 
     public boolean isEOF()
     {
-        return false;
+        return mEOF;
     }
 
     public boolean isEmptyElement()
     {
-        return false;
+        return mNodeType == ELEMENT && mIsEmptyElement;
     }
 
     public boolean read()
     {
-        return false;
+        if (mEOF)
+        {
+            return false;
+        }
+        mAttributeIndex = -1;
+        try
+        {
+            while (true)
+            {
+                int event;
+                if (mPending)
+                {
+                    event = mStaxReader.getEventType();
+                    mPending = false;
+                }
+                else
+                {
+                    if (!mStaxReader.hasNext())
+                    {
+                        setEOF();
+                        return false;
+                    }
+                    event = mStaxReader.next();
+                }
+                switch (event)
+                {
+                case XMLStreamConstants.START_ELEMENT:
+                    readStartElement();
+                    return true;
+                case XMLStreamConstants.END_ELEMENT:
+                    mLevel--;
+                    mDepth = mLevel;
+                    mNodeType = END_ELEMENT;
+                    mPrefix = intern(mStaxReader.getPrefix());
+                    mLocalName = intern(mStaxReader.getLocalName());
+                    mNamespaceURI = intern(mStaxReader.getNamespaceURI());
+                    mText = null;
+                    mAttributeCount = 0;
+                    if (mTagOffsets != null)
+                    {
+                        mNodeEndByteOffset = toByteOffset(mTagOffsets
+                                .getEndOffset(mEndElementCount++));
+                        popNamespaceDeclarations();
+                        mOpenElementNames.remove(mOpenElementNames.size() - 1);
+                    }
+                    return true;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    mDepth = mLevel;
+                    mNodeType = OTHER;
+                    mPrefix = "";
+                    mLocalName = "";
+                    mNamespaceURI = "";
+                    mText = mStaxReader.getText();
+                    mAttributeCount = 0;
+                    return true;
+                case XMLStreamConstants.END_DOCUMENT:
+                    setEOF();
+                    return false;
+                default:
+                    // Comments, processing instructions, DTD: skipped
+                    break;
+                }
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            setEOF();
+            throw new RuntimeException("Malformed XML data", e);
+        }
+    }
+
+    private void setEOF()
+    {
+        mEOF = true;
+        mNodeType = OTHER;
+        mText = null;
+        mAttributeCount = 0;
+    }
+
+    private void readStartElement() throws XMLStreamException
+    {
+        mNodeType = ELEMENT;
+        mDepth = mLevel;
+        mPrefix = intern(mStaxReader.getPrefix());
+        mLocalName = intern(mStaxReader.getLocalName());
+        mNamespaceURI = intern(mStaxReader.getNamespaceURI());
+        mText = null;
+        int count = mStaxReader.getAttributeCount();
+        if (count > mAttributeValues.length)
+        {
+            int size = Math.max(count, 2 * mAttributeValues.length);
+            mAttributePrefixes = new String[size];
+            mAttributeLocalNames = new String[size];
+            mAttributeNamespaces = new String[size];
+            mAttributeValues = new String[size];
+        }
+        for (int i = 0; i < count; i++)
+        {
+            mAttributePrefixes[i] = intern(mStaxReader.getAttributePrefix(i));
+            mAttributeLocalNames[i] = intern(mStaxReader
+                    .getAttributeLocalName(i));
+            mAttributeNamespaces[i] = intern(mStaxReader
+                    .getAttributeNamespace(i));
+            mAttributeValues[i] = mStaxReader.getAttributeValue(i);
+        }
+        mAttributeCount = count;
+        mNodeEndByteOffset = -1;
+        if (mTagOffsets != null)
+        {
+            mNodeStartByteOffset = toByteOffset(mTagOffsets
+                    .getStartTagOffset(mStartElementCount++));
+            int nsCount = mStaxReader.getNamespaceCount();
+            for (int i = 0; i < nsCount; i++)
+            {
+                String prefix = mStaxReader.getNamespacePrefix(i);
+                String uri = mStaxReader.getNamespaceURI(i);
+                mNamespaceDeclarations.add(new String[] {
+                        prefix == null ? "" : prefix, uri == null ? "" : uri });
+            }
+            mNamespaceDeclarationCounts.add(Integer.valueOf(nsCount));
+        }
+        // Look ahead to report <a/> (and <a></a>) as a single empty element,
+        // like the C# XmlReader does.
+        if (mStaxReader.next() == XMLStreamConstants.END_ELEMENT)
+        {
+            mIsEmptyElement = true;
+            if (mTagOffsets != null)
+            {
+                mNodeEndByteOffset = toByteOffset(mTagOffsets
+                        .getEndOffset(mEndElementCount++));
+                popNamespaceDeclarations();
+            }
+        }
+        else
+        {
+            mIsEmptyElement = false;
+            mPending = true;
+            mLevel++;
+            if (mTagOffsets != null)
+            {
+                mOpenElementNames.add(mPrefix.length() == 0 ? mLocalName
+                        : mPrefix + ":" + mLocalName);
+            }
+        }
+    }
+
+    /**
+     * Moves from the current element to its end element without parsing its
+     * content: the end of the element is found by scanning its bytes in the
+     * base stream, and a new parser resumes the document after it, inside a
+     * copy of the start tags of the ancestors (see
+     * {@link TagOffsetInputStream#findElementEnd(IRandomAccessStream, long)}).
+     * This is much cheaper than reading the content through the parser, which
+     * decodes the characters and builds every event.
+     * 
+     * @return true if the reader is on the end element of the element it was
+     *         on, false if the content cannot be skipped this way (the byte
+     *         offsets are not tracked, the base stream is not an
+     *         {@link IRandomAccessStream}, the element is empty or is the
+     *         document element...), in which case the reader has not moved
+     */
+    public boolean skipElementContent()
+    {
+        if (mTagOffsets == null || mNodeType != ELEMENT || mIsEmptyElement
+                || mAttributeIndex >= 0 || mNodeStartByteOffset < 0
+                || mOpenElementNames.size() < 2
+                || !(mBaseStream instanceof IRandomAccessStream))
+        {
+            return false;
+        }
+        IRandomAccessStream stream = (IRandomAccessStream) mBaseStream;
+        long end;
+        byte[] context;
+        try
+        {
+            end = TagOffsetInputStream.findElementEnd(stream,
+                    mNodeStartByteOffset + mStreamPositionShift);
+            context = getAncestorsContext();
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        if (end < 0)
+        {
+            return false;
+        }
+        long endByteOffset = end - mStreamPositionShift;
+        try
+        {
+            mStaxReader.close();
+            stream.setLongPosition(end);
+            mTagOffsets = new TagOffsetInputStream(new BufferedInputStream(
+                    new SequenceInputStream(new ByteArrayInputStream(context),
+                            new InputStreamAdapter(stream)), BUFFER_SIZE));
+            mStaxReader = getFactory().createXMLStreamReader(mTagOffsets);
+            // The ancestors were already reported
+            int ancestors = mOpenElementNames.size() - 1;
+            for (int i = 0; i < ancestors; i++)
+            {
+                while (mStaxReader.next() != XMLStreamConstants.START_ELEMENT)
+                {
+                    // Nothing else in the context
+                }
+            }
+            mByteOffsetOrigin = endByteOffset - context.length;
+            mStartElementCount = ancestors;
+            mEndElementCount = 0;
+        }
+        catch (XMLStreamException e)
+        {
+            setEOF();
+            throw new RuntimeException("Malformed XML data", e);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        mPending = false;
+        mLevel--;
+        mDepth = mLevel;
+        mNodeType = END_ELEMENT;
+        mText = null;
+        mAttributeCount = 0;
+        mNodeEndByteOffset = endByteOffset;
+        popNamespaceDeclarations();
+        mOpenElementNames.remove(mOpenElementNames.size() - 1);
+        return true;
+    }
+
+    /**
+     * @return an XML declaration and the start tags of the ancestors of the
+     *         current element, with their namespace declarations, in the
+     *         encoding of the document
+     * @throws UnsupportedEncodingException
+     */
+    private byte[] getAncestorsContext() throws UnsupportedEncodingException
+    {
+        String encoding = getEncoding();
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"");
+        sb.append(encoding);
+        sb.append("\"?>");
+        int decl = 0;
+        for (int i = 0; i < mOpenElementNames.size() - 1; i++)
+        {
+            sb.append('<');
+            sb.append(mOpenElementNames.get(i));
+            int count = mNamespaceDeclarationCounts.get(i).intValue();
+            for (int j = 0; j < count; j++, decl++)
+            {
+                String[] ns = mNamespaceDeclarations.get(decl);
+                sb.append(ns[0].length() == 0 ? " xmlns" : " xmlns:" + ns[0]);
+                sb.append("=\"");
+                sb.append(ns[1].replace("&", "&amp;").replace("\"", "&quot;")
+                        .replace("<", "&lt;"));
+                sb.append('"');
+            }
+            sb.append('>');
+        }
+        return sb.toString().getBytes(encoding);
     }
 
     public IXmlDataReader readSubtree()
     {
-        return null;
+        return new SubtreeReader(this);
     }
 
     public boolean readToFollowing(String localName, String namespace)
     {
+        String ns = (namespace == null ? "" : namespace);
+        while (read())
+        {
+            if (mNodeType == ELEMENT && mLocalName.equals(localName)
+                    && mNamespaceURI.equals(ns))
+            {
+                return true;
+            }
+        }
         return false;
     }
 
     public String getAttribute(String name)
     {
+        if (mNodeType != ELEMENT || name == null)
+        {
+            return null;
+        }
+        for (int i = 0; i < mAttributeCount; i++)
+        {
+            if (getQualifiedName(mAttributePrefixes[i],
+                    mAttributeLocalNames[i]).equals(name))
+            {
+                return mAttributeValues[i];
+            }
+        }
         return null;
     }
 
+    private static String getQualifiedName(String prefix, String localName)
+    {
+        if (prefix.length() == 0)
+        {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
     public String getBaseURI()
     {
-        return null;
+        if (mBaseUri == null)
+        {
+            return "";
+        }
+        return mBaseUri;
     }
 
     public String getName()
     {
-        return null;
+        if (mAttributeIndex >= 0)
+        {
+            return getQualifiedName(mAttributePrefixes[mAttributeIndex],
+                    mAttributeLocalNames[mAttributeIndex]);
+        }
+        return getQualifiedName(mPrefix, mLocalName);
     }
 
     public String getValue()
     {
-        return null;
+        if (mAttributeIndex >= 0)
+        {
+            return mAttributeValues[mAttributeIndex];
+        }
+        return mText;
     }
 
     public void moveToElement()
     {
-        /**
-         * To implement.
-         */
+        mAttributeIndex = -1;
     }
 
     public boolean moveToFirstAttribute()
     {
-        return false;
+        if (mNodeType != ELEMENT || mAttributeCount == 0)
+        {
+            return false;
+        }
+        mAttributeIndex = 0;
+        return true;
     }
 
     public boolean moveToNextAttribute()
     {
-        return false;
+        if (mAttributeIndex < 0 || mAttributeIndex + 1 >= mAttributeCount)
+        {
+            return false;
+        }
+        mAttributeIndex++;
+        return true;
     }
 
     public String readElementContentAsString()
     {
-        return null;
+        return readElementContentAsString(this);
+    }
+
+    /**
+     * Reads the text content of the element the given reader is positioned
+     * on, and moves the reader past the end of that element.
+     *
+     * @param reader
+     * @return the concatenated text content (text inside nested elements is
+     *         ignored)
+     */
+    static String readElementContentAsString(IXmlDataReader reader)
+    {
+        if (reader.getNodeType() != ELEMENT)
+        {
+            return "";
+        }
+        if (reader.isEmptyElement())
+        {
+            reader.read();
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        int nested = 0;
+        while (reader.read())
+        {
+            int type = reader.getNodeType();
+            if (type == ELEMENT)
+            {
+                if (!reader.isEmptyElement())
+                {
+                    nested++;
+                }
+            }
+            else
+                if (type == END_ELEMENT)
+                {
+                    if (nested == 0)
+                    {
+                        break;
+                    }
+                    nested--;
+                }
+                else
+                    if (nested == 0 && reader.getValue() != null)
+                    {
+                        sb.append(reader.getValue());
+                    }
+        }
+        reader.read();
+        return sb.toString();
     }
 
     public IStream getBaseStream()
     {
-        return null;
+        return mBaseStream;
     }
 }
@@ -1,78 +1,290 @@
 package org.daisy.urakawa.nativeapi;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+
 /**
- * Place-holder for a real implementation in Java. It should be replaced with
- * StAX, really.
+ * Streaming implementation of IXmlDataWriter on top of the JDK StAX API.
+ * Elements are written to the underlying IStream (through a buffer of
+ * {@link #BUFFER_SIZE} bytes) as they are produced, the document is never
+ * built in memory. Like "System.Xml.XmlWriter" in C#, the default namespace is
+ * only declared when an element changes it. Errors are reported as
+ * RuntimeExceptions.
+ * <p>
+ * The fragments of this writer (see {@link IXmlFragmentWriter}) are encoded by
+ * their own serializer into a MemoryStream, and their bytes are copied into
+ * the document when they are inserted.
+ * </p>
  */
-public class XmlDataWriter implements IXmlDataWriter
+public class XmlDataWriter implements IXmlFragmentWriter
 {
+    /**
+     * The size of the write buffer placed between the serializer and the
+     * IStream.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static XMLOutputFactory mFactory = null;
+
+    private static synchronized XMLOutputFactory getFactory()
+    {
+        if (mFactory == null)
+        {
+            mFactory = XMLOutputFactory.newInstance();
+        }
+        return mFactory;
+    }
+
+    private IStream mBaseStream;
+    private OutputStream mOutput;
+    private XMLStreamWriter mStaxWriter;
+    /**
+     * The default namespace in scope for each open element.
+     */
+    private List<String> mDefaultNamespaces = new ArrayList<String>();
+    /**
+     * The writer which created this fragment writer, null if this writer is
+     * not a fragment writer.
+     */
+    private XmlDataWriter mParent = null;
+    /**
+     * For a fragment writer, the default namespace in scope where the
+     * fragment is inserted.
+     */
+    private String mFragmentNamespace;
+
     /**
      * @param fs
+     * @throws MethodParameterIsNullException
      */
-    public XmlDataWriter(IStream fs)
+    public XmlDataWriter(IStream fs) throws MethodParameterIsNullException
     {
-        // Needs implementing !
+        if (fs == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mBaseStream = fs;
+        mOutput = new BufferedOutputStream(new OutputStreamAdapter(fs),
+                BUFFER_SIZE);
+        try
+        {
+            mStaxWriter = getFactory().createXMLStreamWriter(mOutput, "UTF-8");
+        }
+        catch (XMLStreamException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
     }
 
+    /**
+     * Flushes the pending output to the underlying IStream, which is not
+     * closed.
+     */
     public void close()
     {
-        /**
-         * To implement.
-         */
+        try
+        {
+            mStaxWriter.flush();
+            mStaxWriter.close();
+            mOutput.flush();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
     }
 
     public void writeEndDocument()
     {
-        /**
-         * To implement.
-         */
+        try
+        {
+            mStaxWriter.writeEndDocument();
+            mStaxWriter.flush();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
     }
 
     public void writeEndElement()
     {
-        /**
-         * To implement.
-         */
+        try
+        {
+            mStaxWriter.writeEndElement();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
+        mDefaultNamespaces.remove(mDefaultNamespaces.size() - 1);
     }
 
     public void writeStartDocument()
     {
-        /**
-         * To implement.
-         */
+        try
+        {
+            mStaxWriter.writeStartDocument("UTF-8", "1.0");
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
     }
 
     public void writeStartElement(String localName, String namespace)
     {
-        /**
-         * To implement.
-         */
+        String ns = (namespace == null ? "" : namespace);
+        String inScope = (mDefaultNamespaces.size() == 0 ? ""
+                : mDefaultNamespaces.get(mDefaultNamespaces.size() - 1));
+        try
+        {
+            mStaxWriter.writeStartElement("", localName, ns);
+            if (!ns.equals(inScope))
+            {
+                mStaxWriter.writeDefaultNamespace(ns);
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
+        mDefaultNamespaces.add(ns);
     }
 
     public void writeAttributeString(String str1, String str2)
     {
-        /**
-         * To implement.
-         */
+        try
+        {
+            // Like the .NET XmlWriter, a null value is written as empty
+            mStaxWriter.writeAttribute(str1, str2 == null ? "" : str2);
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
     }
 
     public void writeString(String str)
     {
-        /**
-         * To implement.
-         */
+        try
+        {
+            mStaxWriter.writeCharacters(str);
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
     }
 
+    /**
+     * @param str1
+     *        the prefix
+     * @param str2
+     *        the local name
+     * @param str3
+     *        the namespace URI, declared with the prefix if needed
+     * @param str4
+     *        the value
+     */
     public void writeAttributeString(String str1, String str2, String str3,
             String str4)
     {
-        /**
-         * To implement.
-         */
+        if (str4 == null)
+        {
+            str4 = "";
+        }
+        try
+        {
+            if (str1 == null || str1.length() == 0 || str3 == null
+                    || str3.length() == 0)
+            {
+                mStaxWriter.writeAttribute(str2, str4);
+                return;
+            }
+            if (!str3.equals(mStaxWriter.getNamespaceContext()
+                    .getNamespaceURI(str1)))
+            {
+                mStaxWriter.writeNamespace(str1, str3);
+                mStaxWriter.setPrefix(str1, str3);
+            }
+            mStaxWriter.writeAttribute(str1, str3, str2, str4);
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
     }
 
     public IStream getBaseStream()
     {
-        return null;
+        return mBaseStream;
+    }
+
+    public IXmlDataWriter createFragmentWriter(String namespace)
+    {
+        XmlDataWriter fragment;
+        try
+        {
+            fragment = new XmlDataWriter(new MemoryStream());
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        fragment.mParent = this;
+        fragment.mFragmentNamespace = (namespace == null ? "" : namespace);
+        fragment.mDefaultNamespaces.add(fragment.mFragmentNamespace);
+        return fragment;
+    }
+
+    public void writeFragment(IXmlDataWriter fragment)
+    {
+        if (!(fragment instanceof XmlDataWriter)
+                || ((XmlDataWriter) fragment).mParent != this)
+        {
+            throw new IllegalArgumentException(
+                    "The fragment was not created by this writer");
+        }
+        XmlDataWriter frag = (XmlDataWriter) fragment;
+        String inScope = (mDefaultNamespaces.size() == 0 ? ""
+                : mDefaultNamespaces.get(mDefaultNamespaces.size() - 1));
+        if (!frag.mFragmentNamespace.equals(inScope))
+        {
+            throw new IllegalArgumentException(
+                    "The fragment was written for another default namespace");
+        }
+        frag.close();
+        MemoryStream bytes = (MemoryStream) frag.getBaseStream();
+        try
+        {
+            // Writing an empty string ends the start tag of the current
+            // element, which may still be open
+            mStaxWriter.writeCharacters("");
+            mStaxWriter.flush();
+            mOutput.write(bytes.toArray());
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot write XML data", e);
+        }
     }
 }
@@ -1,10 +1,25 @@
 package org.daisy.urakawa.navigator;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 
+import org.daisy.urakawa.Presentation;
 import org.daisy.urakawa.core.ITreeNode;
+import org.daisy.urakawa.events.DataModelChangedEvent;
+import org.daisy.urakawa.events.IEventListener;
+import org.daisy.urakawa.events.core.ChildAddedEvent;
+import org.daisy.urakawa.events.core.ChildRemovedEvent;
+import org.daisy.urakawa.events.presentation.SubTreesChangedEvent;
+import org.daisy.urakawa.exception.IsNotInitializedException;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
 
@@ -13,11 +28,77 @@ import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
  * implemented by a derived class. An extension of INavigator to determine what
  * TreeNodes are part of the tree based on filtering/selection criteria
  * implemented by isIncluded(node).
+ * <p>
+ * The filtered children of the nodes are computed once, and cached until the
+ * underlying tree changes: the navigator listens to the trees it has
+ * navigated, and discards the cached children of the nodes affected by each
+ * change (the nodes from the parent of the changed node up to its first
+ * included ancestor). The cache assumes that isIncluded(node) only depends on
+ * the node itself (its class, its properties and their media): if it depends
+ * on anything else, {@link #clearCache()} must be called when that changes.
+ * </p>
  * 
  * @stereotype Abstract
  */
 public abstract class AbstractFilterNavigator implements INavigator
 {
+    private Map<ITreeNode, List<ITreeNode>> mFilteredChildren = new IdentityHashMap<ITreeNode, List<ITreeNode>>();
+    private Map<ITreeNode, Map<ITreeNode, Integer>> mFilteredIndexes = new IdentityHashMap<ITreeNode, Map<ITreeNode, Integer>>();
+    private Set<ITreeNode> mObservedTrees = Collections
+            .newSetFromMap(new IdentityHashMap<ITreeNode, Boolean>());
+    private Set<Presentation> mObservedPresentations = Collections
+            .newSetFromMap(new IdentityHashMap<Presentation, Boolean>());
+    private IEventListener<DataModelChangedEvent> mTreeChangedEventListener = new IEventListener<DataModelChangedEvent>()
+    {
+        public <K extends DataModelChangedEvent> void eventCallback(K event)
+                throws MethodParameterIsNullException
+        {
+            if (event == null)
+            {
+                throw new MethodParameterIsNullException();
+            }
+            if (mFilteredChildren.isEmpty())
+            {
+                return;
+            }
+            if (event instanceof ChildAddedEvent)
+            {
+                invalidateFilteredChildren(((ChildAddedEvent) event)
+                        .getSourceTreeNode());
+            }
+            else
+                if (event instanceof ChildRemovedEvent)
+                {
+                    ChildRemovedEvent ev = (ChildRemovedEvent) event;
+                    invalidateFilteredChildren(ev.getSourceTreeNode());
+                    invalidateSubTree(ev.getRemovedChild());
+                }
+                else
+                    if (event.getOriginTreeNode() != null)
+                    {
+                        // A change of the node itself, which can change
+                        // whether it is included or not.
+                        invalidateFilteredChildren(event.getOriginTreeNode()
+                                .getParent());
+                    }
+        }
+    };
+    // The changes made during a batch are not bubbled up to the roots of the
+    // trees, the cache is discarded at the end of the batch.
+    private IEventListener<SubTreesChangedEvent> mSubTreesChangedEventListener = new IEventListener<SubTreesChangedEvent>()
+    {
+        public <K extends SubTreesChangedEvent> void eventCallback(K event)
+                throws MethodParameterIsNullException
+        {
+            if (event == null)
+            {
+                throw new MethodParameterIsNullException();
+            }
+            mFilteredChildren.clear();
+            mFilteredIndexes.clear();
+        }
+    };
+
     /**
      * This method makes the decision about whether or not the given node
      * belongs to the virtual tree for this navigator. Determines if a given
@@ -35,57 +116,193 @@ public abstract class AbstractFilterNavigator implements INavigator
     public abstract boolean isIncluded(ITreeNode node)
             throws MethodParameterIsNullException;
 
-    public ITreeNode getParent(ITreeNode node)
-            throws MethodParameterIsNullException,
-            TreeNodeNotIncludedByNavigatorException
+    /**
+     * Discards the cached filtered children, and stops listening to the trees
+     * navigated so far. To be called when the result of isIncluded(node)
+     * changes for another reason than a change of the node, or when the
+     * navigator is no longer used.
+     */
+    public void clearCache()
     {
-        if (node == null)
+        mFilteredChildren.clear();
+        mFilteredIndexes.clear();
+        try
         {
-            throw new MethodParameterIsNullException();
+            for (ITreeNode root : mObservedTrees)
+            {
+                root.unregisterListener(mTreeChangedEventListener,
+                        DataModelChangedEvent.class);
+            }
+            for (Presentation pres : mObservedPresentations)
+            {
+                pres.unregisterListener(mSubTreesChangedEventListener,
+                        SubTreesChangedEvent.class);
+            }
         }
-        if (!isIncluded(node))
+        catch (MethodParameterIsNullException e)
         {
-            throw new TreeNodeNotIncludedByNavigatorException();
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
         }
-        ITreeNode parent = node.getParent();
-        if (parent == null)
-            return null;
-        if (isIncluded(parent))
-            return parent;
-        return getParent(parent);
+        mObservedTrees.clear();
+        mObservedPresentations.clear();
     }
 
-    private void findChildren(ITreeNode context, List<ITreeNode> childList)
+    /**
+     * @return false if the cache cannot be used for the given node, because a
+     *         batch of changes is in progress: the changes made during a batch
+     *         are only known at its end
+     */
+    private boolean isCacheUsable(ITreeNode context)
+    {
+        try
+        {
+            return !context.getPresentation().isInBatch();
+        }
+        catch (IsNotInitializedException e)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Listens to the changes of the tree of the given node, if it is not
+     * already the case.
+     */
+    private void observeTree(ITreeNode context)
             throws MethodParameterIsNullException
     {
-        if (context == null || childList == null)
+        try
         {
-            throw new MethodParameterIsNullException();
+            Presentation pres = context.getPresentation();
+            if (mObservedPresentations.add(pres))
+            {
+                pres.registerListener(mSubTreesChangedEventListener,
+                        SubTreesChangedEvent.class);
+            }
         }
-        for (int i = 0; i < context.getChildCount(); i++)
+        catch (IsNotInitializedException e)
         {
-            ITreeNode child;
-            try
+            // No batch of changes without a Presentation
+        }
+        ITreeNode root = context.getRoot();
+        if (mObservedTrees.add(root))
+        {
+            root.registerListener(mTreeChangedEventListener,
+                    DataModelChangedEvent.class);
+        }
+    }
+
+    /**
+     * Discards the cached filtered children which can contain the children
+     * of the given node: the ones of the node itself, and the ones of its
+     * ancestors up to the first included one.
+     */
+    private void invalidateFilteredChildren(ITreeNode node)
+            throws MethodParameterIsNullException
+    {
+        while (node != null)
+        {
+            mFilteredChildren.remove(node);
+            mFilteredIndexes.remove(node);
+            if (isIncluded(node))
             {
-                child = context.getChild(i);
+                break;
             }
-            catch (MethodParameterIsOutOfBoundsException e)
+            node = node.getParent();
+        }
+    }
+
+    /**
+     * Discards the cached filtered children of all the nodes of a sub-tree
+     * which has been removed from a tree this navigator listens to.
+     */
+    private void invalidateSubTree(ITreeNode node)
+    {
+        List<ITreeNode> stack = new ArrayList<ITreeNode>();
+        stack.add(node);
+        while (!stack.isEmpty() && !mFilteredChildren.isEmpty())
+        {
+            ITreeNode n = stack.remove(stack.size() - 1);
+            if (mFilteredChildren.remove(n) != null)
             {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e);
+                mFilteredIndexes.remove(n);
             }
-            if (isIncluded(child))
+            for (int i = n.getChildCount() - 1; i >= 0; i--)
             {
-                childList.add(child);
+                try
+                {
+                    stack.add(n.getChild(i));
+                }
+                catch (MethodParameterIsOutOfBoundsException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
             }
-            else
+        }
+    }
+
+    /**
+     * @return the filtered children of the given node (which is not
+     *         necessarily included), from the cache if possible. Must not be
+     *         modified.
+     */
+    private List<ITreeNode> getFilteredChildren(ITreeNode context)
+            throws MethodParameterIsNullException
+    {
+        if (!isCacheUsable(context))
+        {
+            List<ITreeNode> childList = new ArrayList<ITreeNode>();
+            findChildren(context, childList);
+            return childList;
+        }
+        List<ITreeNode> childList = mFilteredChildren.get(context);
+        if (childList == null)
+        {
+            childList = new ArrayList<ITreeNode>();
+            findChildren(context, childList);
+            observeTree(context);
+            mFilteredChildren.put(context, childList);
+        }
+        return childList;
+    }
+
+    /**
+     * @return the index of the given node among the filtered children of the
+     *         given included parent, or -1
+     */
+    private int findIndexOf(ITreeNode parent, ITreeNode childToFind)
+            throws MethodParameterIsNullException
+    {
+        List<ITreeNode> childList = getFilteredChildren(parent);
+        if (mFilteredChildren.get(parent) != childList)
+        {
+            // Not cached
+            for (int i = 0; i < childList.size(); i++)
             {
-                findChildren(child, childList);
+                if (childList.get(i) == childToFind)
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        Map<ITreeNode, Integer> indexes = mFilteredIndexes.get(parent);
+        if (indexes == null)
+        {
+            indexes = new IdentityHashMap<ITreeNode, Integer>();
+            for (int i = 0; i < childList.size(); i++)
+            {
+                indexes.put(childList.get(i), Integer.valueOf(i));
             }
+            mFilteredIndexes.put(parent, indexes);
         }
+        Integer index = indexes.get(childToFind);
+        return index == null ? -1 : index.intValue();
     }
 
-    public int getChildCount(ITreeNode node)
+    public ITreeNode getParent(ITreeNode node)
             throws MethodParameterIsNullException,
             TreeNodeNotIncludedByNavigatorException
     {
@@ -97,16 +314,18 @@ public abstract class AbstractFilterNavigator implements INavigator
         {
             throw new TreeNodeNotIncludedByNavigatorException();
         }
-        List<ITreeNode> childList = new LinkedList<ITreeNode>();
-        findChildren(node, childList);
-        return childList.size();
+        ITreeNode parent = node.getParent();
+        while (parent != null && !isIncluded(parent))
+        {
+            parent = parent.getParent();
+        }
+        return parent;
     }
 
-    private ITreeNode findChildAtIndex(ITreeNode context, int index,
-            IntWrapper acumIndex) throws MethodParameterIsNullException,
-            MethodParameterIsOutOfBoundsException
+    private void findChildren(ITreeNode context, List<ITreeNode> childList)
+            throws MethodParameterIsNullException
     {
-        if (context == null || acumIndex == null)
+        if (context == null || childList == null)
         {
             throw new MethodParameterIsNullException();
         }
@@ -124,54 +343,28 @@ public abstract class AbstractFilterNavigator implements INavigator
             }
             if (isIncluded(child))
             {
-                if (index == acumIndex.value)
-                    return child;
-                acumIndex.value++;
+                childList.add(child);
             }
             else
             {
-                ITreeNode retCh = findChildAtIndex(child, index, acumIndex);
-                if (retCh != null)
-                    return retCh;
+                findChildren(child, childList);
             }
         }
-        throw new MethodParameterIsOutOfBoundsException();
     }
 
-    private boolean findIndexOf(ITreeNode context, ITreeNode childToFind,
-            IntWrapper index) throws MethodParameterIsNullException
+    public int getChildCount(ITreeNode node)
+            throws MethodParameterIsNullException,
+            TreeNodeNotIncludedByNavigatorException
     {
-        if (context == null || index == null || childToFind == null)
+        if (node == null)
         {
             throw new MethodParameterIsNullException();
         }
-        for (int i = 0; i < context.getChildCount(); i++)
+        if (!isIncluded(node))
         {
-            ITreeNode child;
-            try
-            {
-                child = context.getChild(i);
-            }
-            catch (MethodParameterIsOutOfBoundsException e)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e);
-            }
-            if (isIncluded(child))
-            {
-                if (child == childToFind)
-                {
-                    return true;
-                }
-                index.value++;
-            }
-            else
-                if (findIndexOf(child, childToFind, index))
-                {
-                    return true;
-                }
+            throw new TreeNodeNotIncludedByNavigatorException();
         }
-        return false;
+        return getFilteredChildren(node).size();
     }
 
     public int indexOf(ITreeNode context)
@@ -189,13 +382,7 @@ public abstract class AbstractFilterNavigator implements INavigator
         ITreeNode parent = getParent(context);
         if (parent == null)
             return -1;
-        IntWrapper index = new IntWrapper();
-        index.value = 0;
-        if (!findIndexOf(parent, context, index))
-        {
-            return -1;
-        }
-        return index.value;
+        return findIndexOf(parent, context);
     }
 
     public ITreeNode getChild(ITreeNode node, int index)
@@ -211,10 +398,12 @@ public abstract class AbstractFilterNavigator implements INavigator
         {
             throw new TreeNodeNotIncludedByNavigatorException();
         }
-        IntWrapper acumIndex = new IntWrapper();
-        acumIndex.value = 0;
-        ITreeNode res = findChildAtIndex(node, index, acumIndex);
-        return res;
+        List<ITreeNode> childList = getFilteredChildren(node);
+        if (index < 0 || index >= childList.size())
+        {
+            throw new MethodParameterIsOutOfBoundsException();
+        }
+        return childList.get(index);
     }
 
     private ITreeNode getLastChild(ITreeNode context)
@@ -224,28 +413,12 @@ public abstract class AbstractFilterNavigator implements INavigator
         {
             throw new MethodParameterIsNullException();
         }
-        int index = context.getChildCount() - 1;
-        while (index >= 0)
+        List<ITreeNode> childList = getFilteredChildren(context);
+        if (childList.isEmpty())
         {
-            ITreeNode child;
-            try
-            {
-                child = context.getChild(index);
-            }
-            catch (MethodParameterIsOutOfBoundsException e)
-            {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e);
-            }
-            if (isIncluded(child))
-            {
-                return child;
-            }
-            child = getLastChild(child);
-            if (child != null)
-                return child;
+            return null;
         }
-        return null;
+        return childList.get(childList.size() - 1);
     }
 
     private ITreeNode getPreviousSibling(ITreeNode context, boolean checkParent)
@@ -260,10 +433,17 @@ public abstract class AbstractFilterNavigator implements INavigator
         {
             throw new TreeNodeNotIncludedByNavigatorException();
         }
-        if (checkParent)
+        ITreeNode filteredParent = getParent(context);
+        if (filteredParent != null)
         {
-            if (getParent(context) == null)
+            int index = findIndexOf(filteredParent, context);
+            if (index <= 0)
                 return null;
+            return getFilteredChildren(filteredParent).get(index - 1);
+        }
+        if (checkParent)
+        {
+            return null;
         }
         ITreeNode parent = context.getParent();
         ITreeNode tmpNode = context;
@@ -281,8 +461,6 @@ public abstract class AbstractFilterNavigator implements INavigator
                     return lastChild;
                 prevUnfiltSib = prevUnfiltSib.getPreviousSibling();
             }
-            if (isIncluded(parent))
-                break;
             tmpNode = parent;
             parent = tmpNode.getParent();
         }
@@ -311,17 +489,12 @@ public abstract class AbstractFilterNavigator implements INavigator
         {
             throw new MethodParameterIsNullException();
         }
-        IntWrapper acumIndex = new IntWrapper();
-        acumIndex.value = 0;
-        try
-        {
-            return findChildAtIndex(context, 0, acumIndex);
-        }
-        catch (MethodParameterIsOutOfBoundsException e)
+        List<ITreeNode> childList = getFilteredChildren(context);
+        if (childList.isEmpty())
         {
-            e.printStackTrace();
             return null;
         }
+        return childList.get(0);
     }
 
     private ITreeNode getNextSibling(ITreeNode context, boolean checkParent)
@@ -336,15 +509,23 @@ public abstract class AbstractFilterNavigator implements INavigator
         {
             throw new TreeNodeNotIncludedByNavigatorException();
         }
-        if (checkParent)
+        ITreeNode filteredParent = getParent(context);
+        if (filteredParent != null)
         {
-            if (getParent(context) == null)
+            int index = findIndexOf(filteredParent, context);
+            List<ITreeNode> childList = getFilteredChildren(filteredParent);
+            if (index < 0 || index + 1 >= childList.size())
                 return null;
+            return childList.get(index + 1);
+        }
+        if (checkParent)
+        {
+            return null;
         }
         ITreeNode parent = context.getParent();
+        ITreeNode tmpNode = context;
         while (parent != null)
         {
-            ITreeNode tmpNode = context;
             ITreeNode nextUnfiltSib = tmpNode.getNextSibling();
             while (nextUnfiltSib != null)
             {
@@ -357,8 +538,6 @@ public abstract class AbstractFilterNavigator implements INavigator
                     return firstChild;
                 nextUnfiltSib = nextUnfiltSib.getNextSibling();
             }
-            if (isIncluded(parent))
-                break;
             tmpNode = parent;
             parent = tmpNode.getParent();
         }
@@ -422,6 +601,21 @@ public abstract class AbstractFilterNavigator implements INavigator
         {
             throw new TreeNodeNotIncludedByNavigatorException();
         }
+        ITreeNode filteredParent = getParent(node);
+        if (filteredParent != null)
+        {
+            // The last descendant of the previous sibling, or the parent
+            ITreeNode prev = getPreviousSibling(node, true);
+            if (prev == null)
+                return filteredParent;
+            ITreeNode lastChild = getLastChild(prev);
+            while (lastChild != null)
+            {
+                prev = lastChild;
+                lastChild = getLastChild(prev);
+            }
+            return prev;
+        }
         ITreeNode prev = getUnfilteredPrevious(node);
         while (prev != null)
         {
@@ -444,18 +638,7 @@ public abstract class AbstractFilterNavigator implements INavigator
         {
             throw new TreeNodeNotIncludedByNavigatorException();
         }
-        IntWrapper acumIndex = new IntWrapper();
-        acumIndex.value = 0;
-        ITreeNode next;
-        try
-        {
-            next = findChildAtIndex(node, 0, acumIndex);
-        }
-        catch (MethodParameterIsOutOfBoundsException e)
-        {
-            next = null;
-            e.printStackTrace();
-        }
+        ITreeNode next = getFirstChild(node);
         if (next != null)
             return next;
         ITreeNode tmpNode = node;
@@ -469,49 +652,261 @@ public abstract class AbstractFilterNavigator implements INavigator
         return null;
     }
 
-    @SuppressWarnings("unused")
-    private ITreeNode getUnfilteredNext(ITreeNode context)
-            throws MethodParameterIsNullException
+    /**
+     * Lazy pre-order traversal of the included nodes of a range of sub-trees:
+     * an optional first node, then the sub-trees of the children of a parent
+     * node between two indexes. Only the path from the parent node to the
+     * current node is kept. The tree must not be modified during the
+     * traversal.
+     */
+    private final class SubForestIterator implements Iterator<ITreeNode>
     {
-        if (context == null)
+        private ITreeNode[] mPath = new ITreeNode[16];
+        private int[] mIndexes = new int[16];
+        private int mDepth = 0;
+        private int mEnd;
+        private ITreeNode mNext;
+
+        /**
+         * @param first
+         *        the first node, included, or null
+         * @param parent
+         *        the parent of the sub-trees, or null
+         * @param from
+         *        the index of the first sub-tree
+         * @param to
+         *        the index after the last sub-tree
+         */
+        SubForestIterator(ITreeNode first, ITreeNode parent, int from, int to)
+        {
+            if (parent != null && from < to)
+            {
+                mPath[0] = parent;
+                mIndexes[0] = from;
+                mDepth = 1;
+            }
+            mEnd = to;
+            mNext = first == null ? findNext() : first;
+        }
+
+        private ITreeNode findNext()
         {
-            throw new MethodParameterIsNullException();
+            while (mDepth > 0)
+            {
+                ITreeNode parent = mPath[mDepth - 1];
+                int index = mIndexes[mDepth - 1];
+                if (index >= (mDepth == 1 ? mEnd : parent.getChildCount()))
+                {
+                    mPath[--mDepth] = null;
+                    continue;
+                }
+                mIndexes[mDepth - 1] = index + 1;
+                ITreeNode child;
+                try
+                {
+                    child = parent.getChild(index);
+                }
+                catch (MethodParameterIsOutOfBoundsException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                if (mDepth == mPath.length)
+                {
+                    ITreeNode[] path = new ITreeNode[2 * mDepth];
+                    System.arraycopy(mPath, 0, path, 0, mDepth);
+                    mPath = path;
+                    int[] indexes = new int[2 * mDepth];
+                    System.arraycopy(mIndexes, 0, indexes, 0, mDepth);
+                    mIndexes = indexes;
+                }
+                mPath[mDepth] = child;
+                mIndexes[mDepth] = 0;
+                mDepth++;
+                try
+                {
+                    if (isIncluded(child))
+                    {
+                        return child;
+                    }
+                }
+                catch (MethodParameterIsNullException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+            return null;
         }
-        ITreeNode prev = context.getNextSibling();
-        if (prev == null)
+
+        public boolean hasNext()
         {
-            ITreeNode contextParent = context.getParent();
-            if (contextParent != null)
+            return mNext != null;
+        }
+
+        public ITreeNode next()
+        {
+            ITreeNode node = mNext;
+            if (node == null)
             {
-                prev = getUnfilteredNext(contextParent);
+                throw new NoSuchElementException();
             }
+            mNext = findNext();
+            return node;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException(
+                    "Cannot remove a TreeNode through a navigator");
         }
-        return prev;
     }
 
-    private void generateSubtree(ITreeNode context, List<ITreeNode> subtree)
-            throws MethodParameterIsNullException
+    /**
+     * Splits the traversal of the SubForestIterator between the children of
+     * the nodes: each half gets a range of sibling sub-trees, a range of a
+     * single sub-tree being replaced with the children of its root. The size
+     * is unknown, the estimate is halved at each split.
+     */
+    private final class SubForestSpliterator implements Spliterator<ITreeNode>
     {
-        if (context == null || subtree == null)
+        private ITreeNode mFirst;
+        private ITreeNode mParent;
+        private int mFrom;
+        private int mTo;
+        private long mEstimatedSize;
+        private SubForestIterator mIterator = null;
+
+        SubForestSpliterator(ITreeNode first, ITreeNode parent, int from,
+                int to, long estimatedSize)
         {
-            throw new MethodParameterIsNullException();
+            mFirst = first;
+            mParent = parent;
+            mFrom = from;
+            mTo = to;
+            mEstimatedSize = estimatedSize;
         }
-        if (isIncluded(context))
-            subtree.add(context);
-        for (int i = 0; i < context.getChildCount(); i++)
+
+        public Spliterator<ITreeNode> trySplit()
         {
-            try
+            if (mIterator != null)
             {
-                generateSubtree(context.getChild(i), subtree);
+                return null;
             }
-            catch (MethodParameterIsOutOfBoundsException e)
+            while (mFirst == null && mTo - mFrom == 1)
             {
-                // Should never happen
-                throw new RuntimeException("WTF ??!", e);
+                ITreeNode child;
+                try
+                {
+                    child = mParent.getChild(mFrom);
+                    mFirst = isIncluded(child) ? child : null;
+                }
+                catch (MethodParameterIsOutOfBoundsException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                catch (MethodParameterIsNullException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+                mParent = child;
+                mFrom = 0;
+                mTo = child.getChildCount();
             }
+            int mid;
+            if (mTo - mFrom >= 2)
+            {
+                mid = (mFrom + mTo) >>> 1;
+            }
+            else
+                if (mFirst != null && mTo - mFrom == 1)
+                {
+                    mid = mFrom;
+                }
+                else
+                {
+                    return null;
+                }
+            mEstimatedSize >>>= 1;
+            Spliterator<ITreeNode> prefix = new SubForestSpliterator(mFirst,
+                    mParent, mFrom, mid, mEstimatedSize);
+            mFirst = null;
+            mFrom = mid;
+            return prefix;
+        }
+
+        private SubForestIterator getIterator()
+        {
+            if (mIterator == null)
+            {
+                mIterator = new SubForestIterator(mFirst, mParent, mFrom, mTo);
+                mFirst = null;
+                mParent = null;
+            }
+            return mIterator;
+        }
+
+        public boolean tryAdvance(Consumer<? super ITreeNode> action)
+        {
+            if (action == null)
+            {
+                throw new NullPointerException();
+            }
+            SubForestIterator iterator = getIterator();
+            if (!iterator.hasNext())
+            {
+                return false;
+            }
+            action.accept(iterator.next());
+            return true;
+        }
+
+        public void forEachRemaining(Consumer<? super ITreeNode> action)
+        {
+            if (action == null)
+            {
+                throw new NullPointerException();
+            }
+            SubForestIterator iterator = getIterator();
+            while (iterator.hasNext())
+            {
+                action.accept(iterator.next());
+            }
+        }
+
+        public long estimateSize()
+        {
+            return mEstimatedSize;
+        }
+
+        public int characteristics()
+        {
+            return ORDERED | DISTINCT | NONNULL;
+        }
+
+        public Comparator<? super ITreeNode> getComparator()
+        {
+            throw new IllegalStateException();
+        }
+
+        public long getExactSizeIfKnown()
+        {
+            return -1;
+        }
+
+        public boolean hasCharacteristics(int characteristics)
+        {
+            return (characteristics() & characteristics) == characteristics;
         }
     }
 
+    /**
+     * The iterator is lazy: the included nodes are found while iterating, in
+     * constant memory (except the path to the current node). The tree must
+     * not be modified during the iteration.
+     */
     public Iterator<ITreeNode> getSubForestIterator(ITreeNode node)
             throws MethodParameterIsNullException,
             TreeNodeNotIncludedByNavigatorException
@@ -524,8 +919,27 @@ public abstract class AbstractFilterNavigator implements INavigator
         {
             throw new TreeNodeNotIncludedByNavigatorException();
         }
-        List<ITreeNode> subtree = new LinkedList<ITreeNode>();
-        generateSubtree(node, subtree);
-        return subtree.listIterator();
+        return new SubForestIterator(node, node, 0, node.getChildCount());
+    }
+
+    /**
+     * The spliterator is lazy, like the iterator, and the tree must not be
+     * modified while it is used (including from the threads it has been
+     * split to).
+     */
+    public Spliterator<ITreeNode> getSubForestSpliterator(ITreeNode node)
+            throws MethodParameterIsNullException,
+            TreeNodeNotIncludedByNavigatorException
+    {
+        if (node == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        if (!isIncluded(node))
+        {
+            throw new TreeNodeNotIncludedByNavigatorException();
+        }
+        return new SubForestSpliterator(node, node, 0, node.getChildCount(),
+                Long.MAX_VALUE);
     }
 }
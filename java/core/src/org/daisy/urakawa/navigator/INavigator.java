@@ -1,6 +1,7 @@
 package org.daisy.urakawa.navigator;
 
 import java.util.Iterator;
+import java.util.Spliterator;
 
 import org.daisy.urakawa.core.ITreeNode;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
@@ -165,6 +166,26 @@ public interface INavigator
             throws MethodParameterIsNullException,
             TreeNodeNotIncludedByNavigatorException;
 
+    /**
+     * Gets a spliterator that enumerates the virtual sub-forest starting at a
+     * given ITreeNode, in the same order as
+     * {@link #getSubForestIterator(ITreeNode)}. It can be split for parallel
+     * processing, at the boundaries between the children of the nodes.
+     * 
+     * @param node
+     *        the base node for which to return the corresponding spliterator.
+     *        Cannot be NULL.
+     * @return a spliterator of TreeNodes (included by the navigator, part of
+     *         the forest), within the boundaries of the subtree which root is
+     *         the given node. Can be empty, but not NULL.
+     * @throws MethodParameterIsNullException
+     *         NULL method parameters are forbidden
+     * @throws TreeNodeNotIncludedByNavigatorException
+     */
+    public Spliterator<ITreeNode> getSubForestSpliterator(ITreeNode node)
+            throws MethodParameterIsNullException,
+            TreeNodeNotIncludedByNavigatorException;
+
     /**
      * Gets the index of a given context ITreeNode as a child of it's parent
      * ITreeNode
@@ -52,7 +52,7 @@ public class TypeFilterNavigator<T extends ITreeNode> extends
     public T getParent(ITreeNode node) throws MethodParameterIsNullException,
             TreeNodeNotIncludedByNavigatorException
     {
-        return (T) super.getNext(node);
+        return (T) super.getParent(node);
     }
 
     @Override
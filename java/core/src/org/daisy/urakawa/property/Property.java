@@ -163,6 +163,12 @@ public class Property extends AbstractXukAbleWithPresentation implements
             throws PropertyAlreadyHasOwnerException,
             ObjectIsInDifferentPresentationException
     {
+        if (newOwner == null)
+        {
+            // The property is removed from its owner
+            mOwner = null;
+            return;
+        }
         if (mOwner != null && newOwner != mOwner)
         {
             throw new PropertyAlreadyHasOwnerException();
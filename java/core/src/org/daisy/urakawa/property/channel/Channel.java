@@ -167,6 +167,7 @@ public class Channel extends AbstractXukAbleWithPresentation implements
             throw new MethodParameterIsEmptyStringException();
         }
         mName = name;
+        notifyManagerOfChange();
     }
 
     public String getName() throws IsNotInitializedException
@@ -181,11 +182,29 @@ public class Channel extends AbstractXukAbleWithPresentation implements
     public void setLanguage(String lang)
             throws MethodParameterIsEmptyStringException
     {
-        if (lang.length() == 0)
+        // Can be null, see IWithLanguage
+        if (lang != null && lang.length() == 0)
         {
             throw new MethodParameterIsEmptyStringException();
         }
         mLanguage = lang;
+        notifyManagerOfChange();
+    }
+
+    /**
+     * Records the change of the channel in its ChannelsManager (see
+     * {@link ChannelsManager#getChangedUidRecorder()}), if it is managed.
+     */
+    private void notifyManagerOfChange()
+    {
+        try
+        {
+            getPresentation().getChannelsManager().notifyChannelChanged(this);
+        }
+        catch (IsNotInitializedException e)
+        {
+            // Not in a presentation, so not managed either
+        }
     }
 
     public String getLanguage()
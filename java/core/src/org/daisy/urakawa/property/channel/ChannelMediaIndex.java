@@ -0,0 +1,353 @@
+package org.daisy.urakawa.property.channel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.core.ITreeNode;
+import org.daisy.urakawa.events.DataModelChangedEvent;
+import org.daisy.urakawa.events.IEventListener;
+import org.daisy.urakawa.events.core.ChildAddedEvent;
+import org.daisy.urakawa.events.core.ChildRemovedEvent;
+import org.daisy.urakawa.events.core.PropertyAddedEvent;
+import org.daisy.urakawa.events.core.PropertyRemovedEvent;
+import org.daisy.urakawa.events.presentation.RootNodeChangedEvent;
+import org.daisy.urakawa.events.presentation.SubTreesChangedEvent;
+import org.daisy.urakawa.events.property.channel.ChannelMediaMapEvent;
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
+import org.daisy.urakawa.media.IMedia;
+import org.daisy.urakawa.property.IProperty;
+
+/**
+ * <p>
+ * Reverse index of the IChannelsProperty of the TreeNodes of the tree of a
+ * Presentation: from each IChannel to the TreeNodes which have a media in
+ * this channel, and from each IMedia to the TreeNode which uses it.
+ * </p>
+ * <p>
+ * The index is built on the first lookup, then maintained from the events of
+ * the tree: addition and removal of TreeNodes and IChannelsProperties, and
+ * changes of the channel-to-media mappings. It is built again after a change
+ * of root node, and after the changes made during a batch (see
+ * {@link Presentation#beginBatch()}). Not thread-safe, like the
+ * Presentation.
+ * </p>
+ * 
+ * @see Presentation#getChannelMediaIndex()
+ */
+public class ChannelMediaIndex
+{
+    private Presentation mPresentation;
+    private boolean mIsBuilt = false;
+    private Map<IChannel, Set<ITreeNode>> mChannelTreeNodes = new IdentityHashMap<IChannel, Set<ITreeNode>>();
+    private Map<IMedia, ITreeNode> mMediaTreeNodes = new IdentityHashMap<IMedia, ITreeNode>();
+    private IEventListener<DataModelChangedEvent> mDataModelChangedEventListener = new IEventListener<DataModelChangedEvent>()
+    {
+        public <K extends DataModelChangedEvent> void eventCallback(K event)
+                throws MethodParameterIsNullException
+        {
+            if (event == null)
+            {
+                throw new MethodParameterIsNullException();
+            }
+            if (mIsBuilt)
+            {
+                update(event);
+            }
+        }
+    };
+    private IEventListener<RootNodeChangedEvent> mRootNodeChangedEventListener = new IEventListener<RootNodeChangedEvent>()
+    {
+        public <K extends RootNodeChangedEvent> void eventCallback(K event)
+                throws MethodParameterIsNullException
+        {
+            if (event == null)
+            {
+                throw new MethodParameterIsNullException();
+            }
+            clear();
+        }
+    };
+
+    /**
+     * @param pres
+     *        the Presentation whose tree is indexed, cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public ChannelMediaIndex(Presentation pres)
+            throws MethodParameterIsNullException
+    {
+        if (pres == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mPresentation = pres;
+        pres.registerListener(mDataModelChangedEventListener,
+                DataModelChangedEvent.class);
+        pres.registerListener(mRootNodeChangedEventListener,
+                RootNodeChangedEvent.class);
+    }
+
+    /**
+     * Discards the index, which will be built again on the next lookup. Does
+     * nothing if it is not built.
+     */
+    public void clear()
+    {
+        if (!mIsBuilt)
+        {
+            return;
+        }
+        mIsBuilt = false;
+        mChannelTreeNodes.clear();
+        mMediaTreeNodes.clear();
+    }
+
+    /**
+     * @param iChannel
+     *        cannot be null
+     * @return the TreeNodes of the tree of the Presentation which have a
+     *         media in the given channel, in no particular order. Can be
+     *         empty, but not null.
+     * @throws MethodParameterIsNullException
+     */
+    public List<ITreeNode> getListOfTreeNodes(IChannel iChannel)
+            throws MethodParameterIsNullException
+    {
+        if (iChannel == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        build();
+        Set<ITreeNode> nodes = mChannelTreeNodes.get(iChannel);
+        if (nodes == null)
+        {
+            return new ArrayList<ITreeNode>();
+        }
+        return new ArrayList<ITreeNode>(nodes);
+    }
+
+    /**
+     * @param media
+     *        cannot be null
+     * @return the TreeNode of the tree of the Presentation which has the
+     *         given media in one of the channels of its IChannelsProperty, or
+     *         null
+     * @throws MethodParameterIsNullException
+     */
+    public ITreeNode getTreeNode(IMedia media)
+            throws MethodParameterIsNullException
+    {
+        if (media == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        build();
+        return mMediaTreeNodes.get(media);
+    }
+
+    /**
+     * @return the media used by the TreeNodes of the tree of the Presentation,
+     *         each one once, in no particular order. Can be empty, but not
+     *         null.
+     */
+    public List<IMedia> getListOfMedia()
+    {
+        build();
+        return new ArrayList<IMedia>(mMediaTreeNodes.keySet());
+    }
+
+    private void build()
+    {
+        if (mIsBuilt)
+        {
+            return;
+        }
+        mChannelTreeNodes.clear();
+        mMediaTreeNodes.clear();
+        mIsBuilt = true;
+        ITreeNode root = mPresentation.getRootNode();
+        if (root != null)
+        {
+            updateSubTree(root, true);
+        }
+    }
+
+    private void add(ITreeNode node, IChannel iChannel, IMedia media)
+    {
+        Set<ITreeNode> nodes = mChannelTreeNodes.get(iChannel);
+        if (nodes == null)
+        {
+            nodes = Collections
+                    .newSetFromMap(new IdentityHashMap<ITreeNode, Boolean>());
+            mChannelTreeNodes.put(iChannel, nodes);
+        }
+        nodes.add(node);
+        mMediaTreeNodes.put(media, node);
+    }
+
+    private void remove(ITreeNode node, IChannel iChannel, IMedia media)
+    {
+        Set<ITreeNode> nodes = mChannelTreeNodes.get(iChannel);
+        if (nodes != null)
+        {
+            nodes.remove(node);
+            if (nodes.isEmpty())
+            {
+                mChannelTreeNodes.remove(iChannel);
+            }
+        }
+        if (mMediaTreeNodes.get(media) == node)
+        {
+            mMediaTreeNodes.remove(media);
+        }
+    }
+
+    private void updateChannelsProperty(ITreeNode node,
+            IChannelsProperty chProp, boolean add)
+    {
+        for (IChannel ch : chProp.getListOfUsedChannels())
+        {
+            IMedia media;
+            try
+            {
+                media = chProp.getMedia(ch);
+            }
+            catch (MethodParameterIsNullException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+            catch (ChannelDoesNotExistException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+            if (add)
+            {
+                add(node, ch, media);
+            }
+            else
+            {
+                remove(node, ch, media);
+            }
+        }
+    }
+
+    private void updateSubTree(ITreeNode node, boolean add)
+    {
+        List<ITreeNode> stack = new ArrayList<ITreeNode>();
+        stack.add(node);
+        while (!stack.isEmpty())
+        {
+            ITreeNode n = stack.remove(stack.size() - 1);
+            for (IProperty prop : n.getListOfProperties())
+            {
+                if (prop instanceof IChannelsProperty)
+                {
+                    updateChannelsProperty(n, (IChannelsProperty) prop, add);
+                }
+            }
+            for (int i = 0; i < n.getChildCount(); i++)
+            {
+                try
+                {
+                    stack.add(n.getChild(i));
+                }
+                catch (MethodParameterIsOutOfBoundsException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the node is in the tree of the Presentation
+     */
+    private boolean isInTree(ITreeNode node)
+    {
+        return node != null && node.getRoot() == mPresentation.getRootNode();
+    }
+
+    private void update(DataModelChangedEvent event)
+    {
+        if (event instanceof SubTreesChangedEvent)
+        {
+            // Nothing to do: the changes made during the batch discarded the
+            // index (see Presentation#addBatchChange(ITreeNode)), which is
+            // up to date if it was built again since
+        }
+        else
+            if (event instanceof ChildAddedEvent)
+            {
+                // Also raised directly on the Presentation, before being
+                // bubbled up the tree: only the bubbled one is used
+                ChildAddedEvent ev = (ChildAddedEvent) event;
+                if (ev.getOriginTreeNode() != null
+                        && isInTree(ev.getSourceTreeNode()))
+                {
+                    updateSubTree(ev.getAddedChild(), true);
+                }
+            }
+            else
+                if (event instanceof ChildRemovedEvent)
+                {
+                    ChildRemovedEvent ev = (ChildRemovedEvent) event;
+                    if (isInTree(ev.getSourceTreeNode()))
+                    {
+                        updateSubTree(ev.getRemovedChild(), false);
+                    }
+                }
+                else
+                    if (event instanceof PropertyAddedEvent)
+                    {
+                        PropertyAddedEvent ev = (PropertyAddedEvent) event;
+                        if (ev.getAddedProperty() instanceof IChannelsProperty
+                                && isInTree(ev.getSourceTreeNode()))
+                        {
+                            updateChannelsProperty(ev.getSourceTreeNode(),
+                                    (IChannelsProperty) ev.getAddedProperty(),
+                                    true);
+                        }
+                    }
+                    else
+                        if (event instanceof PropertyRemovedEvent)
+                        {
+                            PropertyRemovedEvent ev = (PropertyRemovedEvent) event;
+                            if (ev.getRemovedProperty() instanceof IChannelsProperty
+                                    && isInTree(ev.getSourceTreeNode()))
+                            {
+                                updateChannelsProperty(ev.getSourceTreeNode(),
+                                        (IChannelsProperty) ev
+                                                .getRemovedProperty(), false);
+                            }
+                        }
+                        else
+                            if (event instanceof ChannelMediaMapEvent)
+                            {
+                                ChannelMediaMapEvent ev = (ChannelMediaMapEvent) event;
+                                ITreeNode node = ev.getOriginTreeNode();
+                                if (isInTree(node))
+                                {
+                                    if (ev.getPreviousMedia() != null)
+                                    {
+                                        remove(node, ev
+                                                .getDestinationChannel(), ev
+                                                .getPreviousMedia());
+                                    }
+                                    if (ev.getMappedMedia() != null)
+                                    {
+                                        add(node, ev.getDestinationChannel(),
+                                                ev.getMappedMedia());
+                                    }
+                                }
+                            }
+    }
+}
@@ -6,8 +6,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import org.daisy.urakawa.ChangedUidRecorder;
 import org.daisy.urakawa.IValueEquatable;
 import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.UidAllocator;
+import org.daisy.urakawa.core.ITreeNode;
 import org.daisy.urakawa.exception.IsNotInitializedException;
 import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
@@ -38,6 +41,9 @@ public final class ChannelsManager extends AbstractXukAble implements
     }
 
     private Map<String, IChannel> mChannels;
+    private Map<IChannel, String> mReverseLookupChannels;
+    private UidAllocator mUidAllocator;
+    private ChangedUidRecorder mChangedUidRecorder = new ChangedUidRecorder();
 
     /**
      * @param pres
@@ -52,6 +58,8 @@ public final class ChannelsManager extends AbstractXukAble implements
         }
         mPresentation = pres;
         mChannels = new HashMap<String, IChannel>();
+        mReverseLookupChannels = new HashMap<IChannel, String>();
+        mUidAllocator = new UidAllocator("CHID", 4, 0);
     }
 
     /**
@@ -101,7 +109,7 @@ public final class ChannelsManager extends AbstractXukAble implements
         {
             throw new MethodParameterIsEmptyStringException();
         }
-        if (mChannels.values().contains(iChannel))
+        if (mReverseLookupChannels.containsKey(iChannel))
         {
             throw new ChannelAlreadyExistsException();
         }
@@ -110,23 +118,17 @@ public final class ChannelsManager extends AbstractXukAble implements
             throw new ChannelAlreadyExistsException();
         }
         mChannels.put(uid, iChannel);
+        mReverseLookupChannels.put(iChannel, uid);
+        mUidAllocator.reserve(uid);
+        mChangedUidRecorder.record(uid);
     }
 
     /**
      * @hidden
      */
-    @SuppressWarnings("boxing")
     private String getNewId()
     {
-        long i = 0;
-        while (i < Integer.MAX_VALUE)
-        {
-            String newId = String.format("CHID{0:0000}", i);
-            if (!mChannels.containsKey(newId))
-                return newId;
-            i++;
-        }
-        throw new RuntimeException("TOO MANY CHANNELS!!!");
+        return mUidAllocator.allocate();
     }
 
     /**
@@ -178,8 +180,15 @@ public final class ChannelsManager extends AbstractXukAble implements
         IChannel iChannel = getChannel(uid);
         ClearChannelTreeNodeVisitor clChVisitor = new ClearChannelTreeNodeVisitor(
                 iChannel);
-        getPresentation().getRootNode().acceptDepthFirst(clChVisitor);
+        // Only the TreeNodes which use the channel, instead of the whole tree
+        for (ITreeNode node : getPresentation().getChannelMediaIndex()
+                .getListOfTreeNodes(iChannel))
+        {
+            clChVisitor.postVisit(node);
+        }
         mChannels.remove(uid);
+        mReverseLookupChannels.remove(iChannel);
+        mChangedUidRecorder.record(uid);
     }
 
     /**
@@ -245,14 +254,12 @@ public final class ChannelsManager extends AbstractXukAble implements
         {
             throw new MethodParameterIsNullException();
         }
-        for (String Id : mChannels.keySet())
+        String uid = mReverseLookupChannels.get(ch);
+        if (uid == null)
         {
-            if (mChannels.get(Id) == ch)
-            {
-                return Id;
-            }
+            throw new ChannelDoesNotExistException();
         }
-        throw new ChannelDoesNotExistException();
+        return uid;
     }
 
     /**
@@ -274,16 +281,52 @@ public final class ChannelsManager extends AbstractXukAble implements
         {
             throw new MethodParameterIsEmptyStringException();
         }
-        for (String Id : mChannels.keySet())
+        String oldUid = mReverseLookupChannels.get(ch);
+        if (oldUid == null)
+        {
+            throw new ChannelDoesNotExistException();
+        }
+        mChannels.remove(oldUid);
+        IChannel replaced = mChannels.put(uid, ch);
+        if (replaced != null)
+        {
+            mReverseLookupChannels.remove(replaced);
+        }
+        mReverseLookupChannels.put(ch, uid);
+        mUidAllocator.reserve(uid);
+        mChangedUidRecorder.record(oldUid);
+        mChangedUidRecorder.record(uid);
+    }
+
+    /**
+     * @return the recorder of the UIDs of the channels which are added,
+     *         removed, renamed or changed (their name or language)
+     */
+    public ChangedUidRecorder getChangedUidRecorder()
+    {
+        return mChangedUidRecorder;
+    }
+
+    /**
+     * Called by a channel of the manager when it changes.
+     * 
+     * @param ch
+     */
+    void notifyChannelChanged(IChannel ch)
+    {
+        String uid = mReverseLookupChannels.get(ch);
+        if (uid != null)
         {
-            if (mChannels.get(Id) == ch)
+            try
             {
-                mChannels.remove(Id);
-                mChannels.put(uid, ch);
-                return;
+                mChangedUidRecorder.record(uid);
+            }
+            catch (MethodParameterIsNullException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
             }
         }
-        throw new ChannelDoesNotExistException();
     }
 
     /**
@@ -374,7 +417,12 @@ public final class ChannelsManager extends AbstractXukAble implements
     @Override
     protected void clear()
     {
+        for (IChannel ch : mChannels.values())
+        {
+            notifyChannelChanged(ch);
+        }
         mChannels.clear();
+        mReverseLookupChannels.clear();
         // super.clear();
     }
 
@@ -223,22 +223,10 @@ public class ChannelsProperty extends Property implements IChannelsProperty
                     .getListOfChannels();
             for (IChannel ch : list)
             {
-                try
-                {
-                    if (getMedia(ch) != null)
-                    {
-                        res.add(ch);
-                    }
-                }
-                catch (MethodParameterIsNullException e)
+                // Not getMedia(), which looks for the channel in the list
+                if (mMapChannelToMediaObject.get(ch) != null)
                 {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
-                }
-                catch (ChannelDoesNotExistException e)
-                {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
+                    res.add(ch);
                 }
             }
         }
@@ -5,6 +5,7 @@ import org.daisy.urakawa.core.visitor.ITreeNodeVisitor;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
 import org.daisy.urakawa.media.DoesNotAcceptMediaException;
 import org.daisy.urakawa.media.IMedia;
+import org.daisy.urakawa.property.IProperty;
 
 /**
  * ITreeNodeVisitor that clears all media content for a IChannel
@@ -35,37 +36,45 @@ public class ClearChannelTreeNodeVisitor implements ITreeNodeVisitor
         {
             throw new MethodParameterIsNullException();
         }
-        IChannelsProperty chProp = node
-                .<IChannelsProperty> getProperty(IChannelsProperty.class);
-        if (chProp != null)
+        // Not getProperty(), which only matches the exact class
+        for (IProperty prop : node.getListOfProperties())
+        {
+            if (prop instanceof IChannelsProperty)
+            {
+                clearChannel((IChannelsProperty) prop);
+            }
+        }
+    }
+
+    private void clearChannel(IChannelsProperty chProp)
+            throws MethodParameterIsNullException
+    {
+        IMedia m;
+        try
+        {
+            m = chProp.getMedia(mChannelToClear);
+        }
+        catch (ChannelDoesNotExistException e)
+        {
+            // Ignore this.
+            e.printStackTrace();
+            m = null;
+        }
+        if (m != null)
         {
-            IMedia m;
             try
             {
-                m = chProp.getMedia(mChannelToClear);
+                chProp.setMedia(mChannelToClear, null);
             }
             catch (ChannelDoesNotExistException e)
             {
-                // Ignore this.
-                e.printStackTrace();
-                m = null;
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
             }
-            if (m != null)
+            catch (DoesNotAcceptMediaException e)
             {
-                try
-                {
-                    chProp.setMedia(mChannelToClear, null);
-                }
-                catch (ChannelDoesNotExistException e)
-                {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
-                }
-                catch (DoesNotAcceptMediaException e)
-                {
-                    // Should never happen
-                    throw new RuntimeException("WTF ??!", e);
-                }
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
             }
         }
     }
@@ -334,6 +334,19 @@ public class XmlAttribute extends AbstractXukAble implements IXmlAttribute
             throw new RuntimeException("WTF ??!", e);
         }
         setNamespace(ns);
+        String value = source.getAttribute("value");
+        if (value != null && value.length() > 0)
+        {
+            try
+            {
+                setValue(value);
+            }
+            catch (MethodParameterIsEmptyStringException e)
+            {
+                // Should never happen
+                throw new RuntimeException("WTF ??!", e);
+            }
+        }
     }
 
     @Override
@@ -356,6 +369,7 @@ public class XmlAttribute extends AbstractXukAble implements IXmlAttribute
         destination.writeAttributeString("localName", mLocalName);
         if (mNamespaceUri != "")
             destination.writeAttributeString("namespaceUri", mNamespaceUri);
+        destination.writeAttributeString("value", mValue);
         // super.xukOutAttributes(destination, baseUri, ph);
     }
 
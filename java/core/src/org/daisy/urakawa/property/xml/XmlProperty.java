@@ -243,6 +243,14 @@ public class XmlProperty extends Property implements IXmlProperty
         }
     }
 
+    /**
+     * @return the key of an attribute in mAttributes
+     */
+    private static String getAttributeKey(String localName, String namespaceUri)
+    {
+        return "{" + namespaceUri + "}" + localName;
+    }
+
     public List<IXmlAttribute> getListOfAttributes()
     {
         return new LinkedList<IXmlAttribute>(mAttributes.values());
@@ -258,8 +266,8 @@ public class XmlProperty extends Property implements IXmlProperty
         String key;
         try
         {
-            key = String.format("{1}:{0}", newAttribute.getLocalName(),
-                    newAttribute.getNamespace());
+            key = getAttributeKey(newAttribute.getLocalName(), newAttribute
+                    .getNamespace());
         }
         catch (IsNotInitializedException e)
         {
@@ -282,7 +290,7 @@ public class XmlProperty extends Property implements IXmlProperty
         }
         mAttributes.put(key, newAttribute);
         newAttribute.setParent(this);
-        notifyListeners(new XmlAttributeSetEvent(this, newAttribute, attrOld));
+        notifyListeners(new XmlAttributeSetEvent(this, attrOld, newAttribute));
         return (attrOld != null);
     }
 
@@ -297,8 +305,8 @@ public class XmlProperty extends Property implements IXmlProperty
         String key;
         try
         {
-            key = String.format("{1}:{0}", attrToRemove.getLocalName(),
-                    attrToRemove.getNamespace());
+            key = getAttributeKey(attrToRemove.getLocalName(), attrToRemove
+                    .getNamespace());
         }
         catch (IsNotInitializedException e)
         {
@@ -373,7 +381,7 @@ public class XmlProperty extends Property implements IXmlProperty
         {
             throw new MethodParameterIsEmptyStringException();
         }
-        String key = String.format("{1}:{0}", localName, namespaceUri);
+        String key = getAttributeKey(localName, namespaceUri);
         if (mAttributes.containsKey(key))
         {
             return mAttributes.get(key);
@@ -566,7 +574,8 @@ public class XmlProperty extends Property implements IXmlProperty
         {
             throw new ProgressCancelledException();
         }
-        if (source.getLocalName() == XmlAttribute.class.getSimpleName()
+        // The names of the reader are interned, getSimpleName() is not
+        if (source.getLocalName() == "XmlAttribute"
                 && source.getNamespaceURI() == IXukAble.XUK_NS)
         {
             IXmlAttribute attr = new XmlAttribute();
@@ -0,0 +1,730 @@
+package org.daisy.urakawa.property.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.core.ITreeNode;
+import org.daisy.urakawa.events.DataModelChangedEvent;
+import org.daisy.urakawa.events.IEventListener;
+import org.daisy.urakawa.events.core.ChildAddedEvent;
+import org.daisy.urakawa.events.core.ChildRemovedEvent;
+import org.daisy.urakawa.events.core.PropertyAddedEvent;
+import org.daisy.urakawa.events.core.PropertyRemovedEvent;
+import org.daisy.urakawa.events.presentation.RootNodeChangedEvent;
+import org.daisy.urakawa.events.presentation.SubTreesChangedEvent;
+import org.daisy.urakawa.events.property.xml.QNameChangedEvent;
+import org.daisy.urakawa.events.property.xml.ValueChangedEvent;
+import org.daisy.urakawa.events.property.xml.XmlAttributeSetEvent;
+import org.daisy.urakawa.exception.IsNotInitializedException;
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
+import org.daisy.urakawa.property.IProperty;
+
+/**
+ * <p>
+ * Index of the TreeNodes of the tree of a Presentation by the qualified name
+ * of their IXmlProperty, and by the value of selected attributes (such as
+ * "id"). The lookups return the TreeNodes in the document order (depth-first
+ * order of the tree).
+ * </p>
+ * <p>
+ * The index is built on the first lookup, then maintained from the events of
+ * the tree: addition and removal of TreeNodes and IXmlProperties, and changes
+ * of the qualified names, attributes and attribute values. It is built again
+ * after a change of root node, and after the changes made during a batch
+ * (see {@link Presentation#beginBatch()}). The document order of the
+ * TreeNodes of a name or value is restored on the next lookup of this name
+ * or value. Not thread-safe, like the Presentation.
+ * </p>
+ * 
+ * @see Presentation#getXmlPropertyIndex()
+ */
+public class XmlPropertyIndex
+{
+    /**
+     * The TreeNodes of a name or value: a set, and a list in the document
+     * order which is updated on demand.
+     */
+    private static final class Bucket
+    {
+        private Set<ITreeNode> mMembers = Collections
+                .newSetFromMap(new IdentityHashMap<ITreeNode, Boolean>());
+        // In the document order, can contain former members
+        private List<ITreeNode> mSorted = new ArrayList<ITreeNode>();
+        // Members not in mSorted, or at a position which may be wrong
+        private Set<ITreeNode> mAdded = Collections
+                .newSetFromMap(new IdentityHashMap<ITreeNode, Boolean>());
+        private boolean mRemoved = false;
+        private List<ITreeNode> mView = Collections
+                .unmodifiableList(mSorted);
+
+        void add(ITreeNode node)
+        {
+            if (mMembers.add(node))
+            {
+                mAdded.add(node);
+            }
+        }
+
+        /**
+         * Adds a node which follows all the members in the document order.
+         */
+        void append(ITreeNode node)
+        {
+            if (mMembers.add(node))
+            {
+                mSorted.add(node);
+            }
+        }
+
+        void remove(ITreeNode node)
+        {
+            if (mMembers.remove(node))
+            {
+                mAdded.remove(node);
+                mRemoved = true;
+            }
+        }
+
+        boolean isEmpty()
+        {
+            return mMembers.isEmpty();
+        }
+
+        List<ITreeNode> getList()
+        {
+            if (mRemoved)
+            {
+                int j = 0;
+                for (int i = 0; i < mSorted.size(); i++)
+                {
+                    ITreeNode node = mSorted.get(i);
+                    if (mMembers.contains(node) && !mAdded.contains(node))
+                    {
+                        mSorted.set(j++, node);
+                    }
+                }
+                mSorted.subList(j, mSorted.size()).clear();
+                mRemoved = false;
+            }
+            if (!mAdded.isEmpty())
+            {
+                DocumentOrder order = new DocumentOrder();
+                if (mAdded.size() <= 32)
+                {
+                    for (ITreeNode node : mAdded)
+                    {
+                        int index = Collections.binarySearch(mSorted, node,
+                                order);
+                        mSorted.add(index < 0 ? -index - 1 : index, node);
+                    }
+                }
+                else
+                {
+                    mSorted.addAll(mAdded);
+                    order.sort(mSorted);
+                }
+                mAdded.clear();
+            }
+            return mView;
+        }
+    }
+
+    /**
+     * Compares the positions of the TreeNodes in their tree, through the
+     * indexes of their ancestors, which are cached.
+     */
+    private static final class DocumentOrder implements Comparator<ITreeNode>
+    {
+        private Map<ITreeNode, Integer> mIndexes = new IdentityHashMap<ITreeNode, Integer>();
+        private Map<ITreeNode, int[]> mPaths = new IdentityHashMap<ITreeNode, int[]>();
+
+        private int getIndex(ITreeNode node)
+        {
+            Integer index = mIndexes.get(node);
+            if (index == null)
+            {
+                ITreeNode parent = node.getParent();
+                for (int i = 0; i < parent.getChildCount(); i++)
+                {
+                    try
+                    {
+                        mIndexes.put(parent.getChild(i), Integer.valueOf(i));
+                    }
+                    catch (MethodParameterIsOutOfBoundsException e)
+                    {
+                        // Should never happen
+                        throw new RuntimeException("WTF ??!", e);
+                    }
+                }
+                index = mIndexes.get(node);
+            }
+            return index.intValue();
+        }
+
+        private int[] getPath(ITreeNode node)
+        {
+            int[] path = mPaths.get(node);
+            if (path == null)
+            {
+                int depth = 0;
+                for (ITreeNode n = node; n.getParent() != null; n = n
+                        .getParent())
+                {
+                    depth++;
+                }
+                path = new int[depth];
+                for (ITreeNode n = node; n.getParent() != null; n = n
+                        .getParent())
+                {
+                    path[--depth] = getIndex(n);
+                }
+                mPaths.put(node, path);
+            }
+            return path;
+        }
+
+        public int compare(ITreeNode node1, ITreeNode node2)
+        {
+            int[] path1 = getPath(node1);
+            int[] path2 = getPath(node2);
+            int length = Math.min(path1.length, path2.length);
+            for (int i = 0; i < length; i++)
+            {
+                if (path1[i] != path2[i])
+                {
+                    return path1[i] < path2[i] ? -1 : 1;
+                }
+            }
+            // An ancestor comes before its descendants
+            return path1.length - path2.length;
+        }
+
+        void sort(List<ITreeNode> nodes)
+        {
+            Collections.sort(nodes, this);
+        }
+    }
+
+    private Presentation mPresentation;
+    private boolean mIsBuilt = false;
+    private boolean mIsBuilding = false;
+    private Map<String, Bucket> mNames = new HashMap<String, Bucket>();
+    private Set<String> mIndexedAttributes = new HashSet<String>();
+    // Attribute name -> attribute value -> TreeNodes
+    private Map<String, Map<String, Bucket>> mAttributeValues = new HashMap<String, Map<String, Bucket>>();
+    private IEventListener<DataModelChangedEvent> mDataModelChangedEventListener = new IEventListener<DataModelChangedEvent>()
+    {
+        public <K extends DataModelChangedEvent> void eventCallback(K event)
+                throws MethodParameterIsNullException
+        {
+            if (event == null)
+            {
+                throw new MethodParameterIsNullException();
+            }
+            if (mIsBuilt)
+            {
+                update(event);
+            }
+        }
+    };
+    private IEventListener<RootNodeChangedEvent> mRootNodeChangedEventListener = new IEventListener<RootNodeChangedEvent>()
+    {
+        public <K extends RootNodeChangedEvent> void eventCallback(K event)
+                throws MethodParameterIsNullException
+        {
+            if (event == null)
+            {
+                throw new MethodParameterIsNullException();
+            }
+            clear();
+        }
+    };
+
+    /**
+     * @param pres
+     *        the Presentation whose tree is indexed, cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public XmlPropertyIndex(Presentation pres)
+            throws MethodParameterIsNullException
+    {
+        if (pres == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mPresentation = pres;
+        pres.registerListener(mDataModelChangedEventListener,
+                DataModelChangedEvent.class);
+        pres.registerListener(mRootNodeChangedEventListener,
+                RootNodeChangedEvent.class);
+    }
+
+    private static String getKey(String localName, String namespaceUri)
+    {
+        return "{" + namespaceUri + "}" + localName;
+    }
+
+    private static String getKey(IWithQualifiedName named)
+    {
+        try
+        {
+            return getKey(named.getLocalName(), named.getNamespace());
+        }
+        catch (IsNotInitializedException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Discards the index, which will be built again on the next lookup. Does
+     * nothing if it is not built.
+     */
+    public void clear()
+    {
+        if (!mIsBuilt)
+        {
+            return;
+        }
+        mIsBuilt = false;
+        mNames.clear();
+        mAttributeValues.clear();
+    }
+
+    /**
+     * Adds an attribute to the attributes whose values are indexed. Does
+     * nothing if it is already the case.
+     * 
+     * @param localName
+     *        cannot be null
+     * @param namespaceUri
+     *        cannot be null, empty for no namespace
+     * @throws MethodParameterIsNullException
+     */
+    public void addIndexedAttribute(String localName, String namespaceUri)
+            throws MethodParameterIsNullException
+    {
+        if (localName == null || namespaceUri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        if (mIndexedAttributes.add(getKey(localName, namespaceUri)))
+        {
+            clear();
+        }
+    }
+
+    /**
+     * @param localName
+     *        cannot be null
+     * @param namespaceUri
+     *        cannot be null, empty for no namespace
+     * @return true if the values of the given attribute are indexed
+     * @throws MethodParameterIsNullException
+     */
+    public boolean isIndexedAttribute(String localName, String namespaceUri)
+            throws MethodParameterIsNullException
+    {
+        if (localName == null || namespaceUri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        return mIndexedAttributes.contains(getKey(localName, namespaceUri));
+    }
+
+    /**
+     * @param localName
+     *        cannot be null
+     * @param namespaceUri
+     *        cannot be null, empty for no namespace
+     * @return the TreeNodes of the tree of the Presentation which have an
+     *         IXmlProperty with the given qualified name, in the document
+     *         order. Cannot be modified, and is only valid until the next
+     *         change of the tree. Can be empty, but not null.
+     * @throws MethodParameterIsNullException
+     */
+    public List<ITreeNode> getListOfTreeNodes(String localName,
+            String namespaceUri) throws MethodParameterIsNullException
+    {
+        if (localName == null || namespaceUri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        build();
+        Bucket bucket = mNames.get(getKey(localName, namespaceUri));
+        if (bucket == null)
+        {
+            return Collections.emptyList();
+        }
+        return bucket.getList();
+    }
+
+    /**
+     * The values of the attribute are indexed if it is not already the case
+     * (see {@link #addIndexedAttribute(String, String)}).
+     * 
+     * @param localName
+     *        the local name of the attribute, cannot be null
+     * @param namespaceUri
+     *        the namespace of the attribute, cannot be null, empty for no
+     *        namespace
+     * @param value
+     *        cannot be null
+     * @return the TreeNodes of the tree of the Presentation which have an
+     *         IXmlProperty with the given attribute value, in the document
+     *         order. Cannot be modified, and is only valid until the next
+     *         change of the tree. Can be empty, but not null.
+     * @throws MethodParameterIsNullException
+     */
+    public List<ITreeNode> getListOfTreeNodesWithAttribute(String localName,
+            String namespaceUri, String value)
+            throws MethodParameterIsNullException
+    {
+        if (localName == null || namespaceUri == null || value == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        addIndexedAttribute(localName, namespaceUri);
+        build();
+        Map<String, Bucket> values = mAttributeValues.get(getKey(localName,
+                namespaceUri));
+        Bucket bucket = values == null ? null : values.get(value);
+        if (bucket == null)
+        {
+            return Collections.emptyList();
+        }
+        return bucket.getList();
+    }
+
+    /**
+     * Same as
+     * {@link #getListOfTreeNodesWithAttribute(String, String, String)}, for
+     * the attributes whose values are unique, such as identifiers.
+     * 
+     * @param localName
+     * @param namespaceUri
+     * @param value
+     * @return the first TreeNode in the document order which has an
+     *         IXmlProperty with the given attribute value, or null
+     * @throws MethodParameterIsNullException
+     */
+    public ITreeNode getTreeNodeWithAttribute(String localName,
+            String namespaceUri, String value)
+            throws MethodParameterIsNullException
+    {
+        List<ITreeNode> nodes = getListOfTreeNodesWithAttribute(localName,
+                namespaceUri, value);
+        return nodes.isEmpty() ? null : nodes.get(0);
+    }
+
+    private void build()
+    {
+        if (mIsBuilt)
+        {
+            return;
+        }
+        mNames.clear();
+        mAttributeValues.clear();
+        mIsBuilt = true;
+        ITreeNode root = mPresentation.getRootNode();
+        if (root == null)
+        {
+            return;
+        }
+        // Depth-first: the buckets are filled in the document order
+        mIsBuilding = true;
+        try
+        {
+            addSubTree(root);
+        }
+        finally
+        {
+            mIsBuilding = false;
+        }
+    }
+
+    private Bucket getBucket(Map<String, Bucket> buckets, String key,
+            boolean create)
+    {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null && create)
+        {
+            bucket = new Bucket();
+            buckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private void add(Map<String, Bucket> buckets, String key, ITreeNode node)
+    {
+        Bucket bucket = getBucket(buckets, key, true);
+        if (mIsBuilding)
+        {
+            bucket.append(node);
+        }
+        else
+        {
+            bucket.add(node);
+        }
+    }
+
+    private void addName(ITreeNode node, String key)
+    {
+        if (key != null)
+        {
+            add(mNames, key, node);
+        }
+    }
+
+    private void removeName(ITreeNode node, String key)
+    {
+        Bucket bucket = key == null ? null : getBucket(mNames, key, false);
+        if (bucket != null)
+        {
+            bucket.remove(node);
+            if (bucket.isEmpty())
+            {
+                mNames.remove(key);
+            }
+        }
+    }
+
+    private void addAttributeValue(ITreeNode node, String key, String value)
+    {
+        if (key == null || value == null || !mIndexedAttributes.contains(key))
+        {
+            return;
+        }
+        Map<String, Bucket> values = mAttributeValues.get(key);
+        if (values == null)
+        {
+            values = new HashMap<String, Bucket>();
+            mAttributeValues.put(key, values);
+        }
+        add(values, value, node);
+    }
+
+    private void removeAttributeValue(ITreeNode node, String key, String value)
+    {
+        Map<String, Bucket> values = key == null ? null : mAttributeValues
+                .get(key);
+        Bucket bucket = values == null || value == null ? null : getBucket(
+                values, value, false);
+        if (bucket != null)
+        {
+            bucket.remove(node);
+            if (bucket.isEmpty())
+            {
+                values.remove(value);
+            }
+        }
+    }
+
+    private void addXmlProperty(ITreeNode node, IXmlProperty xp)
+    {
+        addName(node, getKey(xp));
+        if (!mIndexedAttributes.isEmpty())
+        {
+            for (IXmlAttribute attr : xp.getListOfAttributes())
+            {
+                addAttributeValue(node, getKey(attr), attr.getValue());
+            }
+        }
+    }
+
+    private void removeXmlProperty(ITreeNode node, IXmlProperty xp)
+    {
+        removeName(node, getKey(xp));
+        if (!mIndexedAttributes.isEmpty())
+        {
+            for (IXmlAttribute attr : xp.getListOfAttributes())
+            {
+                removeAttributeValue(node, getKey(attr), attr.getValue());
+            }
+        }
+    }
+
+    private void addSubTree(ITreeNode node)
+    {
+        List<ITreeNode> stack = new ArrayList<ITreeNode>();
+        stack.add(node);
+        while (!stack.isEmpty())
+        {
+            ITreeNode n = stack.remove(stack.size() - 1);
+            for (IProperty prop : n.getListOfProperties())
+            {
+                if (prop instanceof IXmlProperty)
+                {
+                    addXmlProperty(n, (IXmlProperty) prop);
+                }
+            }
+            for (int i = n.getChildCount() - 1; i >= 0; i--)
+            {
+                try
+                {
+                    stack.add(n.getChild(i));
+                }
+                catch (MethodParameterIsOutOfBoundsException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+        }
+    }
+
+    private void removeSubTree(ITreeNode node)
+    {
+        List<ITreeNode> stack = new ArrayList<ITreeNode>();
+        stack.add(node);
+        while (!stack.isEmpty())
+        {
+            ITreeNode n = stack.remove(stack.size() - 1);
+            for (IProperty prop : n.getListOfProperties())
+            {
+                if (prop instanceof IXmlProperty)
+                {
+                    removeXmlProperty(n, (IXmlProperty) prop);
+                }
+            }
+            for (int i = n.getChildCount() - 1; i >= 0; i--)
+            {
+                try
+                {
+                    stack.add(n.getChild(i));
+                }
+                catch (MethodParameterIsOutOfBoundsException e)
+                {
+                    // Should never happen
+                    throw new RuntimeException("WTF ??!", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the node is in the tree of the Presentation
+     */
+    private boolean isInTree(ITreeNode node)
+    {
+        return node != null && node.getRoot() == mPresentation.getRootNode();
+    }
+
+    private void update(DataModelChangedEvent event)
+    {
+        if (event instanceof SubTreesChangedEvent)
+        {
+            // Nothing to do: the changes made during the batch discarded the
+            // index (see Presentation#addBatchChange(ITreeNode)), which is
+            // up to date if it was built again since
+        }
+        else
+            if (event instanceof ChildAddedEvent)
+            {
+                // Also raised directly on the Presentation, before being
+                // bubbled up the tree: only the bubbled one is used
+                ChildAddedEvent ev = (ChildAddedEvent) event;
+                if (ev.getOriginTreeNode() != null
+                        && isInTree(ev.getSourceTreeNode()))
+                {
+                    addSubTree(ev.getAddedChild());
+                }
+            }
+            else
+                if (event instanceof ChildRemovedEvent)
+                {
+                    ChildRemovedEvent ev = (ChildRemovedEvent) event;
+                    if (isInTree(ev.getSourceTreeNode()))
+                    {
+                        removeSubTree(ev.getRemovedChild());
+                    }
+                }
+                else
+                    if (event instanceof PropertyAddedEvent)
+                    {
+                        PropertyAddedEvent ev = (PropertyAddedEvent) event;
+                        if (ev.getAddedProperty() instanceof IXmlProperty
+                                && isInTree(ev.getSourceTreeNode()))
+                        {
+                            addXmlProperty(ev.getSourceTreeNode(),
+                                    (IXmlProperty) ev.getAddedProperty());
+                        }
+                    }
+                    else
+                        if (event instanceof PropertyRemovedEvent)
+                        {
+                            PropertyRemovedEvent ev = (PropertyRemovedEvent) event;
+                            if (ev.getRemovedProperty() instanceof IXmlProperty
+                                    && isInTree(ev.getSourceTreeNode()))
+                            {
+                                removeXmlProperty(ev.getSourceTreeNode(),
+                                        (IXmlProperty) ev.getRemovedProperty());
+                            }
+                        }
+                        else
+                            if (event instanceof QNameChangedEvent)
+                            {
+                                QNameChangedEvent ev = (QNameChangedEvent) event;
+                                ITreeNode node = ev.getOriginTreeNode();
+                                if (isInTree(node))
+                                {
+                                    if (ev.getPreviousLocalName() != null)
+                                    {
+                                        removeName(node, getKey(ev
+                                                .getPreviousLocalName(), ev
+                                                .getPreviousNamespaceUri()));
+                                    }
+                                    addName(node, getKey(ev.getNewLocalName(),
+                                            ev.getNewNamespaceUri()));
+                                }
+                            }
+                            else
+                                if (event instanceof XmlAttributeSetEvent)
+                                {
+                                    XmlAttributeSetEvent ev = (XmlAttributeSetEvent) event;
+                                    ITreeNode node = ev.getOriginTreeNode();
+                                    if (isInTree(node))
+                                    {
+                                        IXmlAttribute attr = ev
+                                                .getPreviousAttribute();
+                                        if (attr != null)
+                                        {
+                                            removeAttributeValue(node,
+                                                    getKey(attr), attr
+                                                            .getValue());
+                                        }
+                                        attr = ev.getNewAttribute();
+                                        if (attr != null)
+                                        {
+                                            addAttributeValue(node,
+                                                    getKey(attr), attr
+                                                            .getValue());
+                                        }
+                                    }
+                                }
+                                else
+                                    if (event instanceof ValueChangedEvent)
+                                    {
+                                        ValueChangedEvent ev = (ValueChangedEvent) event;
+                                        ITreeNode node = ev.getOriginTreeNode();
+                                        if (isInTree(node))
+                                        {
+                                            String key = getKey(ev
+                                                    .getSourceXmlAttribute());
+                                            removeAttributeValue(node, key, ev
+                                                    .getPreviousValue());
+                                            addAttributeValue(node, key, ev
+                                                    .getNewValue());
+                                        }
+                                    }
+    }
+}
@@ -1,8 +1,12 @@
 package org.daisy.urakawa.undo;
 
 import java.net.URI;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 import org.daisy.urakawa.Presentation;
@@ -23,6 +27,8 @@ import org.daisy.urakawa.events.undo.TransactionEndedEvent;
 import org.daisy.urakawa.events.undo.TransactionStartedEvent;
 import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
 import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.media.data.DataProviderManager;
+import org.daisy.urakawa.media.data.IDataProvider;
 import org.daisy.urakawa.media.data.IMediaData;
 import org.daisy.urakawa.nativeapi.IXmlDataReader;
 import org.daisy.urakawa.nativeapi.IXmlDataWriter;
@@ -73,6 +79,16 @@ public final class UndoRedoManager extends AbstractXukAble implements
     private Stack<ICommand> mUndoStack;
     private Stack<ICommand> mRedoStack;
     private Stack<ICompositeCommand> mActiveTransactions;
+    /**
+     * The IDataProviders on which each command of the undo and redo stacks,
+     * and of the active transactions, holds a reference (see
+     * {@link DataProviderManager#addDataProviderReference(IDataProvider)}):
+     * the IDataProviders of the IMediaData it uses, which must be kept as
+     * long as the command can be undone or redone. The commands of a
+     * transaction hand their references over to it when it ends.
+     */
+    private Map<ICommand, List<IDataProvider>> mCommandReferences = new IdentityHashMap<ICommand, List<IDataProvider>>();
+    private long mModificationCount = 0;
 
     /**
      * @param pres
@@ -85,6 +101,7 @@ public final class UndoRedoManager extends AbstractXukAble implements
         {
             throw new MethodParameterIsNullException();
         }
+        mPresentation = pres;
         mUndoStack = new Stack<ICommand>();
         mRedoStack = new Stack<ICommand>();
         mActiveTransactions = new Stack<ICompositeCommand>();
@@ -97,13 +114,163 @@ public final class UndoRedoManager extends AbstractXukAble implements
      *         if an undo-redo transaction is currently active.
      */
     public void flushCommands() throws UndoRedoTransactionIsNotEndedException
+    {
+        flushCommands(true);
+    }
+
+    /**
+     * @param delete
+     *        if false, the IDataProviders which are not referenced any more
+     *        once the commands are flushed are not deleted
+     */
+    private void flushCommands(boolean delete)
+            throws UndoRedoTransactionIsNotEndedException
     {
         if (isTransactionActive())
         {
             throw new UndoRedoTransactionIsNotEndedException();
         }
+        for (ICommand cmd : mUndoStack)
+        {
+            removeDataProviderReferences(cmd, delete);
+        }
+        for (ICommand cmd : mRedoStack)
+        {
+            removeDataProviderReferences(cmd, delete);
+        }
         mUndoStack.clear();
         mRedoStack.clear();
+        mModificationCount++;
+    }
+
+    /**
+     * @return a counter incremented by every change to the undo and redo
+     *         stacks and to the active transactions: whenever an event is
+     *         raised, when the commands are flushed, and when the stacks are
+     *         read from XUK
+     */
+    public long getModificationCount()
+    {
+        return mModificationCount;
+    }
+
+    /**
+     * Adds references, on behalf of the given command of the undo or redo
+     * stack, on the IDataProviders of the IMediaData it uses which it does
+     * not reference yet. The references are only removed when the command
+     * leaves the stacks, so that the audio data it used at any time stays
+     * available to undo or redo it.
+     */
+    private void updateDataProviderReferences(ICommand cmd)
+    {
+        DataProviderManager manager = getPresentation()
+                .getDataProviderManager();
+        List<IDataProvider> providers = mCommandReferences.get(cmd);
+        if (providers == null)
+        {
+            providers = new LinkedList<IDataProvider>();
+            mCommandReferences.put(cmd, providers);
+        }
+        Set<IDataProvider> found = Collections
+                .newSetFromMap(new IdentityHashMap<IDataProvider, Boolean>());
+        found.addAll(providers);
+        try
+        {
+            for (IMediaData md : cmd.getListOfUsedMediaData())
+            {
+                for (IDataProvider prov : md.getListOfUsedDataProviders())
+                {
+                    if (found.add(prov))
+                    {
+                        manager.addDataProviderReference(prov);
+                        providers.add(prov);
+                    }
+                }
+            }
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    /**
+     * Moves the references held by the commands of the given transaction to
+     * the transaction itself, when it ends: the references taken by a command
+     * before it was executed cover the IDataProviders it no longer uses, and
+     * must be kept for the transaction to be undone.
+     */
+    private void transferDataProviderReferences(ICompositeCommand transaction)
+    {
+        List<IDataProvider> providers = mCommandReferences.get(transaction);
+        if (providers == null)
+        {
+            providers = new LinkedList<IDataProvider>();
+            mCommandReferences.put(transaction, providers);
+        }
+        Set<IDataProvider> found = Collections
+                .newSetFromMap(new IdentityHashMap<IDataProvider, Boolean>());
+        found.addAll(providers);
+        DataProviderManager manager = getPresentation()
+                .getDataProviderManager();
+        try
+        {
+            for (ICommand cmd : transaction.getListOfCommands())
+            {
+                List<IDataProvider> cmdProviders = mCommandReferences
+                        .remove(cmd);
+                if (cmdProviders == null)
+                {
+                    continue;
+                }
+                for (IDataProvider prov : cmdProviders)
+                {
+                    if (found.add(prov))
+                    {
+                        providers.add(prov);
+                    }
+                    else
+                    {
+                        // Already held by the transaction
+                        manager.removeDataProviderReference(prov, false);
+                    }
+                }
+            }
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+    }
+
+    /**
+     * Removes the references held by the given command, when it leaves the
+     * undo and redo stacks, or when its transaction is cancelled.
+     */
+    private void removeDataProviderReferences(ICommand cmd, boolean delete)
+    {
+        List<IDataProvider> providers = mCommandReferences.remove(cmd);
+        if (providers == null)
+        {
+            return;
+        }
+        DataProviderManager manager = getPresentation()
+                .getDataProviderManager();
+        try
+        {
+            for (IDataProvider prov : providers)
+            {
+                manager.removeDataProviderReference(prov, delete
+                        && manager.getDeleteUnreferencedDataProviders());
+            }
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
     }
 
     protected void pushCommand(ICommand iCommand)
@@ -124,12 +291,21 @@ public final class UndoRedoManager extends AbstractXukAble implements
                 // Should never happen
                 throw new RuntimeException("WTF ??!", e);
             }
+            // Before the command is executed, so that the IDataProviders it
+            // stops using are not deleted while the transaction can still be
+            // undone or cancelled
+            updateDataProviderReferences(iCommand);
         }
         else
         {
             if (iCommand.canUnExecute())
             {
                 mUndoStack.push(iCommand);
+                updateDataProviderReferences(iCommand);
+                for (ICommand cmd : mRedoStack)
+                {
+                    removeDataProviderReferences(cmd, true);
+                }
                 mRedoStack.clear();
             }
             else
@@ -174,6 +350,10 @@ public final class UndoRedoManager extends AbstractXukAble implements
             throw new MethodParameterIsNullException();
         pushCommand(iCommand);
         iCommand.execute();
+        if (mCommandReferences.containsKey(iCommand))
+        {
+            updateDataProviderReferences(iCommand);
+        }
         notifyListeners(new CommandDoneEvent(this, iCommand));
     }
 
@@ -207,6 +387,7 @@ public final class UndoRedoManager extends AbstractXukAble implements
         }
         ICommand cmd = mUndoStack.pop();
         mRedoStack.push(cmd);
+        updateDataProviderReferences(cmd);
         try
         {
             notifyListeners(new CommandUnDoneEvent(this, cmd));
@@ -248,6 +429,7 @@ public final class UndoRedoManager extends AbstractXukAble implements
         }
         ICommand cmd = mRedoStack.pop();
         mUndoStack.push(cmd);
+        updateDataProviderReferences(cmd);
         try
         {
             notifyListeners(new CommandReDoneEvent(this, cmd));
@@ -351,6 +533,8 @@ public final class UndoRedoManager extends AbstractXukAble implements
     public List<IMediaData> getListOfUsedMediaData()
     {
         List<IMediaData> res = new LinkedList<IMediaData>();
+        Set<IMediaData> found = Collections
+                .newSetFromMap(new IdentityHashMap<IMediaData, Boolean>());
         List<ICommand> iCommands = new LinkedList<ICommand>();
         iCommands.addAll(getListOfUndoStackCommands());
         iCommands.addAll(getListOfRedoStackCommands());
@@ -359,7 +543,7 @@ public final class UndoRedoManager extends AbstractXukAble implements
         {
             for (IMediaData md : cmd.getListOfUsedMediaData())
             {
-                if (!res.contains(md))
+                if (found.add(md))
                     res.add(md);
             }
         }
@@ -484,9 +668,11 @@ public final class UndoRedoManager extends AbstractXukAble implements
         {
             throw new UndoRedoTransactionIsNotStartedException();
         }
+        ICompositeCommand transaction = mActiveTransactions.pop();
+        transferDataProviderReferences(transaction);
         try
         {
-            pushCommand(mActiveTransactions.pop());
+            pushCommand(transaction);
         }
         catch (CannotExecuteIrreversibleCommandException e)
         {
@@ -522,15 +708,21 @@ public final class UndoRedoManager extends AbstractXukAble implements
         {
             throw new UndoRedoTransactionIsNotStartedException();
         }
+        ICompositeCommand transaction = mActiveTransactions.pop();
         try
         {
-            mActiveTransactions.pop().unExecute();
+            transaction.unExecute();
         }
         catch (CommandCannotUnExecuteException e)
         {
             // Should never happen
             throw new RuntimeException("WTF ??!", e);
         }
+        // The IDataProviders created by the cancelled commands are deleted
+        for (ICommand cmd : transaction.getListOfCommands())
+        {
+            removeDataProviderReferences(cmd, true);
+        }
         try
         {
             notifyListeners(new TransactionCancelledEvent(this));
@@ -570,7 +762,9 @@ public final class UndoRedoManager extends AbstractXukAble implements
         }
         try
         {
-            flushCommands();
+            // The IDataProviders are not deleted: they may be used by the
+            // data about to be read
+            flushCommands(false);
         }
         catch (UndoRedoTransactionIsNotEndedException e)
         {
@@ -668,6 +862,7 @@ public final class UndoRedoManager extends AbstractXukAble implements
                         throw new RuntimeException("WTF ??!", e1);
                     }
                     stack.push((T) cmd);
+                    mModificationCount++;
                     try
                     {
                         cmd.xukIn(source, ph);
@@ -677,6 +872,7 @@ public final class UndoRedoManager extends AbstractXukAble implements
                         // Should never happen
                         throw new RuntimeException("WTF ??!", e);
                     }
+                    updateDataProviderReferences(cmd);
                 }
                 else
                     if (source.getNodeType() == IXmlDataReader.END_ELEMENT)
@@ -777,6 +973,7 @@ public final class UndoRedoManager extends AbstractXukAble implements
         {
             throw new MethodParameterIsNullException();
         }
+        mModificationCount++;
         if (TransactionStartedEvent.class.isAssignableFrom(event.getClass()))
         {
             mTransactionStartedEventNotifier.notifyListeners(event);
@@ -162,7 +162,8 @@ public abstract class AbstractXukAble implements IXukAble
         }
         catch (NoSuchFieldException e1)
         {
-            return "";
+            // Inherited from the super class, or the baseline namespace
+            field = null;
         }
         if (field != null)
         {
@@ -187,7 +188,7 @@ public abstract class AbstractXukAble implements IXukAble
         {
             return getXukNamespaceUri((Class<IXukAble>) superKlass);
         }
-        return "";
+        return IXukAble.XUK_NS;
     }
 
     /**
@@ -0,0 +1,20 @@
+package org.daisy.urakawa.xuk;
+
+/**
+ * <p>
+ * Implemented by the IXukAble objects that can skip parts of their XUK
+ * element when they are read, and deserialize them later on demand (see
+ * {@link LazyXukSource}).
+ * </p>
+ */
+public interface ILazyXukAble
+{
+    /**
+     * Deserializes all the parts of the XUK element of this object that were
+     * skipped when it was read. Does nothing if there are none.
+     * 
+     * @throws XukDeserializationFailedException
+     *         if the XUK file cannot be read anymore
+     */
+    public void loadLazyXukContent() throws XukDeserializationFailedException;
+}
@@ -0,0 +1,361 @@
+package org.daisy.urakawa.xuk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.daisy.urakawa.exception.MethodParameterIsEmptyStringException;
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.exception.MethodParameterIsOutOfBoundsException;
+import org.daisy.urakawa.nativeapi.FileStream;
+import org.daisy.urakawa.nativeapi.IStream;
+import org.daisy.urakawa.nativeapi.IXmlDataReader;
+import org.daisy.urakawa.nativeapi.MemoryStream;
+import org.daisy.urakawa.nativeapi.SequenceStream;
+import org.daisy.urakawa.nativeapi.SubStream;
+import org.daisy.urakawa.nativeapi.XmlDataReader;
+
+/**
+ * <p>
+ * The location, in a XUK file, of an element that was skipped while the file
+ * was read (see {@link OpenXukAction#OpenXukAction(IXukAble, URI, boolean)}),
+ * so that it can be deserialized later, the first time its content is
+ * needed.
+ * </p>
+ * <p>
+ * An element can be skipped when the reader tracks byte offsets (see
+ * {@link XmlDataReader#isTrackingByteOffsets()}) and reads a local file. The
+ * byte range of the element is recorded, along with the encoding of the file
+ * and the namespaces declared by its ancestors: on demand, the range is
+ * parsed again inside a wrapper element that re-declares these namespaces.
+ * The reader returned by {@link #open()} itself tracks byte offsets, so that
+ * the elements inside a large range can be skipped again, if the range is at
+ * least {@link #MINIMUM_LAZY_LENGTH} bytes long; a smaller range is read in
+ * one go.
+ * </p>
+ * <p>
+ * The file must not change until the skipped elements have been loaded: its
+ * length and modification date are checked when a range is opened, and
+ * {@link SaveXukAction} loads all the pending elements (see
+ * {@link #loadAll(URI)}) before overwriting a file they come from.
+ * </p>
+ */
+public final class LazyXukSource
+{
+    /**
+     * The minimum length, in bytes, of a range for the elements it contains
+     * to be skipped again when it is loaded.
+     */
+    public static final long MINIMUM_LAZY_LENGTH = 256 * 1024;
+    private static final String WRAPPER_NAME = "lazyXukContent";
+    /**
+     * The objects which have skipped elements, by file. The owners are weakly
+     * referenced, the registration of a discarded object goes away with it.
+     */
+    private static final Map<File, WeakHashMap<ILazyXukAble, Boolean>> mOwners = new HashMap<File, WeakHashMap<ILazyXukAble, Boolean>>();
+    private File mFile;
+    private long mFileLength;
+    private long mFileLastModified;
+    private String mBaseUri;
+    private long mStartByteOffset;
+    private long mEndByteOffset;
+    private String mEncoding;
+    private Map<String, String> mNamespaces;
+
+    private LazyXukSource(File file, String baseUri, long start, long end,
+            String encoding, Map<String, String> namespaces)
+    {
+        mFile = file;
+        mFileLength = file.length();
+        mFileLastModified = file.lastModified();
+        mBaseUri = baseUri;
+        mStartByteOffset = start;
+        mEndByteOffset = end;
+        mEncoding = encoding;
+        mNamespaces = namespaces;
+    }
+
+    private static File getFile(String uri)
+    {
+        if (uri == null || uri.length() == 0)
+        {
+            return null;
+        }
+        try
+        {
+            URI u = new URI(uri);
+            if (!"file".equals(u.getScheme()))
+            {
+                return null;
+            }
+            return new File(u).getAbsoluteFile();
+        }
+        catch (URISyntaxException e)
+        {
+            return null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Skips the element the given reader is positioned on, if possible, and
+     * records its location. The content of the element is not parsed, only
+     * scanned to find its end (see {@link XmlDataReader#skipElementContent()}
+     * ), unless the reader does not read a random access stream.
+     * 
+     * @param source
+     *        cannot be null, positioned on the element to skip
+     * @param owner
+     *        the object the element belongs to, cannot be null
+     * @return the location of the skipped element, or null if the element
+     *         cannot be skipped (the reader does not track byte offsets, the
+     *         element is empty, etc.), in which case the reader has not moved
+     * @throws MethodParameterIsNullException
+     * @throws XukDeserializationFailedException
+     *         if the element was skipped but its end could not be located
+     */
+    public static LazyXukSource skip(IXmlDataReader source, ILazyXukAble owner)
+            throws MethodParameterIsNullException,
+            XukDeserializationFailedException
+    {
+        if (source == null || owner == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        XmlDataReader reader = XmlDataReader.getXmlDataReader(source);
+        if (reader == null || !reader.isTrackingByteOffsets()
+                || source.getNodeType() != IXmlDataReader.ELEMENT
+                || source.isEmptyElement())
+        {
+            return null;
+        }
+        long start = reader.getNodeStartByteOffset();
+        File file = getFile(source.getBaseURI());
+        if (start < 0 || file == null || !file.isFile())
+        {
+            return null;
+        }
+        Map<String, String> namespaces = reader.getNamespacesInScope();
+        if (!reader.skipElementContent())
+        {
+            source.readSubtree().close();
+        }
+        long end = reader.getNodeEndByteOffset();
+        if (end <= start)
+        {
+            throw new XukDeserializationFailedException();
+        }
+        LazyXukSource res = new LazyXukSource(file, source.getBaseURI(),
+                start, end, reader.getEncoding(), namespaces);
+        synchronized (mOwners)
+        {
+            WeakHashMap<ILazyXukAble, Boolean> owners = mOwners.get(file);
+            if (owners == null)
+            {
+                owners = new WeakHashMap<ILazyXukAble, Boolean>();
+                mOwners.put(file, owners);
+            }
+            owners.put(owner, Boolean.TRUE);
+        }
+        return res;
+    }
+
+    /**
+     * @return the length in bytes of the skipped element
+     */
+    public long getLength()
+    {
+        return mEndByteOffset - mStartByteOffset;
+    }
+
+    private static String escape(String str)
+    {
+        return str.replace("&", "&amp;").replace("\"", "&quot;").replace("<",
+                "&lt;");
+    }
+
+    private byte[] encode(String str) throws XukDeserializationFailedException
+    {
+        try
+        {
+            return str.getBytes(mEncoding);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new XukDeserializationFailedException();
+        }
+    }
+
+    private byte[] getWrapperStart() throws XukDeserializationFailedException
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"");
+        sb.append(mEncoding);
+        sb.append("\"?><");
+        sb.append(WRAPPER_NAME);
+        for (Map.Entry<String, String> ns : mNamespaces.entrySet())
+        {
+            sb.append(ns.getKey().length() == 0 ? " xmlns" : " xmlns:"
+                    + ns.getKey());
+            sb.append("=\"");
+            sb.append(escape(ns.getValue()));
+            sb.append('"');
+        }
+        sb.append('>');
+        return encode(sb.toString());
+    }
+
+    /**
+     * Parses the skipped element again. The returned reader must be closed
+     * with {@link #close(IXmlDataReader)}.
+     * 
+     * @return a reader positioned on the skipped element
+     * @throws XukDeserializationFailedException
+     *         if the file has changed or cannot be read
+     */
+    public IXmlDataReader open() throws XukDeserializationFailedException
+    {
+        if (mFile.length() != mFileLength
+                || mFile.lastModified() != mFileLastModified)
+        {
+            throw new XukDeserializationFailedException();
+        }
+        byte[] start = getWrapperStart();
+        byte[] end = encode("</" + WRAPPER_NAME + ">");
+        IStream stream;
+        try
+        {
+            FileStream file = new FileStream(mFile.getPath());
+            List<IStream> parts = new ArrayList<IStream>(3);
+            parts.add(new MemoryStream(start));
+            parts.add(new SubStream(file, mStartByteOffset, getLength()));
+            parts.add(new MemoryStream(end));
+            stream = new SequenceStream(parts);
+        }
+        catch (IOException e)
+        {
+            throw new XukDeserializationFailedException();
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        catch (MethodParameterIsOutOfBoundsException e)
+        {
+            // The file is shorter than the range
+            throw new XukDeserializationFailedException();
+        }
+        catch (MethodParameterIsEmptyStringException e)
+        {
+            // The file is shorter than the range
+            throw new XukDeserializationFailedException();
+        }
+        XmlDataReader reader;
+        try
+        {
+            if (getLength() >= MINIMUM_LAZY_LENGTH)
+            {
+                reader = new XmlDataReader(stream, mBaseUri, mStartByteOffset
+                        - start.length);
+            }
+            else
+            {
+                reader = new XmlDataReader(stream, mBaseUri);
+            }
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        try
+        {
+            // The wrapper, then the skipped element
+            if (reader.read() && !reader.isEmptyElement())
+            {
+                reader.read();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            close(reader);
+            throw new XukDeserializationFailedException();
+        }
+        if (reader.getNodeType() != IXmlDataReader.ELEMENT)
+        {
+            close(reader);
+            throw new XukDeserializationFailedException();
+        }
+        return reader;
+    }
+
+    /**
+     * Closes a reader returned by {@link #open()}, and the file it reads.
+     * 
+     * @param reader
+     *        cannot be null
+     */
+    public static void close(IXmlDataReader reader)
+    {
+        reader.close();
+        try
+        {
+            reader.getBaseStream().close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads all the skipped elements that come from the given file.
+     * 
+     * @param uri
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     * @throws XukDeserializationFailedException
+     */
+    public static void loadAll(URI uri) throws MethodParameterIsNullException,
+            XukDeserializationFailedException
+    {
+        if (uri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        File file = getFile(uri.toString());
+        if (file == null)
+        {
+            return;
+        }
+        while (true)
+        {
+            List<ILazyXukAble> owners;
+            synchronized (mOwners)
+            {
+                WeakHashMap<ILazyXukAble, Boolean> map = mOwners.remove(file);
+                if (map == null)
+                {
+                    return;
+                }
+                owners = new ArrayList<ILazyXukAble>(map.keySet());
+            }
+            // Loading may skip (and register) more elements, hence the loop.
+            for (ILazyXukAble owner : owners)
+            {
+                owner.loadLazyXukContent();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.daisy.urakawa.xuk;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.nativeapi.BinaryXmlDataReader;
+import org.daisy.urakawa.nativeapi.FileStream;
+import org.daisy.urakawa.nativeapi.IXmlDataReader;
+
+/**
+ * Opens a binary XUK file, as saved by {@link SaveBinaryXukAction}. The
+ * content is the same as in the XUK file, so an IXukAble is read the same
+ * way from both.
+ */
+public class OpenBinaryXukAction extends OpenXukAction
+{
+    private static IXmlDataReader getReaderFromUri(URI uri)
+            throws MethodParameterIsNullException
+    {
+        if (uri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        FileStream stream;
+        try
+        {
+            stream = new FileStream(uri.getPath());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot open " + uri, e);
+        }
+        try
+        {
+            return new BinaryXmlDataReader(stream, uri.toString());
+        }
+        catch (RuntimeException e)
+        {
+            try
+            {
+                stream.close();
+            }
+            catch (IOException e1)
+            {
+                e1.printStackTrace();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param xukAble
+     *        cannot be null
+     * @param uri
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public OpenBinaryXukAction(IXukAble xukAble, URI uri)
+            throws MethodParameterIsNullException
+    {
+        super(xukAble, uri, getReaderFromUri(uri));
+    }
+}
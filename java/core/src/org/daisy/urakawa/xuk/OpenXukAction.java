@@ -34,13 +34,29 @@ public class OpenXukAction extends ProgressAction implements
     private IStream mStream;
 
     private static IStream getStreamFromUri(URI uri)
+            throws MethodParameterIsNullException
     {
-        return new FileStream(uri.getPath());
+        try
+        {
+            return new FileStream(uri.getPath());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot open " + uri, e);
+        }
     }
 
     private void initializeXmlReader(IStream stream)
+            throws MethodParameterIsNullException
     {
-        mReader = new XmlDataReader(stream);
+        mReader = new XmlDataReader(stream, mUri == null ? null : mUri
+                .toString());
+    }
+
+    private void initializeLazyXmlReader(IStream stream)
+            throws MethodParameterIsNullException
+    {
+        mReader = new XmlDataReader(stream, mUri.toString(), 0);
     }
 
     /**
@@ -107,6 +123,40 @@ public class OpenXukAction extends ProgressAction implements
         initializeXmlReader(mStream);
     }
 
+    /**
+     * With lazy loading, the properties and children of the TreeNodes are not
+     * deserialized when the file is opened, but the first time they are
+     * accessed (see {@link LazyXukSource}). The file is kept on disk for that
+     * purpose, and must not be modified in the meantime.
+     * 
+     * @param xukAble
+     *        cannot be null
+     * @param uri
+     *        cannot be null, a "file:" URI of a UTF-8 XUK file for lazy
+     *        loading to take place
+     * @param lazyLoading
+     * @throws MethodParameterIsNullException
+     */
+    public OpenXukAction(IXukAble xukAble, URI uri, boolean lazyLoading)
+            throws MethodParameterIsNullException
+    {
+        if (uri == null || xukAble == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mUri = uri;
+        mXukAble = xukAble;
+        mStream = getStreamFromUri(uri);
+        if (lazyLoading && "file".equals(uri.getScheme()))
+        {
+            initializeLazyXmlReader(mStream);
+        }
+        else
+        {
+            initializeXmlReader(mStream);
+        }
+    }
+
     public boolean canExecute()
     {
         return mReader != null;
@@ -133,19 +183,29 @@ public class OpenXukAction extends ProgressAction implements
         return pi;
     }
 
+    /**
+     * Can be called several times, for example from a catch block and then
+     * from the finally block.
+     */
     private void closeInput()
     {
-        mReader.close();
-        mReader = null;
-        try
+        if (mReader != null)
         {
-            mStream.close();
+            mReader.close();
+            mReader = null;
         }
-        catch (IOException e)
+        if (mStream != null)
         {
-            e.printStackTrace();
+            try
+            {
+                mStream.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            mStream = null;
         }
-        mStream = null;
     }
 
     /**
@@ -163,13 +223,14 @@ public class OpenXukAction extends ProgressAction implements
         boolean foundXukAble = false;
         if (!mReader.isEmptyElement())
         {
-            while (mReader.read())
+            while (mReader != null && mReader.read())
             {
                 if (mReader.getNodeType() == IXmlDataReader.ELEMENT)
                 {
-                    if (mReader.getLocalName() == mXukAble.getXukLocalName()
-                            && mReader.getNamespaceURI() == mXukAble
-                                    .getXukNamespaceURI())
+                    if (mReader.getLocalName().equals(
+                            mXukAble.getXukLocalName())
+                            && mReader.getNamespaceURI().equals(
+                                    mXukAble.getXukNamespaceURI()))
                     {
                         foundXukAble = true;
                         try
@@ -226,7 +287,7 @@ public class OpenXukAction extends ProgressAction implements
                     }
                 }
                 else
-                    if (mReader.getNodeType() == IXmlDataReader.ELEMENT)
+                    if (mReader.getNodeType() == IXmlDataReader.END_ELEMENT)
                     {
                         break;
                     }
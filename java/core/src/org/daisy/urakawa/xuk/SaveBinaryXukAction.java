@@ -0,0 +1,40 @@
+package org.daisy.urakawa.xuk;
+
+import java.net.URI;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.nativeapi.BinaryXmlDataWriter;
+import org.daisy.urakawa.nativeapi.IStream;
+import org.daisy.urakawa.nativeapi.IXmlDataWriter;
+
+/**
+ * Saves to a binary XUK file (see {@link BinaryXmlDataWriter}), which is
+ * smaller and faster to open than the XUK file but holds the same content:
+ * opening it with {@link OpenBinaryXukAction} and saving with
+ * {@link SaveXukAction} gives back the XUK file.
+ */
+public class SaveBinaryXukAction extends SaveXukAction
+{
+    /**
+     * @param xukAble
+     *        cannot be null
+     * @param uri
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public SaveBinaryXukAction(IXukAble xukAble, URI uri)
+            throws MethodParameterIsNullException
+    {
+        super(xukAble, uri);
+    }
+
+    /**
+     * @hidden
+     */
+    @Override
+    protected IXmlDataWriter createXmlWriter(IStream stream)
+            throws MethodParameterIsNullException
+    {
+        return new BinaryXmlDataWriter(stream);
+    }
+}
@@ -1,5 +1,6 @@
 package org.daisy.urakawa.xuk;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 
@@ -21,7 +22,18 @@ import org.daisy.urakawa.progress.ProgressCancelledException;
 import org.daisy.urakawa.progress.ProgressInformation;
 
 /**
- *
+ * <p>
+ * Serializes an IXukAble to a XUK file.
+ * </p>
+ * <p>
+ * When the action is given the URI of the file (see
+ * {@link #SaveXukAction(IXukAble, URI)}), the content is first written to a
+ * temporary file next to it, which is flushed to the storage device and then
+ * renamed over the destination once the serialization has completed: the
+ * destination always holds either its previous content or the new one, even
+ * if the application crashes or the save is cancelled. The journal of the
+ * destination (see {@link XukJournal}) is deleted once it has been replaced.
+ * </p>
  */
 public class SaveXukAction extends ProgressAction implements
         IEventListener<CancellableEvent>
@@ -31,15 +43,47 @@ public class SaveXukAction extends ProgressAction implements
     private IXukAble mXukAble;
     private IStream mStream;
     private IXmlDataWriter mWriter;
+    /**
+     * The file written to, which replaces the destination file when the
+     * serialization completes. Null if the action was given a stream or a
+     * writer.
+     */
+    private File mTempFile = null;
 
-    private static IStream getStreamFromUri(URI uri)
+    private static IStream getStreamFromFile(File file)
+            throws MethodParameterIsNullException
     {
-        return new FileStream(uri.getPath());
+        try
+        {
+            FileStream fs = new FileStream(file.getPath(), true);
+            fs.setLength(0);
+            return fs;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Cannot open " + file, e);
+        }
     }
 
     private void initializeXmlWriter(IStream stream)
+            throws MethodParameterIsNullException
     {
-        mWriter = new XmlDataWriter(stream);
+        mWriter = createXmlWriter(stream);
+    }
+
+    /**
+     * Creates the writer used to serialize to the given stream, a
+     * {@link XmlDataWriter} by default. Called from the constructor.
+     * 
+     * @param stream
+     *        cannot be null
+     * @return the writer
+     * @throws MethodParameterIsNullException
+     */
+    protected IXmlDataWriter createXmlWriter(IStream stream)
+            throws MethodParameterIsNullException
+    {
+        return new XmlDataWriter(stream);
     }
 
     /**
@@ -87,6 +131,10 @@ public class SaveXukAction extends ProgressAction implements
     }
 
     /**
+     * If the destination file was opened with lazy loading (see
+     * {@link LazyXukSource}), the content not loaded yet is loaded before the
+     * file is overwritten.
+     * 
      * @param xukAble
      *        cannot be null
      * @param uri
@@ -102,7 +150,17 @@ public class SaveXukAction extends ProgressAction implements
         }
         mUri = uri;
         mXukAble = xukAble;
-        mStream = getStreamFromUri(uri);
+        try
+        {
+            LazyXukSource.loadAll(uri);
+        }
+        catch (XukDeserializationFailedException e)
+        {
+            throw new RuntimeException("Cannot load the content of " + uri,
+                    e);
+        }
+        mTempFile = new File(uri.getPath() + ".tmp");
+        mStream = getStreamFromFile(mTempFile);
         initializeXmlWriter(mStream);
     }
 
@@ -138,6 +196,10 @@ public class SaveXukAction extends ProgressAction implements
         mWriter = null;
         try
         {
+            if (mTempFile != null)
+            {
+                ((FileStream) mStream).flush();
+            }
             mStream.close();
         }
         catch (IOException e)
@@ -147,6 +209,41 @@ public class SaveXukAction extends ProgressAction implements
         mStream = null;
     }
 
+    /**
+     * Moves the temporary file over the destination, or deletes it if the
+     * serialization did not complete.
+     */
+    private void commitOutput(boolean completed)
+            throws CommandCannotExecuteException
+    {
+        if (mTempFile == null)
+        {
+            return;
+        }
+        File tempFile = mTempFile;
+        mTempFile = null;
+        if (!completed)
+        {
+            tempFile.delete();
+            return;
+        }
+        try
+        {
+            XukJournal.replace(tempFile, new File(mUri.getPath()));
+            XukJournal.delete(mUri);
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        catch (IOException e)
+        {
+            tempFile.delete();
+            throw new CommandCannotExecuteException(e);
+        }
+    }
+
     /**
      * @tagvalue Events "Cancelled-Finished"
      */
@@ -182,6 +279,7 @@ public class SaveXukAction extends ProgressAction implements
             throw new RuntimeException("WTF ?!", e1);
         }
         boolean canceled = false;
+        XukSerializationFailedException failure = null;
         try
         {
             mXukAble.xukOut(mWriter, mUri, this);
@@ -193,13 +291,18 @@ public class SaveXukAction extends ProgressAction implements
         }
         catch (XukSerializationFailedException e)
         {
-            closeOutput();
-            throw new CommandCannotExecuteException(e);
+            failure = e;
         }
         catch (ProgressCancelledException e)
         {
             canceled = true;
         }
+        catch (RuntimeException e)
+        {
+            closeOutput();
+            commitOutput(false);
+            throw e;
+        }
         finally
         {
             try
@@ -211,14 +314,21 @@ public class SaveXukAction extends ProgressAction implements
                 // Should never happen
                 throw new RuntimeException("WTF ?!", e);
             }
-            mWriter.writeEndElement();
-            mWriter.writeEndDocument();
+        }
+        if (failure != null)
+        {
             closeOutput();
-            if (canceled)
-                notifyCancelled();
-            else
-                notifyFinished();
+            commitOutput(false);
+            throw new CommandCannotExecuteException(failure);
         }
+        mWriter.writeEndElement();
+        mWriter.writeEndDocument();
+        closeOutput();
+        commitOutput(!canceled);
+        if (canceled)
+            notifyCancelled();
+        else
+            notifyFinished();
     }
 
     public String getLongDescription()
@@ -0,0 +1,368 @@
+package org.daisy.urakawa.xuk;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.daisy.urakawa.exception.MethodParameterIsNullException;
+import org.daisy.urakawa.nativeapi.FileStream;
+
+/**
+ * <p>
+ * The journal of a XUK file: a companion file (the path of the XUK file
+ * followed by {@link #EXTENSION}) holding the changes saved since the XUK file
+ * was last written in full, as a sequence of entries which are replayed, in
+ * order, after the XUK file is opened. The XUK file itself is never modified
+ * by an entry, so that it stays readable by any XML reader, and so that the
+ * elements skipped by a lazy open (see {@link LazyXukSource}) remain valid.
+ * </p>
+ * <p>
+ * The journal starts with the length and modification date of the XUK file
+ * it was written for: a journal left behind by a full save that did not
+ * complete, or by a tool which is not aware of journals, is ignored. Each
+ * entry is followed by its checksum, and the file is flushed to the storage
+ * device after each entry: an entry which was not written completely (the
+ * application crashed in the middle of a save) is ignored, and is truncated
+ * by the next {@link #append(byte[])}. The content of the entries is up to
+ * the caller (see org.daisy.urakawa.ProjectChangeTracker).
+ * </p>
+ */
+public class XukJournal
+{
+    /**
+     * The extension appended to the path of the XUK file.
+     */
+    public static final String EXTENSION = ".journal";
+    private static final byte[] MAGIC = { 'X', 'U', 'K', 'J', 1 };
+    private static final int HEADER_SIZE = MAGIC.length + 16;
+    private File mBaseFile;
+    private File mFile;
+    /**
+     * The length of the valid part of the journal (header and complete
+     * entries), -1 if not known yet, 0 if there is no valid journal.
+     */
+    private long mValidLength = -1;
+    private int mNumberOfEntries = 0;
+
+    /**
+     * @param uri
+     *        the URI of the XUK file, cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public XukJournal(URI uri) throws MethodParameterIsNullException
+    {
+        if (uri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        mBaseFile = new File(uri.getPath());
+        mFile = getJournalFile(uri);
+    }
+
+    /**
+     * @param uri
+     *        the URI of the XUK file, cannot be null
+     * @return the journal file of the given XUK file, which may not exist
+     * @throws MethodParameterIsNullException
+     */
+    public static File getJournalFile(URI uri)
+            throws MethodParameterIsNullException
+    {
+        if (uri == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        return new File(uri.getPath() + EXTENSION);
+    }
+
+    /**
+     * Deletes the journal of the given XUK file, if any. Called after the XUK
+     * file has been written in full.
+     * 
+     * @param uri
+     *        the URI of the XUK file, cannot be null
+     * @throws MethodParameterIsNullException
+     */
+    public static void delete(URI uri) throws MethodParameterIsNullException
+    {
+        File file = getJournalFile(uri);
+        if (file.exists() && !file.delete())
+        {
+            throw new RuntimeException("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Replaces the target file by the source file, in a single atomic rename
+     * (which replaces an existing target on all platforms, Windows included):
+     * if the application crashes, the target is either the previous file or
+     * the new one, never missing or half-written. Only when the file system
+     * cannot move the file atomically (the source is on another file system)
+     * is it moved in a non-atomic way.
+     * 
+     * @param source
+     *        cannot be null
+     * @param target
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     * @throws IOException
+     *         if the source cannot be moved
+     */
+    public static void replace(File source, File target)
+            throws MethodParameterIsNullException, IOException
+    {
+        if (source == null || target == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        try
+        {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return the journal file
+     */
+    public File getFile()
+    {
+        return mFile;
+    }
+
+    /**
+     * @return true if the journal exists and was written for the current
+     *         state of the XUK file
+     * @throws IOException
+     */
+    public boolean isValid() throws IOException
+    {
+        return getLength() > 0;
+    }
+
+    /**
+     * @return the length in bytes of the valid part of the journal, 0 if
+     *         there is no valid journal
+     * @throws IOException
+     */
+    public long getLength() throws IOException
+    {
+        if (mValidLength < 0)
+        {
+            scan(null);
+        }
+        return mValidLength;
+    }
+
+    /**
+     * @return the number of entries in the journal
+     * @throws IOException
+     */
+    public int getNumberOfEntries() throws IOException
+    {
+        if (mValidLength < 0)
+        {
+            scan(null);
+        }
+        return mNumberOfEntries;
+    }
+
+    /**
+     * @return the entries of the journal, in the order they were appended.
+     *         Empty if there is no valid journal.
+     * @throws IOException
+     */
+    public List<byte[]> readEntries() throws IOException
+    {
+        List<byte[]> entries = new ArrayList<byte[]>();
+        scan(entries);
+        return entries;
+    }
+
+    /**
+     * Appends an entry to the journal, and flushes it to the storage device.
+     * The journal is created (or replaced, if it is not valid) as needed.
+     * 
+     * @param entry
+     *        cannot be null
+     * @throws MethodParameterIsNullException
+     * @throws IOException
+     */
+    public void append(byte[] entry) throws MethodParameterIsNullException,
+            IOException
+    {
+        if (entry == null)
+        {
+            throw new MethodParameterIsNullException();
+        }
+        long start = getLength();
+        FileStream fs = new FileStream(mFile.getPath(), true);
+        try
+        {
+            if (start == 0)
+            {
+                byte[] header = new byte[HEADER_SIZE];
+                System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+                putLong(header, MAGIC.length, mBaseFile.length());
+                putLong(header, MAGIC.length + 8, mBaseFile.lastModified());
+                fs.setLength(0);
+                fs.write(header, 0, header.length);
+                start = HEADER_SIZE;
+                mNumberOfEntries = 0;
+            }
+            else
+            {
+                // Drops an incomplete entry left by an interrupted save
+                fs.setLength(start);
+                fs.setLongPosition(start);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(entry);
+            byte[] buf = new byte[4];
+            putInt(buf, 0, entry.length);
+            fs.write(buf, 0, 4);
+            fs.write(entry, 0, entry.length);
+            putInt(buf, 0, (int) crc.getValue());
+            fs.write(buf, 0, 4);
+            fs.flush();
+            mValidLength = start + 4 + entry.length + 4;
+            mNumberOfEntries++;
+        }
+        catch (IOException e)
+        {
+            mValidLength = -1;
+            throw e;
+        }
+        finally
+        {
+            fs.close();
+        }
+    }
+
+    /**
+     * Validates the journal, and reads its entries into the given list if it
+     * is not null.
+     */
+    private void scan(List<byte[]> entries) throws IOException
+    {
+        mValidLength = 0;
+        mNumberOfEntries = 0;
+        if (!mFile.exists() || !mBaseFile.exists())
+        {
+            return;
+        }
+        FileStream fs;
+        try
+        {
+            fs = new FileStream(mFile.getPath());
+        }
+        catch (MethodParameterIsNullException e)
+        {
+            // Should never happen
+            throw new RuntimeException("WTF ??!", e);
+        }
+        try
+        {
+            long length = fs.getLongLength();
+            byte[] header = new byte[HEADER_SIZE];
+            if (length < HEADER_SIZE
+                    || fs.read(0, header, 0, HEADER_SIZE) < HEADER_SIZE)
+            {
+                return;
+            }
+            for (int i = 0; i < MAGIC.length; i++)
+            {
+                if (header[i] != MAGIC[i])
+                {
+                    return;
+                }
+            }
+            if (getLong(header, MAGIC.length) != mBaseFile.length()
+                    || getLong(header, MAGIC.length + 8) != mBaseFile
+                            .lastModified())
+            {
+                return;
+            }
+            long pos = HEADER_SIZE;
+            byte[] buf = new byte[4];
+            CRC32 crc = new CRC32();
+            while (pos + 8 <= length)
+            {
+                fs.read(pos, buf, 0, 4);
+                long n = getInt(buf, 0) & 0xFFFFFFFFL;
+                if (pos + 4 + n + 4 > length)
+                {
+                    break;
+                }
+                byte[] entry = new byte[(int) n];
+                fs.read(pos + 4, entry, 0, entry.length);
+                fs.read(pos + 4 + n, buf, 0, 4);
+                crc.reset();
+                crc.update(entry);
+                if ((int) crc.getValue() != getInt(buf, 0))
+                {
+                    break;
+                }
+                if (entries != null)
+                {
+                    entries.add(entry);
+                }
+                pos += 4 + n + 4;
+                mNumberOfEntries++;
+            }
+            mValidLength = pos;
+        }
+        finally
+        {
+            fs.close();
+        }
+    }
+
+    private static void putInt(byte[] buf, int offset, int value)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            buf[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static int getInt(byte[] buf, int offset)
+    {
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            value |= (buf[offset + i] & 0xFF) << (8 * i);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] buf, int offset, long value)
+    {
+        for (int i = 0; i < 8; i++)
+        {
+            buf[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static long getLong(byte[] buf, int offset)
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+        {
+            value |= (buf[offset + i] & 0xFFL) << (8 * i);
+        }
+        return value;
+    }
+}
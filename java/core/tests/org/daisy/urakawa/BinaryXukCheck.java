@@ -0,0 +1,100 @@
+package org.daisy.urakawa;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+
+import org.daisy.urakawa.core.TreeNode;
+import org.daisy.urakawa.property.channel.IChannel;
+
+/**
+ * Saves a Project to binary XUK, opens the file in a new Project and saves it
+ * to XUK: the file must be identical to the XUK file of the original Project.
+ * Then measures the time taken to save and open a larger Project in both
+ * formats. Run with the directory in which the files are written as first
+ * argument (default: the temporary directory), and the number of copies of
+ * the tree of {@link XukRoundTripCheck#createTree(Presentation, IChannel)}
+ * in the larger Project as second argument (default: 500, that is about
+ * 42500 TreeNodes).
+ */
+public class BinaryXukCheck
+{
+    private static byte[] readFile(URI uri) throws Exception
+    {
+        return java.nio.file.Files.readAllBytes(new File(uri).toPath());
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        File dir = new File(args.length > 0 ? args[0] : System
+                .getProperty("java.io.tmpdir"));
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        URI xuk = new File(dir, "binary1.xuk").toURI();
+        URI binary = new File(dir, "binary.xukb").toURI();
+        URI resaved = new File(dir, "binary2.xuk").toURI();
+        Project project = new Project();
+        Presentation pres = project.addNewPresentation();
+        pres.setRootURI(dir.toURI());
+        XukRoundTripCheck.fill(pres);
+        project.saveXUK(xuk);
+        project.saveBinaryXUK(binary);
+        Project reopened = new Project();
+        reopened.openBinaryXUK(binary);
+        if (XukRoundTripCheck.countTreeNodes(reopened.getPresentation(0)
+                .getRootNode()) != XukRoundTripCheck.countTreeNodes(pres
+                .getRootNode()))
+        {
+            throw new RuntimeException("The opened Presentation is different");
+        }
+        reopened.saveXUK(resaved);
+        byte[] bytes1 = readFile(xuk);
+        byte[] bytes2 = readFile(resaved);
+        System.out.println("Saved " + bytes1.length + " bytes of XUK, "
+                + new File(binary).length() + " bytes of binary XUK, "
+                + bytes2.length + " bytes of XUK after opening");
+        if (!Arrays.equals(bytes1, bytes2))
+        {
+            throw new RuntimeException(
+                    "The XUK file saved after opening the binary XUK file is different");
+        }
+        Project large = new Project();
+        Presentation largePres = large.addNewPresentation();
+        largePres.setRootURI(dir.toURI());
+        IChannel textChannel = XukRoundTripCheck.fill(largePres);
+        for (int i = 1; i < copies; i++)
+        {
+            TreeNode tree = XukRoundTripCheck.createTree(largePres,
+                    textChannel);
+            while (tree.getChildCount() > 0)
+            {
+                largePres.getRootNode().appendChild(tree.removeChild(0));
+            }
+        }
+        System.out.println(XukRoundTripCheck.countTreeNodes(largePres
+                .getRootNode())
+                + " TreeNodes");
+        for (int i = 0; i < 5; i++)
+        {
+            long t0 = System.nanoTime();
+            large.saveXUK(xuk);
+            long t1 = System.nanoTime();
+            large.saveBinaryXUK(binary);
+            long t2 = System.nanoTime();
+            new Project().openXUK(xuk);
+            long t3 = System.nanoTime();
+            new Project().openBinaryXUK(binary);
+            long t4 = System.nanoTime();
+            System.out.println("XUK: " + new File(xuk).length()
+                    + " bytes, saved in " + (t1 - t0) / 1000000
+                    + " ms, opened in " + (t3 - t2) / 1000000
+                    + " ms; binary XUK: " + new File(binary).length()
+                    + " bytes, saved in " + (t2 - t1) / 1000000
+                    + " ms, opened in " + (t4 - t3) / 1000000 + " ms");
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,113 @@
+package org.daisy.urakawa;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+
+import org.daisy.urakawa.core.ITreeNode;
+import org.daisy.urakawa.core.TreeNode;
+import org.daisy.urakawa.media.TextMedia;
+import org.daisy.urakawa.property.channel.ChannelsProperty;
+import org.daisy.urakawa.property.channel.IChannel;
+import org.daisy.urakawa.property.xml.XmlProperty;
+
+/**
+ * Saves a large Project to XUK, and opens the file twice: in full, and with
+ * lazy loading. The same edits are made in both opened Projects, which
+ * materializes the skipped elements they touch, and both are saved: the
+ * files must be identical. Then measures the time taken to open the file in
+ * both modes. Run with the directory in which the files are written as first
+ * argument (default: the temporary directory), and the number of copies of
+ * the tree of {@link XukRoundTripCheck#createTree(Presentation, IChannel)}
+ * as second argument (default: 500, that is about 42500 TreeNodes).
+ */
+public class LazyXukCheck
+{
+    private static void edit(Presentation pres) throws Exception
+    {
+        IChannel textChannel = pres.getChannelsManager().getListOfChannels()
+                .get(0);
+        ITreeNode root = pres.getRootNode();
+        ITreeNode last = root.getChild(root.getChildCount() - 1);
+        ITreeNode node = last.getChild(1).getChild(2);
+        node.getProperty(XmlProperty.class).setQName("changed",
+                "http://www.daisy.org/z3986/2005/dtbook/");
+        ((TextMedia) node.getProperty(ChannelsProperty.class).getMedia(
+                textChannel)).setText("Changed");
+        root.getChild(root.getChildCount() / 2).getChild(3).detach();
+        TreeNode added = pres.getTreeNodeFactory().createTreeNode();
+        XmlProperty xp = pres.getPropertyFactory().createXmlProperty();
+        xp.setQName("added", "http://www.daisy.org/z3986/2005/dtbook/");
+        added.addProperty(xp);
+        root.getChild(1).getChild(0).appendChild(added);
+    }
+
+    private static byte[] readFile(URI uri) throws Exception
+    {
+        return java.nio.file.Files.readAllBytes(new File(uri).toPath());
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        File dir = new File(args.length > 0 ? args[0] : System
+                .getProperty("java.io.tmpdir"));
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        URI xuk = new File(dir, "lazy.xuk").toURI();
+        URI eagerSaved = new File(dir, "lazy-eager.xuk").toURI();
+        URI lazySaved = new File(dir, "lazy-lazy.xuk").toURI();
+        Project project = new Project();
+        Presentation pres = project.addNewPresentation();
+        pres.setRootURI(dir.toURI());
+        IChannel textChannel = XukRoundTripCheck.fill(pres);
+        for (int i = 1; i < copies; i++)
+        {
+            TreeNode tree = XukRoundTripCheck.createTree(pres, textChannel);
+            while (tree.getChildCount() > 0)
+            {
+                pres.getRootNode().appendChild(tree.removeChild(0));
+            }
+        }
+        project.saveXUK(xuk);
+        Project eager = new Project();
+        eager.openXUK(xuk, false);
+        Project lazy = new Project();
+        lazy.openXUK(xuk, true);
+        edit(eager.getPresentation(0));
+        edit(lazy.getPresentation(0));
+        if (XukRoundTripCheck.countTreeNodes(lazy.getPresentation(0)
+                .getRootNode()) != XukRoundTripCheck.countTreeNodes(eager
+                .getPresentation(0).getRootNode()))
+        {
+            throw new RuntimeException(
+                    "The lazily opened Presentation is different");
+        }
+        eager.saveXUK(eagerSaved);
+        lazy.saveXUK(lazySaved);
+        byte[] bytes1 = readFile(eagerSaved);
+        byte[] bytes2 = readFile(lazySaved);
+        System.out.println("Saved " + bytes1.length
+                + " bytes after a full open, " + bytes2.length
+                + " bytes after a lazy open");
+        if (!Arrays.equals(bytes1, bytes2))
+        {
+            throw new RuntimeException(
+                    "The XUK file saved after a lazy open is different");
+        }
+        for (int i = 0; i < 5; i++)
+        {
+            long t0 = System.nanoTime();
+            new Project().openXUK(xuk, false);
+            long t1 = System.nanoTime();
+            new Project().openXUK(xuk, true);
+            long t2 = System.nanoTime();
+            System.out.println(new File(xuk).length() + " bytes opened in "
+                    + (t1 - t0) / 1000000 + " ms, lazily in " + (t2 - t1)
+                    / 1000000 + " ms");
+        }
+        System.out.println("OK");
+    }
+}
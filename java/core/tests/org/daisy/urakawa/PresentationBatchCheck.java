@@ -0,0 +1,108 @@
+package org.daisy.urakawa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.daisy.urakawa.core.TreeNode;
+import org.daisy.urakawa.events.DataModelChangedEvent;
+import org.daisy.urakawa.events.IEventListener;
+import org.daisy.urakawa.events.core.ChildAddedEvent;
+import org.daisy.urakawa.events.core.ChildRemovedEvent;
+import org.daisy.urakawa.events.presentation.SubTreesChangedEvent;
+
+/**
+ * Edits the tree of a Presentation inside a batch and checks the events: the
+ * TreeNode listeners receive theirs during the batch, the listeners of the
+ * Presentation receive no ChildAddedEvent or ChildRemovedEvent, only one
+ * SubTreesChangedEvent when the outermost batch ends. Also checks that a
+ * batch cannot be ended on another thread than the one that began it.
+ */
+public class PresentationBatchCheck
+{
+    private static class Recorder<T extends DataModelChangedEvent> implements
+            IEventListener<T>
+    {
+        private List<DataModelChangedEvent> mEvents = new ArrayList<DataModelChangedEvent>();
+
+        public <K extends T> void eventCallback(K event)
+        {
+            mEvents.add(event);
+        }
+
+        int count()
+        {
+            return mEvents.size();
+        }
+    }
+
+    private static void check(boolean condition, String message)
+    {
+        if (!condition)
+        {
+            throw new RuntimeException(message);
+        }
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Project project = new Project();
+        final Presentation pres = project.addNewPresentation();
+        TreeNode root = pres.getTreeNodeFactory().createTreeNode();
+        pres.setRootNode(root);
+        Recorder<ChildAddedEvent> presAdded = new Recorder<ChildAddedEvent>();
+        Recorder<ChildRemovedEvent> presRemoved = new Recorder<ChildRemovedEvent>();
+        Recorder<SubTreesChangedEvent> presSubTrees = new Recorder<SubTreesChangedEvent>();
+        Recorder<ChildAddedEvent> nodeAdded = new Recorder<ChildAddedEvent>();
+        pres.registerListener(presAdded, ChildAddedEvent.class);
+        pres.registerListener(presRemoved, ChildRemovedEvent.class);
+        pres.registerListener(presSubTrees, SubTreesChangedEvent.class);
+        root.registerListener(nodeAdded, ChildAddedEvent.class);
+        pres.beginBatch();
+        pres.beginBatch();
+        for (int i = 0; i < 3; i++)
+        {
+            root.appendChild(pres.getTreeNodeFactory().createTreeNode());
+        }
+        root.removeChild(0);
+        pres.endBatch();
+        check(nodeAdded.count() == 3,
+                "The TreeNode listener must receive its events in the batch");
+        check(presAdded.count() == 0 && presRemoved.count() == 0,
+                "The Presentation listeners must receive no tree event in the batch");
+        check(presSubTrees.count() == 0,
+                "The SubTreesChangedEvent must wait for the outermost batch");
+        final Throwable[] thrown = new Throwable[1];
+        Thread other = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    pres.endBatch();
+                }
+                catch (Throwable e)
+                {
+                    thrown[0] = e;
+                }
+            }
+        });
+        other.start();
+        other.join();
+        check(thrown[0] instanceof IllegalStateException,
+                "The batch must not be ended on another thread");
+        check(pres.isInBatch(), "The batch must still be in progress");
+        pres.endBatch();
+        check(presAdded.count() == 0 && presRemoved.count() == 0,
+                "The Presentation listeners must receive no tree event after the batch");
+        check(presSubTrees.count() == 1,
+                "The Presentation listeners must receive one SubTreesChangedEvent");
+        root.appendChild(pres.getTreeNodeFactory().createTreeNode());
+        check(presAdded.count() > 0,
+                "The Presentation listeners must receive the events out of a batch");
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,218 @@
+package org.daisy.urakawa;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+
+import org.daisy.urakawa.core.ITreeNode;
+import org.daisy.urakawa.core.TreeNode;
+import org.daisy.urakawa.media.TextMedia;
+import org.daisy.urakawa.media.data.IDataProvider;
+import org.daisy.urakawa.media.data.audio.codec.WavAudioMediaData;
+import org.daisy.urakawa.media.timing.Time;
+import org.daisy.urakawa.nativeapi.MemoryStream;
+import org.daisy.urakawa.property.channel.ChannelsProperty;
+import org.daisy.urakawa.property.channel.IChannel;
+import org.daisy.urakawa.property.xml.XmlProperty;
+import org.daisy.urakawa.xuk.XukJournal;
+
+/**
+ * Edits a Project saved to XUK and saves the changes with a
+ * ProjectChangeTracker after each edit. After each save, the XUK file is
+ * opened in a new Project, which replays the journal, and saved in full: the
+ * file must be identical to a full save of the edited Project. Then checks
+ * that a one-node edit of a Presentation with many media data is saved much
+ * faster than the whole Project. Run with the directory in which the files
+ * are written as argument (default: the temporary directory).
+ */
+public class ProjectChangeTrackerCheck
+{
+    private static final int EDITS = 11;
+    private static final int LARGE_MANAGER_SIZE = 20000;
+
+    private static byte[] pcm(int length, int seed)
+    {
+        byte[] res = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            res[i] = (byte) (i * 31 + seed);
+        }
+        return res;
+    }
+
+    private static void edit(Presentation pres, IChannel textChannel, int edit)
+            throws Exception
+    {
+        ITreeNode root = pres.getRootNode();
+        ITreeNode node = root.getChild(edit % 4).getChild(1).getChild(2);
+        switch (edit)
+        {
+            case 0:
+                node.getProperty(XmlProperty.class).setQName("changed",
+                        "http://www.daisy.org/z3986/2005/dtbook/");
+                break;
+            case 1:
+                node.getParent().removeChild(node);
+                break;
+            case 2:
+            {
+                TreeNode added = pres.getTreeNodeFactory().createTreeNode();
+                ChannelsProperty chProp = pres.getPropertyFactory()
+                        .createChannelsProperty();
+                added.addProperty(chProp);
+                TextMedia text = pres.getMediaFactory().create(
+                        TextMedia.class);
+                text.setText("Added");
+                chProp.setMedia(textChannel, text);
+                node.getParent().insertBefore(added, node);
+                break;
+            }
+            case 3:
+            {
+                ITreeNode parent = node.getParent();
+                node.detach();
+                parent.appendChild(node);
+                break;
+            }
+            case 4:
+                ((TextMedia) node.getProperty(ChannelsProperty.class)
+                        .getMedia(textChannel)).setText("Changed");
+                break;
+            case 5:
+                node.getProperty(XmlProperty.class).setAttribute("class", "",
+                        "added");
+                break;
+            case 6:
+                pres.beginBatch();
+                node.removeProperties();
+                root.getChild(3).appendChild(
+                        pres.getTreeNodeFactory().createTreeNode());
+                pres.endBatch();
+                break;
+            case 7:
+                textChannel.setName("Renamed");
+                break;
+            case 8:
+            {
+                WavAudioMediaData data = pres.getMediaDataFactory()
+                        .createWavAudioMediaData();
+                data.appendAudioData(new MemoryStream(pcm(2 * 1000, 1)), null);
+                data.appendAudioData(new MemoryStream(pcm(2 * 1377, 2)), null);
+                break;
+            }
+            case 9:
+            {
+                WavAudioMediaData data = (WavAudioMediaData) pres
+                        .getMediaDataManager().getListOfMediaData().get(0);
+                data.removeAudioData(Time.fromTicks(data.getAudioDuration()
+                        .getTimeDeltaAsTicks() / 2));
+                break;
+            }
+            case 10:
+            {
+                IDataProvider prov = pres.getMediaDataManager()
+                        .getListOfMediaData().get(0)
+                        .getListOfUsedDataProviders().get(0);
+                pres.getDataProviderManager().setDataProviderUid(prov,
+                        "renamedDataProvider");
+                break;
+            }
+        }
+    }
+
+    /**
+     * Saves a one-node edit of a Presentation with
+     * {@link #LARGE_MANAGER_SIZE} media data: the media data, which did not
+     * change, must not be serialized, so the save must take a fraction of
+     * the time of a full save.
+     */
+    private static void checkLargeManager(File dir) throws Exception
+    {
+        URI uri = new File(dir, "tracked-large.xuk").toURI();
+        XukJournal.getJournalFile(uri).delete();
+        Project project = new Project();
+        Presentation pres = project.addNewPresentation();
+        pres.setRootURI(dir.toURI());
+        pres.setRootNode(pres.getTreeNodeFactory().createTreeNode());
+        for (int i = 0; i < LARGE_MANAGER_SIZE; i++)
+        {
+            pres.getMediaDataFactory().createWavAudioMediaData();
+        }
+        // The first save warms the serialization code up
+        project.saveXUK(uri);
+        long start = System.nanoTime();
+        project.saveXUK(uri);
+        long fullSave = System.nanoTime() - start;
+        ProjectChangeTracker tracker = new ProjectChangeTracker(project, uri);
+        pres.getRootNode().appendChild(
+                pres.getTreeNodeFactory().createTreeNode());
+        start = System.nanoTime();
+        boolean full = tracker.saveChanges();
+        long incrementalSave = System.nanoTime() - start;
+        tracker.dispose();
+        System.out.println(LARGE_MANAGER_SIZE + " media data: "
+                + (incrementalSave / 1000000) + " ms to save the changes, "
+                + (fullSave / 1000000) + " ms to save in full");
+        if (full)
+        {
+            throw new RuntimeException(
+                    "The edit of the large manager must be saved in the journal");
+        }
+        if (incrementalSave * 4 > fullSave)
+        {
+            throw new RuntimeException(
+                    "Saving the changes must be much faster than a full save");
+        }
+    }
+
+    private static byte[] readFile(URI uri) throws Exception
+    {
+        return java.nio.file.Files.readAllBytes(new File(uri).toPath());
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        File dir = new File(args.length > 0 ? args[0] : System
+                .getProperty("java.io.tmpdir"));
+        URI uri = new File(dir, "tracked.xuk").toURI();
+        URI edited = new File(dir, "tracked-edited.xuk").toURI();
+        URI replayed = new File(dir, "tracked-replayed.xuk").toURI();
+        XukJournal.getJournalFile(uri).delete();
+        Project project = new Project();
+        Presentation pres = project.addNewPresentation();
+        pres.setRootURI(dir.toURI());
+        IChannel textChannel = XukRoundTripCheck.fill(pres);
+        project.saveXUK(uri);
+        ProjectChangeTracker tracker = new ProjectChangeTracker(project, uri);
+        // All the edits fit in the journal
+        tracker.setCompactionRatio(0.5);
+        for (int i = 0; i < EDITS; i++)
+        {
+            edit(pres, textChannel, i);
+            boolean full = tracker.saveChanges();
+            Project reopened = new Project();
+            reopened.openXUK(uri);
+            reopened.saveXUK(replayed);
+            project.saveXUK(edited);
+            byte[] bytes1 = readFile(edited);
+            byte[] bytes2 = readFile(replayed);
+            System.out.println("Edit " + i + ": "
+                    + (full ? "saved in full" : "journal of "
+                            + XukJournal.getJournalFile(uri).length()
+                            + " bytes") + ", " + bytes2.length
+                    + " bytes saved after opening");
+            if (!Arrays.equals(bytes1, bytes2))
+            {
+                throw new RuntimeException("Edit " + i
+                        + ": the XUK file saved after opening is different");
+            }
+        }
+        tracker.dispose();
+        checkLargeManager(dir);
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,143 @@
+package org.daisy.urakawa;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+
+import org.daisy.urakawa.core.ITreeNode;
+import org.daisy.urakawa.core.TreeNode;
+import org.daisy.urakawa.media.TextMedia;
+import org.daisy.urakawa.metadata.Metadata;
+import org.daisy.urakawa.property.channel.ChannelsProperty;
+import org.daisy.urakawa.property.channel.IChannel;
+import org.daisy.urakawa.property.xml.XmlProperty;
+
+/**
+ * Saves a Project to XUK, opens the file in a new Project and saves it again:
+ * the two files must be identical. Run with the directory in which the files
+ * are written as argument (default: the temporary directory).
+ */
+public class XukRoundTripCheck
+{
+    private static int mCount = 0;
+
+    /**
+     * @param pres
+     * @param textChannel
+     * @return a new tree of about 85 TreeNodes with IXmlProperties and text
+     *         media
+     * @throws Exception
+     */
+    public static TreeNode createTree(Presentation pres, IChannel textChannel)
+            throws Exception
+    {
+        TreeNode root = pres.getTreeNodeFactory().createTreeNode();
+        addChildren(pres, textChannel, root, 0);
+        return root;
+    }
+
+    private static void addChildren(Presentation pres, IChannel textChannel,
+            TreeNode parent, int depth) throws Exception
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            TreeNode node = pres.getTreeNodeFactory().createTreeNode();
+            XmlProperty xp = pres.getPropertyFactory().createXmlProperty();
+            xp.setQName(depth == 2 ? "sent" : "level" + (depth + 1),
+                    "http://www.daisy.org/z3986/2005/dtbook/");
+            xp.setAttribute("id", "", "n" + (mCount++));
+            node.addProperty(xp);
+            if (depth == 2)
+            {
+                ChannelsProperty chProp = pres.getPropertyFactory()
+                        .createChannelsProperty();
+                node.addProperty(chProp);
+                TextMedia text = pres.getMediaFactory().create(
+                        TextMedia.class);
+                text.setText("Sentence " + mCount + " \u00e9\u00fc <&>");
+                chProp.setMedia(textChannel, text);
+            }
+            parent.appendChild(node);
+            if (depth < 2)
+            {
+                addChildren(pres, textChannel, node, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * @param pres
+     *        an empty Presentation
+     * @return the channel of the text media
+     * @throws Exception
+     */
+    public static IChannel fill(Presentation pres) throws Exception
+    {
+        IChannel textChannel = pres.getChannelFactory().createTextChannel();
+        textChannel.setName("Text");
+        Metadata md = pres.getMetadataFactory().createMetadata();
+        md.setName("dc:Title");
+        md.setContent("Round trip");
+        pres.addMetadata(md);
+        pres.setRootNode(createTree(pres, textChannel));
+        return textChannel;
+    }
+
+    /**
+     * @param node
+     * @return the number of TreeNodes of the sub-tree of the node
+     * @throws Exception
+     */
+    public static int countTreeNodes(ITreeNode node) throws Exception
+    {
+        int count = 1;
+        for (int i = 0; i < node.getChildCount(); i++)
+        {
+            count += countTreeNodes(node.getChild(i));
+        }
+        return count;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        File dir = new File(args.length > 0 ? args[0] : System
+                .getProperty("java.io.tmpdir"));
+        URI first = new File(dir, "roundtrip1.xuk").toURI();
+        URI second = new File(dir, "roundtrip2.xuk").toURI();
+        Project project = new Project();
+        Presentation pres = project.addNewPresentation();
+        pres.setRootURI(dir.toURI());
+        fill(pres);
+        project.saveXUK(first);
+        Project reopened = new Project();
+        reopened.openXUK(first);
+        Presentation reopenedPres = reopened.getPresentation(0);
+        int count = countTreeNodes(reopenedPres.getRootNode());
+        if (count != countTreeNodes(pres.getRootNode())
+                || reopenedPres.getChannelsManager().getListOfChannels()
+                        .size() != 1
+                || reopenedPres.getListOfUsedMedia().size() != pres
+                        .getListOfUsedMedia().size())
+        {
+            throw new RuntimeException("The opened Presentation is different");
+        }
+        reopened.saveXUK(second);
+        byte[] bytes1 = java.nio.file.Files.readAllBytes(new File(first)
+                .toPath());
+        byte[] bytes2 = java.nio.file.Files.readAllBytes(new File(second)
+                .toPath());
+        System.out.println("Saved " + count + " TreeNodes in "
+                + bytes1.length + " bytes, re-saved " + bytes2.length
+                + " bytes");
+        if (!Arrays.equals(bytes1, bytes2))
+        {
+            throw new RuntimeException(
+                    "The XUK file saved after opening is different");
+        }
+        System.out.println("OK");
+    }
+}
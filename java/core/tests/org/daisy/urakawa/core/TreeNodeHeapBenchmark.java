@@ -0,0 +1,75 @@
+package org.daisy.urakawa.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.Project;
+
+/**
+ * Measures the heap retained by a large tree of TreeNodes without properties
+ * or listeners, built breadth-first with a fan-out of 10, and the time taken
+ * to build it. Run with the number of TreeNodes as argument (default:
+ * 500000), preferably with -XX:+UseSerialGC for stable figures.
+ */
+public class TreeNodeHeapBenchmark
+{
+    private static long getUsedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        Project project = new Project();
+        Presentation pres = project.addNewPresentation();
+        TreeNodeFactory factory = pres.getTreeNodeFactory();
+        long before = getUsedMemory();
+        long start = System.nanoTime();
+        TreeNode root = factory.createTreeNode();
+        List<ITreeNode> parents = new ArrayList<ITreeNode>();
+        parents.add(root);
+        int created = 1;
+        for (int i = 0; created < count; i++)
+        {
+            ITreeNode parent = parents.get(i);
+            for (int j = 0; j < 10 && created < count; j++)
+            {
+                TreeNode node = factory.createTreeNode();
+                parent.appendChild(node);
+                parents.add(node);
+                created++;
+            }
+        }
+        long end = System.nanoTime();
+        parents = null;
+        long retained = getUsedMemory() - before;
+        System.out.println(String.format(
+                "%d TreeNodes built in %d ms, %.1f MB retained (%d bytes per TreeNode)",
+                count, (end - start) / 1000000, retained / 1048576.0,
+                retained / count));
+        // Keeps the tree reachable until the measure
+        if (root.getChildCount() < 0)
+        {
+            throw new RuntimeException();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package org.daisy.urakawa.core.visitor.examples;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.Project;
+import org.daisy.urakawa.core.ITreeNode;
+import org.daisy.urakawa.core.TreeNode;
+import org.daisy.urakawa.events.Event;
+import org.daisy.urakawa.events.IEventListener;
+import org.daisy.urakawa.events.progress.TransferProgressEvent;
+import org.daisy.urakawa.media.ExternalAudioMedia;
+import org.daisy.urakawa.media.data.audio.ManagedAudioMedia;
+import org.daisy.urakawa.media.data.audio.PCMFormatInfo;
+import org.daisy.urakawa.media.data.audio.codec.WavAudioMediaData;
+import org.daisy.urakawa.nativeapi.MemoryStream;
+import org.daisy.urakawa.progress.IProgressHandler;
+import org.daisy.urakawa.property.channel.ChannelsProperty;
+import org.daisy.urakawa.property.channel.IChannel;
+
+/**
+ * Publishes the IManagedAudioMedia of a tree to audio files, with one worker
+ * then with 4 workers. Each sequential file must be a RIFF WAVE file holding
+ * the audio of its clips in the order of the visitation, a new file must be
+ * started for each section and when the maximum data length would be
+ * exceeded, and the clip times and the files published by the 4 workers must
+ * be identical. Also cancels a publishing by 4 workers through the progress
+ * handler: the destination channel must be left as it was, and the same
+ * visitor must then publish the files again. Run with the directory in which
+ * the files are written as argument (default: the temporary directory).
+ */
+public class PublishManagedAudioCheck
+{
+    private static final int SECTIONS = 4;
+    private static final int CLIPS_PER_SECTION = 6;
+    private static final long MAX_DATA_LENGTH = 10000;
+
+    private static class PublishVisitor extends
+            AbstractPublishManagedAudioVisitor
+    {
+        private ITreeNode mRoot;
+
+        PublishVisitor(ITreeNode root)
+        {
+            mRoot = root;
+        }
+
+        @Override
+        public boolean treeNodeTriggersNewAudioFile(ITreeNode node)
+        {
+            return node.getParent() == mRoot;
+        }
+
+        @Override
+        public boolean treeNodeMustBeSkipped(ITreeNode node)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Cancels the given TransferProgressEvent of a publishing.
+     */
+    private static class CancellingProgressHandler implements
+            IProgressHandler
+    {
+        private int mEventsBeforeCancel;
+        private int mCancelledCount = 0;
+
+        CancellingProgressHandler(int eventsBeforeCancel)
+        {
+            mEventsBeforeCancel = eventsBeforeCancel;
+        }
+
+        public <K extends Event> void notifyListeners(K event)
+        {
+            if (event instanceof TransferProgressEvent
+                    && mEventsBeforeCancel-- == 0)
+            {
+                ((TransferProgressEvent) event).cancel();
+            }
+        }
+
+        public <K extends Event> void registerListener(
+                IEventListener<K> listener, Class<K> klass)
+        {
+        }
+
+        public <K extends Event> void unregisterListener(
+                IEventListener<K> listener, Class<K> klass)
+        {
+        }
+
+        public boolean notifyProgress()
+        {
+            return false;
+        }
+
+        public void notifyCancelled()
+        {
+            mCancelledCount++;
+        }
+
+        public void notifyFinished()
+        {
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception
+    {
+        return java.nio.file.Files.readAllBytes(file.toPath());
+    }
+
+    private static long readInt(byte[] bytes, int offset)
+    {
+        return (bytes[offset] & 0xFFL) | (bytes[offset + 1] & 0xFFL) << 8
+                | (bytes[offset + 2] & 0xFFL) << 16
+                | (bytes[offset + 3] & 0xFFL) << 24;
+    }
+
+    /**
+     * @return for each clip, in the order of the visitation, the name of its
+     *         audio file, its clip begin and its clip end
+     */
+    private static List<String> publish(Presentation pres, IChannel source,
+            IChannel destination, File dir, int workers) throws Exception
+    {
+        PublishVisitor visitor = createVisitor(pres, source, destination,
+                dir, workers);
+        visitor.publish(pres.getRootNode());
+        return getClips(pres, destination);
+    }
+
+    private static PublishVisitor createVisitor(Presentation pres,
+            IChannel source, IChannel destination, File dir, int workers)
+            throws Exception
+    {
+        dir.mkdirs();
+        PublishVisitor visitor = new PublishVisitor(pres.getRootNode());
+        visitor.setSourceChannel(source);
+        visitor.setDestinationChannel(destination);
+        visitor.setDestinationDirectory(dir.toURI());
+        visitor.setMaxAudioFileDataLength(MAX_DATA_LENGTH);
+        visitor.setWorkerCount(workers);
+        return visitor;
+    }
+
+    /**
+     * @return for each clip, in the order of the visitation, the src of its
+     *         ExternalAudioMedia in the destination channel, its clip begin
+     *         and its clip end
+     */
+    private static List<String> getClips(Presentation pres,
+            IChannel destination) throws Exception
+    {
+        List<String> clips = new ArrayList<String>();
+        for (int i = 0; i < pres.getRootNode().getChildCount(); i++)
+        {
+            ITreeNode section = pres.getRootNode().getChild(i);
+            for (int j = 0; j < section.getChildCount(); j++)
+            {
+                ExternalAudioMedia eam = (ExternalAudioMedia) section.getChild(j)
+                        .getProperty(ChannelsProperty.class).getMedia(
+                                destination);
+                clips.add(eam.getSrc() + " "
+                        + eam.getClipBegin().getTimeAsTicks() + " "
+                        + eam.getClipEnd().getTimeAsTicks());
+            }
+        }
+        return clips;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        File dir = new File(args.length > 0 ? args[0] : System
+                .getProperty("java.io.tmpdir"));
+        Project project = new Project();
+        Presentation pres = project.addNewPresentation();
+        pres.setRootURI(dir.toURI());
+        IChannel source = pres.getChannelFactory().createChannel();
+        source.setName("Audio");
+        IChannel destination = pres.getChannelFactory().createChannel();
+        destination.setName("Published audio");
+        TreeNode root = pres.getTreeNodeFactory().createTreeNode();
+        pres.setRootNode(root);
+        PCMFormatInfo format = new PCMFormatInfo();
+        List<byte[]> pcmData = new ArrayList<byte[]>();
+        for (int i = 0; i < SECTIONS; i++)
+        {
+            TreeNode section = pres.getTreeNodeFactory().createTreeNode();
+            root.appendChild(section);
+            for (int j = 0; j < CLIPS_PER_SECTION; j++)
+            {
+                byte[] pcm = new byte[2 * (1000 + 377 * ((i + j) % 5))];
+                for (int k = 0; k < pcm.length; k++)
+                {
+                    pcm[k] = (byte) (k * 31 + i * 7 + j);
+                }
+                pcmData.add(pcm);
+                WavAudioMediaData md = pres.getMediaDataFactory()
+                        .createWavAudioMediaData();
+                md.appendAudioData(new MemoryStream(pcm), null);
+                ManagedAudioMedia mam = pres.getMediaFactory().create(
+                        ManagedAudioMedia.class);
+                mam.setMediaData(md);
+                TreeNode node = pres.getTreeNodeFactory().createTreeNode();
+                ChannelsProperty chProp = pres.getPropertyFactory()
+                        .createChannelsProperty();
+                node.addProperty(chProp);
+                chProp.setMedia(source, mam);
+                section.appendChild(node);
+            }
+        }
+        File seqDir = new File(dir, "publish-sequential");
+        File parDir = new File(dir, "publish-parallel");
+        List<String> seqClips = publish(pres, source, destination, seqDir, 1);
+        // The expected content of each audio file, from the clip times
+        Map<String, MemoryStream> expected = new LinkedHashMap<String, MemoryStream>();
+        String previousFile = null;
+        for (int i = 0; i < seqClips.size(); i++)
+        {
+            String[] clip = seqClips.get(i).split(" ");
+            clip[0] = new File(clip[0]).getName();
+            byte[] pcm = pcmData.get(i);
+            MemoryStream data = expected.get(clip[0]);
+            boolean newSection = i % CLIPS_PER_SECTION == 0;
+            if (data == null)
+            {
+                if (i > 0
+                        && !newSection
+                        && expected.get(previousFile).getLength()
+                                + pcm.length <= MAX_DATA_LENGTH)
+                {
+                    throw new RuntimeException("Unexpected new file at clip "
+                            + i);
+                }
+                data = new MemoryStream();
+                expected.put(clip[0], data);
+            }
+            else
+                if (newSection)
+                {
+                    throw new RuntimeException("No new file at section "
+                            + (i / CLIPS_PER_SECTION));
+                }
+            long begin = format.getDuration(data.getLength())
+                    .getTimeDeltaAsTicks();
+            long end = begin
+                    + format.getDuration(pcm.length).getTimeDeltaAsTicks();
+            if (Long.parseLong(clip[1]) != begin
+                    || Long.parseLong(clip[2]) != end)
+            {
+                throw new RuntimeException("Wrong clip times at clip " + i);
+            }
+            data.write(pcm, 0, pcm.length);
+            previousFile = clip[0];
+        }
+        for (Map.Entry<String, MemoryStream> entry : expected.entrySet())
+        {
+            byte[] bytes = readFile(new File(seqDir, entry.getKey()));
+            byte[] data = entry.getValue().toArray();
+            if (bytes.length != 44 + data.length
+                    || !new String(bytes, 0, 4, "US-ASCII").equals("RIFF")
+                    || readInt(bytes, 4) != 36 + data.length
+                    || readInt(bytes, 40) != data.length
+                    || !Arrays.equals(data, Arrays.copyOfRange(bytes, 44,
+                            bytes.length)))
+            {
+                throw new RuntimeException(entry.getKey()
+                        + " is not the expected RIFF WAVE file");
+            }
+        }
+        PublishVisitor parVisitor = createVisitor(pres, source, destination,
+                parDir, 4);
+        CancellingProgressHandler ph = new CancellingProgressHandler(3);
+        parVisitor.setProgressHandler(ph);
+        parVisitor.publish(pres.getRootNode());
+        if (!parVisitor.isCancelled() || ph.mCancelledCount != 1)
+        {
+            throw new RuntimeException("The publishing was not cancelled");
+        }
+        if (!getClips(pres, destination).equals(seqClips))
+        {
+            throw new RuntimeException(
+                    "A cancelled publishing changed the destination channel");
+        }
+        // The same visitor publishes again after a cancellation
+        parVisitor.setProgressHandler(null);
+        parVisitor.resetAudioFileNumbering();
+        parVisitor.publish(pres.getRootNode());
+        List<String> parClips = getClips(pres, destination);
+        if (parVisitor.isCancelled() || parClips.size() != seqClips.size())
+        {
+            throw new RuntimeException(
+                    "The visitor did not publish again after a cancellation");
+        }
+        for (int i = 0; i < parClips.size(); i++)
+        {
+            parClips.set(i, parClips.get(i).replace(parDir.getName(), seqDir
+                    .getName()));
+        }
+        if (!parClips.equals(seqClips))
+        {
+            throw new RuntimeException(
+                    "The clip times published by 4 workers are different");
+        }
+        for (String name : expected.keySet())
+        {
+            if (!Arrays.equals(readFile(new File(seqDir, name)),
+                    readFile(new File(parDir, name))))
+            {
+                throw new RuntimeException(name
+                        + " published by 4 workers is different");
+            }
+        }
+        if (new File(parDir, "aud" + (expected.size() + 1) + ".wav")
+                .exists())
+        {
+            throw new RuntimeException("Too many files published by 4 workers");
+        }
+        System.out.println("Published " + seqClips.size() + " clips to "
+                + expected.size() + " audio files, identical with 4 workers");
+        System.out.println("OK");
+    }
+}
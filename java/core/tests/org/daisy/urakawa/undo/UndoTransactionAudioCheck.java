@@ -0,0 +1,217 @@
+package org.daisy.urakawa.undo;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.daisy.urakawa.Presentation;
+import org.daisy.urakawa.Project;
+import org.daisy.urakawa.command.AbstractCommand;
+import org.daisy.urakawa.command.CommandCannotExecuteException;
+import org.daisy.urakawa.command.CommandCannotUnExecuteException;
+import org.daisy.urakawa.media.data.IDataProvider;
+import org.daisy.urakawa.media.data.IFileDataProvider;
+import org.daisy.urakawa.media.data.IMediaData;
+import org.daisy.urakawa.media.data.audio.IAudioMediaData;
+import org.daisy.urakawa.media.data.audio.codec.WavAudioMediaData;
+import org.daisy.urakawa.media.timing.ITime;
+import org.daisy.urakawa.media.timing.Time;
+import org.daisy.urakawa.nativeapi.IStream;
+import org.daisy.urakawa.nativeapi.IXmlDataReader;
+import org.daisy.urakawa.nativeapi.IXmlDataWriter;
+import org.daisy.urakawa.nativeapi.MemoryStream;
+import org.daisy.urakawa.progress.IProgressHandler;
+
+/**
+ * Makes an audio edit inside an undo-redo transaction, which removes the last
+ * clip of a WavAudioMediaData from the Presentation, and checks that the data
+ * file of the clip is kept, and its audio restored, when the transaction is
+ * undone, redone and undone again, and when it is cancelled. Then checks that
+ * the data file is deleted once the commands are flushed. Run with the
+ * directory in which the data files are written as first argument (default:
+ * the temporary directory).
+ */
+public class UndoTransactionAudioCheck
+{
+    /**
+     * Splits the audio data at the given time, and removes the second part
+     * from the Presentation.
+     */
+    private static class RemoveTailCommand extends AbstractCommand
+    {
+        private WavAudioMediaData mData;
+        private ITime mSplitPoint;
+        private IAudioMediaData mTail = null;
+
+        RemoveTailCommand(WavAudioMediaData data, ITime splitPoint)
+                throws Exception
+        {
+            mData = data;
+            mSplitPoint = splitPoint;
+            setPresentation(data.getPresentation());
+        }
+
+        public boolean canExecute()
+        {
+            return true;
+        }
+
+        public void execute() throws CommandCannotExecuteException
+        {
+            try
+            {
+                mTail = mData.split(mSplitPoint);
+                getPresentation().getMediaDataManager().removeMediaData(mTail);
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public boolean canUnExecute()
+        {
+            return true;
+        }
+
+        public void unExecute() throws CommandCannotUnExecuteException
+        {
+            try
+            {
+                getPresentation().getMediaDataManager().addMediaData(mTail);
+                mData.mergeWith(mTail);
+                getPresentation().getMediaDataManager().removeMediaData(mTail);
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+            mTail = null;
+        }
+
+        public List<IMediaData> getListOfUsedMediaData()
+        {
+            List<IMediaData> res = new ArrayList<IMediaData>();
+            res.add(mData);
+            if (mTail != null)
+            {
+                res.add(mTail);
+            }
+            return res;
+        }
+
+        @Override
+        protected void xukInAttributes(IXmlDataReader source,
+                IProgressHandler ph)
+        {
+        }
+
+        @Override
+        protected void xukOutAttributes(IXmlDataWriter destination,
+                URI baseUri, IProgressHandler ph)
+        {
+        }
+
+        @Override
+        protected void xukOutChildren(IXmlDataWriter destination,
+                URI baseUri, IProgressHandler ph)
+        {
+        }
+    }
+
+    private static void check(boolean condition, String message)
+    {
+        if (!condition)
+        {
+            throw new RuntimeException(message);
+        }
+    }
+
+    private static byte[] pcm(int length, int seed)
+    {
+        byte[] res = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            res[i] = (byte) (i * 31 + seed);
+        }
+        return res;
+    }
+
+    private static byte[] readAudio(WavAudioMediaData data) throws Exception
+    {
+        IStream stream = data.getAudioData();
+        try
+        {
+            return stream.readBytes(stream.getLength());
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    private static void checkAudio(WavAudioMediaData data, byte[] expected,
+            File tailFile, String when) throws Exception
+    {
+        check(tailFile.exists(), "The data file must be kept " + when);
+        check(Arrays.equals(readAudio(data), expected),
+                "The audio data must be restored " + when);
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        File dir = new File(args.length > 0 ? args[0] : System
+                .getProperty("java.io.tmpdir"));
+        Project project = new Project();
+        Presentation pres = project.addNewPresentation();
+        pres.setRootURI(dir.toURI());
+        UndoRedoManager undoRedo = pres.getUndoRedoManager();
+        WavAudioMediaData data = pres.getMediaDataFactory()
+                .createWavAudioMediaData();
+        byte[] head = pcm(2 * 1000, 1);
+        byte[] tail = pcm(2 * 1377, 2);
+        data.appendAudioData(new MemoryStream(head), null);
+        ITime splitPoint = Time.fromTicks(data.getAudioDuration()
+                .getTimeDeltaAsTicks());
+        data.appendAudioData(new MemoryStream(tail), null);
+        byte[] original = readAudio(data);
+        List<IDataProvider> providers = data.getListOfUsedDataProviders();
+        check(providers.size() == 2, "The audio data must use two data files");
+        File tailFile = new File(((IFileDataProvider) providers.get(1))
+                .getDataFileFullPath());
+        check(tailFile.exists(), "The data file must be written");
+        undoRedo.startTransaction("Remove tail", "Removes the tail");
+        undoRedo.execute(new RemoveTailCommand(data, splitPoint));
+        check(tailFile.exists(),
+                "The data file must be kept while the transaction is active");
+        undoRedo.endTransaction();
+        check(Arrays.equals(readAudio(data), head),
+                "The tail must be removed");
+        undoRedo.undo();
+        checkAudio(data, original, tailFile, "when the transaction is undone");
+        undoRedo.redo();
+        check(Arrays.equals(readAudio(data), head),
+                "The tail must be removed again");
+        undoRedo.undo();
+        checkAudio(data, original, tailFile,
+                "when the transaction is undone again");
+        undoRedo.startTransaction("Remove tail", "Removes the tail");
+        undoRedo.execute(new RemoveTailCommand(data, splitPoint));
+        undoRedo.cancelTransaction();
+        checkAudio(data, original, tailFile,
+                "when the transaction is cancelled");
+        undoRedo.redo();
+        undoRedo.flushCommands();
+        check(!tailFile.exists(),
+                "The data file must be deleted once the commands are flushed");
+        check(Arrays.equals(readAudio(data), head),
+                "The head must be kept once the commands are flushed");
+        System.out.println("OK");
+    }
+}